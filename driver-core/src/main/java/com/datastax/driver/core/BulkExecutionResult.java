@@ -0,0 +1,146 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.codahale.metrics.Snapshot;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a {@link BulkExecutor#executeAll(Iterable) bulk execution}.
+ */
+public class BulkExecutionResult {
+
+    private final long successCount;
+    private final long failureCount;
+    private final List<Failure> failures;
+    private final long elapsedNanos;
+    private final Snapshot latencies;
+    private final long windowReductions;
+
+    BulkExecutionResult(long successCount, long failureCount, List<Failure> failures, long elapsedNanos, Snapshot latencies,
+                        long windowReductions) {
+        this.successCount = successCount;
+        this.failureCount = failureCount;
+        this.failures = failures;
+        this.elapsedNanos = elapsedNanos;
+        this.latencies = latencies;
+        this.windowReductions = windowReductions;
+    }
+
+    /**
+     * Returns the number of statements that were executed successfully.
+     *
+     * @return the number of statements that were executed successfully.
+     */
+    public long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Returns the number of statements that failed.
+     *
+     * @return the number of statements that failed.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns the statements that failed, and the corresponding errors.
+     * <p/>
+     * Only the first failures are retained, up to {@link BulkExecutor.Builder#withMaxRetainedFailures(int) a
+     * configurable limit}: if {@link #getFailureCount()} is greater than the size of this list, the other failures
+     * were only counted.
+     *
+     * @return the retained failures, in the order in which they occurred.
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the total duration of the execution.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the total duration of the execution.
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean throughput of the execution, including failed statements.
+     *
+     * @return the number of statements executed per second.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : (successCount + failureCount) * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns the distribution of the latencies of individual statements, in nanoseconds.
+     *
+     * @return the latencies, in nanoseconds.
+     */
+    public Snapshot getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the number of times a host's window of requests in flight was reduced because of backpressure.
+     * <p/>
+     * A high number indicates that the cluster could not keep up with the configured maximum number of requests in
+     * flight.
+     *
+     * @return the number of window reductions.
+     */
+    public long getWindowReductions() {
+        return windowReductions;
+    }
+
+    /**
+     * A statement that could not be executed.
+     */
+    public static class Failure {
+        private final Statement statement;
+        private final Throwable error;
+
+        Failure(Statement statement, Throwable error) {
+            this.statement = statement;
+            this.error = error;
+        }
+
+        /**
+         * Returns the statement that failed.
+         *
+         * @return the statement that failed.
+         */
+        public Statement getStatement() {
+            return statement;
+        }
+
+        /**
+         * Returns the error that caused the statement to fail.
+         *
+         * @return the error.
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.exceptions.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Executes a large number of statements asynchronously, while bounding the number of requests in flight.
+ * <p/>
+ * This replaces the usual "semaphore + {@code executeAsync}" loop that applications write to load or update large
+ * amounts of data:
+ * <pre>
+ *     BulkExecutor executor = BulkExecutor.builder(session)
+ *         .withMaxInFlightPerHost(256)
+ *         .build();
+ *     BulkExecutionResult result = executor.executeAll(statements);
+ *     for (BulkExecutionResult.Failure failure : result.getFailures())
+ *         ... log or retry failure.getStatement() ...
+ * </pre>
+ * Statements are consumed lazily from the provided {@code Iterable}, so it can be backed by a stream of data that does
+ * not fit in memory.
+ * <p/>
+ * The number of requests in flight is limited per host: each statement is assigned to the first live replica of its
+ * partition (as computed from its {@link Statement#getRoutingKey(ProtocolVersion, CodecRegistry) routing key}), and
+ * statements that can't be routed share a common window. This way, a slow host only slows down the statements that
+ * target it. The statements are still executed through the session's load balancing policy; with the default
+ * {@link com.datastax.driver.core.policies.TokenAwarePolicy token-aware} policy, they are sent to their replicas.
+ * Note that statements are submitted in iteration order: if the window of a host is full, the next statements wait
+ * even if they target another host.
+ * <p/>
+ * Failed statements do not stop the execution; they are counted in the {@link BulkExecutionResult}, and the first
+ * ones are retained with their error (see {@link Builder#withMaxRetainedFailures(int)}). By default,
+ * the window of each host adapts to backpressure: it is halved every time a request fails because the host or the
+ * driver is overloaded (timeouts, overloaded or busy errors), and grows again slowly as requests succeed.
+ * <p/>
+ * Instances of this class are thread-safe, and can be reused for multiple executions.
+ */
+public class BulkExecutor {
+
+    private final Session session;
+    private final Cluster cluster;
+    private final int minInFlightPerHost;
+    private final int maxInFlightPerHost;
+    private final boolean adaptive;
+    private final int maxRetainedFailures;
+
+    private BulkExecutor(Session session, int minInFlightPerHost, int maxInFlightPerHost, boolean adaptive,
+                         int maxRetainedFailures) {
+        this.session = session;
+        this.cluster = session.getCluster();
+        this.minInFlightPerHost = minInFlightPerHost;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.adaptive = adaptive;
+        this.maxRetainedFailures = maxRetainedFailures;
+    }
+
+    /**
+     * Returns a builder to create a new instance.
+     *
+     * @param session the session that will execute the statements.
+     * @return the builder.
+     */
+    public static Builder builder(Session session) {
+        return new Builder(session);
+    }
+
+    /**
+     * Executes the given statements, and blocks until all of them have completed.
+     * <p/>
+     * This method must not be called from a driver I/O thread (for example in a future callback).
+     *
+     * @param statements the statements to execute.
+     * @return the outcome of the execution.
+     */
+    public BulkExecutionResult executeAll(Iterable<? extends Statement> statements) {
+        if (session instanceof AbstractSession)
+            ((AbstractSession) session).checkNotInEventLoop();
+
+        final Execution execution = new Execution();
+        Map<Host, Window> windows = new HashMap<Host, Window>();
+        boolean interrupted = false;
+        try {
+            for (final Statement statement : statements) {
+                Host host = primaryReplica(statement);
+                Window window = windows.get(host);
+                if (window == null) {
+                    window = new Window(minInFlightPerHost, maxInFlightPerHost, adaptive);
+                    windows.put(host, window);
+                }
+                interrupted |= window.acquire();
+                execution.execute(statement, window);
+            }
+            for (Window window : windows.values())
+                interrupted |= window.awaitEmpty();
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        return execution.result();
+    }
+
+    private Host primaryReplica(Statement statement) {
+        Configuration configuration = cluster.getConfiguration();
+        ByteBuffer partitionKey = statement.getRoutingKey(
+                configuration.getProtocolOptions().getProtocolVersion(), configuration.getCodecRegistry());
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null)
+            keyspace = session.getLoggedKeyspace();
+        if (partitionKey == null || keyspace == null)
+            return null;
+
+        for (Host replica : cluster.getMetadata().getReplicas(Metadata.quote(keyspace), partitionKey)) {
+            if (replica.isUp())
+                return replica;
+        }
+        return null;
+    }
+
+    private class Execution {
+        private final long startTime = System.nanoTime();
+        private final Timer latencies = new Timer();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        // Bounded, to avoid holding on to the statements of a large execution that fails massively
+        private final List<BulkExecutionResult.Failure> failures = new ArrayList<BulkExecutionResult.Failure>();
+        private final AtomicLong windowReductions = new AtomicLong();
+
+        void execute(final Statement statement, final Window window) {
+            final long start = System.nanoTime();
+            ResultSetFuture future;
+            try {
+                future = session.executeAsync(statement);
+            } catch (RuntimeException e) {
+                onFailure(statement, window, e);
+                return;
+            }
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                    latencies.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    successes.incrementAndGet();
+                    window.release(false);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    latencies.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    Execution.this.onFailure(statement, window, t);
+                }
+            });
+        }
+
+        private void onFailure(Statement statement, Window window, Throwable t) {
+            if (failureCount.incrementAndGet() <= maxRetainedFailures) {
+                synchronized (failures) {
+                    failures.add(new BulkExecutionResult.Failure(statement, t));
+                }
+            }
+            if (window.release(isBackpressure(t)))
+                windowReductions.incrementAndGet();
+        }
+
+        BulkExecutionResult result() {
+            List<BulkExecutionResult.Failure> failuresCopy;
+            synchronized (failures) {
+                failuresCopy = new ArrayList<BulkExecutionResult.Failure>(failures);
+            }
+            return new BulkExecutionResult(successes.get(), failureCount.get(), failuresCopy, System.nanoTime() - startTime,
+                    latencies.getSnapshot(), windowReductions.get());
+        }
+    }
+
+    /**
+     * Whether an error indicates that the cluster, or the driver's connection pools, can't keep up with the load.
+     */
+    static boolean isBackpressure(Throwable t) {
+        if (t instanceof NoHostAvailableException) {
+            for (Throwable error : ((NoHostAvailableException) t).getErrors().values()) {
+                if (isBackpressure(error))
+                    return true;
+            }
+            return false;
+        }
+        return t instanceof OverloadedException
+                || t instanceof BusyPoolException
+                || t instanceof BusyConnectionException
+                || t instanceof OperationTimedOutException
+                || t instanceof WriteTimeoutException
+                || t instanceof ReadTimeoutException;
+    }
+
+    /**
+     * The requests in flight to a host, bounded by an additive-increase/multiplicative-decrease limit.
+     */
+    static class Window {
+        private final int min;
+        private final int max;
+        private final boolean adaptive;
+        private double limit;
+        private int inFlight;
+
+        Window(int min, int max, boolean adaptive) {
+            this.min = min;
+            this.max = max;
+            this.adaptive = adaptive;
+            this.limit = max;
+        }
+
+        /**
+         * @return whether the thread was interrupted while waiting.
+         */
+        synchronized boolean acquire() {
+            boolean interrupted = false;
+            while (inFlight >= (int) limit) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            inFlight += 1;
+            return interrupted;
+        }
+
+        /**
+         * @return whether the limit was reduced.
+         */
+        synchronized boolean release(boolean backpressure) {
+            inFlight -= 1;
+            boolean reduced = false;
+            if (adaptive) {
+                if (backpressure) {
+                    double newLimit = Math.max(min, limit / 2);
+                    reduced = newLimit < limit;
+                    limit = newLimit;
+                } else {
+                    // grows by one after a full window of successful requests
+                    limit = Math.min(max, limit + 1 / limit);
+                }
+            }
+            notifyAll();
+            return reduced;
+        }
+
+        /**
+         * @return whether the thread was interrupted while waiting.
+         */
+        synchronized boolean awaitEmpty() {
+            boolean interrupted = false;
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return interrupted;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+    }
+
+    /**
+     * Helper class to build {@code BulkExecutor} instances with a fluent interface.
+     */
+    public static class Builder {
+        private final Session session;
+        private int minInFlightPerHost = 8;
+        private int maxInFlightPerHost = 256;
+        private boolean adaptive = true;
+        private int maxRetainedFailures = 1000;
+
+        Builder(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Sets the maximum number of requests in flight per host.
+         * <p/>
+         * This is also the initial size of each host's window.
+         * <p/>
+         * If not set explicitly, this value defaults to 256.
+         *
+         * @param maxInFlightPerHost the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withMaxInFlightPerHost(int maxInFlightPerHost) {
+            checkArgument(maxInFlightPerHost > 0,
+                    "maxInFlightPerHost must be strictly positive (was %s)", maxInFlightPerHost);
+            this.maxInFlightPerHost = maxInFlightPerHost;
+            return this;
+        }
+
+        /**
+         * Sets the minimum number of requests in flight per host, that the window will not shrink under.
+         * <p/>
+         * If not set explicitly, this value defaults to 8 (or the maximum, if it is lower).
+         *
+         * @param minInFlightPerHost the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withMinInFlightPerHost(int minInFlightPerHost) {
+            checkArgument(minInFlightPerHost > 0,
+                    "minInFlightPerHost must be strictly positive (was %s)", minInFlightPerHost);
+            this.minInFlightPerHost = minInFlightPerHost;
+            return this;
+        }
+
+        /**
+         * Disables the adaptation of windows to backpressure: each host will always have up to
+         * {@link #withMaxInFlightPerHost(int) max} requests in flight.
+         *
+         * @return this builder.
+         */
+        public Builder withoutAdaptiveWindow() {
+            this.adaptive = false;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of failures (statement and error) retained in the {@link BulkExecutionResult}.
+         * <p/>
+         * Failures beyond that limit are only counted (see {@link BulkExecutionResult#getFailureCount()}). This
+         * bounds the memory used by an execution where most statements fail, for example if the cluster is down.
+         * <p/>
+         * If not set explicitly, this value defaults to 1000.
+         *
+         * @param maxRetainedFailures the new value. Must be positive or zero.
+         * @return this builder.
+         */
+        public Builder withMaxRetainedFailures(int maxRetainedFailures) {
+            checkArgument(maxRetainedFailures >= 0,
+                    "maxRetainedFailures must be positive or zero (was %s)", maxRetainedFailures);
+            this.maxRetainedFailures = maxRetainedFailures;
+            return this;
+        }
+
+        /**
+         * Builds the {@code BulkExecutor} instance configured with this builder.
+         *
+         * @return the instance.
+         */
+        public BulkExecutor build() {
+            return new BulkExecutor(session, Math.min(minInFlightPerHost, maxInFlightPerHost), maxInFlightPerHost, adaptive,
+                    maxRetainedFailures);
+        }
+    }
+}
@@ -18,10 +18,13 @@ package com.datastax.driver.core;
 /**
  * Special exception that gets emitted to {@link LatencyTracker}s with the latencies of cancelled speculative
  * executions. This allows those trackers to choose whether to ignore those latencies or not.
+ * <p/>
+ * It does not indicate a problem with the host: the execution was cancelled by the driver, because another execution
+ * of the same request completed first, or because the request was cancelled or timed out.
  */
-class CancelledSpeculativeExecutionException extends Exception {
+public class CancelledSpeculativeExecutionException extends Exception {
 
-    static CancelledSpeculativeExecutionException INSTANCE = new CancelledSpeculativeExecutionException();
+    public static final CancelledSpeculativeExecutionException INSTANCE = new CancelledSpeculativeExecutionException();
 
     private CancelledSpeculativeExecutionException() {
         super();
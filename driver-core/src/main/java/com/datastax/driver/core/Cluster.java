@@ -36,6 +36,7 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.datastax.driver.core.SchemaElement.KEYSPACE;
@@ -510,6 +511,36 @@ public class Cluster implements Closeable {
         return this;
     }
 
+    /**
+     * Registers the provided exporter to be notified of the {@link RequestTimeline timelines} of sampled requests.
+     * <p/>
+     * Registering the same exporter multiple times is a no-op. Timelines are only recorded if
+     * {@link QueryOptions#setRequestTimelineSamplingRate(double) sampling} is enabled.
+     *
+     * @param exporter the new {@link RequestTimelineExporter} to register.
+     * @return this {@code Cluster} object;
+     */
+    public Cluster register(RequestTimelineExporter exporter) {
+        checkNotClosed(manager);
+        manager.requestTimelineExporters.add(exporter);
+        return this;
+    }
+
+    /**
+     * Unregisters the provided request timeline exporter.
+     * <p/>
+     * This method is a no-op if {@code exporter} hasn't previously been
+     * registered against this Cluster.
+     *
+     * @param exporter the {@link RequestTimelineExporter} to unregister.
+     * @return this {@code Cluster} object;
+     */
+    public Cluster unregister(RequestTimelineExporter exporter) {
+        checkNotClosed(manager);
+        manager.requestTimelineExporters.remove(exporter);
+        return this;
+    }
+
     /**
      * Registers the provided listener to be updated with schema change events.
      * <p/>
@@ -1092,6 +1123,20 @@ public class Cluster implements Closeable {
             return this;
         }
 
+        /**
+         * Configures the retry budget policy to use for the new cluster.
+         * <p/>
+         * If no policy is set through this method, {@link Policies#defaultRetryBudgetPolicy()}
+         * will be used instead.
+         *
+         * @param policy the policy to use.
+         * @return this Builder.
+         */
+        public Builder withRetryBudgetPolicy(RetryBudgetPolicy policy) {
+            policiesBuilder.withRetryBudgetPolicy(policy);
+            return this;
+        }
+
 
         /**
          * Configures the {@link CodecRegistry} instance to use for the new cluster.
@@ -1412,6 +1457,8 @@ public class Cluster implements Closeable {
         final Set<Host.StateListener> listeners;
         final Set<LatencyTracker> latencyTrackers = new CopyOnWriteArraySet<LatencyTracker>();
         final Set<SchemaChangeListener> schemaChangeListeners = new CopyOnWriteArraySet<SchemaChangeListener>();
+        final Set<RequestTimelineExporter> requestTimelineExporters = new CopyOnWriteArraySet<RequestTimelineExporter>();
+        private final AtomicLong requestTimelineCounter = new AtomicLong();
 
         EventDebouncer<NodeListRefreshRequest> nodeListRefreshRequestDebouncer;
         EventDebouncer<NodeRefreshRequest> nodeRefreshRequestDebouncer;
@@ -1554,6 +1601,7 @@ public class Cluster implements Closeable {
                 loadBalancingPolicy().init(Cluster.this, contactPointHosts);
 
                 speculativeExecutionPolicy().init(Cluster.this);
+                retryBudgetPolicy().init(Cluster.this);
                 configuration.getPolicies().getRetryPolicy().init(Cluster.this);
                 reconnectionPolicy().init(Cluster.this);
                 configuration.getPolicies().getAddressTranslator().init(Cluster.this);
@@ -1652,6 +1700,10 @@ public class Cluster implements Closeable {
             return configuration.getPolicies().getSpeculativeExecutionPolicy();
         }
 
+        RetryBudgetPolicy retryBudgetPolicy() {
+            return configuration.getPolicies().getRetryBudgetPolicy();
+        }
+
         ReconnectionPolicy reconnectionPolicy() {
             return configuration.getPolicies().getReconnectionPolicy();
         }
@@ -1678,6 +1730,27 @@ public class Cluster implements Closeable {
             }
         }
 
+        boolean sampleRequestTimeline() {
+            double rate = configuration.getQueryOptions().getRequestTimelineSamplingRate();
+            if (rate <= 0)
+                return false;
+            if (rate >= 1)
+                return true;
+            // Sample the n-th request if it makes the number of sampled requests go up, so that the rate is exact
+            long n = requestTimelineCounter.incrementAndGet();
+            return (long) (n * rate) != (long) ((n - 1) * rate);
+        }
+
+        void exportRequestTimeline(Host host, Statement statement, RequestTimeline timeline) {
+            for (RequestTimelineExporter exporter : requestTimelineExporters) {
+                try {
+                    exporter.export(host, statement, timeline);
+                } catch (RuntimeException e) {
+                    logger.warn("Unexpected error while exporting request timeline with " + exporter, e);
+                }
+            }
+        }
+
         boolean isClosed() {
             return closeFuture.get() != null;
         }
@@ -1711,6 +1784,7 @@ public class Cluster implements Closeable {
 
                 loadBalancingPolicy().close();
                 speculativeExecutionPolicy().close();
+                retryBudgetPolicy().close();
                 configuration.getPolicies().getRetryPolicy().close();
                 reconnectionPolicy().close();
                 configuration.getPolicies().getAddressTranslator().close();
@@ -2196,6 +2270,9 @@ public class Cluster implements Closeable {
                 for (SessionManager s : sessions)
                     s.onRemove(host);
 
+                if (metrics != null)
+                    metrics.unregisterHostMetrics(host);
+
                 for (Host.StateListener listener : listeners)
                     listener.onRemove(host);
             } finally {
@@ -32,9 +32,7 @@ import io.netty.handler.codec.DecoderException;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.Timeout;
 import io.netty.util.Timer;
-import io.netty.util.TimerTask;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +46,7 @@ import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.datastax.driver.core.Message.Response.Type.ERROR;
@@ -68,9 +67,29 @@ class Connection {
     private static final boolean DISABLE_COALESCING = SystemProperties.getBoolean("com.datastax.driver.DISABLE_COALESCING", false);
     private static final int FLUSHER_SCHEDULE_PERIOD_NS = SystemProperties.getInt("com.datastax.driver.FLUSHER_SCHEDULE_PERIOD_NS", 10000);
     private static final int FLUSHER_RUN_WITHOUT_WORK_TIMES = SystemProperties.getInt("com.datastax.driver.FLUSHER_RUN_WITHOUT_WORK_TIMES", 5);
+    private static final long TIMEOUT_SWEEP_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(
+            SystemProperties.getInt("com.datastax.driver.TIMEOUT_SWEEP_INTERVAL_MILLIS", 100));
+    // Marks the absence of armed read timeouts in Dispatcher.nextDeadline
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
 
     enum State {OPEN, TRASHED, RESURRECTING, GONE}
 
+    /**
+     * How a request is handed to the channel.
+     */
+    enum FlushMode {
+        /**
+         * Hand the request to the flusher, that coalesces the writes of concurrent requests.
+         */
+        COALESCE,
+        /**
+         * If the connection has no other request in flight, write and flush the request right away. There is nothing
+         * to coalesce with in that case, so this saves the flusher's scheduling delay; it is meant for
+         * latency-sensitive (synchronous) requests. Otherwise, same as {@link #COALESCE}.
+         */
+        FLUSH_IF_IDLE
+    }
+
     final AtomicReference<State> state = new AtomicReference<State>(State.OPEN);
 
     volatile long maxIdleTime;
@@ -168,6 +187,7 @@ class Connection {
                         } else {
                             logger.debug("{} Connection established, initializing transport", Connection.this);
                             channel.closeFuture().addListener(new ChannelCloseListener());
+                            new TimeoutSweeper().schedule(channel.eventLoop());
                             channelReadyFuture.set(null);
                         }
                     }
@@ -430,6 +450,14 @@ class Connection {
         return dispatcher.streamIdHandler.maxAvailableStreams();
     }
 
+    /**
+     * @return the number of stream ids that are held by requests we gave up on (because of a timeout or a
+     * cancellation), and that will only be freed if the server eventually replies.
+     */
+    int orphanedStreams() {
+        return dispatcher.streamIdHandler.orphanedCount();
+    }
+
     <E extends Throwable> E defunct(E e) {
         if (isDefunct.compareAndSet(false, true)) {
 
@@ -576,11 +604,21 @@ class Connection {
     }
 
     ResponseHandler write(ResponseCallback callback, long statementReadTimeoutMillis, boolean startTimeout) throws ConnectionException, BusyConnectionException {
+        return write(callback, statementReadTimeoutMillis, startTimeout, FlushMode.COALESCE, null);
+    }
+
+    /**
+     * @param flushMode how the request is handed to the channel.
+     * @param timeline  if the request is sampled, where to record the encoding times (see {@link RequestTimeline}).
+     */
+    ResponseHandler write(ResponseCallback callback, long statementReadTimeoutMillis, boolean startTimeout, FlushMode flushMode, RequestTimeline.Recorder timeline) throws ConnectionException, BusyConnectionException {
 
         ResponseHandler handler = new ResponseHandler(this, statementReadTimeoutMillis, callback);
         dispatcher.add(handler);
 
         Message.Request request = callback.request().setStreamId(handler.streamId);
+        if (timeline != null)
+            request.timeline = timeline;
 
         /*
          * We check for close/defunct *after* having set the handler because closing/defuncting
@@ -601,10 +639,11 @@ class Connection {
         logger.trace("{}, stream {}, writing request {}", this, request.getStreamId(), request);
         writer.incrementAndGet();
 
-        if (DISABLE_COALESCING) {
+        if (DISABLE_COALESCING || (flushMode == FlushMode.FLUSH_IF_IDLE && inFlight.get() <= 1)) {
+            handler.markSent();
             channel.writeAndFlush(request).addListener(writeHandler(request, handler));
         } else {
-            flush(new FlushItem(channel, request, writeHandler(request, handler)));
+            flush(new FlushItem(channel, request, handler, writeHandler(request, handler)));
         }
         if (startTimeout)
             handler.startTimeout();
@@ -919,6 +958,46 @@ class Connection {
         }
     }
 
+    /**
+     * Fires the read timeouts of the requests pending on this connection.
+     * <p/>
+     * Instead of scheduling (and most of the time cancelling) a task on the shared timer for each request, we
+     * periodically scan the pending handlers from the channel's event loop. This spreads the work across event loops,
+     * and guarantees that a timeout never fires concurrently with the processing of a response on this connection.
+     * The dispatcher tracks the earliest deadline of the armed timeouts, so that most sweeps return without scanning
+     * the handlers. The precision of read timeouts is the sweep interval (100 milliseconds by default, see
+     * {@code com.datastax.driver.TIMEOUT_SWEEP_INTERVAL_MILLIS}): a timeout fires up to one interval late.
+     * <p/>
+     * Note that {@link ResponseCallback#onTimeout} is invoked on the event loop. For regular requests, this means that
+     * the retry policy is consulted, and the next attempt is started, on an I/O thread.
+     */
+    private class TimeoutSweeper implements Runnable {
+        private long expectedRunTime;
+
+        void schedule(EventLoop eventLoop) {
+            expectedRunTime = System.nanoTime() + TIMEOUT_SWEEP_INTERVAL_NS;
+            eventLoop.schedule(this, TIMEOUT_SWEEP_INTERVAL_NS, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            try {
+                Metrics metrics = factory.manager.metrics;
+                if (metrics != null)
+                    metrics.getTimeoutSweepLag().update(TimeUnit.NANOSECONDS.toMicros(Math.max(0, now - expectedRunTime)));
+
+                dispatcher.sweepTimeouts(now);
+            } finally {
+                Channel channel = Connection.this.channel;
+                EventLoop eventLoop = channel.eventLoop();
+                // Once the channel is closed, the remaining handlers get errored out by ChannelCloseListener
+                if (channel.isOpen() && !eventLoop.isShuttingDown())
+                    schedule(eventLoop);
+            }
+        }
+    }
+
     private static final class Flusher implements Runnable {
         final WeakReference<EventLoop> eventLoopRef;
         final Queue<FlushItem> queued = new ConcurrentLinkedQueue<FlushItem>();
@@ -945,6 +1024,11 @@ class Connection {
             FlushItem flush;
             while (null != (flush = queued.poll())) {
                 Channel channel = flush.channel;
+                if (!flush.handler.markSent()) {
+                    // The request was cancelled before it reached the socket, its stream id was already released
+                    flush.handler.connection.writer.decrementAndGet();
+                    continue;
+                }
                 if (channel.isActive()) {
                     channels.add(channel);
                     channel.write(flush.request).addListener(flush.listener);
@@ -987,11 +1071,13 @@ class Connection {
     private static class FlushItem {
         final Channel channel;
         final Object request;
+        final ResponseHandler handler;
         final ChannelFutureListener listener;
 
-        private FlushItem(Channel channel, Object request, ChannelFutureListener listener) {
+        private FlushItem(Channel channel, Object request, ResponseHandler handler, ChannelFutureListener listener) {
             this.channel = channel;
             this.request = request;
+            this.handler = handler;
             this.listener = listener;
         }
     }
@@ -1013,6 +1099,9 @@ class Connection {
 
         final StreamIdGenerator streamIdHandler;
         private final ConcurrentMap<Integer, ResponseHandler> pending = new ConcurrentHashMap<Integer, ResponseHandler>();
+        // The earliest deadline of the armed read timeouts, or NO_DEADLINE. It can be earlier than the actual one
+        // (if that timeout was cancelled since), which only costs an unnecessary scan.
+        private final AtomicLong nextDeadline = new AtomicLong(NO_DEADLINE);
 
         Dispatcher() {
             ProtocolVersion protocolVersion = factory.protocolVersion;
@@ -1050,6 +1139,11 @@ class Connection {
 
             if (releaseStreamId)
                 streamIdHandler.release(handler.streamId);
+            else {
+                Owner owner = ownerRef.get();
+                if (owner instanceof HostConnectionPool)
+                    ((HostConnectionPool) owner).onStreamOrphaned(Connection.this);
+            }
 
             if (isClosed())
                 tryTerminate(false);
@@ -1147,6 +1241,31 @@ class Connection {
             defunct(new TransportException(address, String.format("Unexpected exception triggered (%s)", cause), cause));
         }
 
+        void timeoutArmed(long deadline) {
+            while (true) {
+                long current = nextDeadline.get();
+                if (current != NO_DEADLINE && current - deadline <= 0)
+                    return;
+                if (nextDeadline.compareAndSet(current, deadline))
+                    return;
+            }
+        }
+
+        void sweepTimeouts(long now) {
+            long deadline = nextDeadline.get();
+            if (deadline == NO_DEADLINE || now - deadline < 0)
+                return;
+            // Reset before scanning: timeouts armed concurrently either are seen by the scan, or register their own
+            // deadline for the next sweep.
+            nextDeadline.set(NO_DEADLINE);
+            for (ResponseHandler handler : pending.values()) {
+                if (handler.isTimedOut(now))
+                    handler.fireTimeout();
+                else if (handler.timeoutArmed)
+                    timeoutArmed(handler.timeoutDeadline);
+            }
+        }
+
         void errorOutAllHandler(ConnectionException ce) {
             Iterator<ResponseHandler> iter = pending.values().iterator();
             while (iter.hasNext()) {
@@ -1343,6 +1462,10 @@ class Connection {
 
     static class ResponseHandler {
 
+        private static final int WRITE_PENDING = 0;
+        private static final int WRITE_SENT = 1;
+        private static final int WRITE_DROPPED = 2;
+
         final Connection connection;
         final int streamId;
         final ResponseCallback callback;
@@ -1350,10 +1473,15 @@ class Connection {
         private final long readTimeoutMillis;
 
         private final long startTime;
-        private volatile Timeout timeout;
+        // The read timeout is not scheduled, it's detected by the connection's TimeoutSweeper
+        private volatile long timeoutDeadline;
+        private volatile boolean timeoutArmed;
 
         private final AtomicBoolean isCancelled = new AtomicBoolean();
 
+        // Whether the request has been handed to the channel (SENT), or was cancelled before that (DROPPED).
+        private final AtomicInteger writeState = new AtomicInteger(WRITE_PENDING);
+
         ResponseHandler(Connection connection, long statementReadTimeoutMillis, ResponseCallback callback) throws BusyConnectionException {
             this.connection = connection;
             this.readTimeoutMillis = (statementReadTimeoutMillis >= 0) ? statementReadTimeoutMillis : connection.factory.getReadTimeoutMillis();
@@ -1367,34 +1495,55 @@ class Connection {
         }
 
         void startTimeout() {
-            this.timeout = this.readTimeoutMillis <= 0 ? null : connection.factory.timer.newTimeout(onTimeoutTask(), this.readTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (readTimeoutMillis > 0) {
+                timeoutDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+                timeoutArmed = true;
+                connection.dispatcher.timeoutArmed(timeoutDeadline);
+            }
         }
 
         void cancelTimeout() {
-            if (timeout != null)
-                timeout.cancel();
+            timeoutArmed = false;
+        }
+
+        boolean isTimedOut(long now) {
+            return timeoutArmed && now - timeoutDeadline >= 0;
+        }
+
+        void fireTimeout() {
+            // Only fire once, even if the callback chooses to keep the handler
+            timeoutArmed = false;
+            try {
+                if (callback.onTimeout(connection, System.nanoTime() - startTime, retryCount))
+                    cancelHandler();
+            } catch (RuntimeException e) {
+                logger.warn(String.format("%s, stream %d, unexpected error while processing read timeout", connection, streamId), e);
+            }
         }
 
         boolean cancelHandler() {
             if (!isCancelled.compareAndSet(false, true))
                 return false;
 
-            // We haven't really received a response: we want to remove the handle because we gave up on that
-            // request and there is no point in holding the handler, but we don't release the streamId. If we
-            // were, a new request could reuse that ID but get the answer to the request we just gave up on instead
-            // of its own answer, and we would have no way to detect that.
-            connection.dispatcher.removeHandler(this, false);
+            if (writeState.compareAndSet(WRITE_PENDING, WRITE_DROPPED)) {
+                // The request is still waiting in the flusher queue, and will never be written: the server can't
+                // reply on that stream id, so it's safe to release it right away.
+                connection.dispatcher.removeHandler(this, true);
+            } else {
+                // We haven't really received a response: we want to remove the handle because we gave up on that
+                // request and there is no point in holding the handler, but we don't release the streamId. If we
+                // were, a new request could reuse that ID but get the answer to the request we just gave up on instead
+                // of its own answer, and we would have no way to detect that.
+                connection.dispatcher.removeHandler(this, false);
+            }
             return true;
         }
 
-        private TimerTask onTimeoutTask() {
-            return new TimerTask() {
-                @Override
-                public void run(Timeout timeout) {
-                    if (callback.onTimeout(connection, System.nanoTime() - startTime, retryCount))
-                        cancelHandler();
-                }
-            };
+        /**
+         * @return true if the request can be written, false if it was cancelled before it was handed to the channel.
+         */
+        boolean markSent() {
+            return writeState.compareAndSet(WRITE_PENDING, WRITE_SENT);
         }
     }
 
@@ -41,13 +41,16 @@ public class DefaultPreparedStatement implements PreparedStatement {
     volatile RetryPolicy retryPolicy;
     volatile ImmutableMap<String, ByteBuffer> outgoingPayload;
     volatile Boolean idempotent;
+    // Used when idempotent is null, see QueryOptions#setInferIdempotence
+    final Boolean inferredIdempotence;
 
-    private DefaultPreparedStatement(PreparedId id, String query, String queryKeyspace, Map<String, ByteBuffer> incomingPayload, Cluster cluster) {
+    private DefaultPreparedStatement(PreparedId id, String query, String queryKeyspace, Map<String, ByteBuffer> incomingPayload, Cluster cluster, Boolean inferredIdempotence) {
         this.preparedId = id;
         this.query = query;
         this.queryKeyspace = queryKeyspace;
         this.incomingPayload = incomingPayload;
         this.cluster = cluster;
+        this.inferredIdempotence = inferredIdempotence;
     }
 
     static DefaultPreparedStatement fromMessage(Responses.Result.Prepared msg, Cluster cluster, String query, String queryKeyspace) {
@@ -67,7 +70,11 @@ public class DefaultPreparedStatement implements PreparedStatement {
         }
 
         PreparedId preparedId = new PreparedId(boundValuesMetadata, resultSetMetadata, pkIndices, protocolVersion);
-        return new DefaultPreparedStatement(preparedId, query, queryKeyspace, msg.getCustomPayload(), cluster);
+        // Reads are always inferred, writes only if enabled
+        Boolean inferredIdempotence = cluster.getConfiguration().getQueryOptions().isInferIdempotence()
+                ? IdempotenceInference.infer(query, defs)
+                : (IdempotenceInference.isRead(query) ? Boolean.TRUE : null);
+        return new DefaultPreparedStatement(preparedId, query, queryKeyspace, msg.getCustomPayload(), cluster, inferredIdempotence);
     }
 
     private static int[] computePkIndices(Metadata clusterMetadata, ColumnDefinitions boundColumns) {
@@ -250,6 +257,7 @@ public class DefaultPreparedStatement implements PreparedStatement {
      */
     @Override
     public Boolean isIdempotent() {
-        return this.idempotent;
+        Boolean idempotent = this.idempotent;
+        return idempotent != null ? idempotent : inferredIdempotence;
     }
 }
@@ -41,8 +41,10 @@ public class ExecutionInfo {
     private volatile boolean schemaInAgreement;
     private final List<String> warnings;
     private final Map<String, ByteBuffer> incomingPayload;
+    private final RequestTimeline requestTimeline;
+    private final QueryPlanExplanation queryPlanExplanation;
 
-    private ExecutionInfo(int speculativeExecutions, int successfulExecutionIndex, List<Host> triedHosts, ConsistencyLevel achievedConsistency, QueryTrace trace, ByteBuffer pagingState, ProtocolVersion protocolVersion, CodecRegistry codecRegistry, Statement statement, boolean schemaAgreement, List<String> warnings, Map<String, ByteBuffer> incomingPayload) {
+    private ExecutionInfo(int speculativeExecutions, int successfulExecutionIndex, List<Host> triedHosts, ConsistencyLevel achievedConsistency, QueryTrace trace, ByteBuffer pagingState, ProtocolVersion protocolVersion, CodecRegistry codecRegistry, Statement statement, boolean schemaAgreement, List<String> warnings, Map<String, ByteBuffer> incomingPayload, RequestTimeline requestTimeline, QueryPlanExplanation queryPlanExplanation) {
         this.speculativeExecutions = speculativeExecutions;
         this.successfulExecutionIndex = successfulExecutionIndex;
         this.triedHosts = triedHosts;
@@ -55,14 +57,16 @@ public class ExecutionInfo {
         this.schemaInAgreement = schemaAgreement;
         this.warnings = warnings;
         this.incomingPayload = incomingPayload;
+        this.requestTimeline = requestTimeline;
+        this.queryPlanExplanation = queryPlanExplanation;
     }
 
     ExecutionInfo(Host singleHost) {
-        this(0, 0, ImmutableList.of(singleHost), null, null, null, null, null, null, true, Collections.<String>emptyList(), null);
+        this(0, 0, ImmutableList.of(singleHost), null, null, null, null, null, null, true, Collections.<String>emptyList(), null, null, null);
     }
 
     public ExecutionInfo(int speculativeExecutions, int successfulExecutionIndex, List<Host> triedHosts, ConsistencyLevel achievedConsistency, Map<String, ByteBuffer> customPayload) {
-        this(speculativeExecutions, successfulExecutionIndex, triedHosts, achievedConsistency, null, null, null, null, null, false, null, customPayload);
+        this(speculativeExecutions, successfulExecutionIndex, triedHosts, achievedConsistency, null, null, null, null, null, false, null, customPayload, null, null);
     }
 
     ExecutionInfo with(QueryTrace newTrace, List<String> newWarnings, ByteBuffer newPagingState, Statement newStatement, ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
@@ -72,10 +76,18 @@ public class ExecutionInfo {
                 newStatement,
                 schemaInAgreement,
                 newWarnings,
-                incomingPayload
+                incomingPayload,
+                requestTimeline,
+                queryPlanExplanation
         );
     }
 
+    ExecutionInfo withSampling(RequestTimeline newRequestTimeline, QueryPlanExplanation newQueryPlanExplanation) {
+        return new ExecutionInfo(speculativeExecutions, successfulExecutionIndex, triedHosts, achievedConsistency,
+                trace, pagingState, protocolVersion, codecRegistry, statement, schemaInAgreement, warnings,
+                incomingPayload, newRequestTimeline, newQueryPlanExplanation);
+    }
+
     /**
      * The list of tried hosts for this query.
      * <p/>
@@ -281,6 +293,29 @@ public class ExecutionInfo {
         return incomingPayload;
     }
 
+    /**
+     * Returns the client-side breakdown of the time spent on this query.
+     * <p/>
+     * This is only recorded for a fraction of the queries, as configured with
+     * {@link QueryOptions#setRequestTimelineSamplingRate(double)}.
+     *
+     * @return the timeline, or {@code null} if this query was not sampled.
+     */
+    public RequestTimeline getRequestTimeline() {
+        return requestTimeline;
+    }
+
+    /**
+     * Returns why the hosts of the query plan were chosen, and the load of the hosts that were tried.
+     * <p/>
+     * This is recorded for the same queries as {@link #getRequestTimeline()}.
+     *
+     * @return the explanation, or {@code null} if this query was not sampled.
+     */
+    public QueryPlanExplanation getQueryPlanExplanation() {
+        return queryPlanExplanation;
+    }
+
     /**
      * Get the statement that has been executed.
      *
@@ -371,6 +371,25 @@ public class Host {
         return state == State.UP;
     }
 
+    /**
+     * Returns the number of requests currently in flight to this host, across all the sessions of the cluster.
+     * <p/>
+     * This is the driver's view of the host's load (for a single session, it is the same as
+     * {@link Session.State#getInFlightQueries(Host)}). It is cheap to compute, so it can be used by
+     * load balancing policies on every query plan.
+     *
+     * @return the number of in flight requests.
+     */
+    public int getInFlightQueries() {
+        int value = 0;
+        for (SessionManager session : manager.sessions) {
+            HostConnectionPool pool = session.pools.get(this);
+            if (pool != null)
+                value += pool.totalInFlight.get();
+        }
+        return value;
+    }
+
     /**
      * Returns a description of the host's state, as seen by the driver.
      * <p/>
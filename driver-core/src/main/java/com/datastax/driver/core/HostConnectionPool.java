@@ -98,6 +98,10 @@ class HostConnectionPool implements Connection.Owner {
         this.minAllowedStreams = options().getMaxRequestsPerConnection(hostDistance) * 3 / 4;
 
         this.timeoutsExecutor = manager.getCluster().manager.connectionFactory.eventLoopGroup.next();
+
+        Metrics metrics = manager.getCluster().manager.metrics;
+        if (metrics != null)
+            metrics.registerHostGauges(host);
     }
 
     /**
@@ -315,7 +319,7 @@ class HostConnectionPool implements Connection.Owner {
         }
 
         if (connection.state.get() != TRASHED) {
-            if (connection.maxAvailableStreams() < minAllowedStreams) {
+            if (hasTooManyOrphanedStreams(connection)) {
                 replaceConnection(connection);
             } else {
                 dequeue(connection);
@@ -323,6 +327,21 @@ class HostConnectionPool implements Connection.Owner {
         }
     }
 
+    // Called when a request gives up on its stream id without getting a response (timeout or cancellation).
+    void onStreamOrphaned(Connection connection) {
+        if (isClosed() || connection.isDefunct() || connection.state.get() != OPEN)
+            return;
+        if (hasTooManyOrphanedStreams(connection)) {
+            logger.debug("{} has {} orphaned stream ids, replacing it", connection, connection.orphanedStreams());
+            replaceConnection(connection);
+        }
+    }
+
+    private boolean hasTooManyOrphanedStreams(Connection connection) {
+        return connection.maxAvailableStreams() < minAllowedStreams
+                || connection.orphanedStreams() >= options().getMaxOrphanedStreamsPerConnection();
+    }
+
     // When a connection gets returned to the pool, check if there are pending borrows that can be completed with it.
     private void dequeue(final Connection connection) {
         while (!pendingBorrows.isEmpty()) {
@@ -628,6 +647,17 @@ class HostConnectionPool implements Connection.Owner {
         return trash.size();
     }
 
+    int pendingBorrows() {
+        return pendingBorrowCount.get();
+    }
+
+    int orphanedStreams() {
+        int value = 0;
+        for (Connection connection : connections)
+            value += connection.orphanedStreams();
+        return value;
+    }
+
     private List<CloseFuture> discardAvailableConnections() {
         // Note: if this gets called before initialization has completed, both connections and trash will be empty,
         // so this will return an empty list
@@ -0,0 +1,337 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Infers the idempotence of a CQL query from its query string, see {@link QueryOptions#setInferIdempotence(boolean)}.
+ * <p/>
+ * This is not a full CQL parser: the query is split into tokens, and we look for the constructs that make a write
+ * non-idempotent. When in doubt, the query is considered non-idempotent.
+ */
+class IdempotenceInference {
+
+    // Functions that can safely be called from a write because they always return the same result for the same
+    // arguments. Type conversion functions (xxxAsBlob, blobAsXxx) are handled separately.
+    private static final Set<String> DETERMINISTIC_FUNCTIONS = ImmutableSet.of(
+            "token", "ttl", "writetime", "totimestamp", "todate", "tounixtimestamp", "mintimeuuid", "maxtimeuuid");
+
+    // Keywords that can be followed by an opening parenthesis in a DML query
+    private static final Set<String> KEYWORDS_BEFORE_PARENTHESIS = ImmutableSet.of(
+            "values", "in", "and", "where", "set", "if", "json", "contains", "key");
+
+    private IdempotenceInference() {
+    }
+
+    /**
+     * @param query the query string.
+     * @return whether the query is a {@code SELECT}.
+     */
+    static boolean isRead(String query) {
+        List<Token> tokens;
+        try {
+            tokens = tokenize(query);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return !tokens.isEmpty() && tokens.get(0).isKeyword("select");
+    }
+
+    /**
+     * @param query     the query string.
+     * @param variables the metadata of the query's bind variables, if known.
+     * @return whether the query is idempotent, or {@code null} if it is neither a read nor a write.
+     */
+    static Boolean infer(String query, ColumnDefinitions variables) {
+        List<Token> tokens;
+        try {
+            tokens = tokenize(query);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (tokens.isEmpty() || tokens.get(0).type != TokenType.IDENTIFIER)
+            return null;
+
+        String first = tokens.get(0).text;
+        if (first.equals("select"))
+            return true;
+        if (!first.equals("insert") && !first.equals("update") && !first.equals("delete") && !first.equals("begin"))
+            return null;
+
+        if (variables != null) {
+            for (int i = 0; i < variables.size(); i++) {
+                if (variables.getType(i).getName() == DataType.Name.COUNTER)
+                    return false;
+            }
+        }
+
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.type != TokenType.IDENTIFIER)
+                continue;
+
+            // Conditional updates, and counter batches
+            if (token.text.equals("if") || (first.equals("begin") && token.text.equals("counter")))
+                return false;
+
+            Token next = get(tokens, i + 1);
+            if (next != null && next.is("(") && isFunctionCall(tokens, i) && !isDeterministic(token.text))
+                return false;
+
+            if (next != null && next.is("=") && !isIdempotentAssignment(tokens, i, variables))
+                return false;
+
+            if (first.equals("delete") && next != null && next.is("[") && !isIdempotentElementDeletion(tokens, i + 2, variables))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isFunctionCall(List<Token> tokens, int i) {
+        Token token = tokens.get(i);
+        if (token.quoted || KEYWORDS_BEFORE_PARENTHESIS.contains(token.text))
+            return false;
+        // INSERT INTO [ks.]table (...)
+        Token previous = get(tokens, i - 1);
+        if (previous != null && previous.is("."))
+            previous = get(tokens, i - 3);
+        return previous == null || !previous.isKeyword("into");
+    }
+
+    private static boolean isDeterministic(String function) {
+        return DETERMINISTIC_FUNCTIONS.contains(function)
+                || function.endsWith("asblob")
+                || function.startsWith("blobas");
+    }
+
+    // column = ..., where column is the identifier at index i
+    private static boolean isIdempotentAssignment(List<Token> tokens, int i, ColumnDefinitions variables) {
+        Token column = tokens.get(i);
+        Token value = get(tokens, i + 2);
+        if (value == null)
+            return true;
+
+        // column = column + operand, column = column - operand
+        Token operator = get(tokens, i + 3);
+        if (value.sameIdentifier(column) && operator != null && (operator.is("+") || operator.is("-"))) {
+            Token operand = get(tokens, i + 4);
+            if (operand == null)
+                return false;
+            if (operand.is("{"))
+                // set or map literal
+                return true;
+            if (operand.type == TokenType.BIND_MARKER)
+                return isSetOrMap(variables, operand);
+            // list literal, counter increment or anything we don't recognize
+            return false;
+        }
+
+        // column = operand + column: prepend to a list
+        int end = i + 3;
+        if (value.is("[")) {
+            end = skipBrackets(tokens, i + 2);
+        }
+        Token plus = get(tokens, end);
+        Token last = get(tokens, end + 1);
+        return !(plus != null && plus.is("+") && last != null && last.sameIdentifier(column));
+    }
+
+    // DELETE column[...]: deleting a list element by index is not idempotent, deleting a map entry by key is
+    private static boolean isIdempotentElementDeletion(List<Token> tokens, int i, ColumnDefinitions variables) {
+        Token index = get(tokens, i);
+        if (index == null)
+            return false;
+        if (index.type == TokenType.STRING)
+            return true;
+        if (index.type == TokenType.BIND_MARKER) {
+            int variable = variableIndex(variables, index);
+            return variable >= 0 && variables.getName(variable).startsWith("key(");
+        }
+        return false;
+    }
+
+    private static boolean isSetOrMap(ColumnDefinitions variables, Token marker) {
+        int variable = variableIndex(variables, marker);
+        if (variable < 0)
+            return false;
+        DataType.Name type = variables.getType(variable).getName();
+        return type == DataType.Name.SET || type == DataType.Name.MAP;
+    }
+
+    // The index of the variable bound by a marker, or -1 if unknown. Named markers are resolved by name, because a
+    // name can be used several times in a query, so their position does not reliably match the variables.
+    private static int variableIndex(ColumnDefinitions variables, Token marker) {
+        if (variables == null)
+            return -1;
+        int index = marker.text.equals("?") ? marker.markerIndex : variables.findFirstIdx(marker.text);
+        return index < variables.size() ? index : -1;
+    }
+
+    // Returns the index of the token after the closing bracket that matches the opening bracket at index i
+    private static int skipBrackets(List<Token> tokens, int i) {
+        int depth = 0;
+        for (int j = i; j < tokens.size(); j++) {
+            Token token = tokens.get(j);
+            if (token.is("["))
+                depth += 1;
+            else if (token.is("]")) {
+                depth -= 1;
+                if (depth == 0)
+                    return j + 1;
+            }
+        }
+        return tokens.size();
+    }
+
+    private static Token get(List<Token> tokens, int i) {
+        return (i >= 0 && i < tokens.size()) ? tokens.get(i) : null;
+    }
+
+    enum TokenType {IDENTIFIER, STRING, NUMBER, BIND_MARKER, SYMBOL}
+
+    static class Token {
+        final TokenType type;
+        final String text;
+        final boolean quoted;
+        final int markerIndex;
+
+        Token(TokenType type, String text, boolean quoted, int markerIndex) {
+            this.type = type;
+            this.text = text;
+            this.quoted = quoted;
+            this.markerIndex = markerIndex;
+        }
+
+        boolean is(String symbol) {
+            return type == TokenType.SYMBOL && text.equals(symbol);
+        }
+
+        boolean isKeyword(String keyword) {
+            return type == TokenType.IDENTIFIER && !quoted && text.equals(keyword);
+        }
+
+        boolean sameIdentifier(Token other) {
+            return type == TokenType.IDENTIFIER && other.type == TokenType.IDENTIFIER && text.equals(other.text);
+        }
+    }
+
+    static List<Token> tokenize(String query) {
+        List<Token> tokens = new ArrayList<Token>();
+        int markers = 0;
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i += 1;
+            } else if ((c == '-' && next(query, i) == '-') || (c == '/' && next(query, i) == '/')) {
+                // single line comment
+                while (i < length && query.charAt(i) != '\n')
+                    i += 1;
+            } else if (c == '/' && next(query, i) == '*') {
+                int end = query.indexOf("*/", i + 2);
+                i = (end < 0) ? length : end + 2;
+            } else if (c == '\'') {
+                int start = i + 1;
+                i = start;
+                while (true) {
+                    int end = query.indexOf('\'', i);
+                    if (end < 0)
+                        throw new IllegalArgumentException("Unterminated string literal");
+                    if (next(query, end) == '\'') {
+                        // escaped quote
+                        i = end + 2;
+                    } else {
+                        tokens.add(new Token(TokenType.STRING, query.substring(start, end), false, -1));
+                        i = end + 1;
+                        break;
+                    }
+                }
+            } else if (c == '$' && next(query, i) == '$') {
+                int end = query.indexOf("$$", i + 2);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unterminated string literal");
+                tokens.add(new Token(TokenType.STRING, query.substring(i + 2, end), false, -1));
+                i = end + 2;
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                i += 1;
+                while (true) {
+                    if (i >= length)
+                        throw new IllegalArgumentException("Unterminated quoted identifier");
+                    char d = query.charAt(i);
+                    if (d == '"') {
+                        if (next(query, i) == '"') {
+                            sb.append('"');
+                            i += 2;
+                        } else {
+                            i += 1;
+                            break;
+                        }
+                    } else {
+                        sb.append(d);
+                        i += 1;
+                    }
+                }
+                tokens.add(new Token(TokenType.IDENTIFIER, sb.toString(), true, -1));
+            } else if (c == '?') {
+                tokens.add(new Token(TokenType.BIND_MARKER, "?", false, markers++));
+                i += 1;
+            } else if (c == ':' && isIdentifierStart(next(query, i))) {
+                int start = i + 1;
+                i = skipIdentifier(query, start, false);
+                tokens.add(new Token(TokenType.BIND_MARKER, query.substring(start, i), false, markers++));
+            } else if (Character.isDigit(c)) {
+                int start = i;
+                i = skipIdentifier(query, i, true);
+                tokens.add(new Token(TokenType.NUMBER, query.substring(start, i), false, -1));
+            } else if (isIdentifierStart(c)) {
+                int start = i;
+                i = skipIdentifier(query, i, false);
+                tokens.add(new Token(TokenType.IDENTIFIER, query.substring(start, i).toLowerCase(), false, -1));
+            } else {
+                tokens.add(new Token(TokenType.SYMBOL, String.valueOf(c), false, -1));
+                i += 1;
+            }
+        }
+        return tokens;
+    }
+
+    private static char next(String query, int i) {
+        return (i + 1 < query.length()) ? query.charAt(i + 1) : 0;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    // Also used for numbers, so that decimals, exponents, hexadecimal blobs and UUIDs end up in a single token
+    private static int skipIdentifier(String query, int i, boolean number) {
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_' || (number && (c == '.' || c == '-')))
+                i += 1;
+            else
+                break;
+        }
+        return i;
+    }
+}
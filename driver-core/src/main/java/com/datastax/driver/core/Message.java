@@ -22,6 +22,7 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,10 @@ abstract class Message {
 
     static AttributeKey<CodecRegistry> CODEC_REGISTRY_ATTRIBUTE_KEY = AttributeKey.valueOf("com.datastax.driver.core.CodecRegistry");
 
+    // The stream ids of the sampled requests in flight on a channel (see RequestTimeline), so that the decoder only
+    // timestamps their responses. Only accessed from the channel's event loop, and only created once a request is sampled.
+    static AttributeKey<Set<Integer>> SAMPLED_STREAM_IDS_ATTRIBUTE_KEY = AttributeKey.valueOf("com.datastax.driver.core.SampledStreamIds");
+
     interface Coder<R extends Request> {
         void encode(R request, ByteBuf dest, ProtocolVersion version);
 
@@ -104,6 +109,9 @@ abstract class Message {
         final Type type;
         private final boolean tracingRequested;
 
+        // Only set for sampled requests, see RequestTimeline
+        volatile RequestTimeline.Recorder timeline;
+
         protected Request(Type type) {
             this(type, false);
         }
@@ -246,6 +254,8 @@ abstract class Message {
         final Type type;
         protected volatile UUID tracingId;
         protected volatile List<String> warnings;
+        // When the decoding of the response started, see RequestTimeline. Only read on the I/O thread that decoded it.
+        long decodeStartNanos = RequestTimeline.Recorder.UNSET;
 
         protected Response(Type type) {
             this.type = type;
@@ -271,6 +281,10 @@ abstract class Message {
 
         @Override
         protected void decode(ChannelHandlerContext ctx, Frame frame, List<Object> out) throws Exception {
+            Set<Integer> sampledStreamIds = ctx.channel().attr(SAMPLED_STREAM_IDS_ATTRIBUTE_KEY).get();
+            long decodeStart = (sampledStreamIds != null && !sampledStreamIds.isEmpty() && sampledStreamIds.remove(frame.header.streamId))
+                    ? System.nanoTime()
+                    : RequestTimeline.Recorder.UNSET;
             boolean isTracing = frame.header.flags.contains(Frame.Header.Flag.TRACING);
             boolean isCustomPayload = frame.header.flags.contains(Frame.Header.Flag.CUSTOM_PAYLOAD);
             UUID tracingId = isTracing ? CBUtil.readUUID(frame.body) : null;
@@ -292,6 +306,7 @@ abstract class Message {
                         .setWarnings(warnings)
                         .setCustomPayload(customPayload)
                         .setStreamId(frame.header.streamId);
+                response.decodeStartNanos = decodeStart;
                 out.add(response);
             } finally {
                 frame.body.release();
@@ -311,6 +326,17 @@ abstract class Message {
 
         @Override
         protected void encode(ChannelHandlerContext ctx, Request request, List<Object> out) throws Exception {
+            RequestTimeline.Recorder timeline = request.timeline;
+            if (timeline != null) {
+                timeline.encodeStart = System.nanoTime();
+                Attribute<Set<Integer>> attribute = ctx.channel().attr(SAMPLED_STREAM_IDS_ATTRIBUTE_KEY);
+                Set<Integer> sampledStreamIds = attribute.get();
+                if (sampledStreamIds == null) {
+                    sampledStreamIds = new HashSet<Integer>();
+                    attribute.set(sampledStreamIds);
+                }
+                sampledStreamIds.add(request.getStreamId());
+            }
             EnumSet<Frame.Header.Flag> flags = EnumSet.noneOf(Frame.Header.Flag.class);
             if (request.isTracingRequested())
                 flags.add(Frame.Header.Flag.TRACING);
@@ -349,6 +375,8 @@ abstract class Message {
                         request.type, messageSize, body.capacity());
             }
             out.add(Frame.create(protocolVersion, request.type.opcode, request.getStreamId(), flags, body));
+            if (timeline != null)
+                timeline.encodeEnd = System.nanoTime();
         }
     }
 
@@ -15,9 +15,14 @@
  */
 package com.datastax.driver.core;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import io.netty.util.collection.IntObjectHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +32,12 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -36,6 +47,9 @@ public class Metadata {
 
     private static final Logger logger = LoggerFactory.getLogger(Metadata.class);
 
+    // Maximum number of partition keys for which getReplicas caches the result (disabled by default, see getReplicas)
+    private static final int REPLICA_CACHE_SIZE = SystemProperties.getInt("com.datastax.driver.REPLICA_CACHE_SIZE", 0);
+
     final Cluster.Manager cluster;
     volatile String clusterName;
     volatile String partitioner;
@@ -65,13 +79,17 @@ public class Metadata {
         try {
             if (tokenMap == null)
                 return;
+            long start = System.nanoTime();
             this.tokenMap = TokenMap.build(
                     tokenMap.factory,
                     tokenMap.primaryToTokens,
                     keyspaces.values(),
                     tokenMap.ring,
                     tokenMap.tokenRanges,
-                    tokenMap.tokenToPrimary);
+                    tokenMap.tokenToPrimary,
+                    tokenMap,
+                    rebuildExecutor());
+            recordRebuild(start);
         } finally {
             lock.unlock();
         }
@@ -81,12 +99,25 @@ public class Metadata {
     void rebuildTokenMap(Token.Factory factory, Map<Host, Set<Token>> allTokens) {
         lock.lock();
         try {
-            this.tokenMap = TokenMap.build(factory, allTokens, keyspaces.values());
+            long start = System.nanoTime();
+            this.tokenMap = TokenMap.build(factory, allTokens, keyspaces.values(), tokenMap, rebuildExecutor());
+            recordRebuild(start);
         } finally {
             lock.unlock();
         }
     }
 
+    private Executor rebuildExecutor() {
+        return cluster == null ? null : cluster.executor;
+    }
+
+    private void recordRebuild(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        logger.debug("Rebuilt token map in {} ms", TimeUnit.NANOSECONDS.toMillis(elapsed));
+        if (cluster != null && cluster.metrics != null)
+            cluster.metrics.getTokenMapRebuildTimer().update(elapsed, TimeUnit.NANOSECONDS);
+    }
+
     Host newHost(InetSocketAddress address) {
         return new Host(address, cluster.convictionPolicyFactory, cluster);
     }
@@ -405,18 +436,25 @@ public class Metadata {
      * @param keyspace     the name of the keyspace to get replicas for.
      * @param partitionKey the partition key for which to find the set of
      *                     replica.
+     * <p/>
+     * The results can be cached, by setting the system property
+     * {@code com.datastax.driver.REPLICA_CACHE_SIZE} to the maximum number of
+     * partition keys to keep (the cache is disabled by default). This only helps
+     * if a small set of partition keys gets most of the requests (for example a
+     * few hot partitions): a hit saves hashing the key and looking up its token in
+     * the ring, but a miss adds a cache lookup and the copy of the key, which is
+     * slower than the lookup itself when keys are rarely repeated.
+     *
      * @return the (immutable) set of replicas for {@code partitionKey} as known
      * by the driver. Note that the result might be stale or empty if metadata was
      * explicitly disabled with {@link QueryOptions#setMetadataEnabled(boolean)}.
      */
     public Set<Host> getReplicas(String keyspace, ByteBuffer partitionKey) {
-        keyspace = handleId(keyspace);
         TokenMap current = tokenMap;
         if (current == null) {
             return Collections.emptySet();
         } else {
-            Set<Host> hosts = current.getReplicas(keyspace, current.factory.hash(partitionKey));
-            return hosts == null ? Collections.<Host>emptySet() : hosts;
+            return current.getReplicas(keyspace, partitionKey);
         }
     }
 
@@ -449,6 +487,31 @@ public class Metadata {
         }
     }
 
+    /**
+     * Returns the set of hosts that are replica for a given token.
+     * <p/>
+     * Note that this information is refreshed asynchronously by the control
+     * connection, when schema or ring topology changes. It might occasionally
+     * be stale (or even empty).
+     *
+     * @param keyspace the name of the keyspace to get replicas for.
+     * @param token    the token, for example obtained with {@link #newToken(String)}, or from a
+     *                 {@link TokenRange}.
+     * @return the (immutable) set of replicas for {@code token} as known by the driver.
+     * Note that the result might be stale or empty if metadata was explicitly disabled
+     * with {@link QueryOptions#setMetadataEnabled(boolean)}.
+     */
+    public Set<Host> getReplicas(String keyspace, Token token) {
+        keyspace = handleId(keyspace);
+        TokenMap current = tokenMap;
+        if (current == null) {
+            return Collections.emptySet();
+        } else {
+            Set<Host> hosts = current.getReplicas(keyspace, token);
+            return hosts == null ? Collections.<Host>emptySet() : hosts;
+        }
+    }
+
     /**
      * The Cassandra name for the cluster connect to.
      *
@@ -509,8 +572,12 @@ public class Metadata {
 
     KeyspaceMetadata removeKeyspace(String keyspace) {
         KeyspaceMetadata removed = keyspaces.remove(keyspace);
-        if (tokenMap != null)
-            tokenMap.tokenToHostsByKeyspace.remove(keyspace);
+        TokenMap current = tokenMap;
+        if (current != null) {
+            current.replicasByKeyspace.remove(keyspace);
+            if (current.replicaCache != null)
+                current.replicaCache.invalidateAll();
+        }
         return removed;
     }
 
@@ -735,37 +802,79 @@ public class Metadata {
         }
     }
 
+    /**
+     * The replicas of each range of the ring, for each keyspace.
+     * <p/>
+     * Replicas are stored by position on the ring: {@code replicasByKeyspace.get(ks)[i]} are the replicas of the
+     * range that ends at {@code ring.get(i)}. These arrays are shared by all the keyspaces that have the same
+     * replication strategy, and replica sets computed by the same rebuild with the same hosts in the same order are the
+     * same instance; with vnodes, this is much more compact than a map per keyspace. For the Murmur3 partitioner, the
+     * ring is also kept as a sorted {@code long[]}, so that a lookup is a binary search on primitives.
+     * <p/>
+     * Rebuilds start from the previous token map: the replicas of a strategy that is still in use are reused as is if
+     * the ring did not change (schema refresh), and only the positions close to the changes are recomputed if tokens
+     * were only added or only removed (typically, a single host joined or left the cluster). The rest is split in
+     * ranges of positions that are computed in parallel.
+     */
     private static class TokenMap {
 
+        // Below that number of positions to compute, a rebuild is not worth splitting
+        private static final int MIN_RANGE_SIZE = 512;
+        private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
         private final Token.Factory factory;
         private final Map<Host, Set<Token>> primaryToTokens;
-        private final Map<String, Map<Token, Set<Host>>> tokenToHostsByKeyspace;
+        private final Map<String, Set<Host>[]> replicasByKeyspace;
         private final Map<String, Map<Host, Set<TokenRange>>> hostsToRangesByKeyspace;
         private final List<Token> ring;
+        // The primary host of each token of the ring
+        private final Host[] ringHosts;
+        // The values of the tokens of the ring, if the partitioner is Murmur3, null otherwise
+        private final long[] m3pRing;
         private final Set<TokenRange> tokenRanges;
         private final Map<Token, Host> tokenToPrimary;
+        // What the next rebuild can reuse
+        private final Map<ReplicationStrategy, StrategyReplicas> replicasByStrategy;
+        // Results of getReplicas(String, ByteBuffer) for hot partitions. The token map is rebuilt on every topology or
+        // schema change, so the cache never holds stale entries (except for removeKeyspace, which clears it).
+        private final Cache<ReplicaCacheKey, Set<Host>> replicaCache;
 
         private TokenMap(Token.Factory factory,
                          List<Token> ring,
+                         Host[] ringHosts,
                          Set<TokenRange> tokenRanges,
                          Map<Token, Host> tokenToPrimary,
                          Map<Host, Set<Token>> primaryToTokens,
-                         Map<String, Map<Token, Set<Host>>> tokenToHostsByKeyspace,
-                         Map<String, Map<Host, Set<TokenRange>>> hostsToRangesByKeyspace) {
+                         Map<String, Set<Host>[]> replicasByKeyspace,
+                         Map<String, Map<Host, Set<TokenRange>>> hostsToRangesByKeyspace,
+                         Map<ReplicationStrategy, StrategyReplicas> replicasByStrategy) {
             this.factory = factory;
             this.ring = ring;
+            this.ringHosts = ringHosts;
             this.tokenRanges = tokenRanges;
             this.tokenToPrimary = tokenToPrimary;
             this.primaryToTokens = primaryToTokens;
-            this.tokenToHostsByKeyspace = tokenToHostsByKeyspace;
+            this.replicasByKeyspace = replicasByKeyspace;
             this.hostsToRangesByKeyspace = hostsToRangesByKeyspace;
+            this.replicasByStrategy = replicasByStrategy;
+            if (factory == Token.M3PToken.FACTORY) {
+                this.m3pRing = new long[ring.size()];
+                for (int i = 0; i < ring.size(); i++)
+                    m3pRing[i] = ((Token.M3PToken) ring.get(i)).longValue();
+            } else {
+                this.m3pRing = null;
+            }
+            this.replicaCache = REPLICA_CACHE_SIZE > 0
+                    ? CacheBuilder.newBuilder().maximumSize(REPLICA_CACHE_SIZE).<ReplicaCacheKey, Set<Host>>build()
+                    : null;
             for (Map.Entry<Host, Set<Token>> entry : primaryToTokens.entrySet()) {
                 Host host = entry.getKey();
                 host.setTokens(ImmutableSet.copyOf(entry.getValue()));
             }
         }
 
-        private static TokenMap build(Token.Factory factory, Map<Host, Set<Token>> allTokens, Collection<KeyspaceMetadata> keyspaces) {
+        private static TokenMap build(Token.Factory factory, Map<Host, Set<Token>> allTokens, Collection<KeyspaceMetadata> keyspaces,
+                                      TokenMap previous, Executor executor) {
             Map<Token, Host> tokenToPrimary = new HashMap<Token, Host>();
             Set<Token> allSorted = new TreeSet<Token>();
             for (Map.Entry<Host, ? extends Collection<Token>> entry : allTokens.entrySet()) {
@@ -781,25 +890,48 @@ public class Metadata {
             }
             List<Token> ring = new ArrayList<Token>(allSorted);
             Set<TokenRange> tokenRanges = makeTokenRanges(ring, factory);
-            return build(factory, allTokens, keyspaces, ring, tokenRanges, tokenToPrimary);
+            return build(factory, allTokens, keyspaces, ring, tokenRanges, tokenToPrimary, previous, executor);
         }
 
-        private static TokenMap build(Token.Factory factory, Map<Host, Set<Token>> allTokens, Collection<KeyspaceMetadata> keyspaces, List<Token> ring, Set<TokenRange> tokenRanges, Map<Token, Host> tokenToPrimary) {
-            Set<Host> hosts = allTokens.keySet();
-            Map<String, Map<Token, Set<Host>>> tokenToHosts = new HashMap<String, Map<Token, Set<Host>>>();
-            Map<ReplicationStrategy, Map<Token, Set<Host>>> replStrategyToHosts = new HashMap<ReplicationStrategy, Map<Token, Set<Host>>>();
-            Map<String, Map<Host, Set<TokenRange>>> hostsToRanges = new HashMap<String, Map<Host, Set<TokenRange>>>();
+        private static TokenMap build(Token.Factory factory, Map<Host, Set<Token>> allTokens, Collection<KeyspaceMetadata> keyspaces,
+                                      List<Token> ring, Set<TokenRange> tokenRanges, Map<Token, Host> tokenToPrimary,
+                                      TokenMap previous, Executor executor) {
+            Host[] ringHosts = ReplicationStrategy.primaries(tokenToPrimary, ring);
+            RingChange change = (previous == null || previous.factory != factory)
+                    ? null
+                    : RingChange.compute(previous.ring, previous.ringHosts, ring, ringHosts);
+
+            Map<ReplicationStrategy, StrategyReplicas> replicasByStrategy = new HashMap<ReplicationStrategy, StrategyReplicas>();
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            ConcurrentMap<List<Host>, Set<Host>> internedReplicas = new ConcurrentHashMap<List<Host>, Set<Host>>();
             for (KeyspaceMetadata keyspace : keyspaces) {
                 ReplicationStrategy strategy = keyspace.replicationStrategy();
-                Map<Token, Set<Host>> ksTokens = replStrategyToHosts.get(strategy);
-                if (ksTokens == null) {
-                    ksTokens = (strategy == null)
-                            ? makeNonReplicatedMap(tokenToPrimary)
-                            : strategy.computeTokenToReplicaMap(keyspace.getName(), tokenToPrimary, ring);
-                    replStrategyToHosts.put(strategy, ksTokens);
+                if (replicasByStrategy.containsKey(strategy))
+                    continue;
+                ReplicationStrategy.ReplicaComputation computation = (strategy == null)
+                        ? ReplicationStrategy.primaryOnly(ringHosts)
+                        : strategy.prepare(keyspace.getName(), ringHosts);
+                StrategyReplicas old = (change == null) ? null : previous.replicasByStrategy.get(strategy);
+                if (old != null && !computation.hasSameLayout(old.computation))
+                    old = null;
+
+                StrategyReplicas replicas;
+                if (old != null && change.isEmpty()) {
+                    replicas = old;
+                } else {
+                    replicas = new StrategyReplicas(computation, ring.size());
+                    if (old == null || !change.update(old, replicas, tasks, internedReplicas))
+                        addTasks(replicas, 0, ring.size(), tasks, internedReplicas);
                 }
+                replicasByStrategy.put(strategy, replicas);
+            }
+            runAll(tasks, executor);
 
-                tokenToHosts.put(keyspace.getName(), ksTokens);
+            Map<String, Set<Host>[]> replicasByKeyspace = new HashMap<String, Set<Host>[]>();
+            Map<String, Map<Host, Set<TokenRange>>> hostsToRanges = new HashMap<String, Map<Host, Set<TokenRange>>>();
+            for (KeyspaceMetadata keyspace : keyspaces) {
+                StrategyReplicas replicas = replicasByStrategy.get(keyspace.replicationStrategy());
+                replicasByKeyspace.put(keyspace.getName(), replicas.replicas);
 
                 Map<Host, Set<TokenRange>> ksRanges;
                 if (ring.size() == 1) {
@@ -809,40 +941,130 @@ public class Metadata {
                         builder.put(host, tokenRanges);
                     ksRanges = builder.build();
                 } else {
-                    ksRanges = computeHostsToRangesMap(tokenRanges, ksTokens, hosts.size());
+                    if (replicas.hostsToRanges == null)
+                        replicas.hostsToRanges = computeHostsToRangesMap(tokenRanges, replicas.replicas, allTokens.size());
+                    ksRanges = replicas.hostsToRanges;
                 }
                 hostsToRanges.put(keyspace.getName(), ksRanges);
             }
-            return new TokenMap(factory, ring, tokenRanges, tokenToPrimary, allTokens, tokenToHosts, hostsToRanges);
+            return new TokenMap(factory, ring, ringHosts, tokenRanges, tokenToPrimary, allTokens, replicasByKeyspace, hostsToRanges, replicasByStrategy);
+        }
+
+        // Splits the computation of positions [from, to) of the ring so that it can be shared among threads
+        private static void addTasks(StrategyReplicas replicas, int from, int to, List<Runnable> tasks,
+                                     ConcurrentMap<List<Host>, Set<Host>> internedReplicas) {
+            int rangeSize = Math.max(MIN_RANGE_SIZE, (replicas.replicas.length + PARALLELISM - 1) / PARALLELISM);
+            for (int start = from; start < to; start += rangeSize)
+                tasks.add(new ComputeReplicas(replicas, start, Math.min(to, start + rangeSize), internedReplicas));
+        }
+
+        /*
+         * Runs the tasks on the executor, the calling thread taking its share of the work.
+         * The caller only waits for tasks that are already running, so this is safe even if it runs on a thread of the
+         * executor, or if the executor is saturated.
+         */
+        private static void runAll(final List<Runnable> tasks, Executor executor) {
+            if (executor == null || tasks.size() < 2) {
+                for (Runnable task : tasks)
+                    task.run();
+                return;
+            }
+            final AtomicInteger next = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(tasks.size());
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < tasks.size()) {
+                        try {
+                            tasks.get(i).run();
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+            int helpers = Math.min(tasks.size(), PARALLELISM) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    executor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    // The cluster is shutting down, do the rest on this thread
+                    break;
+                }
+            }
+            worker.run();
+            Uninterruptibles.awaitUninterruptibly(done);
+            if (error.get() != null)
+                throw Throwables.propagate(error.get());
+        }
+
+        // Interns the sets at positions [from, to), the order of the replicas matters, so the key is a list
+        private static void intern(Set<Host>[] replicas, int from, int to, ConcurrentMap<List<Host>, Set<Host>> internedReplicas) {
+            for (int i = from; i < to; i++) {
+                Set<Host> interned = internedReplicas.putIfAbsent(ImmutableList.copyOf(replicas[i]), replicas[i]);
+                if (interned != null)
+                    replicas[i] = interned;
+            }
+        }
+
+        // keyspace is the name as provided by the client (handleId has not been applied)
+        private Set<Host> getReplicas(String keyspace, ByteBuffer partitionKey) {
+            if (replicaCache == null)
+                return computeReplicas(keyspace, partitionKey);
+
+            Set<Host> hosts = replicaCache.getIfPresent(new ReplicaCacheKey(keyspace, partitionKey));
+            if (hosts == null) {
+                hosts = computeReplicas(keyspace, partitionKey);
+                // Copy the key: the client could reuse its buffer
+                ByteBuffer copy = ByteBuffer.allocate(partitionKey.remaining());
+                copy.put(partitionKey.duplicate()).flip();
+                replicaCache.put(new ReplicaCacheKey(keyspace, copy), hosts);
+            }
+            return hosts;
+        }
+
+        private Set<Host> computeReplicas(String keyspace, ByteBuffer partitionKey) {
+            Set<Host> hosts = (m3pRing != null)
+                    ? getReplicas(handleId(keyspace), Token.M3PToken.hashValue(partitionKey))
+                    : getReplicas(handleId(keyspace), factory.hash(partitionKey));
+            return hosts == null ? Collections.<Host>emptySet() : hosts;
         }
 
         private Set<Host> getReplicas(String keyspace, Token token) {
+            if (m3pRing != null && token instanceof Token.M3PToken)
+                return getReplicas(keyspace, ((Token.M3PToken) token).longValue());
 
-            Map<Token, Set<Host>> tokenToHosts = tokenToHostsByKeyspace.get(keyspace);
-            if (tokenToHosts == null)
+            Set<Host>[] replicas = replicasByKeyspace.get(keyspace);
+            if (replicas == null || replicas.length == 0)
                 return Collections.emptySet();
 
-            // If the token happens to be one of the "primary" tokens, get result directly
-            Set<Host> hosts = tokenToHosts.get(token);
-            if (hosts != null)
-                return hosts;
-
-            // Otherwise, find closest "primary" token on the ring
+            // Find the closest "primary" token on the ring (the token itself if it is one)
             int i = Collections.binarySearch(ring, token);
             if (i < 0) {
                 i = -i - 1;
                 if (i >= ring.size())
                     i = 0;
             }
-
-            return tokenToHosts.get(ring.get(i));
+            return replicas[i];
         }
 
-        private static Map<Token, Set<Host>> makeNonReplicatedMap(Map<Token, Host> input) {
-            Map<Token, Set<Host>> output = new HashMap<Token, Set<Host>>(input.size());
-            for (Map.Entry<Token, Host> entry : input.entrySet())
-                output.put(entry.getKey(), ImmutableSet.of(entry.getValue()));
-            return output;
+        // Murmur3 only
+        private Set<Host> getReplicas(String keyspace, long token) {
+            Set<Host>[] replicas = replicasByKeyspace.get(keyspace);
+            if (replicas == null || replicas.length == 0)
+                return Collections.emptySet();
+
+            int i = Arrays.binarySearch(m3pRing, token);
+            if (i < 0) {
+                i = -i - 1;
+                if (i >= m3pRing.length)
+                    i = 0;
+            }
+            return replicas[i];
         }
 
         private static Set<TokenRange> makeTokenRanges(List<Token> ring, Token.Factory factory) {
@@ -860,10 +1082,12 @@ public class Metadata {
             return builder.build();
         }
 
-        private static Map<Host, Set<TokenRange>> computeHostsToRangesMap(Set<TokenRange> tokenRanges, Map<Token, Set<Host>> ksTokens, int hostCount) {
+        // Relies on makeTokenRanges iterating in ring order: the k-th range ends at the token at position k + 1
+        private static Map<Host, Set<TokenRange>> computeHostsToRangesMap(Set<TokenRange> tokenRanges, Set<Host>[] replicasByPosition, int hostCount) {
             Map<Host, ImmutableSet.Builder<TokenRange>> builders = Maps.newHashMapWithExpectedSize(hostCount);
+            int k = 0;
             for (TokenRange range : tokenRanges) {
-                Set<Host> replicas = ksTokens.get(range.getEnd());
+                Set<Host> replicas = replicasByPosition[++k % replicasByPosition.length];
                 for (Host host : replicas) {
                     ImmutableSet.Builder<TokenRange> hostRanges = builders.get(host);
                     if (hostRanges == null) {
@@ -880,4 +1104,169 @@ public class Metadata {
             return ksRanges;
         }
     }
+
+    // The replicas of every position of the ring for a replication strategy
+    private static class StrategyReplicas {
+        private final ReplicationStrategy.ReplicaComputation computation;
+        private final Set<Host>[] replicas;
+        // The longest walk on the ring that was needed to compute the replicas of a position
+        private volatile int maxWalk;
+        // Lazily computed, under the metadata lock
+        private Map<Host, Set<TokenRange>> hostsToRanges;
+
+        @SuppressWarnings("unchecked")
+        StrategyReplicas(ReplicationStrategy.ReplicaComputation computation, int ringSize) {
+            this.computation = computation;
+            this.replicas = (Set<Host>[]) new Set[ringSize];
+        }
+
+        synchronized void recordWalk(int walk) {
+            if (walk > maxWalk)
+                maxWalk = walk;
+        }
+    }
+
+    private static class ComputeReplicas implements Runnable {
+        private final StrategyReplicas target;
+        private final int from;
+        private final int to;
+        private final ConcurrentMap<List<Host>, Set<Host>> internedReplicas;
+
+        ComputeReplicas(StrategyReplicas target, int from, int to, ConcurrentMap<List<Host>, Set<Host>> internedReplicas) {
+            this.target = target;
+            this.from = from;
+            this.to = to;
+            this.internedReplicas = internedReplicas;
+        }
+
+        @Override
+        public void run() {
+            target.recordWalk(target.computation.computeReplicas(from, to, target.replicas));
+            TokenMap.intern(target.replicas, from, to, internedReplicas);
+        }
+    }
+
+    /*
+     * How the ring changed between two token maps, when tokens were only added or only removed, and the tokens that
+     * are on both rings have the same primary host.
+     *
+     * The replicas of a position are computed from the hosts of the positions that follow it on the ring, up to a
+     * distance that is bounded by the longest walk of the previous computation (see ReplicaComputation). So, with the
+     * same layout, a position whose walk did not reach a removed token or the place of an added token keeps the same
+     * replicas.
+     */
+    private static class RingChange {
+        private final int oldSize;
+        // The previous position of each position of the new ring, -1 for added tokens
+        private final int[] newToOld;
+        // The previous positions of the removed tokens
+        private final List<Integer> removed;
+        // For each added token, the previous position of the token that now follows it (modulo the previous size)
+        private final List<Integer> insertionPoints;
+
+        private RingChange(int oldSize, int[] newToOld, List<Integer> removed, List<Integer> insertionPoints) {
+            this.oldSize = oldSize;
+            this.newToOld = newToOld;
+            this.removed = removed;
+            this.insertionPoints = insertionPoints;
+        }
+
+        // Returns null if the change is not one that can be applied incrementally
+        static RingChange compute(List<Token> oldRing, Host[] oldHosts, List<Token> newRing, Host[] newHosts) {
+            int oldSize = oldRing.size();
+            if (oldSize == 0 || newRing.isEmpty())
+                return null;
+            int[] newToOld = new int[newRing.size()];
+            List<Integer> removed = new ArrayList<Integer>();
+            List<Integer> insertionPoints = new ArrayList<Integer>();
+            int i = 0, k = 0;
+            while (i < oldSize || k < newRing.size()) {
+                int cmp = (i == oldSize) ? 1
+                        : (k == newRing.size()) ? -1
+                        : oldRing.get(i).compareTo(newRing.get(k));
+                if (cmp == 0) {
+                    if (oldHosts[i] != newHosts[k])
+                        return null;
+                    newToOld[k++] = i++;
+                } else if (cmp < 0) {
+                    removed.add(i++);
+                } else {
+                    insertionPoints.add(i % oldSize);
+                    newToOld[k++] = -1;
+                }
+            }
+            if (!removed.isEmpty() && !insertionPoints.isEmpty())
+                return null;
+            return new RingChange(oldSize, newToOld, removed, insertionPoints);
+        }
+
+        boolean isEmpty() {
+            return removed.isEmpty() && insertionPoints.isEmpty();
+        }
+
+        /*
+         * Copies the replicas that did not change from the previous computation, and adds the tasks that compute the
+         * other ones. Returns false if every position has to be recomputed.
+         */
+        boolean update(StrategyReplicas previous, StrategyReplicas next, List<Runnable> tasks,
+                       ConcurrentMap<List<Host>, Set<Host>> internedReplicas) {
+            int walk = previous.maxWalk;
+            if (walk >= oldSize)
+                return false;
+
+            boolean[] affected = new boolean[oldSize];
+            // A walk of length w from position i visits positions i to i + w - 1
+            for (int r : removed)
+                for (int d = 0; d < walk; d++)
+                    affected[(r - d + oldSize) % oldSize] = true;
+            // The added token sits between positions q - 1 and q, only walks that go past q - 1 see it
+            for (int q : insertionPoints)
+                for (int d = 1; d < walk; d++)
+                    affected[(q - d + oldSize) % oldSize] = true;
+
+            next.recordWalk(walk);
+            int start = -1;
+            for (int k = 0; k <= newToOld.length; k++) {
+                boolean recompute = k < newToOld.length && (newToOld[k] < 0 || affected[newToOld[k]]);
+                if (recompute) {
+                    if (start < 0)
+                        start = k;
+                } else {
+                    if (start >= 0) {
+                        TokenMap.addTasks(next, start, k, tasks, internedReplicas);
+                        start = -1;
+                    }
+                    if (k < newToOld.length)
+                        next.replicas[k] = previous.replicas[newToOld[k]];
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class ReplicaCacheKey {
+        private final String keyspace;
+        private final ByteBuffer partitionKey;
+
+        ReplicaCacheKey(String keyspace, ByteBuffer partitionKey) {
+            this.keyspace = keyspace;
+            this.partitionKey = partitionKey;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (other instanceof ReplicaCacheKey) {
+                ReplicaCacheKey that = (ReplicaCacheKey) other;
+                return this.keyspace.equals(that.keyspace) && this.partitionKey.equals(that.partitionKey);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyspace.hashCode() + partitionKey.hashCode();
+        }
+    }
 }
@@ -16,11 +16,15 @@
 package com.datastax.driver.core;
 
 import com.codahale.metrics.*;
+import com.datastax.driver.core.policies.RetryBudgetPolicy;
 import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.TokenBucketRetryBudgetPolicy;
 
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadPoolExecutor;
 
 /**
@@ -43,6 +47,8 @@ public class Metrics {
     private final Errors errors = new Errors();
 
     private final Timer requests = registry.timer("requests");
+    private final Histogram timeoutSweepLag = registry.histogram("timeout-sweep-lag");
+    private final Timer tokenMapRebuilds = registry.timer("token-map-rebuilds");
 
     private final Gauge<Integer> knownHosts = registry.register("known-hosts", new Gauge<Integer>() {
         @Override
@@ -90,10 +96,13 @@ public class Metrics {
         }
     });
 
+    private final ConcurrentMap<Host, Gauge<Integer>> orphanedStreams = new ConcurrentHashMap<Host, Gauge<Integer>>();
+
     private final Gauge<Integer> executorQueueDepth;
     private final Gauge<Integer> blockingExecutorQueueDepth;
     private final Gauge<Integer> reconnectionSchedulerQueueSize;
     private final Gauge<Integer> taskSchedulerQueueSize;
+    private final Gauge<Double> retryBudgetTokens;
 
     Metrics(Cluster.Manager manager) {
         this.manager = manager;
@@ -109,6 +118,9 @@ public class Metrics {
         this.taskSchedulerQueueSize = registry.register(
                 "task-scheduler-task-count",
                 buildQueueSizeGauge(manager.scheduledTasksExecutorQueue));
+        this.retryBudgetTokens = registry.register(
+                "retry-budget-tokens",
+                buildRetryBudgetGauge(manager.configuration.getPolicies().getRetryBudgetPolicy()));
         if (manager.configuration.getMetricsOptions().isJMXReportingEnabled()) {
             this.jmxReporter = JmxReporter.forRegistry(registry).inDomain(manager.clusterName + "-metrics").build();
             this.jmxReporter.start();
@@ -176,6 +188,31 @@ public class Metrics {
         return requests;
     }
 
+    /**
+     * Returns the lag of the read timeout sweeps, in microseconds.
+     * <p/>
+     * Read timeouts are detected by a periodic task on each connection's event loop. This histogram records how late
+     * each run of that task was compared to its schedule. Read timeouts fire late by that amount, so a growing lag
+     * indicates that the I/O threads are saturated.
+     *
+     * @return a {@code Histogram} of the lag of read timeout sweeps, in microseconds.
+     */
+    public Histogram getTimeoutSweepLag() {
+        return timeoutSweepLag;
+    }
+
+    /**
+     * Returns metrics on the rebuilds of the token map (see {@link Metadata#getTokenRanges()}).
+     * <p/>
+     * The token map is rebuilt on every topology change and schema refresh, while holding the metadata lock. With many
+     * vnodes and replication strategies, long rebuilds delay the refresh of the cluster metadata.
+     *
+     * @return a {@code Timer} metric object exposing the rate and duration of token map rebuilds.
+     */
+    public Timer getTokenMapRebuildTimer() {
+        return tokenMapRebuilds;
+    }
+
     /**
      * Returns an object grouping metrics related to the errors encountered.
      *
@@ -237,6 +274,23 @@ public class Metrics {
         return inFlightRequests;
     }
 
+    /**
+     * Returns the number of orphaned stream ids in the connections to a host.
+     * <p/>
+     * When the driver gives up on a request (client-side timeout or cancellation), the stream id of that request can't
+     * be reused until the server replies. This metric shows the capacity that is lost this way, across all sessions;
+     * connections with too many orphaned ids are replaced (see
+     * {@link PoolingOptions#setMaxOrphanedStreamsPerConnection(int)}).
+     * <p/>
+     * The gauge is also registered in the {@link #getRegistry() registry} as {@code orphaned-streams.<host address>}.
+     *
+     * @param host the host.
+     * @return the number of orphaned stream ids, or {@code null} if the driver has never connected to this host.
+     */
+    public Gauge<Integer> getOrphanedStreams(Host host) {
+        return orphanedStreams.get(host);
+    }
+
     /**
      * Returns the number of queued up tasks in the {@link ThreadingOptions#createExecutor(String) main internal executor}.
      * <p/>
@@ -295,11 +349,52 @@ public class Metrics {
         return taskSchedulerQueueSize;
     }
 
+    /**
+     * Returns the number of tokens currently available in the {@link TokenBucketRetryBudgetPolicy retry budget}.
+     * <p/>
+     * If the cluster's {@link RetryBudgetPolicy} is not a {@link TokenBucketRetryBudgetPolicy}, then this gauge
+     * returns -1.
+     *
+     * @return The number of tokens currently available in the retry budget, or -1, if that number is unknown.
+     */
+    public Gauge<Double> getRetryBudgetTokens() {
+        return retryBudgetTokens;
+    }
+
     void shutdown() {
         if (jmxReporter != null)
             jmxReporter.stop();
     }
 
+    void registerHostGauges(final Host host) {
+        if (orphanedStreams.containsKey(host))
+            return;
+        Gauge<Integer> gauge = new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int value = 0;
+                for (SessionManager session : manager.sessions) {
+                    HostConnectionPool pool = session.pools.get(host);
+                    if (pool != null)
+                        value += pool.orphanedStreams();
+                }
+                return value;
+            }
+        };
+        if (orphanedStreams.putIfAbsent(host, gauge) == null)
+            registry.register(MetricsUtil.hostMetricName("orphaned-streams.", host), gauge);
+    }
+
+    /**
+     * Removes the per-host metrics of a host that was removed from the cluster.
+     */
+    void unregisterHostMetrics(Host host) {
+        if (orphanedStreams.remove(host) != null)
+            registry.remove(MetricsUtil.hostMetricName("orphaned-streams.", host));
+        registry.remove(MetricsUtil.hostMetricName("speculative-executions.", host));
+        registry.remove(MetricsUtil.hostMetricName("speculative-execution-wins.", host));
+    }
+
     private static Gauge<Integer> buildQueueSizeGauge(final BlockingQueue<?> queue) {
         if (queue != null) {
             return new Gauge<Integer>() {
@@ -318,6 +413,24 @@ public class Metrics {
         }
     }
 
+    private static Gauge<Double> buildRetryBudgetGauge(final RetryBudgetPolicy policy) {
+        if (policy instanceof TokenBucketRetryBudgetPolicy) {
+            return new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return ((TokenBucketRetryBudgetPolicy) policy).getAvailableTokens();
+                }
+            };
+        } else {
+            return new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return -1.0;
+                }
+            };
+        }
+    }
+
     /**
      * Metrics on errors encountered.
      */
@@ -350,6 +463,10 @@ public class Metrics {
         private final Counter ignoresOnOtherErrors = registry.counter("ignores-on-other-errors");
 
         private final Counter speculativeExecutions = registry.counter("speculative-executions");
+        private final Counter speculativeExecutionWins = registry.counter("speculative-execution-wins");
+
+        private final Counter throttledRetries = registry.counter("throttled-retries");
+        private final Counter throttledSpeculativeExecutions = registry.counter("throttled-speculative-executions");
 
         /**
          * Returns the number of errors while connecting to Cassandra nodes.
@@ -618,5 +735,43 @@ public class Metrics {
         public Counter getSpeculativeExecutions() {
             return speculativeExecutions;
         }
+
+        /**
+         * Returns the number of times a speculative execution completed a request before the initial execution
+         * (and any other speculative execution) of that request.
+         * <p/>
+         * The driver also records these events per host, in the counters named
+         * {@code speculative-executions.<host>} (attempts of speculative executions sent to the host, including their
+         * retries) and {@code speculative-execution-wins.<host>} (speculative executions that won with a response from
+         * the host), where {@code <host>} is the host's IP address with underscores instead of dots. The ratio of the
+         * two counters is the win rate of speculative executions for that host. These counters are removed when the
+         * host is removed from the cluster.
+         *
+         * @return the number of speculative executions that won.
+         */
+        public Counter getSpeculativeExecutionWins() {
+            return speculativeExecutionWins;
+        }
+
+        /**
+         * Returns the number of times the {@link com.datastax.driver.core.policies.RetryPolicy} decided to retry a
+         * request, but the retry was not sent because the {@link RetryBudgetPolicy} was exhausted. In that case,
+         * the error is rethrown to the client.
+         *
+         * @return the number of retries that were prevented by the retry budget.
+         */
+        public Counter getThrottledRetries() {
+            return throttledRetries;
+        }
+
+        /**
+         * Returns the number of times a speculative execution was scheduled by the
+         * {@link SpeculativeExecutionPolicy}, but was not sent because the {@link RetryBudgetPolicy} was exhausted.
+         *
+         * @return the number of speculative executions that were prevented by the retry budget.
+         */
+        public Counter getThrottledSpeculativeExecutions() {
+            return throttledSpeculativeExecutions;
+        }
     }
 }
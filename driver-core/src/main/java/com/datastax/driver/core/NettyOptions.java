@@ -194,7 +194,10 @@ public class NettyOptions {
     }
 
     /**
-     * Return the {@link Timer} instance used by Read Timeouts and Speculative Execution.
+     * Return the {@link Timer} instance used by Speculative Executions and request timeouts.
+     * <p/>
+     * Note that read timeouts do not use this timer: they are detected by a periodic task on each connection's
+     * event loop.
      * <p/>
      * This hook is invoked only once at {@link Cluster} initialization;
      * the returned instance will be kept in use throughout the cluster lifecycle.
@@ -0,0 +1,137 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.google.common.base.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@code PercentileTracker} that maintains a separate histogram for each prepared statement and host.
+ * <p/>
+ * This gives you per-query latency percentiles: a fast point read and a slow range scan that go to the same host
+ * will not be mixed up, and each of them will only be compared to itself. When used with
+ * {@link com.datastax.driver.core.policies.PercentileSpeculativeExecutionPolicy}, every query shape speculates at
+ * its own percentile.
+ * <p/>
+ * Bound statements are categorized by the id of their prepared statement; other statements (simple, built or batch
+ * statements) have no stable identity, so they are all grouped in a single histogram per host.
+ * <p/>
+ * The number of tracked (statement, host) pairs is bounded (see {@link Builder#withMaxTrackedStatements(int)});
+ * past that limit, the histograms of the least recently used pairs are discarded.
+ */
+public class PerStatementPercentileTracker extends PercentileTracker {
+
+    private PerStatementPercentileTracker(long highestTrackableLatencyMillis,
+                                          int numberOfSignificantValueDigits,
+                                          int minRecordedValues,
+                                          long intervalMs,
+                                          int maxTrackedStatements) {
+        super(highestTrackableLatencyMillis, numberOfSignificantValueDigits, minRecordedValues, intervalMs,
+                maxTrackedStatements);
+    }
+
+    @Override
+    protected Object computeKey(Host host, Statement statement, Exception exception) {
+        if (statement instanceof StatementWrapper)
+            statement = ((StatementWrapper) statement).getWrappedStatement();
+        if (statement instanceof BoundStatement) {
+            PreparedId preparedId = ((BoundStatement) statement).preparedStatement().getPreparedId();
+            return new StatementKey(preparedId.boundValuesMetadata.id, host);
+        }
+        return host;
+    }
+
+    /**
+     * Returns a builder to create a new instance.
+     *
+     * @param highestTrackableLatencyMillis the highest expected latency. If a higher value is reported, it will be
+     *                                      ignored and a warning will be logged. A good rule of thumb is to set it
+     *                                      slightly higher than {@link SocketOptions#getReadTimeoutMillis()}.
+     * @return the builder.
+     */
+    public static Builder builder(long highestTrackableLatencyMillis) {
+        return new Builder(highestTrackableLatencyMillis);
+    }
+
+    private static class StatementKey {
+        private final MD5Digest statementId;
+        private final Host host;
+
+        StatementKey(MD5Digest statementId, Host host) {
+            this.statementId = statementId;
+            this.host = host;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (other instanceof StatementKey) {
+                StatementKey that = (StatementKey) other;
+                return this.statementId.equals(that.statementId) && Objects.equal(this.host, that.host);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(statementId, host);
+        }
+    }
+
+    /**
+     * Helper class to build {@code PerStatementPercentileTracker} instances with a fluent interface.
+     */
+    public static class Builder extends PercentileTracker.Builder<Builder, PerStatementPercentileTracker> {
+
+        private int maxTrackedStatements = 1000;
+
+        Builder(long highestTrackableLatencyMillis) {
+            super(highestTrackableLatencyMillis);
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of (statement, host) pairs to track.
+         * <p/>
+         * Each pair uses its own histograms, so this bounds the memory footprint of the tracker. When the limit is
+         * reached, the least recently used pairs are evicted; statements that are executed rarely will therefore not
+         * accumulate enough values to get percentiles, which is usually what you want.
+         * <p/>
+         * If not set explicitly, this value defaults to 1000.
+         *
+         * @param maxTrackedStatements the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withMaxTrackedStatements(int maxTrackedStatements) {
+            checkArgument(maxTrackedStatements > 0,
+                    "maxTrackedStatements must be strictly positive (was %s)", maxTrackedStatements);
+            this.maxTrackedStatements = maxTrackedStatements;
+            return this;
+        }
+
+        @Override
+        public PerStatementPercentileTracker build() {
+            return new PerStatementPercentileTracker(highestTrackableLatencyMillis, numberOfSignificantValueDigits,
+                    minRecordedValues, intervalMs, maxTrackedStatements);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 package com.datastax.driver.core;
 
 import com.datastax.driver.core.exceptions.*;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -72,12 +75,44 @@ public abstract class PercentileTracker implements LatencyTracker {
                                 int numberOfSignificantValueDigits,
                                 int minRecordedValues,
                                 long intervalMs) {
+        this(highestTrackableLatencyMillis, numberOfSignificantValueDigits, minRecordedValues, intervalMs, 0);
+    }
+
+    /**
+     * Builds a new instance that tracks a bounded number of keys.
+     * <p/>
+     * When more than {@code maxTrackedKeys} keys are in use, the histograms of the least recently used keys are
+     * discarded. This is intended for implementations that compute a large or unbounded number of keys.
+     *
+     * @param maxTrackedKeys the maximum number of keys to track, or 0 for no limit.
+     * @see Builder
+     */
+    protected PercentileTracker(long highestTrackableLatencyMillis,
+                                int numberOfSignificantValueDigits,
+                                int minRecordedValues,
+                                long intervalMs,
+                                int maxTrackedKeys) {
+        checkArgument(maxTrackedKeys >= 0, "maxTrackedKeys must be positive or 0 (was %s)", maxTrackedKeys);
         this.highestTrackableLatencyMillis = highestTrackableLatencyMillis;
         this.numberOfSignificantValueDigits = numberOfSignificantValueDigits;
         this.minRecordedValues = minRecordedValues;
         this.intervalMs = intervalMs;
-        this.recorders = new ConcurrentHashMap<Object, Recorder>();
         this.cachedHistograms = new ConcurrentHashMap<Object, CachedHistogram>();
+        if (maxTrackedKeys == 0) {
+            this.recorders = new ConcurrentHashMap<Object, Recorder>();
+        } else {
+            // Recorders are evicted in LRU order; the cached histogram of an evicted key goes away with it.
+            this.recorders = CacheBuilder.newBuilder()
+                    .maximumSize(maxTrackedKeys)
+                    .removalListener(new RemovalListener<Object, Recorder>() {
+                        @Override
+                        public void onRemoval(RemovalNotification<Object, Recorder> notification) {
+                            cachedHistograms.remove(notification.getKey());
+                        }
+                    })
+                    .<Object, Recorder>build()
+                    .asMap();
+        }
     }
 
     /**
@@ -161,14 +196,21 @@ public abstract class PercentileTracker implements LatencyTracker {
         try {
             while (true) {
                 CachedHistogram entry = cachedHistograms.get(key);
-                if (entry == null)
+                if (entry == null) {
+                    // If the key was evicted and immediately recorded again, eviction might have removed the new
+                    // entry: restore it, otherwise the key's histogram would never be refreshed.
+                    if (recorders.containsKey(key))
+                        cachedHistograms.putIfAbsent(key, CachedHistogram.empty());
                     return null;
+                }
 
                 long age = System.currentTimeMillis() - entry.timestamp;
                 if (age < intervalMs) { // current histogram is recent enough
                     return entry.histogram.get();
                 } else { // need to refresh
                     Recorder recorder = recorders.get(key);
+                    if (recorder == null) // the key was evicted concurrently
+                        return null;
                     // intervalMs should be much larger than the time it takes to replace a histogram, so this future should never block
                     Histogram staleHistogram = entry.histogram.get(0, MILLISECONDS);
                     SettableFuture<Histogram> future = SettableFuture.create();
@@ -141,6 +141,11 @@ public class PoolingOptions {
      */
     public static final int DEFAULT_HEARTBEAT_INTERVAL_SECONDS = 30;
 
+    /**
+     * The default value for {@link #getMaxOrphanedStreamsPerConnection()} ({@value}).
+     */
+    public static final int DEFAULT_MAX_ORPHANED_STREAMS_PER_CONNECTION = 256;
+
     private static final Executor DEFAULT_INITIALIZATION_EXECUTOR = GuavaCompatibility.INSTANCE.sameThreadExecutor();
 
     private volatile Cluster.Manager manager;
@@ -158,6 +163,7 @@ public class PoolingOptions {
     private volatile int poolTimeoutMillis = DEFAULT_POOL_TIMEOUT_MILLIS;
     private volatile int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
     private volatile int heartbeatIntervalSeconds = DEFAULT_HEARTBEAT_INTERVAL_SECONDS;
+    private volatile int maxOrphanedStreamsPerConnection = DEFAULT_MAX_ORPHANED_STREAMS_PER_CONNECTION;
 
     private volatile Executor initializationExecutor = DEFAULT_INITIALIZATION_EXECUTOR;
 
@@ -510,6 +516,42 @@ public class PoolingOptions {
         return this;
     }
 
+    /**
+     * Returns the maximum number of orphaned stream ids that a connection can hold before it gets replaced.
+     *
+     * @return the maximum number of orphaned stream ids per connection.
+     * @see #setMaxOrphanedStreamsPerConnection(int)
+     */
+    public int getMaxOrphanedStreamsPerConnection() {
+        return maxOrphanedStreamsPerConnection;
+    }
+
+    /**
+     * Sets the maximum number of orphaned stream ids that a connection can hold before it gets replaced.
+     * <p/>
+     * When the driver gives up on a request (because it timed out client-side, or because the user cancelled it), it
+     * can't reuse its stream id until the server replies, otherwise the late response could be mistaken for the answer
+     * to another request. These "orphaned" ids reduce the number of requests that the connection can handle, and a
+     * server that never replies leaks them forever. Once a connection reaches this threshold, the pool opens a new
+     * connection to replace it, and closes the old one as soon as its remaining requests have completed.
+     * <p/>
+     * The number of orphaned ids is exposed per host by {@link Metrics#getOrphanedStreams(Host)}.
+     * <p/>
+     * The default value is {@value DEFAULT_MAX_ORPHANED_STREAMS_PER_CONNECTION}. Note that, independently of this
+     * option, a connection is also replaced if orphaned ids leave it with fewer than 3/4 of
+     * {@link #getMaxRequestsPerConnection(HostDistance) the maximum number of requests per connection}.
+     *
+     * @param maxOrphanedStreamsPerConnection the new value.
+     * @return this {@code PoolingOptions}
+     * @throws IllegalArgumentException if the value is not strictly positive.
+     */
+    public PoolingOptions setMaxOrphanedStreamsPerConnection(int maxOrphanedStreamsPerConnection) {
+        if (maxOrphanedStreamsPerConnection <= 0)
+            throw new IllegalArgumentException("Max orphaned streams per connection must be strictly positive");
+        this.maxOrphanedStreamsPerConnection = maxOrphanedStreamsPerConnection;
+        return this;
+    }
+
     /**
      * Returns the executor to use for connection initialization.
      *
@@ -360,6 +360,10 @@ public interface PreparedStatement {
      * See {@link com.datastax.driver.core.Statement#isIdempotent} for more explanations about this property.
      * <p/>
      * Please note that idempotence will be propagated to all {@link BoundStatement}s created from this prepared statement.
+     * <p/>
+     * If no value was set explicitly, this returns {@code true} for {@code SELECT} queries and, if
+     * {@link QueryOptions#setInferIdempotence(boolean) idempotence inference} is enabled, the value inferred from the
+     * query string of other queries when the statement was prepared.
      *
      * @return whether this statement is idempotent, or {@code null} to use
      * {@link QueryOptions#getDefaultIdempotence()}.
@@ -61,6 +61,8 @@ public class QueryOptions {
     private volatile ConsistencyLevel serialConsistency = DEFAULT_SERIAL_CONSISTENCY_LEVEL;
     private volatile int fetchSize = DEFAULT_FETCH_SIZE;
     private volatile boolean defaultIdempotence = DEFAULT_IDEMPOTENCE;
+    private volatile boolean inferIdempotence = false;
+    private volatile double requestTimelineSamplingRate = 0;
 
     private volatile boolean metadataEnabled = true;
 
@@ -198,6 +200,78 @@ public class QueryOptions {
         return defaultIdempotence;
     }
 
+    /**
+     * Sets whether the driver should infer the idempotence of prepared writes from their query string.
+     * <p/>
+     * Prepared {@code SELECT} queries are always considered idempotent, whether this option is enabled or not. If it is
+     * enabled, the query string of other statements is analyzed as well, when they get prepared:
+     * <ul>
+     * <li>{@code SELECT} queries are considered idempotent;</li>
+     * <li>{@code INSERT}, {@code UPDATE}, {@code DELETE} and {@code BATCH} queries are considered idempotent, unless
+     * they are conditional (lightweight transactions), update counters, append or prepend to lists, delete list
+     * elements by index, or call functions such as {@code now()} or {@code uuid()};</li>
+     * <li>other queries are left undetermined.</li>
+     * </ul>
+     * The result is cached on the {@link PreparedStatement}, and used when {@link PreparedStatement#isIdempotent()}
+     * has not been set explicitly. This allows {@link com.datastax.driver.core.policies.SpeculativeExecutionPolicy
+     * speculative executions} and retries on prepared statements without having to tag each statement.
+     * <p/>
+     * This option is disabled by default, so that writes keep the {@link #getDefaultIdempotence() default
+     * idempotence} unless they are tagged. Statements built with {@link com.datastax.driver.core.querybuilder.QueryBuilder}
+     * always infer their idempotence, regardless of this option.
+     *
+     * @param inferIdempotence whether the driver should infer the idempotence of prepared writes.
+     * @return this {@code QueryOptions} instance.
+     */
+    public QueryOptions setInferIdempotence(boolean inferIdempotence) {
+        this.inferIdempotence = inferIdempotence;
+        return this;
+    }
+
+    /**
+     * Returns whether the driver infers the idempotence of prepared writes.
+     *
+     * @return the value.
+     * @see #setInferIdempotence(boolean)
+     */
+    public boolean isInferIdempotence() {
+        return inferIdempotence;
+    }
+
+    /**
+     * Sets the fraction of requests for which the driver records a client-side {@link RequestTimeline timeline}.
+     * <p/>
+     * The timeline of a sampled request is available through {@link ExecutionInfo#getRequestTimeline()}, and is also
+     * passed to the {@link RequestTimelineExporter exporters} registered with
+     * {@link Cluster#register(RequestTimelineExporter)}. Sampling is deterministic: with a rate of 0.01, exactly one
+     * request out of 100 is recorded.
+     * <p/>
+     * The same requests also record a {@link QueryPlanExplanation}, available through
+     * {@link ExecutionInfo#getQueryPlanExplanation()}.
+     * <p/>
+     * The default value is 0, which disables the feature.
+     *
+     * @param requestTimelineSamplingRate the new value, between 0 and 1 (inclusive).
+     * @return this {@code QueryOptions} instance.
+     * @throws IllegalArgumentException if the value is not between 0 and 1.
+     */
+    public QueryOptions setRequestTimelineSamplingRate(double requestTimelineSamplingRate) {
+        if (!(requestTimelineSamplingRate >= 0 && requestTimelineSamplingRate <= 1))
+            throw new IllegalArgumentException("Sampling rate must be between 0 and 1 (was " + requestTimelineSamplingRate + ")");
+        this.requestTimelineSamplingRate = requestTimelineSamplingRate;
+        return this;
+    }
+
+    /**
+     * Returns the fraction of requests for which the driver records a client-side timeline.
+     *
+     * @return the value.
+     * @see #setRequestTimelineSamplingRate(double)
+     */
+    public double getRequestTimelineSamplingRate() {
+        return requestTimelineSamplingRate;
+    }
+
     /**
      * Set whether the driver should prepare statements on all hosts in the cluster.
      * <p/>
@@ -496,6 +570,8 @@ public class QueryOptions {
                 this.serialConsistency.equals(other.serialConsistency) &&
                 this.fetchSize == other.fetchSize &&
                 this.defaultIdempotence == other.defaultIdempotence &&
+                this.inferIdempotence == other.inferIdempotence &&
+                this.requestTimelineSamplingRate == other.requestTimelineSamplingRate &&
                 this.metadataEnabled == other.metadataEnabled &&
                 this.maxPendingRefreshNodeListRequests == other.maxPendingRefreshNodeListRequests &&
                 this.maxPendingRefreshNodeRequests == other.maxPendingRefreshNodeRequests &&
@@ -511,7 +587,7 @@ public class QueryOptions {
     public int hashCode() {
         return MoreObjects.
             hashCode(consistency, serialConsistency, fetchSize,
-                     defaultIdempotence, metadataEnabled,
+                     defaultIdempotence, inferIdempotence, requestTimelineSamplingRate, metadataEnabled,
                      maxPendingRefreshNodeListRequests,
                      maxPendingRefreshNodeRequests,
                      maxPendingRefreshSchemaRequests,
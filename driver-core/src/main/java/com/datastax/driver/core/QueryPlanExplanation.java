@@ -0,0 +1,300 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.policies.ExplainableQueryPlanPolicy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Why the hosts of a query plan were chosen, to investigate routing decisions after the fact (for example, requests
+ * that were slow because they were sent to a non-replica or to a busy host).
+ * <p/>
+ * This is recorded for the same fraction of the requests as their {@link RequestTimeline timeline} (see
+ * {@link QueryOptions#setRequestTimelineSamplingRate(double)}), and is available from
+ * {@link ExecutionInfo#getQueryPlanExplanation()}. It is filled by two parties:
+ * <ul>
+ * <li>the load balancing policies, if they implement {@link ExplainableQueryPlanPolicy}: the replicas of the
+ * statement, the latency scores of the hosts, and the hosts that were moved to the end of the plan or left out of it,
+ * with the reason;</li>
+ * <li>the driver: the hosts it actually tried, in order, with the load of their connection pool when they were
+ * tried.</li>
+ * </ul>
+ * Every piece of information is optional, since it depends on the policies in use: for example, with a policy that
+ * is not token-aware, {@link #isRouted()} returns {@code false}.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class QueryPlanExplanation {
+
+    /**
+     * The reason why a policy left a host out of a query plan, or moved it to the end of the plan.
+     */
+    public enum Exclusion {
+        /**
+         * The host is down.
+         */
+        DOWN,
+        /**
+         * The host is slower than the others (see {@link com.datastax.driver.core.policies.LatencyAwarePolicy}).
+         */
+        SLOW,
+        /**
+         * The host returned too many errors recently (see
+         * {@link com.datastax.driver.core.policies.ErrorAwarePolicy}).
+         */
+        ERRORS
+    }
+
+    private final Map<Host, HostDecision> decisions = new LinkedHashMap<Host, HostDecision>();
+    private Set<Host> replicas;
+    private int triedCount;
+
+    /**
+     * Creates a new, empty explanation.
+     * <p/>
+     * The driver creates one for each sampled request; this constructor is only useful to explain query plans
+     * outside of the execution of a request, by passing the new instance to
+     * {@link ExplainableQueryPlanPolicy#newQueryPlan(String, Statement, QueryPlanExplanation)}.
+     */
+    public QueryPlanExplanation() {
+    }
+
+    /**
+     * Records the replicas of the statement, as computed by a token-aware policy.
+     *
+     * @param replicas the replicas.
+     */
+    public synchronized void setReplicas(Set<Host> replicas) {
+        this.replicas = ImmutableSet.copyOf(replicas);
+    }
+
+    /**
+     * Records the latency score of a host, as computed by a latency-aware policy.
+     *
+     * @param host  the host.
+     * @param score the ratio between the average latency of the host and the lowest average latency among all hosts
+     *              (1 for the fastest host).
+     */
+    public synchronized void setLatencyScore(Host host, double score) {
+        decision(host).latencyScore = score;
+    }
+
+    /**
+     * Records that a policy left a host out of the query plan, or moved it to the end of the plan.
+     * <p/>
+     * If several policies exclude the same host, the first reason is kept.
+     *
+     * @param host   the host.
+     * @param reason the reason.
+     */
+    public synchronized void setExclusion(Host host, Exclusion reason) {
+        HostDecision decision = decision(host);
+        if (decision.exclusion == null)
+            decision.exclusion = reason;
+    }
+
+    /**
+     * Records that the driver tried the host.
+     *
+     * @param inFlight       the number of requests in flight on the host's connection pool.
+     * @param pendingBorrows the number of requests waiting for a connection of the host's pool.
+     */
+    synchronized void recordTry(Host host, int inFlight, int pendingBorrows) {
+        HostDecision decision = decision(host);
+        // If the same host is tried again (e.g. retry), keep the first attempt
+        if (decision.tryIndex < 0) {
+            decision.tryIndex = triedCount++;
+            decision.inFlight = inFlight;
+            decision.pendingBorrows = pendingBorrows;
+        }
+    }
+
+    private HostDecision decision(Host host) {
+        HostDecision decision = decisions.get(host);
+        if (decision == null) {
+            decision = new HostDecision(host);
+            decisions.put(host, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Whether a policy computed the replicas of the statement.
+     *
+     * @return whether {@link #getReplicas()} is available.
+     */
+    public synchronized boolean isRouted() {
+        return replicas != null;
+    }
+
+    /**
+     * Returns the replicas of the statement, as computed by a token-aware policy.
+     *
+     * @return the replicas, or {@code null} if the statement was not routed (see {@link #isRouted()}).
+     */
+    public synchronized Set<Host> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Returns the hosts that were tried by the driver, or that a policy had something to say about, in the order in
+     * which they were first recorded.
+     *
+     * @return a snapshot of the decisions.
+     */
+    public synchronized List<HostDecision> getDecisions() {
+        ImmutableList.Builder<HostDecision> builder = ImmutableList.builder();
+        for (HostDecision decision : decisions.values())
+            builder.add(decision.copy(replicas));
+        return builder.build();
+    }
+
+    /**
+     * Returns what was recorded about the given host.
+     *
+     * @param host the host.
+     * @return a snapshot of the decision, or {@code null} if nothing was recorded about that host.
+     */
+    public synchronized HostDecision getDecision(Host host) {
+        HostDecision decision = decisions.get(host);
+        return decision == null ? null : decision.copy(replicas);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("QueryPlanExplanation[routed=").append(replicas != null);
+        for (HostDecision decision : decisions.values())
+            sb.append(", ").append(decision.copy(replicas));
+        return sb.append(']').toString();
+    }
+
+    /**
+     * What was recorded about a host of the query plan.
+     */
+    public static class HostDecision {
+        private final Host host;
+        private boolean replica;
+        private double latencyScore = Double.NaN;
+        private Exclusion exclusion;
+        private int tryIndex = -1;
+        private int inFlight = -1;
+        private int pendingBorrows = -1;
+
+        private HostDecision(Host host) {
+            this.host = host;
+        }
+
+        private HostDecision copy(Set<Host> replicas) {
+            HostDecision copy = new HostDecision(host);
+            copy.replica = replicas != null && replicas.contains(host);
+            copy.latencyScore = latencyScore;
+            copy.exclusion = exclusion;
+            copy.tryIndex = tryIndex;
+            copy.inFlight = inFlight;
+            copy.pendingBorrows = pendingBorrows;
+            return copy;
+        }
+
+        /**
+         * Returns the host.
+         *
+         * @return the host.
+         */
+        public Host getHost() {
+            return host;
+        }
+
+        /**
+         * Whether the host is a replica of the statement.
+         *
+         * @return whether the host is a replica. This is always {@code false} if the statement was not routed (see
+         * {@link QueryPlanExplanation#isRouted()}).
+         */
+        public boolean isReplica() {
+            return replica;
+        }
+
+        /**
+         * Returns the latency score of the host, as computed by a latency-aware policy (see
+         * {@link QueryPlanExplanation#setLatencyScore(Host, double)}).
+         *
+         * @return the score, or {@link Double#NaN} if no policy computed one.
+         */
+        public double getLatencyScore() {
+            return latencyScore;
+        }
+
+        /**
+         * Returns the reason why a policy left the host out of the query plan, or moved it to the end of the plan.
+         *
+         * @return the reason, or {@code null} if no policy excluded the host.
+         */
+        public Exclusion getExclusion() {
+            return exclusion;
+        }
+
+        /**
+         * Returns the order in which the driver tried the host: 0 for the first host tried, 1 for the next one, etc.
+         * <p/>
+         * With speculative executions, the hosts tried by all the executions are numbered together.
+         *
+         * @return the index, or -1 if the host was not tried.
+         */
+        public int getTryIndex() {
+            return tryIndex;
+        }
+
+        /**
+         * Returns the number of requests in flight on the host's connection pool when the driver tried it.
+         *
+         * @return the number of requests, or -1 if the host was not tried.
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * Returns the number of requests that were waiting for a connection of the host's pool when the driver tried
+         * it. A non-zero value means that the pool was saturated.
+         *
+         * @return the number of requests, or -1 if the host was not tried.
+         */
+        public int getPendingBorrows() {
+            return pendingBorrows;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder().append(host).append('[');
+            sb.append("replica=").append(replica);
+            if (!Double.isNaN(latencyScore))
+                sb.append(", latencyScore=").append(String.format("%.2f", latencyScore));
+            if (exclusion != null)
+                sb.append(", excluded=").append(exclusion);
+            if (tryIndex >= 0)
+                sb.append(", try=").append(tryIndex)
+                        .append(", inFlight=").append(inFlight)
+                        .append(", pendingBorrows=").append(pendingBorrows);
+            return sb.append(']').toString();
+        }
+    }
+}
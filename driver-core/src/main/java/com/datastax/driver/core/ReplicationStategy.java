@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * Computes the token->list<replica> association, given the token ring and token->primary token map.
@@ -61,10 +62,84 @@ abstract class ReplicationStrategy {
         }
     }
 
-    abstract Map<Token, Set<Host>> computeTokenToReplicaMap(String keyspaceName, Map<Token, Host> tokenToPrimary, List<Token> ring);
+    /**
+     * Prepares the computation of the replicas of a ring.
+     *
+     * @param keyspaceName the name of a keyspace that uses this strategy (only used for logging).
+     * @param ringHosts    the primary host of each token of the ring, in ring order.
+     */
+    abstract ReplicaComputation prepare(String keyspaceName, Host[] ringHosts);
+
+    Map<Token, Set<Host>> computeTokenToReplicaMap(String keyspaceName, Map<Token, Host> tokenToPrimary, List<Token> ring) {
+        @SuppressWarnings("unchecked")
+        Set<Host>[] replicas = (Set<Host>[]) new Set[ring.size()];
+        prepare(keyspaceName, primaries(tokenToPrimary, ring)).computeReplicas(0, ring.size(), replicas);
+
+        Map<Token, Set<Host>> replicaMap = new HashMap<Token, Set<Host>>(ring.size());
+        for (int i = 0; i < ring.size(); i++)
+            replicaMap.put(ring.get(i), replicas[i]);
+        return replicaMap;
+    }
+
+    static Host[] primaries(Map<Token, Host> tokenToPrimary, List<Token> ring) {
+        Host[] ringHosts = new Host[ring.size()];
+        for (int i = 0; i < ringHosts.length; i++)
+            ringHosts[i] = tokenToPrimary.get(ring.get(i));
+        return ringHosts;
+    }
+
+    /**
+     * The computation for keyspaces without a (known) replication strategy: the only replica of a token is its primary
+     * host.
+     */
+    static ReplicaComputation primaryOnly(Host[] ringHosts) {
+        return new ReplicaComputation(ringHosts) {
+            @Override
+            int computeReplicas(int from, int to, Set<Host>[] replicas) {
+                for (int i = from; i < to; i++)
+                    replicas[i] = ImmutableSet.of(ringHosts[i]);
+                return 1;
+            }
+
+            @Override
+            boolean hasSameLayout(ReplicaComputation other) {
+                return other.getClass() == getClass();
+            }
+        };
+    }
+
+    /**
+     * Computes the replicas of the tokens of a given ring.
+     * <p/>
+     * The replicas of a token are found by walking the ring from that token, so:
+     * <ul>
+     * <li>distinct ranges of tokens can be computed concurrently. Implementations must be safe for that;</li>
+     * <li>if two rings have the {@link #hasSameLayout(ReplicaComputation) same layout}, a token that has the same hosts
+     * on both rings over the length of its walk has the same replicas. This is what allows to only recompute the
+     * tokens close to a host that was added or removed.</li>
+     * </ul>
+     */
+    abstract static class ReplicaComputation {
+        final Host[] ringHosts;
+
+        ReplicaComputation(Host[] ringHosts) {
+            this.ringHosts = ringHosts;
+        }
 
-    private static Token getTokenWrapping(int i, List<Token> ring) {
-        return ring.get(i % ring.size());
+        /**
+         * Computes the replicas of the tokens at positions {@code [from, to)} of the ring.
+         *
+         * @param replicas where to store the replicas, at the same positions.
+         * @return the maximum number of positions of the ring that were visited to compute the replicas of a token
+         * (at least 1).
+         */
+        abstract int computeReplicas(int from, int to, Set<Host>[] replicas);
+
+        /**
+         * Whether the replicas of a token are computed from the hosts that are visited in the same way as with another
+         * computation, typically for the same strategy before a host was added to or removed from the ring.
+         */
+        abstract boolean hasSameLayout(ReplicaComputation other);
     }
 
     static class SimpleStrategy extends ReplicationStrategy {
@@ -76,19 +151,39 @@ abstract class ReplicationStrategy {
         }
 
         @Override
-        Map<Token, Set<Host>> computeTokenToReplicaMap(String keyspaceName, Map<Token, Host> tokenToPrimary, List<Token> ring) {
+        ReplicaComputation prepare(String keyspaceName, Host[] ringHosts) {
+            return new Computation(ringHosts, Math.min(replicationFactor, ringHosts.length));
+        }
 
-            int rf = Math.min(replicationFactor, ring.size());
+        private static class Computation extends ReplicaComputation {
+            private final int rf;
 
-            Map<Token, Set<Host>> replicaMap = new HashMap<Token, Set<Host>>(tokenToPrimary.size());
-            for (int i = 0; i < ring.size(); i++) {
-                // Consecutive sections of the ring can assigned to the same host
-                Set<Host> replicas = new LinkedHashSet<Host>();
-                for (int j = 0; j < ring.size() && replicas.size() < rf; j++)
-                    replicas.add(tokenToPrimary.get(getTokenWrapping(i + j, ring)));
-                replicaMap.put(ring.get(i), ImmutableSet.copyOf(replicas));
+            Computation(Host[] ringHosts, int rf) {
+                super(ringHosts);
+                this.rf = rf;
+            }
+
+            @Override
+            int computeReplicas(int from, int to, Set<Host>[] replicas) {
+                int n = ringHosts.length;
+                int maxWalk = 1;
+                Set<Host> current = new LinkedHashSet<Host>();
+                for (int i = from; i < to; i++) {
+                    // Consecutive sections of the ring can assigned to the same host
+                    current.clear();
+                    int j = 0;
+                    for (; j < n && current.size() < rf; j++)
+                        current.add(ringHosts[(i + j) % n]);
+                    replicas[i] = ImmutableSet.copyOf(current);
+                    maxWalk = Math.max(maxWalk, j);
+                }
+                return maxWalk;
+            }
+
+            @Override
+            boolean hasSameLayout(ReplicaComputation other) {
+                return other instanceof Computation && ((Computation) other).rf == rf;
             }
-            return replicaMap;
         }
 
         @Override
@@ -120,27 +215,44 @@ abstract class ReplicationStrategy {
         }
 
         @Override
-        Map<Token, Set<Host>> computeTokenToReplicaMap(String keyspaceName, Map<Token, Host> tokenToPrimary, List<Token> ring) {
-
-            logger.debug("Computing token to replica map for keyspace: {}.", keyspaceName);
-
-            // Track how long it takes to compute the token to replica map
-            long startTime = System.currentTimeMillis();
-
-            // This is essentially a copy of org.apache.cassandra.locator.NetworkTopologyStrategy
-            Map<String, Set<String>> racks = getRacksInDcs(tokenToPrimary.values());
-            Map<Token, Set<Host>> replicaMap = new HashMap<Token, Set<Host>>(tokenToPrimary.size());
-            Map<String, Integer> dcHostCount = Maps.newHashMapWithExpectedSize(replicationFactors.size());
-            Set<String> warnedDcs = Sets.newHashSetWithExpectedSize(replicationFactors.size());
-            // find maximum number of nodes in each DC
-            for (Host host : Sets.newHashSet(tokenToPrimary.values())) {
-                String dc = host.getDatacenter();
-                if (dcHostCount.get(dc) == null) {
-                    dcHostCount.put(dc, 0);
+        ReplicaComputation prepare(String keyspaceName, Host[] ringHosts) {
+            return new Computation(keyspaceName, ringHosts);
+        }
+
+        // This is essentially a copy of org.apache.cassandra.locator.NetworkTopologyStrategy
+        private class Computation extends ReplicaComputation {
+            private final String keyspaceName;
+            private final Map<String, Set<String>> racks;
+            private final Map<String, Integer> dcHostCount;
+            // The DC and rack of each host when the computation was prepared (they can change later)
+            private final Map<Host, List<String>> locations;
+            // Shared by the threads that compute different ranges of the ring
+            private final Set<String> warnedDcs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+            Computation(String keyspaceName, Host[] ringHosts) {
+                super(ringHosts);
+                this.keyspaceName = keyspaceName;
+                Set<Host> hosts = Sets.newHashSet(ringHosts);
+                this.racks = getRacksInDcs(hosts);
+                this.dcHostCount = Maps.newHashMapWithExpectedSize(replicationFactors.size());
+                this.locations = Maps.newHashMapWithExpectedSize(hosts.size());
+                // find maximum number of nodes in each DC
+                for (Host host : hosts) {
+                    locations.put(host, Arrays.asList(host.getDatacenter(), host.getRack()));
+                    String dc = host.getDatacenter();
+                    if (dcHostCount.get(dc) == null) {
+                        dcHostCount.put(dc, 0);
+                    }
+                    dcHostCount.put(dc, dcHostCount.get(dc) + 1);
                 }
-                dcHostCount.put(dc, dcHostCount.get(dc) + 1);
             }
-            for (int i = 0; i < ring.size(); i++) {
+
+            @Override
+            int computeReplicas(int from, int to, Set<Host>[] output) {
+                int n = ringHosts.length;
+                int maxWalk = 1;
+
+                // Reused for every token of the range, instead of being allocated for each of them
                 Map<String, Set<Host>> allDcReplicas = new HashMap<String, Set<Host>>();
                 Map<String, Set<String>> seenRacks = new HashMap<String, Set<String>>();
                 Map<String, Set<Host>> skippedDcEndpoints = new HashMap<String, Set<Host>>();
@@ -149,81 +261,111 @@ abstract class ReplicationStrategy {
                     seenRacks.put(dc, new HashSet<String>());
                     skippedDcEndpoints.put(dc, new LinkedHashSet<Host>()); // preserve order
                 }
-
                 // Preserve order - primary replica will be first
                 Set<Host> replicas = new LinkedHashSet<Host>();
-                for (int j = 0; j < ring.size() && !allDone(allDcReplicas, dcHostCount); j++) {
-                    Host h = tokenToPrimary.get(getTokenWrapping(i + j, ring));
-                    String dc = h.getDatacenter();
-                    if (dc == null || !allDcReplicas.containsKey(dc))
-                        continue;
-
-                    Integer rf = replicationFactors.get(dc);
-                    Set<Host> dcReplicas = allDcReplicas.get(dc);
-                    if (rf == null || dcReplicas.size() >= rf)
-                        continue;
 
-                    String rack = h.getRack();
-                    // Check if we already visited all racks in dc
-                    if (rack == null || seenRacks.get(dc).size() == racks.get(dc).size()) {
-                        replicas.add(h);
-                        dcReplicas.add(h);
-                    } else {
-                        // Is this a new rack?
-                        if (seenRacks.get(dc).contains(rack)) {
-                            skippedDcEndpoints.get(dc).add(h);
-                        } else {
+                for (int i = from; i < to; i++) {
+                    for (String dc : replicationFactors.keySet()) {
+                        allDcReplicas.get(dc).clear();
+                        seenRacks.get(dc).clear();
+                        skippedDcEndpoints.get(dc).clear();
+                    }
+                    replicas.clear();
+
+                    int j = 0;
+                    for (; j < n && !allDone(allDcReplicas); j++) {
+                        Host h = ringHosts[(i + j) % n];
+                        String dc = h.getDatacenter();
+                        if (dc == null || !allDcReplicas.containsKey(dc))
+                            continue;
+
+                        Integer rf = replicationFactors.get(dc);
+                        Set<Host> dcReplicas = allDcReplicas.get(dc);
+                        if (rf == null || dcReplicas.size() >= rf)
+                            continue;
+
+                        String rack = h.getRack();
+                        // Check if we already visited all racks in dc
+                        if (rack == null || seenRacks.get(dc).size() == racks.get(dc).size()) {
                             replicas.add(h);
                             dcReplicas.add(h);
-                            seenRacks.get(dc).add(rack);
-                            // If we've run out of distinct racks, add the nodes skipped so far
-                            if (seenRacks.get(dc).size() == racks.get(dc).size()) {
-                                Iterator<Host> skippedIt = skippedDcEndpoints.get(dc).iterator();
-                                while (skippedIt.hasNext() && dcReplicas.size() < rf) {
-                                    Host nextSkipped = skippedIt.next();
-                                    replicas.add(nextSkipped);
-                                    dcReplicas.add(nextSkipped);
+                        } else {
+                            // Is this a new rack?
+                            if (seenRacks.get(dc).contains(rack)) {
+                                skippedDcEndpoints.get(dc).add(h);
+                            } else {
+                                replicas.add(h);
+                                dcReplicas.add(h);
+                                seenRacks.get(dc).add(rack);
+                                // If we've run out of distinct racks, add the nodes skipped so far
+                                if (seenRacks.get(dc).size() == racks.get(dc).size()) {
+                                    Iterator<Host> skippedIt = skippedDcEndpoints.get(dc).iterator();
+                                    while (skippedIt.hasNext() && dcReplicas.size() < rf) {
+                                        Host nextSkipped = skippedIt.next();
+                                        replicas.add(nextSkipped);
+                                        dcReplicas.add(nextSkipped);
+                                    }
                                 }
                             }
                         }
                     }
-                }
-
-                // If we haven't found enough replicas after a whole trip around the ring, this probably
-                // means that the replication factors are broken.
-                // Warn the user because that leads to quadratic performance of this method (JAVA-702).
-                for (Map.Entry<String, Set<Host>> entry : allDcReplicas.entrySet()) {
-                    String dcName = entry.getKey();
-                    int expectedFactor = replicationFactors.get(dcName);
-                    int achievedFactor = entry.getValue().size();
-                    if (achievedFactor < expectedFactor && !warnedDcs.contains(dcName)) {
-                        logger.warn("Error while computing token map for keyspace {} with datacenter {}: "
-                                        + "could not achieve replication factor {} (found {} replicas only), "
-                                        + "check your keyspace replication settings.",
-                                keyspaceName, dcName, expectedFactor, achievedFactor);
+                    maxWalk = Math.max(maxWalk, j);
+
+                    // If we haven't found enough replicas after a whole trip around the ring, this probably
+                    // means that the replication factors are broken.
+                    // Warn the user because that leads to quadratic performance of this method (JAVA-702).
+                    for (Map.Entry<String, Set<Host>> entry : allDcReplicas.entrySet()) {
+                        String dcName = entry.getKey();
+                        int expectedFactor = replicationFactors.get(dcName);
+                        int achievedFactor = entry.getValue().size();
                         // only warn once per DC
-                        warnedDcs.add(dcName);
+                        if (achievedFactor < expectedFactor && warnedDcs.add(dcName)) {
+                            logger.warn("Error while computing token map for keyspace {} with datacenter {}: "
+                                            + "could not achieve replication factor {} (found {} replicas only), "
+                                            + "check your keyspace replication settings.",
+                                    keyspaceName, dcName, expectedFactor, achievedFactor);
+                        }
                     }
-                }
 
-                replicaMap.put(ring.get(i), ImmutableSet.copyOf(replicas));
+                    output[i] = ImmutableSet.copyOf(replicas);
+                }
+                return maxWalk;
             }
 
-            long duration = System.currentTimeMillis() - startTime;
-            logger.debug("Token to replica map computation for keyspace {} completed in {} milliseconds",
-                    keyspaceName, duration);
-
-            return replicaMap;
-        }
+            private boolean allDone(Map<String, Set<Host>> map) {
+                for (Map.Entry<String, Set<Host>> entry : map.entrySet()) {
+                    String dc = entry.getKey();
+                    int dcCount = dcHostCount.get(dc) == null ? 0 : dcHostCount.get(dc);
+                    if (entry.getValue().size() < Math.min(replicationFactors.get(dc), dcCount))
+                        return false;
+                }
+                return true;
+            }
 
-        private boolean allDone(Map<String, Set<Host>> map, Map<String, Integer> dcHostCount) {
-            for (Map.Entry<String, Set<Host>> entry : map.entrySet()) {
-                String dc = entry.getKey();
-                int dcCount = dcHostCount.get(dc) == null ? 0 : dcHostCount.get(dc);
-                if (entry.getValue().size() < Math.min(replicationFactors.get(dc), dcCount))
+            @Override
+            boolean hasSameLayout(ReplicaComputation other) {
+                if (!(other instanceof Computation))
+                    return false;
+                Computation that = (Computation) other;
+                // The walk depends on the racks of each DC, and stops once it found min(rf, host count) replicas per DC
+                if (!racks.equals(that.racks))
                     return false;
+                for (Map.Entry<Host, List<String>> entry : locations.entrySet()) {
+                    List<String> previous = that.locations.get(entry.getKey());
+                    if (previous != null && !previous.equals(entry.getValue()))
+                        return false;
+                }
+                for (String dc : replicationFactors.keySet()) {
+                    if (effectiveFactor(dc) != that.effectiveFactor(dc))
+                        return false;
+                }
+                return true;
+            }
+
+            private int effectiveFactor(String dc) {
+                Integer dcCount = dcHostCount.get(dc);
+                return Math.min(replicationFactors.get(dc), dcCount == null ? 0 : dcCount);
             }
-            return true;
         }
 
         private Map<String, Set<String>> getRacksInDcs(Iterable<Host> hosts) {
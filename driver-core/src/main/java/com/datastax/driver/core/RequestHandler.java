@@ -17,8 +17,11 @@ package com.datastax.driver.core;
 
 import com.codahale.metrics.Timer;
 import com.datastax.driver.core.exceptions.*;
+import com.datastax.driver.core.policies.ExplainableQueryPlanPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
 import com.datastax.driver.core.policies.RetryPolicy;
 import com.datastax.driver.core.policies.RetryPolicy.RetryDecision.Type;
+import com.datastax.driver.core.policies.RotatingQueryPlanPolicy;
 import com.datastax.driver.core.policies.SpeculativeExecutionPolicy.SpeculativeExecutionPlan;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
@@ -52,6 +55,10 @@ class RequestHandler {
 
     private static final boolean HOST_METRICS_ENABLED = Boolean.getBoolean("com.datastax.driver.HOST_METRICS_ENABLED");
 
+    // When a statement has a request timeout, new attempts are not started if less than this is left before the deadline
+    private static final long MIN_ATTEMPT_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            SystemProperties.getInt("com.datastax.driver.MIN_ATTEMPT_BUDGET_MILLIS", 2));
+
     final String id;
 
     private final SessionManager manager;
@@ -63,6 +70,10 @@ class RequestHandler {
     private final Set<SpeculativeExecution> runningExecutions = Sets.newCopyOnWriteArraySet();
     private final Set<Timeout> scheduledExecutions = Sets.newCopyOnWriteArraySet();
     private final Statement statement;
+    private final Connection.FlushMode flushMode;
+    private final boolean recordTimeline;
+    // Only for sampled requests
+    private final QueryPlanExplanation explanation;
     private final io.netty.util.Timer scheduler;
 
     private volatile List<Host> triedHosts;
@@ -70,11 +81,21 @@ class RequestHandler {
 
     private final Timer.Context timerContext;
     private final long startTime;
+    private final long requestTimeoutNanos;
+    private volatile Timeout deadlineTimeout;
 
     private final AtomicBoolean isDone = new AtomicBoolean();
     private final AtomicInteger executionIndex = new AtomicInteger();
 
     public RequestHandler(SessionManager manager, Callback callback, Statement statement) {
+        this(manager, callback, statement, false);
+    }
+
+    /**
+     * @param synchronous whether a client thread is blocked waiting for the result. In that case, requests are
+     *                    written directly when their connection is idle, instead of waiting to be coalesced.
+     */
+    RequestHandler(SessionManager manager, Callback callback, Statement statement, boolean synchronous) {
         this.id = Long.toString(System.identityHashCode(this));
         if (logger.isTraceEnabled())
             logger.trace("[{}] {}", id, statement);
@@ -84,19 +105,32 @@ class RequestHandler {
 
         callback.register(this);
 
-        this.queryPlan = new QueryPlan(manager.loadBalancingPolicy().newQueryPlan(manager.poolsState.keyspace, statement));
+        this.recordTimeline = statement != Statement.DEFAULT && manager.cluster.manager.sampleRequestTimeline();
+        this.explanation = recordTimeline ? new QueryPlanExplanation() : null;
+        this.queryPlan = newQueryPlan(manager.loadBalancingPolicy(), manager.poolsState.keyspace, statement, explanation);
         this.speculativeExecutionPlan = manager.speculativeExecutionPolicy().newPlan(manager.poolsState.keyspace, statement);
         this.allowSpeculativeExecutions = statement != Statement.DEFAULT
                 && statement.isIdempotentWithDefault(manager.configuration().getQueryOptions());
         this.statement = statement;
+        this.flushMode = synchronous ? Connection.FlushMode.FLUSH_IF_IDLE : Connection.FlushMode.COALESCE;
 
         this.timerContext = metricsEnabled()
                 ? metrics().getRequestsTimer().time()
                 : null;
         this.startTime = System.nanoTime();
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, statement.getRequestTimeoutMillis()));
     }
 
     void sendRequest() {
+        if (requestTimeoutNanos > 0) {
+            deadlineTimeout = scheduler.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    if (!isDone.get())
+                        setDeadlineExceeded(null);
+                }
+            }, requestTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
         startNewExecution();
     }
 
@@ -150,6 +184,18 @@ class RequestHandler {
     };
 
     private void scheduleExecutionImmediately() {
+        if (!hasTimeForNewAttempt()) {
+            if (logger.isTraceEnabled())
+                logger.trace("[{}] Too close to the request deadline, skipping speculative execution", id);
+            return;
+        }
+        if (!manager.retryBudgetPolicy().tryAcquire(statement)) {
+            if (logger.isTraceEnabled())
+                logger.trace("[{}] Retry budget exhausted, skipping speculative execution", id);
+            if (metricsEnabled())
+                metrics().getErrorMetrics().getThrottledSpeculativeExecutions().inc();
+            return;
+        }
         if (metricsEnabled())
             metrics().getErrorMetrics().getSpeculativeExecutions().inc();
         startNewExecution();
@@ -161,6 +207,19 @@ class RequestHandler {
                 execution.cancel();
         for (Timeout execution : scheduledExecutions)
             execution.cancel();
+        Timeout deadline = deadlineTimeout;
+        if (deadline != null)
+            deadline.cancel();
+    }
+
+    private long remainingNanos() {
+        return (requestTimeoutNanos > 0)
+                ? startTime + requestTimeoutNanos - System.nanoTime()
+                : Long.MAX_VALUE;
+    }
+
+    private boolean hasTimeForNewAttempt() {
+        return remainingNanos() >= MIN_ATTEMPT_BUDGET_NANOS;
     }
 
     private void setFinalResult(SpeculativeExecution execution, Connection connection, Message.Response response) {
@@ -179,6 +238,14 @@ class RequestHandler {
             if (timerContext != null)
                 timerContext.stop();
 
+            if (execution.position > 0 && metricsEnabled()) {
+                metrics().getErrorMetrics().getSpeculativeExecutionWins().inc();
+                if (hostMetricsEnabled())
+                    metrics().getRegistry()
+                            .counter(MetricsUtil.hostMetricName("speculative-execution-wins.", execution.current))
+                            .inc();
+            }
+
             ExecutionInfo info;
             int speculativeExecutions = executionIndex.get() - 1;
             // Avoid creating a new instance if we can reuse the host's default one
@@ -195,7 +262,14 @@ class RequestHandler {
                 }
                 info = new ExecutionInfo(speculativeExecutions, execution.position, hosts, execution.retryConsistencyLevel, response.getCustomPayload());
             }
+            RequestTimeline timeline = null;
+            if (execution.timeline != null) {
+                timeline = execution.timeline.build(startTime, System.nanoTime());
+                info = info.withSampling(timeline, explanation);
+            }
             callback.onSet(connection, response, info, statement, System.nanoTime() - startTime);
+            if (timeline != null)
+                manager.cluster.manager.exportRequestTimeline(execution.current, statement, timeline);
         } catch (Exception e) {
             callback.onException(connection,
                     new DriverInternalError("Unexpected exception while setting final result from " + response, e),
@@ -206,12 +280,16 @@ class RequestHandler {
     private void setFinalException(SpeculativeExecution execution, Connection connection, Exception exception) {
         if (!isDone.compareAndSet(false, true)) {
             if (logger.isTraceEnabled())
-                logger.trace("[{}] Got beaten to setting final exception", execution.id);
+                logger.trace("[{}] Got beaten to setting final exception", execution == null ? id : execution.id);
             return;
         }
+        completeWithException(execution, connection, exception);
+    }
 
+    // Must only be called by the thread that set isDone
+    private void completeWithException(SpeculativeExecution execution, Connection connection, Exception exception) {
         if (logger.isTraceEnabled())
-            logger.trace("[{}] Setting final exception", execution.id);
+            logger.trace("[{}] Setting final exception", execution == null ? id : execution.id);
 
         cancelPendingExecutions(execution);
 
@@ -232,6 +310,28 @@ class RequestHandler {
                     errors == null ? Collections.<InetSocketAddress, Throwable>emptyMap() : errors));
     }
 
+    // Triggered when the request deadline is reached (execution == null), or when an execution gives up because there
+    // is not enough time left to start a new attempt. In the latter case, this is only a failure if there are no
+    // other running executions.
+    private void setDeadlineExceeded(SpeculativeExecution execution) {
+        if (execution != null) {
+            runningExecutions.remove(execution);
+            if (!runningExecutions.isEmpty())
+                return;
+        }
+        // Checked here rather than in setFinalException, so that the timeout is only counted if the request was not
+        // completed in the meantime, and counted before the caller is notified
+        if (!isDone.compareAndSet(false, true)) {
+            if (logger.isTraceEnabled())
+                logger.trace("[{}] Got beaten to setting final exception", execution == null ? id : execution.id);
+            return;
+        }
+        if (metricsEnabled())
+            metrics().getErrorMetrics().getClientTimeouts().inc();
+        completeWithException(execution, null, new OperationTimedOutException(null, String.format(
+                "Request did not complete within its request timeout (%d ms)", statement.getRequestTimeoutMillis())));
+    }
+
     private boolean metricsEnabled() {
         return manager.configuration().getMetricsOptions().isEnabled();
     }
@@ -275,6 +375,8 @@ class RequestHandler {
         private final AtomicReference<QueryState> queryStateRef;
         private final AtomicBoolean nextExecutionScheduled = new AtomicBoolean();
         private final long startTime = System.nanoTime();
+        // Only for sampled requests
+        private final RequestTimeline.Recorder timeline = recordTimeline ? new RequestTimeline.Recorder() : null;
 
         // This represents the number of times a retry has been triggered by the RetryPolicy (this is different from
         // queryStateRef.get().retryCount, because some retries don't involve the policy, for example after an
@@ -295,6 +397,10 @@ class RequestHandler {
 
         void findNextHostAndQuery() {
             try {
+                if (!hasTimeForNewAttempt()) {
+                    setDeadlineExceeded(this);
+                    return;
+                }
                 Host host;
                 while (!isDone.get() && (host = queryPlan.next()) != null && !queryStateRef.get().isCancelled()) {
                     if (query(host)) {
@@ -330,16 +436,35 @@ class RequestHandler {
             if (logger.isTraceEnabled())
                 logger.trace("[{}] Querying node {}", id, host);
 
-            if (allowSpeculativeExecutions && nextExecutionScheduled.compareAndSet(false, true))
+            if (timeline != null)
+                timeline.startAttempt();
+            if (explanation != null)
+                explanation.recordTry(host, pool.totalInFlight.get(), pool.pendingBorrows());
+
+            // Counted for every host the execution tries, so that a win (counted against the host that responded) is
+            // always matched by an attempt on the same host
+            if (position > 0 && hostMetricsEnabled()) {
+                metrics().getRegistry()
+                        .counter(MetricsUtil.hostMetricName("speculative-executions.", host))
+                        .inc();
+            }
+
+            if (allowSpeculativeExecutions && nextExecutionScheduled.compareAndSet(false, true)) {
                 scheduleExecution(speculativeExecutionPlan.nextExecution(host));
+            }
 
             PoolingOptions poolingOptions = manager.configuration().getPoolingOptions();
+            long poolTimeoutMillis = poolingOptions.getPoolTimeoutMillis();
+            if (requestTimeoutNanos > 0)
+                poolTimeoutMillis = Math.max(0, Math.min(poolTimeoutMillis, TimeUnit.NANOSECONDS.toMillis(remainingNanos())));
             ListenableFuture<Connection> connectionFuture = pool.borrowConnection(
-                    poolingOptions.getPoolTimeoutMillis(), TimeUnit.MILLISECONDS,
+                    poolTimeoutMillis, TimeUnit.MILLISECONDS,
                     poolingOptions.getMaxQueueSize());
             Futures.addCallback(connectionFuture, new FutureCallback<Connection>() {
                 @Override
                 public void onSuccess(Connection connection) {
+                    if (timeline != null)
+                        timeline.borrowEnd = System.nanoTime();
                     if (isDone.get()) {
                         connection.release();
                         return;
@@ -404,7 +529,7 @@ class RequestHandler {
                     break;
             }
 
-            connectionHandler = connection.write(responseCallback, statement.getReadTimeoutMillis(), false);
+            connectionHandler = connection.write(responseCallback, statement.getReadTimeoutMillis(), false, flushMode, timeline);
             // Only start the timeout when we're sure connectionHandler is set. This avoids an edge case where onTimeout() was triggered
             // *before* the call to connection.write had returned.
             connectionHandler.startTimeout();
@@ -453,15 +578,26 @@ class RequestHandler {
         private void processRetryDecision(RetryPolicy.RetryDecision retryDecision, Connection connection, Exception exceptionToReport) {
             switch (retryDecision.getType()) {
                 case RETRY:
+                    // log error for the current host if we are switching to another one
+                    if (!retryDecision.isRetryCurrent())
+                        logError(connection.address, exceptionToReport);
+                    if (!canRetry())
+                        break;
+                    // Only consume the budget once we know the new attempt will be sent
+                    if (!manager.retryBudgetPolicy().tryAcquire(statement)) {
+                        if (logger.isDebugEnabled())
+                            logger.debug("[{}] Retry budget exhausted, not retrying query {}", id, statement);
+                        if (metricsEnabled())
+                            metrics().getErrorMetrics().getThrottledRetries().inc();
+                        setFinalException(connection, exceptionToReport);
+                        break;
+                    }
                     retriesByPolicy++;
                     if (logger.isDebugEnabled())
                         logger.debug("[{}] Doing retry {} for query {} at consistency {}", id, retriesByPolicy, statement, retryDecision.getRetryConsistencyLevel());
                     if (metricsEnabled())
                         metrics().getErrorMetrics().getRetries().inc();
-                    // log error for the current host if we are switching to another one
-                    if (!retryDecision.isRetryCurrent())
-                        logError(connection.address, exceptionToReport);
-                    retry(retryDecision.isRetryCurrent(), retryDecision.getRetryConsistencyLevel());
+                    sendRetry(retryDecision.isRetryCurrent(), retryDecision.getRetryConsistencyLevel());
                     break;
                 case RETHROW:
                     setFinalException(connection, exceptionToReport);
@@ -475,13 +611,30 @@ class RequestHandler {
         }
 
         private void retry(final boolean retryCurrent, ConsistencyLevel newConsistencyLevel) {
+            if (canRetry())
+                sendRetry(retryCurrent, newConsistencyLevel);
+        }
+
+        /**
+         * Checks whether a new attempt can be started, and completes this execution with a timeout if its request
+         * timeout is exceeded.
+         */
+        private boolean canRetry() {
+            if (queryStateRef.get().isCancelled())
+                return false;
+
+            if (!hasTimeForNewAttempt()) {
+                setDeadlineExceeded(this);
+                return false;
+            }
+            return true;
+        }
+
+        private void sendRetry(boolean retryCurrent, ConsistencyLevel newConsistencyLevel) {
             final Host h = current;
             if (newConsistencyLevel != null)
                 this.retryConsistencyLevel = newConsistencyLevel;
 
-            if (queryStateRef.get().isCancelled())
-                return;
-
             if (!retryCurrent || !query(h))
                 findNextHostAndQuery();
         }
@@ -539,6 +692,10 @@ class RequestHandler {
 
         @Override
         public void onSet(Connection connection, Message.Response response, long latency, int retryCount) {
+            if (timeline != null) {
+                timeline.decodeStart = response.decodeStartNanos;
+                timeline.decodeEnd = System.nanoTime();
+            }
             QueryState queryState = queryStateRef.get();
             if (!queryState.isInProgressAt(retryCount) ||
                     !queryStateRef.compareAndSet(queryState, queryState.complete())) {
@@ -553,6 +710,7 @@ class RequestHandler {
                 switch (response.type) {
                     case RESULT:
                         connection.release();
+                        manager.retryBudgetPolicy().onSuccess(statement);
                         setFinalResult(connection, response);
                         break;
                     case ERROR:
@@ -898,22 +1056,57 @@ class RequestHandler {
         }
     }
 
+    private static QueryPlan newQueryPlan(LoadBalancingPolicy policy, String keyspace, Statement statement,
+                                          QueryPlanExplanation explanation) {
+        if (explanation != null && policy instanceof ExplainableQueryPlanPolicy)
+            return new QueryPlan(((ExplainableQueryPlanPolicy) policy).newQueryPlan(keyspace, statement, explanation));
+        if (policy instanceof RotatingQueryPlanPolicy) {
+            RotatingQueryPlanPolicy rotatingPolicy = (RotatingQueryPlanPolicy) policy;
+            Host[] hosts = rotatingPolicy.getQueryPlanHosts(keyspace, statement);
+            if (hosts != null)
+                return new QueryPlan(hosts, rotatingPolicy.nextQueryPlanOffset());
+        }
+        return new QueryPlan(policy.newQueryPlan(keyspace, statement));
+    }
+
     /**
      * Wraps the iterator return by {@link com.datastax.driver.core.policies.LoadBalancingPolicy} to make it safe for
      * concurrent access by multiple threads.
+     * <p/>
+     * Alternatively, iterates a rotation of a host array provided by a {@link RotatingQueryPlanPolicy}.
      */
     static class QueryPlan {
         private final Iterator<Host> iterator;
+        private final Host[] hosts;
+        private final int offset;
+        private int position;
 
         QueryPlan(Iterator<Host> iterator) {
             this.iterator = iterator;
+            this.hosts = null;
+            this.offset = 0;
+        }
+
+        QueryPlan(Host[] hosts, int offset) {
+            this.iterator = null;
+            this.hosts = hosts;
+            // Reduce it right away, so that offset + position can't overflow
+            this.offset = hosts.length == 0 ? 0 : offset % hosts.length;
         }
 
         /**
          * @return null if there are no more hosts
          */
         synchronized Host next() {
-            return iterator.hasNext() ? iterator.next() : null;
+            if (iterator != null)
+                return iterator.hasNext() ? iterator.next() : null;
+
+            if (position >= hosts.length)
+                return null;
+            int c = (offset + position++) % hosts.length;
+            if (c < 0)
+                c += hosts.length;
+            return hosts[c];
         }
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A breakdown of the time spent by the driver on a request, measured client-side.
+ * <p/>
+ * Unlike {@link QueryTrace}, this does not require server-side tracing nor additional queries, so it can be enabled in
+ * production; it is recorded for a fraction of the requests, see
+ * {@link QueryOptions#setRequestTimelineSamplingRate(double)}.
+ * <p/>
+ * The phases describe the attempt that produced the response (if the request was retried or speculatively executed,
+ * the previous attempts are only accounted for in {@link #getTotal(TimeUnit) the total}):
+ * <ol>
+ * <li>{@link #getBorrowWait(TimeUnit) borrow wait}: acquiring a connection from the host's pool;</li>
+ * <li>{@link #getWriteQueueWait(TimeUnit) write queue wait}: waiting for the connection's I/O thread to pick up the
+ * request (this includes the delay introduced to coalesce writes);</li>
+ * <li>{@link #getEncode(TimeUnit) encode}: serializing the request;</li>
+ * <li>{@link #getNetworkRoundTrip(TimeUnit) network round trip}: writing the request to the socket, processing by
+ * Cassandra, and reading the response frame;</li>
+ * <li>{@link #getDecode(TimeUnit) decode}: deserializing the response;</li>
+ * <li>{@link #getCallbackDispatch(TimeUnit) callback dispatch}: processing the response until the result is handed
+ * to the client's future (the timeline is part of that result, so completing the future itself is not included).</li>
+ * </ol>
+ * A phase for which no measurement is available is reported as -1.
+ */
+public class RequestTimeline {
+
+    private final long borrowWait;
+    private final long writeQueueWait;
+    private final long encode;
+    private final long networkRoundTrip;
+    private final long decode;
+    private final long callbackDispatch;
+    private final long total;
+
+    RequestTimeline(long borrowWait, long writeQueueWait, long encode, long networkRoundTrip, long decode,
+                    long callbackDispatch, long total) {
+        this.borrowWait = borrowWait;
+        this.writeQueueWait = writeQueueWait;
+        this.encode = encode;
+        this.networkRoundTrip = networkRoundTrip;
+        this.decode = decode;
+        this.callbackDispatch = callbackDispatch;
+        this.total = total;
+    }
+
+    /**
+     * Returns the time spent acquiring a connection from the pool.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getBorrowWait(TimeUnit unit) {
+        return convert(borrowWait, unit);
+    }
+
+    /**
+     * Returns the time between the acquisition of the connection and the start of the encoding of the request.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getWriteQueueWait(TimeUnit unit) {
+        return convert(writeQueueWait, unit);
+    }
+
+    /**
+     * Returns the time spent serializing the request.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getEncode(TimeUnit unit) {
+        return convert(encode, unit);
+    }
+
+    /**
+     * Returns the time between the end of the encoding of the request, and the start of the decoding of the response.
+     * <p/>
+     * This includes writing to the socket, the network latency, and the processing time in Cassandra.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getNetworkRoundTrip(TimeUnit unit) {
+        return convert(networkRoundTrip, unit);
+    }
+
+    /**
+     * Returns the time spent deserializing the response.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getDecode(TimeUnit unit) {
+        return convert(decode, unit);
+    }
+
+    /**
+     * Returns the time between the decoding of the response and the moment the result is handed to the client's
+     * future.
+     * <p/>
+     * The timeline is built before the future completes, so this does not include the completion itself (in
+     * particular, the listeners that run synchronously when the future completes).
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration, or -1 if it was not measured.
+     */
+    public long getCallbackDispatch(TimeUnit unit) {
+        return convert(callbackDispatch, unit);
+    }
+
+    /**
+     * Returns the total time of the request, from the moment it was submitted to the session to the moment the
+     * result is handed to the client's future.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration.
+     */
+    public long getTotal(TimeUnit unit) {
+        return convert(total, unit);
+    }
+
+    private static long convert(long nanos, TimeUnit unit) {
+        return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RequestTimeline[borrowWait=%d, writeQueueWait=%d, encode=%d, networkRoundTrip=%d, "
+                        + "decode=%d, callbackDispatch=%d, total=%d (in microseconds)]",
+                getBorrowWait(TimeUnit.MICROSECONDS), getWriteQueueWait(TimeUnit.MICROSECONDS),
+                getEncode(TimeUnit.MICROSECONDS), getNetworkRoundTrip(TimeUnit.MICROSECONDS),
+                getDecode(TimeUnit.MICROSECONDS), getCallbackDispatch(TimeUnit.MICROSECONDS),
+                getTotal(TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * Collects the timestamps of an execution. The fields are written by different threads (client, I/O thread), so
+     * they are volatile; this is only used for sampled requests.
+     */
+    static class Recorder {
+        // System.nanoTime() can be negative
+        static final long UNSET = Long.MIN_VALUE;
+
+        volatile long borrowStart = UNSET;
+        volatile long borrowEnd = UNSET;
+        volatile long encodeStart = UNSET;
+        volatile long encodeEnd = UNSET;
+        volatile long decodeStart = UNSET;
+        volatile long decodeEnd = UNSET;
+
+        void startAttempt() {
+            borrowStart = System.nanoTime();
+            borrowEnd = encodeStart = encodeEnd = decodeStart = decodeEnd = UNSET;
+        }
+
+        RequestTimeline build(long requestStart, long completion) {
+            return new RequestTimeline(
+                    between(borrowStart, borrowEnd),
+                    between(borrowEnd, encodeStart),
+                    between(encodeStart, encodeEnd),
+                    between(encodeEnd, decodeStart),
+                    between(decodeStart, decodeEnd),
+                    between(decodeEnd, completion),
+                    completion - requestStart);
+        }
+
+        private static long between(long start, long end) {
+            return (start == UNSET || end == UNSET) ? -1 : Math.max(0, end - start);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+/**
+ * Receives the client-side {@link RequestTimeline timelines} of sampled requests, for example to forward them to a
+ * tracing or monitoring system.
+ * <p/>
+ * Exporters are registered with {@link Cluster#register(RequestTimelineExporter)}, and are only invoked if
+ * {@link QueryOptions#setRequestTimelineSamplingRate(double) sampling} is enabled.
+ */
+public interface RequestTimelineExporter {
+
+    /**
+     * Invoked when a sampled request completes successfully.
+     * <p/>
+     * This method is called on the driver's I/O thread, after the client's future has completed. Implementations
+     * should return quickly and must not block; exceptions thrown by this method are logged and ignored.
+     *
+     * @param host      the host that coordinated the request.
+     * @param statement the statement that was executed.
+     * @param timeline  the timeline of the request.
+     */
+    void export(Host host, Statement statement, RequestTimeline timeline);
+}
@@ -22,6 +22,7 @@ import com.datastax.driver.core.exceptions.UnsupportedFeatureException;
 import com.datastax.driver.core.exceptions.UnsupportedProtocolVersionException;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
 import com.datastax.driver.core.policies.ReconnectionPolicy;
+import com.datastax.driver.core.policies.RetryBudgetPolicy;
 import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
 import com.datastax.driver.core.utils.MoreFutures;
 import com.google.common.base.Functions;
@@ -125,6 +126,20 @@ class SessionManager extends AbstractSession {
         return poolsState.keyspace;
     }
 
+    @Override
+    public ResultSet execute(Statement statement) {
+        checkNotInEventLoop();
+        if (!isInit) {
+            // The caller blocks anyway, so wait for initialization here rather than chaining the request behind it
+            // (which costs an executor hop and an intermediate future). An initialization failure is rethrown.
+            init();
+        }
+        // The I/O thread that receives the response completes this future directly, which unparks the caller.
+        DefaultResultSetFuture future = new DefaultResultSetFuture(this, cluster.manager.protocolVersion(), makeRequestMessage(statement, null));
+        new RequestHandler(this, future, statement, true).sendRequest();
+        return future.getUninterruptibly();
+    }
+
     @Override
     public ResultSetFuture executeAsync(final Statement statement) {
         if (isInit) {
@@ -242,6 +257,10 @@ class SessionManager extends AbstractSession {
         return cluster.manager.speculativeExecutionPolicy();
     }
 
+    RetryBudgetPolicy retryBudgetPolicy() {
+        return cluster.manager.retryBudgetPolicy();
+    }
+
     ReconnectionPolicy reconnectionPolicy() {
         return cluster.manager.reconnectionPolicy();
     }
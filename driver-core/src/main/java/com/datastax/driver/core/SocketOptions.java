@@ -99,6 +99,8 @@ public class SocketOptions {
      * <p/>
      * Also note that for efficiency reasons, this read timeout is approximate: it
      * has an accuracy of up to 100 milliseconds (i.e. it may fire up to 100 milliseconds late).
+     * This accuracy can be changed with the {@code com.datastax.driver.TIMEOUT_SWEEP_INTERVAL_MILLIS}
+     * system property.
      * It is not meant to be used for precise timeout, but rather as a protection
      * against misbehaving Cassandra nodes.
      * <p/>
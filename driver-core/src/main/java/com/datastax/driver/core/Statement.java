@@ -66,8 +66,10 @@ public abstract class Statement {
     private volatile int fetchSize;
     private volatile long defaultTimestamp = Long.MIN_VALUE;
     private volatile int readTimeoutMillis = Integer.MIN_VALUE;
+    private volatile int requestTimeoutMillis = Integer.MIN_VALUE;
     private volatile RetryPolicy retryPolicy;
     private volatile ByteBuffer pagingState;
+    private volatile Token routingToken;
     protected volatile Boolean idempotent;
     private volatile Map<String, ByteBuffer> outgoingPayload;
 
@@ -218,6 +220,34 @@ public abstract class Statement {
      */
     public abstract String getKeyspace();
 
+    /**
+     * Sets the token to use for token aware routing of this query, when it has no
+     * {@link #getRoutingKey(ProtocolVersion, CodecRegistry) routing key}.
+     * <p/>
+     * This is meant for queries that don't target a single partition, but a range of tokens, for example
+     * {@code SELECT * FROM foo WHERE token(pk) > ? AND token(pk) <= ?}: with the end of the range as routing token,
+     * {@link com.datastax.driver.core.policies.TokenAwarePolicy} sends the query to the replicas of the range.
+     * Like the routing key, this is only a hint, and it is ignored if the statement has a routing key.
+     *
+     * @param routingToken the routing token, or {@code null} to clear it.
+     * @return this {@code Statement} object.
+     * @see Metadata#getReplicas(String, Token)
+     */
+    public Statement setRoutingToken(Token routingToken) {
+        this.routingToken = routingToken;
+        return this;
+    }
+
+    /**
+     * Returns the token to use for token aware routing of this query, if it has no routing key.
+     *
+     * @return the routing token, or {@code null} if none was set.
+     * @see #setRoutingToken(Token)
+     */
+    public Token getRoutingToken() {
+        return routingToken;
+    }
+
     /**
      * Sets the retry policy to use for this query.
      * <p/>
@@ -331,6 +361,9 @@ public abstract class Statement {
      * <p/>
      * You should override this only for statements for which the coordinator may allow a longer server-side
      * timeout (for example aggregation queries).
+     * <p/>
+     * Like the default timeout, this timeout may fire up to 100 milliseconds late (see
+     * {@link SocketOptions#getReadTimeoutMillis()}).
      *
      * @param readTimeoutMillis the timeout to set. Negative values are not allowed. If it is 0, the read timeout will
      *                          be disabled for this statement.
@@ -352,6 +385,41 @@ public abstract class Statement {
         return readTimeoutMillis;
     }
 
+    /**
+     * Sets an end-to-end timeout for the execution of this statement.
+     * <p/>
+     * Contrary to the {@link #setReadTimeoutMillis(int) read timeout}, which applies separately to each attempt, this
+     * timeout covers the whole execution: waiting for a connection in the pool, writing the request, and all retries
+     * and speculative executions. When the execution starts, the driver computes a deadline from this timeout;
+     * if the request has not completed when the deadline is reached, all ongoing attempts are cancelled and the
+     * request fails with an {@link com.datastax.driver.core.exceptions.OperationTimedOutException}. The driver also
+     * stops starting new attempts (retries, speculative executions, or trying the next host) when the time left is
+     * too small for them to have a chance to succeed.
+     * <p/>
+     * The time spent waiting for a connection in the pool is bounded by the time left, even if
+     * {@link PoolingOptions#getPoolTimeoutMillis()} is higher.
+     *
+     * @param requestTimeoutMillis the timeout to set. Negative values are not allowed. If it is 0, there is no
+     *                             end-to-end timeout for this statement (this is the default).
+     * @return this {@code Statement} object.
+     */
+    public Statement setRequestTimeoutMillis(int requestTimeoutMillis) {
+        Preconditions.checkArgument(requestTimeoutMillis >= 0, "request timeout must be >= 0");
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Return the end-to-end timeout that was set for this statement.
+     *
+     * @return the timeout. Note that a value of 0 or less means that there is no end-to-end timeout for this
+     * statement.
+     * @see #setRequestTimeoutMillis(int)
+     */
+    public int getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
     /**
      * Sets the paging state.
      * <p/>
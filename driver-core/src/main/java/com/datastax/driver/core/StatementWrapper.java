@@ -121,6 +121,16 @@ public abstract class StatementWrapper extends Statement {
         return wrapped.getKeyspace();
     }
 
+    @Override
+    public Statement setRoutingToken(Token routingToken) {
+        return wrapped.setRoutingToken(routingToken);
+    }
+
+    @Override
+    public Token getRoutingToken() {
+        return wrapped.getRoutingToken();
+    }
+
     @Override
     public Statement setRetryPolicy(RetryPolicy policy) {
         return wrapped.setRetryPolicy(policy);
@@ -161,6 +171,16 @@ public abstract class StatementWrapper extends Statement {
         return wrapped.getReadTimeoutMillis();
     }
 
+    @Override
+    public Statement setRequestTimeoutMillis(int requestTimeoutMillis) {
+        return wrapped.setRequestTimeoutMillis(requestTimeoutMillis);
+    }
+
+    @Override
+    public int getRequestTimeoutMillis() {
+        return wrapped.getRequestTimeoutMillis();
+    }
+
     @Override
     public Statement setPagingState(PagingState pagingState, CodecRegistry codecRegistry) {
         return wrapped.setPagingState(pagingState, codecRegistry);
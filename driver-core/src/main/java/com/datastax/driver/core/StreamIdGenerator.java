@@ -115,6 +115,14 @@ class StreamIdGenerator {
         return maxIds - marked.get();
     }
 
+    /**
+     * @return the number of ids that were given up on (see {@link #mark(int)}), and can't be reused until the server
+     * replies.
+     */
+    public int orphanedCount() {
+        return marked.get();
+    }
+
     // Returns >= 0 if found and set an id, -1 if no bits are available.
     private int atomicGetAndSetFirstAvailable(int idx) {
         while (true) {
@@ -271,8 +271,12 @@ public abstract class Token implements Comparable<Token> {
 
             @Override
             M3PToken hash(ByteBuffer partitionKey) {
+                return new M3PToken(hashValue(partitionKey));
+            }
+
+            long hashValue(ByteBuffer partitionKey) {
                 long v = murmur(partitionKey);
-                return new M3PToken(v == Long.MIN_VALUE ? Long.MAX_VALUE : v);
+                return v == Long.MIN_VALUE ? Long.MAX_VALUE : v;
             }
 
             @Override
@@ -302,6 +306,17 @@ public abstract class Token implements Comparable<Token> {
             this.value = value;
         }
 
+        /**
+         * Same as {@code FACTORY.hash(partitionKey)}, but returns the value of the token, without allocating it.
+         */
+        static long hashValue(ByteBuffer partitionKey) {
+            return ((M3PTokenFactory) FACTORY).hashValue(partitionKey);
+        }
+
+        long longValue() {
+            return value;
+        }
+
         @Override
         public DataType getType() {
             return FACTORY.getTokenType();
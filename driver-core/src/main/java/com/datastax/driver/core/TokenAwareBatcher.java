@@ -0,0 +1,508 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.policies.RetryPolicy;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Groups write statements into {@link BatchStatement.Type#UNLOGGED UNLOGGED} batches whose statements are all owned
+ * by the same replicas.
+ * <p/>
+ * A batch is routed according to its first statement, so a batch that spans partitions owned by different replicas
+ * forces the coordinator to forward the writes to other nodes, which is usually slower than executing the statements
+ * individually. On the other hand, a batch where all the statements belong to the same replicas is executed as a single
+ * request by the right coordinator, which greatly improves write throughput for ingestion workloads.
+ * <p/>
+ * This class can be used in two ways:
+ * <ul>
+ * <li>{@link #group(Iterable)} splits a known set of statements into batches;</li>
+ * <li>{@link #executeAsync(Statement)} buffers statements for a short delay, and sends them in batches as soon as a
+ * batch is full or the delay has expired.</li>
+ * </ul>
+ * Statements are grouped by keyspace, replica set (as returned by {@link Metadata#getReplicas(String, ByteBuffer)} for
+ * their {@link Statement#getRoutingKey(ProtocolVersion, CodecRegistry) routing key}) and execution settings: only
+ * statements with the same consistency levels, default timestamp, retry policy, timeouts, idempotence, tracing flag
+ * and outgoing payload are grouped together, and the batch gets these settings. In particular, statements with
+ * different {@link Statement#setDefaultTimestamp(long) client timestamps} are never in the same batch; note that the
+ * statements of a batch without a client timestamp share the timestamp of the batch.
+ * <p/>
+ * This is only meant for regular writes. The following statements are not grouped, and are executed individually:
+ * statements that can't be routed (no routing key, no keyspace or no token metadata), batch statements, queries that
+ * are not {@code INSERT}, {@code UPDATE} or {@code DELETE}, conditional updates (which can't span partitions), and
+ * counter updates (which can't be mixed with regular updates in a batch). Counter updates are recognized from the
+ * types of the variables of prepared statements, and from the query string of other statements. The batches are not
+ * atomic.
+ * <p/>
+ * Instances of this class are thread-safe. If {@link #executeAsync(Statement)} is used, call {@link #close()} when
+ * the instance is no longer needed.
+ */
+public class TokenAwareBatcher {
+
+    // String literals and comments, removed before looking at the query string
+    private static final Pattern LITERALS_AND_COMMENTS =
+            Pattern.compile("'(?:[^']|'')*'|\\$\\$.*?\\$\\$|--[^\n]*|//[^\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern WRITE = Pattern.compile("^\\s*(?:insert|update|delete)\\b");
+    private static final Pattern CONDITION = Pattern.compile("\\bif\\b");
+    // c = c + operand or c = c - operand, where c is a plain or quoted column name
+    private static final Pattern INCREMENT =
+            Pattern.compile("(?<![\\w\"])(\\w+|\"(?:[^\"]|\"\")*\")\\s*=\\s*\\1\\s*[+-]\\s*([-0-9?:])");
+
+    private final Session session;
+    private final Cluster cluster;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final Map<GroupKey, PendingBatch> pendingBatches = new HashMap<GroupKey, PendingBatch>();
+    // Guarded by lock
+    private boolean closed;
+
+    private final Cache<PreparedStatement, Boolean> batchablePreparedStatements =
+            CacheBuilder.newBuilder().weakKeys().build();
+
+    private TokenAwareBatcher(Session session, int maxBatchSize, long maxDelayNanos) {
+        this.session = session;
+        this.cluster = session.getCluster();
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Returns a builder to create a new instance.
+     *
+     * @param session the session that will execute the statements.
+     * @return the builder.
+     */
+    public static Builder builder(Session session) {
+        return new Builder(session);
+    }
+
+    /**
+     * Groups the given statements.
+     * <p/>
+     * Groups that contain a single statement are returned as is (without being wrapped in a batch). Within a group,
+     * statements keep their relative order.
+     *
+     * @param statements the statements to group.
+     * @return the grouped statements, ready to be executed.
+     */
+    public List<Statement> group(Iterable<? extends Statement> statements) {
+        Map<GroupKey, List<Statement>> groups = new LinkedHashMap<GroupKey, List<Statement>>();
+        List<Statement> result = new ArrayList<Statement>();
+        for (Statement statement : statements) {
+            GroupKey key = groupKey(statement);
+            if (key == null) {
+                result.add(statement);
+                continue;
+            }
+            List<Statement> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Statement>();
+                groups.put(key, group);
+            }
+            group.add(statement);
+            if (group.size() >= maxBatchSize) {
+                result.add(toStatement(key, group));
+                groups.remove(key);
+            }
+        }
+        for (Map.Entry<GroupKey, List<Statement>> entry : groups.entrySet())
+            result.add(toStatement(entry.getKey(), entry.getValue()));
+        return result;
+    }
+
+    /**
+     * Adds a statement to be executed in a batch.
+     * <p/>
+     * The statement is sent when its batch reaches the maximum size, or when the maximum delay has elapsed since the
+     * first statement of the batch was added, whichever comes first. Statements that can't be grouped are executed
+     * immediately.
+     *
+     * @param statement the statement to execute.
+     * @return a future on the result of the batch that contains the statement. If the batch fails, all of its
+     * statements fail with the same error.
+     */
+    public ListenableFuture<ResultSet> executeAsync(Statement statement) {
+        GroupKey key = groupKey(statement);
+        if (key == null)
+            return session.executeAsync(statement);
+
+        SettableFuture<ResultSet> future = SettableFuture.create();
+        PendingBatch toSend = null;
+        boolean scheduleFlush = false;
+        PendingBatch batch;
+        synchronized (lock) {
+            batch = pendingBatches.get(key);
+            if (batch == null) {
+                batch = new PendingBatch(key);
+                pendingBatches.put(key, batch);
+                scheduleFlush = true;
+            }
+            batch.add(statement, future);
+            if (batch.statements.size() >= maxBatchSize) {
+                pendingBatches.remove(key);
+                toSend = batch;
+            }
+        }
+        if (toSend != null)
+            send(toSend);
+        else if (scheduleFlush)
+            scheduleFlush(batch);
+        return future;
+    }
+
+    /**
+     * Sends all the pending batches immediately, regardless of their size.
+     */
+    public void flush() {
+        List<PendingBatch> toSend;
+        synchronized (lock) {
+            toSend = new ArrayList<PendingBatch>(pendingBatches.values());
+            pendingBatches.clear();
+        }
+        for (PendingBatch batch : toSend)
+            send(batch);
+    }
+
+    /**
+     * Sends all the pending batches.
+     * <p/>
+     * Statements passed to {@link #executeAsync(Statement)} after this method was called are executed immediately.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void scheduleFlush(final PendingBatch batch) {
+        boolean closed;
+        synchronized (lock) {
+            closed = this.closed;
+        }
+        if (closed) {
+            // Don't wait
+            if (removePending(batch))
+                send(batch);
+            return;
+        }
+        try {
+            // The task only starts an asynchronous execution, so it does not hold up the other scheduled tasks
+            cluster.manager.scheduledTasksExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (removePending(batch))
+                        send(batch);
+                }
+            }, maxDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The cluster is shutting down, don't wait
+            if (removePending(batch))
+                send(batch);
+        }
+    }
+
+    /**
+     * Removes a batch from the pending ones, unless it was already sent because it was full or flushed.
+     */
+    private boolean removePending(PendingBatch batch) {
+        synchronized (lock) {
+            if (pendingBatches.get(batch.key) != batch)
+                return false;
+            pendingBatches.remove(batch.key);
+            return true;
+        }
+    }
+
+    private void send(final PendingBatch batch) {
+        Futures.addCallback(session.executeAsync(toStatement(batch.key, batch.statements)), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                for (SettableFuture<ResultSet> future : batch.futures)
+                    future.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (SettableFuture<ResultSet> future : batch.futures)
+                    future.setException(t);
+            }
+        });
+    }
+
+    private Statement toStatement(GroupKey key, List<Statement> statements) {
+        if (statements.size() == 1)
+            return statements.get(0);
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batch.addAll(statements);
+        key.settings.applyTo(batch);
+        return batch;
+    }
+
+    private GroupKey groupKey(Statement statement) {
+        if (statement instanceof BatchStatement)
+            return null;
+        Configuration configuration = cluster.getConfiguration();
+        ByteBuffer partitionKey = statement.getRoutingKey(
+                configuration.getProtocolOptions().getProtocolVersion(), configuration.getCodecRegistry());
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null)
+            keyspace = session.getLoggedKeyspace();
+        if (partitionKey == null || keyspace == null)
+            return null;
+
+        Set<Host> replicas = cluster.getMetadata().getReplicas(Metadata.quote(keyspace), partitionKey);
+        if (replicas.isEmpty() || !isBatchable(statement))
+            return null;
+        return new GroupKey(keyspace, replicas, new Settings(statement));
+    }
+
+    private boolean isBatchable(Statement statement) {
+        while (statement instanceof StatementWrapper)
+            statement = ((StatementWrapper) statement).getWrappedStatement();
+        if (statement instanceof BoundStatement) {
+            PreparedStatement prepared = ((BoundStatement) statement).preparedStatement();
+            Boolean batchable = batchablePreparedStatements.getIfPresent(prepared);
+            if (batchable == null) {
+                batchable = isBatchable(prepared.getQueryString(), prepared.getVariables());
+                batchablePreparedStatements.put(prepared, batchable);
+            }
+            return batchable;
+        }
+        if (statement instanceof RegularStatement)
+            return isBatchable(
+                    ((RegularStatement) statement).getQueryString(cluster.getConfiguration().getCodecRegistry()), null);
+        return false;
+    }
+
+    /**
+     * Whether a query can be grouped with other queries in an unlogged batch: it must be an {@code INSERT},
+     * {@code UPDATE} or {@code DELETE} that is neither conditional nor a counter update. When in doubt (for example
+     * {@code c = c + ?} when the types of the bind variables are unknown), the answer is {@code false}.
+     *
+     * @param query     the query string.
+     * @param variables the metadata of the query's bind variables, if known.
+     */
+    static boolean isBatchable(String query, ColumnDefinitions variables) {
+        if (variables != null) {
+            for (int i = 0; i < variables.size(); i++) {
+                if (variables.getType(i).getName() == DataType.Name.COUNTER)
+                    return false;
+            }
+        }
+        String cql = LITERALS_AND_COMMENTS.matcher(query).replaceAll(" ").toLowerCase(Locale.ROOT);
+        if (!WRITE.matcher(cql).find() || CONDITION.matcher(cql).find())
+            return false;
+        Matcher increment = INCREMENT.matcher(cql);
+        while (increment.find()) {
+            char operand = increment.group(2).charAt(0);
+            // A number literal is a counter increment; a bind marker can also be a collection, if its type is known
+            if ((operand != '?' && operand != ':') || variables == null)
+                return false;
+        }
+        return true;
+    }
+
+    private static class GroupKey {
+        final String keyspace;
+        final Set<Host> replicas;
+        final Settings settings;
+
+        GroupKey(String keyspace, Set<Host> replicas, Settings settings) {
+            this.keyspace = keyspace;
+            this.replicas = replicas;
+            this.settings = settings;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (other instanceof GroupKey) {
+                GroupKey that = (GroupKey) other;
+                return this.keyspace.equals(that.keyspace)
+                        && this.replicas.equals(that.replicas)
+                        && this.settings.equals(that.settings);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(keyspace, replicas, settings);
+        }
+    }
+
+    // The settings of a statement that the batch must have, if the statement is executed as part of it
+    private static class Settings {
+        final ConsistencyLevel consistencyLevel;
+        final ConsistencyLevel serialConsistencyLevel;
+        final long defaultTimestamp;
+        final RetryPolicy retryPolicy;
+        final int readTimeoutMillis;
+        final int requestTimeoutMillis;
+        final Boolean idempotent;
+        final boolean tracing;
+        final Map<String, ByteBuffer> outgoingPayload;
+
+        Settings(Statement statement) {
+            this.consistencyLevel = statement.getConsistencyLevel();
+            this.serialConsistencyLevel = statement.getSerialConsistencyLevel();
+            this.defaultTimestamp = statement.getDefaultTimestamp();
+            this.retryPolicy = statement.getRetryPolicy();
+            this.readTimeoutMillis = statement.getReadTimeoutMillis();
+            this.requestTimeoutMillis = statement.getRequestTimeoutMillis();
+            this.idempotent = statement.isIdempotent();
+            this.tracing = statement.isTracing();
+            this.outgoingPayload = statement.getOutgoingPayload();
+        }
+
+        void applyTo(BatchStatement batch) {
+            if (consistencyLevel != null)
+                batch.setConsistencyLevel(consistencyLevel);
+            if (serialConsistencyLevel != null)
+                batch.setSerialConsistencyLevel(serialConsistencyLevel);
+            if (defaultTimestamp != Long.MIN_VALUE)
+                batch.setDefaultTimestamp(defaultTimestamp);
+            if (retryPolicy != null)
+                batch.setRetryPolicy(retryPolicy);
+            if (readTimeoutMillis >= 0)
+                batch.setReadTimeoutMillis(readTimeoutMillis);
+            if (requestTimeoutMillis >= 0)
+                batch.setRequestTimeoutMillis(requestTimeoutMillis);
+            if (idempotent != null)
+                batch.setIdempotent(idempotent);
+            if (tracing)
+                batch.enableTracing();
+            if (outgoingPayload != null)
+                batch.setOutgoingPayload(outgoingPayload);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (other instanceof Settings) {
+                Settings that = (Settings) other;
+                return this.consistencyLevel == that.consistencyLevel
+                        && this.serialConsistencyLevel == that.serialConsistencyLevel
+                        && this.defaultTimestamp == that.defaultTimestamp
+                        && Objects.equal(this.retryPolicy, that.retryPolicy)
+                        && this.readTimeoutMillis == that.readTimeoutMillis
+                        && this.requestTimeoutMillis == that.requestTimeoutMillis
+                        && Objects.equal(this.idempotent, that.idempotent)
+                        && this.tracing == that.tracing
+                        && Objects.equal(this.outgoingPayload, that.outgoingPayload);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(consistencyLevel, serialConsistencyLevel, defaultTimestamp, retryPolicy,
+                    readTimeoutMillis, requestTimeoutMillis, idempotent, tracing, outgoingPayload);
+        }
+    }
+
+    private static class PendingBatch {
+        final GroupKey key;
+        final List<Statement> statements = new ArrayList<Statement>();
+        final List<SettableFuture<ResultSet>> futures = new ArrayList<SettableFuture<ResultSet>>();
+
+        PendingBatch(GroupKey key) {
+            this.key = key;
+        }
+
+        void add(Statement statement, SettableFuture<ResultSet> future) {
+            statements.add(statement);
+            futures.add(future);
+        }
+    }
+
+    /**
+     * Helper class to build {@code TokenAwareBatcher} instances with a fluent interface.
+     */
+    public static class Builder {
+        private final Session session;
+        private int maxBatchSize = 20;
+        private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+        Builder(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Sets the maximum number of statements in a batch.
+         * <p/>
+         * Keep in mind that Cassandra logs a warning, and eventually rejects batches, above a given size in bytes
+         * (see {@code batch_size_warn_threshold_in_kb} and {@code batch_size_fail_threshold_in_kb} in
+         * {@code cassandra.yaml}).
+         * <p/>
+         * If not set explicitly, this value defaults to 20.
+         *
+         * @param maxBatchSize the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withMaxBatchSize(int maxBatchSize) {
+            checkArgument(maxBatchSize > 0, "maxBatchSize must be strictly positive (was %s)", maxBatchSize);
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time that a statement passed to {@link #executeAsync(Statement)} can wait for other
+         * statements to fill its batch.
+         * <p/>
+         * If not set explicitly, this value defaults to 5 milliseconds.
+         *
+         * @param maxDelay the new value. Must be strictly positive.
+         * @param unit     the unit that the delay is expressed in.
+         * @return this builder.
+         */
+        public Builder withMaxDelay(long maxDelay, TimeUnit unit) {
+            checkArgument(maxDelay > 0, "maxDelay must be strictly positive (was %s)", maxDelay);
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * Builds the {@code TokenAwareBatcher} instance configured with this builder.
+         *
+         * @return the instance.
+         */
+        public TokenAwareBatcher build() {
+            return new TokenAwareBatcher(session, maxBatchSize, maxDelayNanos);
+        }
+    }
+}
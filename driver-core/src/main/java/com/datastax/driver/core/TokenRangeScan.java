@@ -0,0 +1,291 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A scan in progress, started by {@link TokenRangeScanner#scan(PreparedStatement)}.
+ * <p/>
+ * This iterates over the rows of all the subranges, in the order in which their pages are received: rows of
+ * different subranges are interleaved, but the rows of a given subrange are returned in order. Each subrange has at
+ * most one page in flight or buffered; the next page, or the next subrange, is only requested once the rows of the
+ * current page have been consumed. In other words, the scan progresses at the pace of the consumer.
+ * <p/>
+ * The query of each page is retried according to the {@link com.datastax.driver.core.policies.RetryPolicy retry
+ * policy}. If it still fails, the scan stops: {@link #hasNext()} throws the error, and keeps throwing it if called
+ * again.
+ * <p/>
+ * Iterating must be done from a single thread, and not from a driver I/O thread (for example in a future callback),
+ * since {@link #hasNext()} blocks until the next page is received. The progress counters can be read from any thread
+ * at any time, for example to report the throughput of the scan.
+ */
+public class TokenRangeScan implements Iterator<Row> {
+
+    private final Session session;
+    private final PreparedStatement statement;
+    private final String keyspace;
+    private final List<TokenRange> ranges;
+    private final int fetchSize;
+    private final Metadata metadata;
+
+    // Pages that were received, but not consumed yet
+    private final BlockingQueue<Page> pages = new LinkedBlockingQueue<Page>();
+
+    // Only accessed by the iterating thread
+    private int nextRange;
+    private int inFlight;
+    private Page current;
+    private Throwable error;
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime;
+    private final AtomicLong rowCount = new AtomicLong();
+    private final AtomicLong completedRangeCount = new AtomicLong();
+    private final AtomicLong pageCount = new AtomicLong();
+    private final AtomicLong nonReplicaPageCount = new AtomicLong();
+    private final ConcurrentMap<Host, AtomicLong> rowCountPerHost = new ConcurrentHashMap<Host, AtomicLong>();
+
+    TokenRangeScan(Session session, PreparedStatement statement, String keyspace, List<TokenRange> ranges,
+                   int maxConcurrentRanges, int fetchSize) {
+        this.session = session;
+        this.statement = statement;
+        this.keyspace = keyspace;
+        this.ranges = ranges;
+        this.fetchSize = fetchSize;
+        this.metadata = session.getCluster().getMetadata();
+        while (inFlight < maxConcurrentRanges && nextRange < ranges.size())
+            startNextRange();
+    }
+
+    private void startNextRange() {
+        final TokenRange range = ranges.get(nextRange++);
+        inFlight += 1;
+        BoundStatement bound = statement.bind()
+                .setToken(0, range.getStart())
+                .setToken(1, range.getEnd());
+        bound.setRoutingToken(range.getEnd());
+        if (fetchSize > 0)
+            bound.setFetchSize(fetchSize);
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(bound);
+        } catch (RuntimeException e) {
+            pages.add(new Page(range, null, e));
+            return;
+        }
+        enqueueWhenDone(range, future);
+    }
+
+    private void enqueueWhenDone(final TokenRange range, ListenableFuture<ResultSet> future) {
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                pages.add(new Page(range, result, null));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                pages.add(new Page(range, null, t));
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            if (error != null)
+                throw propagate(error);
+            if (current != null) {
+                ResultSet resultSet = current.resultSet;
+                if (resultSet.getAvailableWithoutFetching() > 0)
+                    return true;
+                if (!resultSet.isFullyFetched()) {
+                    enqueueWhenDone(current.range, resultSet.fetchMoreResults());
+                } else {
+                    inFlight -= 1;
+                    completedRangeCount.incrementAndGet();
+                    if (nextRange < ranges.size())
+                        startNextRange();
+                }
+                current = null;
+            }
+            if (inFlight == 0) {
+                if (endTime == 0)
+                    endTime = System.nanoTime();
+                return false;
+            }
+            Page page = Uninterruptibles.takeUninterruptibly(pages);
+            if (page.error != null) {
+                error = page.error;
+                endTime = System.nanoTime();
+            } else {
+                onPageReceived(page);
+                current = page;
+            }
+        }
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        rowCount.incrementAndGet();
+        return current.resultSet.one();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void onPageReceived(Page page) {
+        pageCount.incrementAndGet();
+        Host host = page.resultSet.getExecutionInfo().getQueriedHost();
+        if (host == null)
+            return;
+        AtomicLong hostCount = rowCountPerHost.get(host);
+        if (hostCount == null) {
+            AtomicLong tmp = new AtomicLong();
+            hostCount = rowCountPerHost.putIfAbsent(host, tmp);
+            if (hostCount == null)
+                hostCount = tmp;
+        }
+        hostCount.addAndGet(page.resultSet.getAvailableWithoutFetching());
+        if (keyspace != null && !metadata.getReplicas(keyspace, page.range.getEnd()).contains(host))
+            nonReplicaPageCount.incrementAndGet();
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof Error)
+            throw (Error) t;
+        // Recreate the exception, so that its stack trace mentions the iterating thread (see DriverThrowables)
+        if (t instanceof DriverException)
+            return ((DriverException) t).copy();
+        return new DriverInternalError("Unexpected exception thrown", t);
+    }
+
+    /**
+     * Returns the total number of subranges of the scan.
+     *
+     * @return the number of subranges.
+     */
+    public int getRangeCount() {
+        return ranges.size();
+    }
+
+    /**
+     * Returns the number of subranges that were entirely read.
+     *
+     * @return the number of completed subranges.
+     */
+    public long getCompletedRangeCount() {
+        return completedRangeCount.get();
+    }
+
+    /**
+     * Returns the number of rows returned so far by {@link #next()}.
+     *
+     * @return the number of rows.
+     */
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    /**
+     * Returns the number of rows received so far, by coordinator.
+     * <p/>
+     * With token-aware routing, this shows how the scan was spread across the cluster.
+     *
+     * @return the number of rows per coordinator.
+     */
+    public Map<Host, Long> getRowCountPerHost() {
+        Map<Host, Long> counts = new HashMap<Host, Long>();
+        for (Map.Entry<Host, AtomicLong> entry : rowCountPerHost.entrySet())
+            counts.put(entry.getKey(), entry.getValue().get());
+        return counts;
+    }
+
+    /**
+     * Returns the number of pages received so far.
+     *
+     * @return the number of pages.
+     */
+    public long getPageCount() {
+        return pageCount.get();
+    }
+
+    /**
+     * Returns the number of pages that were coordinated by a host that is not a replica of their subrange.
+     * <p/>
+     * This should be 0 with token-aware routing, unless some replicas were down or the load balancing policy is not
+     * token aware. It is always 0 if the keyspace of the scan is unknown (neither in the query, nor the session's
+     * logged keyspace).
+     *
+     * @return the number of pages from non-replicas.
+     */
+    public long getNonReplicaPageCount() {
+        return nonReplicaPageCount.get();
+    }
+
+    /**
+     * Returns the time elapsed since the beginning of the scan, or its total duration if it is over.
+     *
+     * @param unit the unit to express the duration in.
+     * @return the duration.
+     */
+    public long getElapsed(TimeUnit unit) {
+        long end = endTime;
+        if (end == 0)
+            end = System.nanoTime();
+        return unit.convert(end - startTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean throughput of the scan so far.
+     *
+     * @return the number of rows returned per second.
+     */
+    public double getThroughput() {
+        long elapsedNanos = getElapsed(TimeUnit.NANOSECONDS);
+        return elapsedNanos == 0 ? 0 : getRowCount() * 1e9 / elapsedNanos;
+    }
+
+    private static class Page {
+        final TokenRange range;
+        final ResultSet resultSet;
+        final Throwable error;
+
+        Page(TokenRange range, ResultSet resultSet, Throwable error) {
+            this.range = range;
+            this.resultSet = resultSet;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Scans a whole table in parallel, by splitting the token ring into ranges that are queried concurrently.
+ * <p/>
+ * This is the usual way to read all the data of a table without an external processing framework:
+ * <pre>
+ *     PreparedStatement ps = session.prepare(
+ *         "SELECT * FROM ks.tbl WHERE token(pk) > ? AND token(pk) &lt;= ?");
+ *     TokenRangeScan scan = TokenRangeScanner.builder(session)
+ *         .withMaxConcurrentRanges(32)
+ *         .build()
+ *         .scan(ps);
+ *     while (scan.hasNext()) {
+ *         Row row = scan.next();
+ *         ...
+ *     }
+ * </pre>
+ * The ring is split into {@link TokenRange subranges}, each of which is contained in a single range of the ring, so
+ * that it is owned by a single set of replicas. The query for each subrange is bound with the start (exclusive) and
+ * end (inclusive) of the subrange, and is given its end as {@link Statement#setRoutingToken(Token) routing token}:
+ * with the default {@link com.datastax.driver.core.policies.TokenAwarePolicy token-aware} policy, it is sent to one
+ * of the replicas of the subrange. The subranges are started in an order that alternates between their replicas, so
+ * that the load is spread across the cluster from the beginning of the scan.
+ * <p/>
+ * Instances of this class are thread-safe, and can be reused for multiple scans.
+ */
+public class TokenRangeScanner {
+
+    private final Session session;
+    private final int splitCount;
+    private final int maxConcurrentRanges;
+    private final int fetchSize;
+
+    private TokenRangeScanner(Session session, int splitCount, int maxConcurrentRanges, int fetchSize) {
+        this.session = session;
+        this.splitCount = splitCount;
+        this.maxConcurrentRanges = maxConcurrentRanges;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Returns a builder to create a new instance.
+     *
+     * @param session the session that will execute the queries.
+     * @return the builder.
+     */
+    public static Builder builder(Session session) {
+        return new Builder(session);
+    }
+
+    /**
+     * Starts a scan.
+     * <p/>
+     * The statement must have two bind markers, for the tokens of the start (exclusive) and the end (inclusive) of
+     * each subrange, typically {@code token(pk) > ? AND token(pk) <= ?}. The queries for the first subranges are
+     * started right away; the next ones are started as the rows are consumed from the returned scan.
+     *
+     * @param statement the statement to execute for each subrange.
+     * @return the scan, to iterate over the rows of all the subranges.
+     * @throws IllegalArgumentException if the statement does not have exactly two variables.
+     * @throws IllegalStateException    if the token ranges are not known, for example if metadata was disabled with
+     *                                  {@link QueryOptions#setMetadataEnabled(boolean)}.
+     */
+    public TokenRangeScan scan(PreparedStatement statement) {
+        checkArgument(statement.getVariables().size() == 2,
+                "The statement must have two variables, for the start and end tokens of each range (found %s)",
+                statement.getVariables().size());
+        if (session instanceof AbstractSession)
+            ((AbstractSession) session).checkNotInEventLoop();
+
+        Metadata metadata = session.getCluster().getMetadata();
+        Set<TokenRange> ringRanges = metadata.getTokenRanges();
+        if (ringRanges.isEmpty())
+            throw new IllegalStateException("Token ranges are not available, check that metadata is enabled");
+
+        String keyspace = statement.getQueryKeyspace();
+        if (keyspace == null)
+            keyspace = session.getLoggedKeyspace();
+        if (keyspace != null)
+            keyspace = Metadata.quote(keyspace);
+
+        int targetSplits = splitCount;
+        if (targetSplits <= 0)
+            targetSplits = Builder.DEFAULT_SPLITS_PER_HOST * metadata.getAllHosts().size();
+        List<TokenRange> ranges = split(ringRanges, targetSplits);
+        if (keyspace != null)
+            ranges = interleaveByReplica(ranges, metadata, keyspace);
+
+        return new TokenRangeScan(session, statement, keyspace, ranges, maxConcurrentRanges, fetchSize);
+    }
+
+    /**
+     * Splits the ring into at least {@code splitCount} non-empty, non-wrapping subranges, each of which is contained
+     * in one range of the ring.
+     */
+    static List<TokenRange> split(Collection<TokenRange> ringRanges, int splitCount) {
+        // Ranges of the ring are never merged, since adjacent ranges can have different replicas
+        int splitsPerRange = Math.max(1, (splitCount + ringRanges.size() - 1) / ringRanges.size());
+        List<TokenRange> result = new ArrayList<TokenRange>(ringRanges.size() * splitsPerRange);
+        for (TokenRange ringRange : ringRanges) {
+            List<TokenRange> splits = (splitsPerRange == 1)
+                    ? Collections.singletonList(ringRange)
+                    : ringRange.splitEvenly(splitsPerRange);
+            for (TokenRange split : splits) {
+                if (!split.isEmpty())
+                    result.addAll(split.unwrap());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reorders the ranges so that consecutive ranges have different primary replicas (when possible).
+     */
+    static List<TokenRange> interleaveByReplica(List<TokenRange> ranges, Metadata metadata, String keyspace) {
+        Map<Host, Queue<TokenRange>> byReplica = new LinkedHashMap<Host, Queue<TokenRange>>();
+        for (TokenRange range : ranges) {
+            Set<Host> replicas = metadata.getReplicas(keyspace, range.getEnd());
+            Host primary = replicas.isEmpty() ? null : replicas.iterator().next();
+            Queue<TokenRange> queue = byReplica.get(primary);
+            if (queue == null) {
+                queue = new ArrayDeque<TokenRange>();
+                byReplica.put(primary, queue);
+            }
+            queue.add(range);
+        }
+        List<TokenRange> result = new ArrayList<TokenRange>(ranges.size());
+        while (result.size() < ranges.size()) {
+            for (Queue<TokenRange> queue : byReplica.values()) {
+                TokenRange range = queue.poll();
+                if (range != null)
+                    result.add(range);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper class to build {@code TokenRangeScanner} instances with a fluent interface.
+     */
+    public static class Builder {
+
+        static final int DEFAULT_SPLITS_PER_HOST = 16;
+
+        private final Session session;
+        private int splitCount;
+        private int maxConcurrentRanges = 32;
+        private int fetchSize;
+
+        Builder(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Sets the minimum number of subranges to split the ring into.
+         * <p/>
+         * Each range of the ring is split evenly, so that there are at least this number of subranges; ranges are
+         * never merged, so with virtual nodes there can be more. Smaller subranges allow more parallelism, and limit
+         * the amount of data to read again if a scan has to be restarted, at the cost of more queries.
+         * <p/>
+         * If not set explicitly, the ring is split into 16 subranges per host.
+         *
+         * @param splitCount the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withSplitCount(int splitCount) {
+            checkArgument(splitCount > 0, "splitCount must be strictly positive (was %s)", splitCount);
+            this.splitCount = splitCount;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of subranges that are queried at the same time.
+         * <p/>
+         * Each subrange being queried buffers at most one page of results, so this also bounds the memory used by
+         * the scan to about this number of pages.
+         * <p/>
+         * If not set explicitly, this value defaults to 32.
+         *
+         * @param maxConcurrentRanges the new value. Must be strictly positive.
+         * @return this builder.
+         */
+        public Builder withMaxConcurrentRanges(int maxConcurrentRanges) {
+            checkArgument(maxConcurrentRanges > 0,
+                    "maxConcurrentRanges must be strictly positive (was %s)", maxConcurrentRanges);
+            this.maxConcurrentRanges = maxConcurrentRanges;
+            return this;
+        }
+
+        /**
+         * Sets the fetch size of the queries.
+         * <p/>
+         * If not set explicitly, the {@link QueryOptions#getFetchSize() default fetch size} is used.
+         *
+         * @param fetchSize the new value. Must be strictly positive.
+         * @return this builder.
+         * @see Statement#setFetchSize(int)
+         */
+        public Builder withFetchSize(int fetchSize) {
+            checkArgument(fetchSize > 0, "fetchSize must be strictly positive (was %s)", fetchSize);
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        /**
+         * Builds the {@code TokenRangeScanner} instance configured with this builder.
+         *
+         * @return the instance.
+         */
+        public TokenRangeScanner build() {
+            return new TokenRangeScanner(session, splitCount, maxConcurrentRanges, fetchSize);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link SpeculativeExecutionPolicy} that caps the extra load generated by another policy ("hedging" with a budget).
+ * <p/>
+ * Each new request earns a fraction of a credit ({@code maxExtraRequestRatio}), and each speculative execution that
+ * actually gets sent spends one full credit. Speculative executions scheduled by the child policy are only allowed
+ * while at least one credit is available; the number of credits that can be saved up during quiet periods is capped
+ * by {@code maxBurst}.
+ * <p/>
+ * In the long run, this guarantees that the number of speculative executions stays below
+ * {@code maxExtraRequestRatio} times the number of requests (plus the burst). For example, with a ratio of
+ * {@code 0.05}, speculative executions can't add more than 5% of extra requests to the cluster, even if the child
+ * policy's thresholds are too aggressive or the cluster slows down as a whole.
+ * <p/>
+ * This policy is thread-safe; a single instance is shared by all the requests of a {@link Cluster}.
+ */
+public class BudgetedSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
+
+    private static final int DEFAULT_MAX_BURST = 10;
+
+    // Credits are stored as fixed-point longs to avoid floating point CAS loops
+    private static final long ONE_CREDIT = 1000000;
+
+    private final SpeculativeExecutionPolicy childPolicy;
+    private final long creditsPerRequest;
+    private final long maxCredits;
+    private final AtomicLong credits;
+
+    /**
+     * Builds a new instance, with a maximum burst of 10 speculative executions.
+     *
+     * @param childPolicy          the policy that decides when speculative executions should be scheduled.
+     * @param maxExtraRequestRatio the maximum ratio of speculative executions to requests (for example {@code 0.05} for
+     *                             at most 5% extra requests). Must be strictly positive.
+     * @throws IllegalArgumentException if one of the arguments does not respect the preconditions above.
+     */
+    public BudgetedSpeculativeExecutionPolicy(SpeculativeExecutionPolicy childPolicy, double maxExtraRequestRatio) {
+        this(childPolicy, maxExtraRequestRatio, DEFAULT_MAX_BURST);
+    }
+
+    /**
+     * Builds a new instance.
+     *
+     * @param childPolicy          the policy that decides when speculative executions should be scheduled.
+     * @param maxExtraRequestRatio the maximum ratio of speculative executions to requests (for example {@code 0.05} for
+     *                             at most 5% extra requests). Must be strictly positive.
+     * @param maxBurst             the maximum number of speculative executions that can be sent in a row after a quiet
+     *                             period. Must be strictly positive.
+     * @throws IllegalArgumentException if one of the arguments does not respect the preconditions above.
+     */
+    public BudgetedSpeculativeExecutionPolicy(SpeculativeExecutionPolicy childPolicy, double maxExtraRequestRatio, int maxBurst) {
+        checkArgument(maxExtraRequestRatio > 0,
+                "ratio of extra requests must be strictly positive (was %s)", maxExtraRequestRatio);
+        checkArgument(maxBurst > 0,
+                "max burst must be strictly positive (was %s)", maxBurst);
+        this.childPolicy = childPolicy;
+        this.creditsPerRequest = (long) (maxExtraRequestRatio * ONE_CREDIT);
+        this.maxCredits = maxBurst * ONE_CREDIT;
+        // Start with a full budget so that the first slow requests can be hedged
+        this.credits = new AtomicLong(maxCredits);
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+        childPolicy.init(cluster);
+    }
+
+    @Override
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+        earn();
+        final SpeculativeExecutionPlan childPlan = childPolicy.newPlan(loggedKeyspace, statement);
+        return new SpeculativeExecutionPlan() {
+            private final AtomicInteger invocations = new AtomicInteger();
+
+            @Override
+            public long nextExecution(Host lastQueried) {
+                // This is invoked once by each execution when it queries its first host. So every invocation
+                // after the first one means that a speculative execution that we allowed has actually started.
+                if (invocations.getAndIncrement() > 0)
+                    credits.addAndGet(-ONE_CREDIT);
+
+                long delay = childPlan.nextExecution(lastQueried);
+                if (delay < 0)
+                    return delay;
+                return (credits.get() >= ONE_CREDIT) ? delay : -1;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of speculative executions that can currently be sent before the budget is exhausted.
+     *
+     * @return the number of available credits (may be negative if speculative executions were sent concurrently
+     * when the budget was almost exhausted).
+     */
+    public double getAvailableCredits() {
+        return (double) credits.get() / ONE_CREDIT;
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+    private void earn() {
+        while (true) {
+            long current = credits.get();
+            if (current >= maxCredits)
+                return;
+            long next = Math.min(maxCredits, current + creditsPerRequest);
+            if (credits.compareAndSet(current, next))
+                return;
+        }
+    }
+}
@@ -15,7 +15,9 @@
  */
 package com.datastax.driver.core.policies;
 
+import com.codahale.metrics.Gauge;
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.QueryValidationException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -25,10 +27,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A data-center aware Round-robin load balancing policy.
@@ -40,11 +42,18 @@ import java.util.concurrent.atomic.AtomicInteger;
  * host in a remote data center will be queried unless no host in the local
  * data center can be reached.
  * <p/>
+ * Optionally, the policy can also prefer the hosts of a given rack within the local data center, see
+ * {@link Builder#withLocalRack(String)}.
+ * <p/>
+ * Also optionally, the policy can send a share of the queries to remote data centers first when the local data
+ * center is unhealthy, rather than only when none of its hosts can be reached, see
+ * {@link Builder#withGradualFailover(double, double, long, TimeUnit)}.
+ * <p/>
  * If used with a single data center, this policy is equivalent to the
  * {@link RoundRobinPolicy}, but its DC awareness incurs a slight overhead
  * so the latter should be preferred to this policy in that case.
  */
-public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
+public class DCAwareRoundRobinPolicy implements RotatingQueryPlanPolicy, LocalRackAwarePolicy {
 
     private static final Logger logger = LoggerFactory.getLogger(DCAwareRoundRobinPolicy.class);
 
@@ -59,49 +68,64 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
 
     private static final String UNSET = "";
 
-    private final ConcurrentMap<String, CopyOnWriteArrayList<Host>> perDcLiveHosts = new ConcurrentHashMap<String, CopyOnWriteArrayList<Host>>();
+    // The live hosts of each DC; only modified when holding the lock, and copied to a new snapshot after each change
+    private final Map<String, List<Host>> perDcLiveHosts = new LinkedHashMap<String, List<Host>>();
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
     private final AtomicInteger index = new AtomicInteger();
 
     @VisibleForTesting
     volatile String localDc;
 
+    private final String localRack;
     private final int usedHostsPerRemoteDc;
     private final boolean dontHopForLocalCL;
+    // null if gradual failover is disabled
+    @VisibleForTesting
+    final LocalDcHealth localDcHealth;
+    private volatile Cluster cluster;
+    private volatile boolean registeredGauges;
 
     private volatile Configuration configuration;
 
-    private DCAwareRoundRobinPolicy(String localDc, int usedHostsPerRemoteDc, boolean allowRemoteDCsForLocalConsistencyLevel, boolean allowEmptyLocalDc) {
+    private DCAwareRoundRobinPolicy(String localDc, String localRack, int usedHostsPerRemoteDc, boolean allowRemoteDCsForLocalConsistencyLevel, boolean allowEmptyLocalDc,
+                                    double maxSpillRatio, double errorRateThreshold, long latencyThresholdNanos) {
         if (!allowEmptyLocalDc && Strings.isNullOrEmpty(localDc))
             throw new IllegalArgumentException("Null or empty data center specified for DC-aware policy");
         this.localDc = localDc == null ? UNSET : localDc;
+        this.localRack = localRack;
         this.usedHostsPerRemoteDc = usedHostsPerRemoteDc;
         this.dontHopForLocalCL = !allowRemoteDCsForLocalConsistencyLevel;
+        this.localDcHealth = (maxSpillRatio > 0)
+                ? new LocalDcHealth(maxSpillRatio, errorRateThreshold, latencyThresholdNanos)
+                : null;
     }
 
     @Override
     public void init(Cluster cluster, Collection<Host> hosts) {
         if (localDc != UNSET)
             logger.info("Using provided data-center name '{}' for DCAwareRoundRobinPolicy", localDc);
+        if (localRack != null)
+            logger.info("Using provided rack name '{}' for DCAwareRoundRobinPolicy", localRack);
 
         this.configuration = cluster.getConfiguration();
 
         ArrayList<String> notInLocalDC = new ArrayList<String>();
 
-        for (Host host : hosts) {
-            String dc = dc(host);
+        synchronized (lock) {
+            for (Host host : hosts) {
+                String dc = dc(host);
 
-            // If the localDC was in "auto-discover" mode and it's the first host for which we have a DC, use it.
-            if (localDc == UNSET && dc != UNSET) {
-                logger.info("Using data-center name '{}' for DCAwareRoundRobinPolicy (if this is incorrect, please provide the correct datacenter name with DCAwareRoundRobinPolicy constructor)", dc);
-                localDc = dc;
-            } else if (!dc.equals(localDc))
-                notInLocalDC.add(String.format("%s (%s)", host.toString(), dc));
+                // If the localDC was in "auto-discover" mode and it's the first host for which we have a DC, use it.
+                if (localDc == UNSET && dc != UNSET) {
+                    logger.info("Using data-center name '{}' for DCAwareRoundRobinPolicy (if this is incorrect, please provide the correct datacenter name with DCAwareRoundRobinPolicy constructor)", dc);
+                    localDc = dc;
+                } else if (!dc.equals(localDc))
+                    notInLocalDC.add(String.format("%s (%s)", host.toString(), dc));
 
-            CopyOnWriteArrayList<Host> prev = perDcLiveHosts.get(dc);
-            if (prev == null)
-                perDcLiveHosts.put(dc, new CopyOnWriteArrayList<Host>(Collections.singletonList(host)));
-            else
-                prev.addIfAbsent(host);
+                addLiveHost(dc, host);
+            }
+            updateSnapshot();
         }
 
         if (notInLocalDC.size() > 0) {
@@ -111,6 +135,34 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
 
         this.index.set(new Random().nextInt(Math.max(hosts.size(), 1)));
 
+        if (localDcHealth != null) {
+            this.cluster = cluster;
+            cluster.register(localDcHealth);
+            Metrics metrics = cluster.getMetrics();
+            // If the cluster uses several instances of this policy (for example one per execution profile), the gauges
+            // report the first one
+            if (metrics != null && !metrics.getRegistry().getNames().contains("DCAwareRoundRobinPolicy.spill-ratio")) {
+                metrics.getRegistry().register(
+                        "DCAwareRoundRobinPolicy.spill-ratio",
+                        new Gauge<Double>() {
+                            @Override
+                            public Double getValue() {
+                                return getSpillRatio();
+                            }
+                        });
+                metrics.getRegistry().register(
+                        "DCAwareRoundRobinPolicy.spilled-plans",
+                        new Gauge<Long>() {
+                            @Override
+                            public Long getValue() {
+                                return localDcHealth.spilledPlans.get();
+                            }
+                        });
+                registeredGauges = true;
+            } else if (metrics != null) {
+                logger.debug("DCAwareRoundRobinPolicy gauges already registered by another instance, not registering them");
+            }
+        }
     }
 
     private String dc(Host host) {
@@ -118,9 +170,30 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
         return dc == null ? localDc : dc;
     }
 
-    @SuppressWarnings("unchecked")
-    private static CopyOnWriteArrayList<Host> cloneList(CopyOnWriteArrayList<Host> list) {
-        return (CopyOnWriteArrayList<Host>) list.clone();
+    // Must be called while holding the lock
+    private void addLiveHost(String dc, Host host) {
+        List<Host> dcHosts = perDcLiveHosts.get(dc);
+        if (dcHosts == null) {
+            dcHosts = new ArrayList<Host>();
+            perDcLiveHosts.put(dc, dcHosts);
+        }
+        if (!dcHosts.contains(host))
+            dcHosts.add(host);
+    }
+
+    // Must be called while holding the lock
+    private void updateSnapshot() {
+        snapshot = new Snapshot(localDc, localRack, perDcLiveHosts, usedHostsPerRemoteDc);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * See {@link Builder#withLocalRack(String)}.
+     */
+    @Override
+    public String getLocalRack() {
+        return localRack;
     }
 
     /**
@@ -142,15 +215,17 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
         if (dc == UNSET || dc.equals(localDc))
             return HostDistance.LOCAL;
 
-        CopyOnWriteArrayList<Host> dcHosts = perDcLiveHosts.get(dc);
-        if (dcHosts == null || usedHostsPerRemoteDc == 0)
+        if (usedHostsPerRemoteDc == 0)
             return HostDistance.IGNORED;
 
-        // We need to clone, otherwise our subList call is not thread safe
-        dcHosts = cloneList(dcHosts);
-        return dcHosts.subList(0, Math.min(dcHosts.size(), usedHostsPerRemoteDc)).contains(host)
-                ? HostDistance.REMOTE
-                : HostDistance.IGNORED;
+        Host[] dcHosts = snapshot.remoteHosts(dc);
+        if (dcHosts != null) {
+            for (Host dcHost : dcHosts) {
+                if (dcHost.equals(host))
+                    return HostDistance.REMOTE;
+            }
+        }
+        return HostDistance.IGNORED;
     }
 
     /**
@@ -160,7 +235,11 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
      * datacenter first, and then, if none of the local host is reachable,
      * will try up to a configurable number of other host per remote datacenter.
      * The order of the local node in the returned query plan will follow a
-     * Round-robin algorithm.
+     * Round-robin algorithm. If a {@link Builder#withLocalRack(String) local rack}
+     * was provided, the local hosts in that rack are tried before the other local hosts.
+     * <p/>
+     * If {@link Builder#withGradualFailover(double, double, long, TimeUnit) gradual failover} is enabled, a share of
+     * the plans (see {@link #getSpillRatio()}) tries the remote hosts first, and then the local hosts.
      *
      * @param loggedKeyspace the keyspace currently logged in on for this
      *                       query.
@@ -171,97 +250,151 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
     @Override
     public Iterator<Host> newQueryPlan(String loggedKeyspace, final Statement statement) {
 
-        CopyOnWriteArrayList<Host> localLiveHosts = perDcLiveHosts.get(localDc);
-        final List<Host> hosts = localLiveHosts == null ? Collections.<Host>emptyList() : cloneList(localLiveHosts);
+        // The snapshot is immutable, so the plan can iterate it without copying
+        final Snapshot snapshot = this.snapshot;
         final int startIdx = index.getAndIncrement();
+        final boolean spill = localDcHealth != null
+                && snapshot.remoteHosts.length > 0
+                && (!dontHopForLocalCL || !consistencyLevel(statement).isDCLocal())
+                && localDcHealth.shouldSpill();
 
         return new AbstractIterator<Host>() {
 
             private int idx = startIdx;
-            private int remainingLocal = hosts.size();
+            private int remainingLocalRack = snapshot.localRackHosts.length;
+            private int remainingLocal = snapshot.localHosts.length;
+            private boolean remoteFirst = spill;
 
             // For remote Dcs
-            private Iterator<String> remoteDcs;
-            private List<Host> currentDcHosts;
+            private int remoteDcIndex = -1;
+            private Host[] currentDcHosts;
             private int currentDcRemaining;
 
             @Override
             protected Host computeNext() {
-                while (true) {
-                    if (remainingLocal > 0) {
-                        remainingLocal--;
-                        int c = idx++ % hosts.size();
-                        if (c < 0) {
-                            c += hosts.size();
-                        }
-                        return hosts.get(c);
-                    }
+                if (remoteFirst) {
+                    Host host = nextRemote();
+                    if (host != null)
+                        return host;
+                    remoteFirst = false;
+                }
 
-                    if (currentDcHosts != null && currentDcRemaining > 0) {
-                        currentDcRemaining--;
-                        int c = idx++ % currentDcHosts.size();
-                        if (c < 0) {
-                            c += currentDcHosts.size();
-                        }
-                        return currentDcHosts.get(c);
-                    }
+                if (remainingLocalRack > 0) {
+                    remainingLocalRack--;
+                    return next(snapshot.localRackHosts);
+                }
+
+                if (remainingLocal > 0) {
+                    remainingLocal--;
+                    return next(snapshot.localHosts);
+                }
 
-                    ConsistencyLevel cl = statement.getConsistencyLevel() == null
-                            ? configuration.getQueryOptions().getConsistencyLevel()
-                            : statement.getConsistencyLevel();
+                Host host = nextRemote();
+                return (host == null) ? endOfData() : host;
+            }
 
-                    if (dontHopForLocalCL && cl.isDCLocal())
-                        return endOfData();
+            private Host nextRemote() {
+                while (true) {
+                    if (currentDcRemaining > 0) {
+                        currentDcRemaining--;
+                        return next(currentDcHosts);
+                    }
 
-                    if (remoteDcs == null) {
-                        Set<String> copy = new HashSet<String>(perDcLiveHosts.keySet());
-                        copy.remove(localDc);
-                        remoteDcs = copy.iterator();
+                    if (remoteDcIndex < 0 && !spill && dontHopForLocalCL && consistencyLevel(statement).isDCLocal()) {
+                        remoteDcIndex = snapshot.remoteHosts.length;
+                        return null;
                     }
 
-                    if (!remoteDcs.hasNext())
-                        break;
+                    remoteDcIndex += 1;
+                    if (remoteDcIndex >= snapshot.remoteHosts.length)
+                        return null;
 
-                    String nextRemoteDc = remoteDcs.next();
-                    CopyOnWriteArrayList<Host> nextDcHosts = perDcLiveHosts.get(nextRemoteDc);
-                    if (nextDcHosts != null) {
-                        // Clone for thread safety
-                        List<Host> dcHosts = cloneList(nextDcHosts);
-                        currentDcHosts = dcHosts.subList(0, Math.min(dcHosts.size(), usedHostsPerRemoteDc));
-                        currentDcRemaining = currentDcHosts.size();
-                    }
+                    currentDcHosts = snapshot.remoteHosts[remoteDcIndex];
+                    currentDcRemaining = currentDcHosts.length;
                 }
-                return endOfData();
+            }
+
+            private Host next(Host[] hosts) {
+                int c = idx++ % hosts.length;
+                if (c < 0) {
+                    c += hosts.length;
+                }
+                return hosts[c];
             }
         };
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This is possible when the plan only contains hosts of the local datacenter (either because no remote hosts
+     * are used, or because the statement has a DC-local consistency level and
+     * {@link Builder#allowRemoteDCsForLocalConsistencyLevel()} was not called), and they are not split by rack.
+     */
+    @Override
+    public Host[] getQueryPlanHosts(String loggedKeyspace, Statement statement) {
+        Snapshot snapshot = this.snapshot;
+        if (snapshot.remoteHosts.length > 0) {
+            if (!dontHopForLocalCL || !consistencyLevel(statement).isDCLocal())
+                return null;
+        }
+        if (snapshot.localRackHosts.length == 0)
+            return snapshot.localHosts;
+        if (snapshot.localHosts.length == 0)
+            return snapshot.localRackHosts;
+        return null;
+    }
+
+    @Override
+    public int nextQueryPlanOffset() {
+        return index.getAndIncrement();
+    }
+
+    private ConsistencyLevel consistencyLevel(Statement statement) {
+        return statement.getConsistencyLevel() == null
+                ? configuration.getQueryOptions().getConsistencyLevel()
+                : statement.getConsistencyLevel();
+    }
+
+    /**
+     * Returns the share of the query plans that currently try remote hosts first, because of the health of the local
+     * datacenter.
+     * <p/>
+     * This is also exposed as the {@code DCAwareRoundRobinPolicy.spill-ratio} gauge of the
+     * {@linkplain Metrics#getRegistry() metrics registry}, along with the total number of such plans
+     * ({@code DCAwareRoundRobinPolicy.spilled-plans}).
+     *
+     * @return the share of plans, between 0 and the maximum set with
+     * {@link Builder#withGradualFailover(double, double, long, TimeUnit)}. This is always 0 if gradual failover is
+     * disabled.
+     */
+    public double getSpillRatio() {
+        return (localDcHealth == null) ? 0 : localDcHealth.spillRatio;
+    }
+
     @Override
     public void onUp(Host host) {
-        String dc = dc(host);
+        synchronized (lock) {
+            String dc = dc(host);
 
-        // If the localDC was in "auto-discover" mode and it's the first host for which we have a DC, use it.
-        if (localDc == UNSET && dc != UNSET) {
-            logger.info("Using data-center name '{}' for DCAwareRoundRobinPolicy (if this is incorrect, please provide the correct datacenter name with DCAwareRoundRobinPolicy constructor)", dc);
-            localDc = dc;
-        }
+            // If the localDC was in "auto-discover" mode and it's the first host for which we have a DC, use it.
+            if (localDc == UNSET && dc != UNSET) {
+                logger.info("Using data-center name '{}' for DCAwareRoundRobinPolicy (if this is incorrect, please provide the correct datacenter name with DCAwareRoundRobinPolicy constructor)", dc);
+                localDc = dc;
+            }
 
-        CopyOnWriteArrayList<Host> dcHosts = perDcLiveHosts.get(dc);
-        if (dcHosts == null) {
-            CopyOnWriteArrayList<Host> newMap = new CopyOnWriteArrayList<Host>(Collections.singletonList(host));
-            dcHosts = perDcLiveHosts.putIfAbsent(dc, newMap);
-            // If we've successfully put our new host, we're good, otherwise we've been beaten so continue
-            if (dcHosts == null)
-                return;
+            addLiveHost(dc, host);
+            updateSnapshot();
         }
-        dcHosts.addIfAbsent(host);
     }
 
     @Override
     public void onDown(Host host) {
-        CopyOnWriteArrayList<Host> dcHosts = perDcLiveHosts.get(dc(host));
-        if (dcHosts != null)
-            dcHosts.remove(host);
+        synchronized (lock) {
+            List<Host> dcHosts = perDcLiveHosts.get(dc(host));
+            if (dcHosts != null && dcHosts.remove(host))
+                updateSnapshot();
+        }
     }
 
     @Override
@@ -276,7 +409,205 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
 
     @Override
     public void close() {
-        // nothing to do
+        if (localDcHealth != null && cluster != null) {
+            cluster.unregister(localDcHealth);
+            Metrics metrics = cluster.getMetrics();
+            if (registeredGauges && metrics != null) {
+                metrics.getRegistry().remove("DCAwareRoundRobinPolicy.spill-ratio");
+                metrics.getRegistry().remove("DCAwareRoundRobinPolicy.spilled-plans");
+            }
+        }
+    }
+
+    /**
+     * Measures the health of the local datacenter, to decide which share of the query plans should try remote hosts
+     * first.
+     * <p/>
+     * The error rate and the mean latency of the local hosts are measured over intervals of about one second (or
+     * longer if there were too few requests), and smoothed across intervals, so that the spill ratio follows the
+     * trend rather than individual errors.
+     */
+    class LocalDcHealth implements LatencyTracker {
+
+        private final long updateIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+        private static final int MIN_REQUESTS_PER_UPDATE = 20;
+        // Weight of the last interval in the smoothed values
+        private static final double SMOOTHING = 0.3;
+        private static final double MIN_SCORE = 0.01;
+
+        private final double maxSpillRatio;
+        private final double errorRateThreshold;
+        private final long latencyThresholdNanos;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong successLatencyNanos = new AtomicLong();
+        private final AtomicLong nextUpdate = new AtomicLong(System.nanoTime());
+        // Held while update() runs
+        private final AtomicBoolean updating = new AtomicBoolean();
+
+        // Only accessed in update(), while holding updating (which also makes the previous values visible)
+        private double errorRate;
+        private double latencyNanos = -1;
+
+        volatile double spillRatio;
+        private final AtomicLong planCount = new AtomicLong();
+        final AtomicLong spilledPlans = new AtomicLong();
+
+        LocalDcHealth(double maxSpillRatio, double errorRateThreshold, long latencyThresholdNanos) {
+            this.maxSpillRatio = maxSpillRatio;
+            this.errorRateThreshold = errorRateThreshold;
+            this.latencyThresholdNanos = latencyThresholdNanos;
+        }
+
+        @Override
+        public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+            if (!dc(host).equals(localDc))
+                return;
+            // Errors caused by the query itself say nothing about the datacenter, and neither do the speculative
+            // executions that the driver cancelled because another one completed first
+            if (exception instanceof QueryValidationException
+                    || exception instanceof CancelledSpeculativeExecutionException)
+                return;
+            requests.incrementAndGet();
+            if (exception == null)
+                successLatencyNanos.addAndGet(newLatencyNanos);
+            else
+                errors.incrementAndGet();
+        }
+
+        boolean shouldSpill() {
+            long now = System.nanoTime();
+            long next = nextUpdate.get();
+            if (now - next >= 0 && requests.get() >= MIN_REQUESTS_PER_UPDATE
+                    && nextUpdate.compareAndSet(next, now + updateIntervalNanos))
+                update();
+
+            double ratio = spillRatio;
+            if (ratio <= 0)
+                return false;
+            // Spill exactly that share of the plans, spread evenly
+            long n = planCount.getAndIncrement();
+            if ((long) ((n + 1) * ratio) > (long) (n * ratio)) {
+                spilledPlans.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @VisibleForTesting
+        void update() {
+            // Normally only one thread gets here per interval (see shouldSpill), skip if a previous update is still
+            // running rather than block
+            if (!updating.compareAndSet(false, true))
+                return;
+            try {
+                doUpdate();
+            } finally {
+                updating.set(false);
+            }
+        }
+
+        private void doUpdate() {
+            long requestCount = requests.getAndSet(0);
+            long errorCount = Math.min(errors.getAndSet(0), requestCount);
+            long latencySum = successLatencyNanos.getAndSet(0);
+            if (requestCount == 0)
+                return;
+
+            errorRate = SMOOTHING * errorCount / requestCount + (1 - SMOOTHING) * errorRate;
+            if (requestCount > errorCount) {
+                double mean = (double) latencySum / (requestCount - errorCount);
+                latencyNanos = (latencyNanos < 0) ? mean : SMOOTHING * mean + (1 - SMOOTHING) * latencyNanos;
+            }
+
+            // Each signal scales from 0 at its threshold to 1, at the threshold for errors and twice the threshold
+            // for latency
+            double errorScore = Math.min(1, errorRate / errorRateThreshold);
+            double latencyScore = (latencyNanos <= latencyThresholdNanos)
+                    ? 0
+                    : Math.min(1, (latencyNanos - latencyThresholdNanos) / latencyThresholdNanos);
+            double score = Math.max(errorScore, latencyScore);
+            // The smoothed values only decay asymptotically, so ignore negligible scores to stop spilling once the
+            // local datacenter has recovered
+            double newRatio = (score < MIN_SCORE) ? 0 : maxSpillRatio * score;
+            if ((newRatio == 0) != (spillRatio == 0))
+                logger.info("{} spilling queries to remote datacenters (local error rate {}, mean latency {} ms)",
+                        newRatio > 0 ? "Starting" : "Stopped", String.format("%.3f", errorRate),
+                        String.format("%.1f", latencyNanos / 1e6));
+            spillRatio = newRatio;
+        }
+
+        @Override
+        public void onRegister(Cluster cluster) {
+            // nothing to do
+        }
+
+        @Override
+        public void onUnregister(Cluster cluster) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * An immutable view of the live hosts, shared by all the query plans created until the next change.
+     */
+    private static class Snapshot {
+        private static final Host[] NO_HOSTS = new Host[0];
+
+        static final Snapshot EMPTY = new Snapshot(UNSET, null, Collections.<String, List<Host>>emptyMap(), 0);
+
+        // If a local rack was provided, the local hosts in that rack; the other local hosts are in localHosts
+        final Host[] localRackHosts;
+        final Host[] localHosts;
+        // The remote DCs, and the hosts to use in each of them (at most usedHostsPerRemoteDc)
+        final String[] remoteDcs;
+        final Host[][] remoteHosts;
+
+        Snapshot(String localDc, String localRack, Map<String, List<Host>> perDcLiveHosts, int usedHostsPerRemoteDc) {
+            List<Host> local = perDcLiveHosts.get(localDc);
+            if (local == null) {
+                this.localRackHosts = NO_HOSTS;
+                this.localHosts = NO_HOSTS;
+            } else if (localRack == null) {
+                this.localRackHosts = NO_HOSTS;
+                this.localHosts = local.toArray(new Host[local.size()]);
+            } else {
+                List<Host> inRack = new ArrayList<Host>();
+                List<Host> notInRack = new ArrayList<Host>();
+                for (Host host : local) {
+                    if (localRack.equals(host.getRack()))
+                        inRack.add(host);
+                    else
+                        notInRack.add(host);
+                }
+                this.localRackHosts = inRack.toArray(new Host[inRack.size()]);
+                this.localHosts = notInRack.toArray(new Host[notInRack.size()]);
+            }
+
+            List<String> dcs = new ArrayList<String>();
+            List<Host[]> hosts = new ArrayList<Host[]>();
+            if (usedHostsPerRemoteDc > 0) {
+                for (Map.Entry<String, List<Host>> entry : perDcLiveHosts.entrySet()) {
+                    List<Host> dcHosts = entry.getValue();
+                    if (entry.getKey().equals(localDc) || dcHosts.isEmpty())
+                        continue;
+                    dcs.add(entry.getKey());
+                    List<Host> used = dcHosts.subList(0, Math.min(dcHosts.size(), usedHostsPerRemoteDc));
+                    hosts.add(used.toArray(new Host[used.size()]));
+                }
+            }
+            this.remoteDcs = dcs.toArray(new String[dcs.size()]);
+            this.remoteHosts = hosts.toArray(new Host[hosts.size()][]);
+        }
+
+        Host[] remoteHosts(String dc) {
+            for (int i = 0; i < remoteDcs.length; i++) {
+                if (remoteDcs[i].equals(dc))
+                    return remoteHosts[i];
+            }
+            return null;
+        }
     }
 
     /**
@@ -284,8 +615,12 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
      */
     public static class Builder {
         private String localDc;
+        private String localRack;
         private int usedHostsPerRemoteDc;
         private boolean allowRemoteDCsForLocalConsistencyLevel;
+        private double maxSpillRatio;
+        private double errorRateThreshold;
+        private long latencyThresholdNanos;
 
         /**
          * Sets the name of the datacenter that will be considered "local" by the policy.
@@ -308,6 +643,31 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
             return this;
         }
 
+        /**
+         * Sets the name of the rack that will be considered "local" by the policy.
+         * <p/>
+         * If this method is called, query plans will return the hosts of the local datacenter that belong to that
+         * rack first, then the other hosts of the local datacenter, then the remote hosts (if any). This is useful
+         * when the client runs in the same rack (for example the same availability zone of a cloud provider) as some
+         * of the nodes, since traffic within a rack is usually faster, and sometimes cheaper.
+         * <p/>
+         * The rack only affects the order of the query plans: all the hosts of the local datacenter keep a
+         * {@link HostDistance#LOCAL LOCAL} distance. When this policy is wrapped in a {@link TokenAwarePolicy}, the
+         * replicas of the local rack are tried first, whatever the replica ordering (within each group, replicas are
+         * ordered according to that ordering).
+         * <p/>
+         * This must be the name as known by Cassandra (see {@link Host#getRack()}). If this method isn't called, the
+         * policy does not consider racks.
+         *
+         * @param localRack the name of the rack. It should not be {@code null}.
+         * @return this builder.
+         */
+        public Builder withLocalRack(String localRack) {
+            Preconditions.checkArgument(!Strings.isNullOrEmpty(localRack), "localRack name can't be null or empty");
+            this.localRack = localRack;
+            return this;
+        }
+
         /**
          * Sets the number of hosts per remote datacenter that the policy should consider.
          * <p/>
@@ -350,6 +710,56 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
             return this;
         }
 
+        /**
+         * Enables gradual failover to the remote datacenters.
+         * <p/>
+         * By default, the remote hosts are only tried once all the local hosts have been tried, which means that
+         * traffic only moves to the remote datacenters when the local one is completely unavailable. With gradual
+         * failover, the policy measures the error rate and the mean latency of the requests sent to the local hosts,
+         * and when they degrade, it returns query plans that start with the remote hosts for a share of the queries
+         * (the <em>spill ratio</em>), the local hosts coming next. That share grows with the degradation:
+         * <ul>
+         * <li>with the error rate, from 0 when there are no errors, to {@code maxSpillRatio} when the error rate
+         * reaches {@code errorRateThreshold};</li>
+         * <li>with the latency, from 0 when the mean latency is below {@code latencyThreshold}, to
+         * {@code maxSpillRatio} when it reaches twice that value.</li>
+         * </ul>
+         * The larger of the two is used. The measures are smoothed over a few seconds, so the spill ratio follows the
+         * health of the local datacenter rather than individual errors; it goes back to 0 once the local datacenter
+         * recovers. The current value is returned by {@link DCAwareRoundRobinPolicy#getSpillRatio()}, and is also
+         * reported in the {@linkplain Metrics#getRegistry() metrics registry}.
+         * <p/>
+         * Since the local hosts still receive at least {@code 1 - maxSpillRatio} of the queries, a brief degradation
+         * does not overload the remote datacenters, and the policy notices when the local datacenter recovers.
+         * <p/>
+         * This only applies to the queries that may be sent to remote hosts: it has no effect if
+         * {@link #withUsedHostsPerRemoteDc(int) usedHostsPerRemoteDc} is 0, and queries with a {@code LOCAL_*}
+         * consistency level are never spilled, unless {@link #allowRemoteDCsForLocalConsistencyLevel()} was called.
+         * <p/>
+         * If this method isn't called, gradual failover is disabled.
+         *
+         * @param maxSpillRatio      the maximum share of the queries that start with remote hosts. It must be
+         *                           strictly between 0 and 1.
+         * @param errorRateThreshold the local error rate at which the maximum spill ratio is reached. It must be
+         *                           strictly between 0 and 1.
+         * @param latencyThreshold   the mean local latency above which queries start to spill. It must be strictly
+         *                           positive.
+         * @param unit               the unit of {@code latencyThreshold}.
+         * @return this builder.
+         */
+        public Builder withGradualFailover(double maxSpillRatio, double errorRateThreshold, long latencyThreshold, TimeUnit unit) {
+            Preconditions.checkArgument(maxSpillRatio > 0 && maxSpillRatio < 1,
+                    "maxSpillRatio must be strictly between 0 and 1");
+            Preconditions.checkArgument(errorRateThreshold > 0 && errorRateThreshold < 1,
+                    "errorRateThreshold must be strictly between 0 and 1");
+            Preconditions.checkArgument(latencyThreshold > 0,
+                    "latencyThreshold must be strictly positive");
+            this.maxSpillRatio = maxSpillRatio;
+            this.errorRateThreshold = errorRateThreshold;
+            this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+            return this;
+        }
+
         /**
          * Builds the policy configured by this builder.
          *
@@ -360,7 +770,14 @@ public class DCAwareRoundRobinPolicy implements LoadBalancingPolicy {
                 logger.warn("Setting allowRemoteDCsForLocalConsistencyLevel has no effect if usedHostsPerRemoteDc = 0. "
                         + "This setting will be ignored");
             }
-            return new DCAwareRoundRobinPolicy(localDc, usedHostsPerRemoteDc, allowRemoteDCsForLocalConsistencyLevel, true);
+            double spill = maxSpillRatio;
+            if (usedHostsPerRemoteDc == 0 && spill > 0) {
+                logger.warn("Setting gradual failover has no effect if usedHostsPerRemoteDc = 0. "
+                        + "This setting will be ignored");
+                spill = 0;
+            }
+            return new DCAwareRoundRobinPolicy(localDc, localRack, usedHostsPerRemoteDc, allowRemoteDCsForLocalConsistencyLevel, true,
+                    spill, errorRateThreshold, latencyThresholdNanos);
         }
     }
 }
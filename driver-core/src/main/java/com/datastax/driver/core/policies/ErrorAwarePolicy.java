@@ -19,6 +19,9 @@ import com.datastax.driver.core.*;
 import com.datastax.driver.core.exceptions.*;
 import com.google.common.annotations.Beta;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
@@ -30,6 +33,8 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
@@ -41,6 +46,18 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
  * host, it then determines whether it should be included into or excluded from the final query plan, based on its
  * current error rate (measured over the last minute, with a 5-second granularity).
  * <p/>
+ * Each host is guarded by a circuit breaker. By default, the breaker opens (the host is excluded) when the host had
+ * more than {@link Builder#withMaxErrorsPerMinute(int) a number of errors} in the last minute, and closes again after
+ * the {@link Builder#withRetryPeriod(long, TimeUnit) retry period}. It can also be configured to:
+ * <ul>
+ * <li>open based on the {@link Builder#withMaxErrorRatio(double, int) ratio} of failed requests, rather than their
+ * absolute number;</li>
+ * <li>go through a {@link Builder#withHalfOpenProbing(double, int) half-open state} after the retry period, where
+ * only a share of the requests is sent to the host, until enough of them succeed;</li>
+ * <li>track the errors {@link Builder#withPerStatementShapeTracking(boolean) per statement shape} (i.e. query
+ * string), so that a single faulty query only excludes the host for that query.</li>
+ * </ul>
+ * <p/>
  * Note that the policy should not blindly count all errors in its measurements: some type of errors (e.g. CQL syntax
  * errors) can originate from the client and occur on all hosts, therefore they should not count towards the exclusion
  * threshold or all hosts could become excluded. You can provide your own {@link ErrorFilter} to customize that logic.
@@ -51,20 +68,45 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
  * This policy is currently in BETA mode and its behavior might be changing throughout different driver versions.
  */
 @Beta
-public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
+public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy, ExplainableQueryPlanPolicy {
 
     private static final Logger logger = LoggerFactory.getLogger(ErrorAwarePolicy.class);
 
+    // Maximum number of (host, statement shape) pairs tracked when shape tracking is enabled
+    private static final int MAX_TRACKED_SHAPES = 1024;
+
+    private static final List<Class<? extends Exception>> HOST_ERRORS =
+            ImmutableList.<Class<? extends Exception>>of(
+                    ConnectionException.class, // includes timeouts
+                    BusyConnectionException.class,
+                    BusyPoolException.class,
+                    OverloadedException.class,
+                    BootstrappingException.class);
+
     private final LoadBalancingPolicy childPolicy;
 
     private final long retryPeriodNanos;
+    private final int maxErrorsPerMinute;
+    private final double maxErrorRatio;
+    private final int minRequestsPerMinute;
+    private final double probeRatio;
+    private final int successesToClose;
+    private final boolean perStatementShape;
+    private final Clock clock;
 
     PerHostErrorTracker errorTracker;
 
     private ErrorAwarePolicy(Builder builder) {
         this.childPolicy = builder.childPolicy;
         this.retryPeriodNanos = builder.retryPeriodNanos;
-        this.errorTracker = new PerHostErrorTracker(builder.maxErrorsPerMinute, builder.errorFilter, builder.clock);
+        this.maxErrorsPerMinute = builder.maxErrorsPerMinute;
+        this.maxErrorRatio = builder.maxErrorRatio;
+        this.minRequestsPerMinute = builder.minRequestsPerMinute;
+        this.probeRatio = builder.probeRatio;
+        this.successesToClose = builder.successesToClose;
+        this.perStatementShape = builder.perStatementShape;
+        this.clock = builder.clock;
+        this.errorTracker = new PerHostErrorTracker(builder.errorFilter);
     }
 
     @Override
@@ -85,7 +127,26 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
 
     @Override
     public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
-        final Iterator<Host> childQueryPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        return queryPlan(childPolicy.newQueryPlan(loggedKeyspace, statement), statement, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This records the hosts that were left out of the plan because of their errors. The explanation is also passed
+     * to the child policy, if it implements {@link ExplainableQueryPlanPolicy}.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        Iterator<Host> childQueryPlan = (childPolicy instanceof ExplainableQueryPlanPolicy)
+                ? ((ExplainableQueryPlanPolicy) childPolicy).newQueryPlan(loggedKeyspace, statement, explanation)
+                : childPolicy.newQueryPlan(loggedKeyspace, statement);
+        return queryPlan(childQueryPlan, statement, explanation);
+    }
+
+    private Iterator<Host> queryPlan(final Iterator<Host> childQueryPlan, Statement statement,
+                                     final QueryPlanExplanation explanation) {
+        final String shape = shapeOf(statement);
 
         return new AbstractIterator<Host>() {
 
@@ -93,15 +154,29 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
             protected Host computeNext() {
                 while (childQueryPlan.hasNext()) {
                     Host host = childQueryPlan.next();
-                    if (!errorTracker.isExcluded(host)) {
+                    if (!errorTracker.isExcluded(host, shape)) {
                         return host;
                     }
+                    if (explanation != null)
+                        explanation.setExclusion(host, QueryPlanExplanation.Exclusion.ERRORS);
                 }
                 return endOfData();
             }
         };
     }
 
+    // The statement's shape if shapes are tracked and it has one, otherwise null
+    private String shapeOf(Statement statement) {
+        if (!perStatementShape)
+            return null;
+        if (statement instanceof BoundStatement)
+            return ((BoundStatement) statement).preparedStatement().getQueryString();
+        if (statement instanceof SimpleStatement)
+            return ((SimpleStatement) statement).getQueryString();
+        // Other statements would be too costly to inspect (e.g. built statements), or have no single shape (batches)
+        return null;
+    }
+
     @Override
     public void onAdd(Host host) {
         childPolicy.onAdd(host);
@@ -146,7 +221,12 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
         final LoadBalancingPolicy childPolicy;
 
         private int maxErrorsPerMinute = 1;
+        private double maxErrorRatio = -1;
+        private int minRequestsPerMinute;
         private long retryPeriodNanos = NANOSECONDS.convert(2, MINUTES);
+        private double probeRatio = -1;
+        private int successesToClose;
+        private boolean perStatementShape;
         private Clock clock = Clock.DEFAULT;
 
         private ErrorFilter errorFilter = new DefaultErrorFilter();
@@ -180,6 +260,32 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
             return this;
         }
 
+        /**
+         * Excludes hosts based on the ratio of failed requests, instead of their absolute number (this replaces
+         * {@link #withMaxErrorsPerMinute(int)}).
+         * <p/>
+         * Over the sliding 1-minute window, if a host received at least {@code minRequestsPerMinute} requests, and
+         * more than {@code maxErrorRatio} of them failed (with errors accepted by the
+         * {@link #withErrorsFilter(ErrorFilter) filter}), it will be excluded from the query plan for the duration
+         * defined by {@link #withRetryPeriod(long, TimeUnit)}. This scales with the load: a handful of errors
+         * will not exclude a busy host, but will exclude an idle one.
+         *
+         * @param maxErrorRatio        the maximum ratio of errors, strictly between 0 and 1.
+         * @param minRequestsPerMinute the minimum number of requests in the window for the ratio to be considered.
+         * @return this {@link Builder} instance, for method chaining.
+         * @throws IllegalArgumentException if {@code maxErrorRatio} is not strictly between 0 and 1, or
+         *                                  {@code minRequestsPerMinute < 1}.
+         */
+        public Builder withMaxErrorRatio(double maxErrorRatio, int minRequestsPerMinute) {
+            if (maxErrorRatio <= 0 || maxErrorRatio >= 1)
+                throw new IllegalArgumentException("Invalid maximum error ratio, must be strictly between 0 and 1");
+            if (minRequestsPerMinute < 1)
+                throw new IllegalArgumentException("Invalid minimum requests, must be strictly positive");
+            this.maxErrorRatio = maxErrorRatio;
+            this.minRequestsPerMinute = minRequestsPerMinute;
+            return this;
+        }
+
         /**
          * Defines the time during which a host is excluded by the policy once it has exceeded
          * {@link #withMaxErrorsPerMinute(int)}.
@@ -195,6 +301,57 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
             return this;
         }
 
+        /**
+         * Enables half-open probing of excluded hosts.
+         * <p/>
+         * By default, once the retry period has elapsed, an excluded host is included again in all query plans
+         * (unless it is still over the threshold). With probing, it is only included in {@code probeRatio} of the
+         * query plans: if one of these probe requests fails, the host is excluded for another retry period; once
+         * {@code successesToClose} of them have succeeded, the host is fully included again, and its error counts
+         * are reset.
+         *
+         * @param probeRatio       the share of query plans that include the host while it is probed, strictly
+         *                         between 0 and 1.
+         * @param successesToClose the number of successful probes needed to fully include the host again.
+         * @return this {@link Builder} instance, for method chaining.
+         * @throws IllegalArgumentException if {@code probeRatio} is not strictly between 0 and 1, or
+         *                                  {@code successesToClose < 1}.
+         */
+        public Builder withHalfOpenProbing(double probeRatio, int successesToClose) {
+            if (probeRatio <= 0 || probeRatio >= 1)
+                throw new IllegalArgumentException("Invalid probe ratio, must be strictly between 0 and 1");
+            if (successesToClose < 1)
+                throw new IllegalArgumentException("Invalid number of successes, must be strictly positive");
+            this.probeRatio = probeRatio;
+            this.successesToClose = successesToClose;
+            return this;
+        }
+
+        /**
+         * Whether to track errors per statement shape, rather than per host.
+         * <p/>
+         * The shape of a statement is the query string of its prepared statement for a {@link BoundStatement}, and
+         * its query string for a {@link SimpleStatement}. When enabled, the errors of a statement that has a shape
+         * only count for that shape on that host, and a host is only excluded from the query plans of the shape
+         * that failed; in other words, a single faulty query can't exclude a host for all the other queries. Errors
+         * that are caused by the host rather than by the query (timeouts, connection errors, overloaded or
+         * bootstrapping host) also count for the host as a whole, so that a failing host is still excluded for all
+         * queries. Other statements are still tracked per host.
+         * <p/>
+         * To bound memory usage, at most 1024 (host, shape) pairs are tracked, the least
+         * recently used being evicted. If you execute simple statements with inlined values, prefer bound statements
+         * or bind markers, otherwise each statement is a different shape.
+         * <p/>
+         * This is disabled by default.
+         *
+         * @param perStatementShape whether to track errors per statement shape.
+         * @return this {@link Builder} instance, for method chaining.
+         */
+        public Builder withPerStatementShapeTracking(boolean perStatementShape) {
+            this.perStatementShape = perStatementShape;
+            return this;
+        }
+
         /**
          * Provides a filter that will decide which errors are counted towards {@link #withMaxErrorsPerMinute(int)}.
          * <p/>
@@ -206,7 +363,9 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
          * caused by a bad query in client code, that will fail on all hosts. Excluding hosts could lead to complete
          * loss of connectivity, rather the solution is to fix the query;</li>
          * <li>{@link FunctionExecutionException}: similarly, this is caused by a bad function definition and likely to
-         * fail on all hosts.</li>
+         * fail on all hosts;</li>
+         * <li>{@link CancelledSpeculativeExecutionException}: the execution was cancelled by the driver, for example
+         * because another speculative execution completed first.</li>
          * </ul>
          *
          * @param errorFilter the filter class that the policy will use.
@@ -235,83 +394,78 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
 
     class PerHostErrorTracker implements LatencyTracker {
 
-        private final int maxErrorsPerMinute;
         private final ErrorFilter errorFilter;
-        private final Clock clock;
-        private final ConcurrentMap<Host, RollingCount> hostsCounts = new ConcurrentHashMap<Host, RollingCount>();
-        private final ConcurrentMap<Host, Long> exclusionTimes = new ConcurrentHashMap<Host, Long>();
+        private final ConcurrentMap<Host, CircuitBreaker> hostBreakers = new ConcurrentHashMap<Host, CircuitBreaker>();
+        // Only used if shapes are tracked
+        @VisibleForTesting
+        final LoadingCache<ShapeKey, CircuitBreaker> shapeBreakers;
 
-        PerHostErrorTracker(int maxErrorsPerMinute, ErrorFilter errorFilter, Clock clock) {
-            this.maxErrorsPerMinute = maxErrorsPerMinute;
+        PerHostErrorTracker(ErrorFilter errorFilter) {
             this.errorFilter = errorFilter;
-            this.clock = clock;
+            this.shapeBreakers = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_TRACKED_SHAPES)
+                    .build(new CacheLoader<ShapeKey, CircuitBreaker>() {
+                        @Override
+                        public CircuitBreaker load(ShapeKey key) {
+                            return new CircuitBreaker(key.host, key.shape);
+                        }
+                    });
         }
 
         @Override
         public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
-            if (exception == null) {
+            boolean error = exception != null;
+            if (!error && !tracksRequests()) {
                 return;
             }
-            if (!errorFilter.shouldConsiderError(exception, host, statement)) {
+            if (error && !errorFilter.shouldConsiderError(exception, host, statement)) {
                 return;
             }
-            RollingCount hostCount = getOrCreateCount(host);
-            hostCount.increment();
+            String shape = shapeOf(statement);
+            if (shape == null) {
+                getOrCreateBreaker(host).onResult(error);
+            } else if (error) {
+                if (isHostError(exception))
+                    getOrCreateBreaker(host).onResult(true);
+                shapeBreakers.getUnchecked(new ShapeKey(host, shape)).onResult(true);
+            } else {
+                // The host breaker counts all the requests, since it also counts host errors
+                getOrCreateBreaker(host).onResult(false);
+                // Don't create breakers for shapes that never failed, to keep the cache for those that did
+                CircuitBreaker shapeBreaker = shapeBreakers.getIfPresent(new ShapeKey(host, shape));
+                if (shapeBreaker != null)
+                    shapeBreaker.onResult(false);
+            }
         }
 
-        boolean isExcluded(Host host) {
-            Long excludedTime = exclusionTimes.get(host);
-            boolean expired = excludedTime != null && clock.nanoTime() - excludedTime >= retryPeriodNanos;
-            if (excludedTime == null || expired) {
-                if (maybeExcludeNow(host, excludedTime)) {
+        // Errors that say something about the host, whatever the query
+        private boolean isHostError(Exception exception) {
+            for (Class<? extends Exception> hostError : HOST_ERRORS) {
+                if (hostError.isInstance(exception))
                     return true;
-                }
-                if (expired) {
-                    // Cleanup, but make sure we don't overwrite if another thread just set it
-                    exclusionTimes.remove(host, excludedTime);
-                }
-                return false;
-            } else { // host is already excluded
-                return true;
             }
+            return false;
         }
 
-        // Exclude if we're over the threshold
-        private boolean maybeExcludeNow(Host host, Long previousTime) {
-            RollingCount rollingCount = getOrCreateCount(host);
-            long count = rollingCount.get();
-            if (count > maxErrorsPerMinute) {
-                excludeNow(host, count, previousTime);
+        boolean isExcluded(Host host, String shape) {
+            if (getOrCreateBreaker(host).isExcluded())
                 return true;
-            } else {
+            if (shape == null)
                 return false;
-            }
-        }
-
-        // Set the exclusion time to now, handling potential races
-        private void excludeNow(Host host, long count, Long previousTime) {
-            long now = clock.nanoTime();
-            boolean didNotRace = (previousTime == null)
-                    ? exclusionTimes.putIfAbsent(host, now) == null
-                    : exclusionTimes.replace(host, previousTime, now);
-
-            if (didNotRace && logger.isDebugEnabled()) {
-                logger.debug(String.format("Host %s encountered %d errors in the last minute, which is more " +
-                                "than the maximum allowed (%d). It will be excluded from query plans for the " +
-                                "next %d nanoseconds.",
-                        host, count, maxErrorsPerMinute, retryPeriodNanos));
-            }
+            // Don't create breakers for shapes that never failed, to keep the cache for those that did
+            CircuitBreaker shapeBreaker = shapeBreakers.getIfPresent(new ShapeKey(host, shape));
+            return shapeBreaker != null && shapeBreaker.isExcluded();
         }
 
-        private RollingCount getOrCreateCount(Host host) {
-            RollingCount hostCount = hostsCounts.get(host);
-            if (hostCount == null) {
-                RollingCount tmp = new RollingCount(clock);
-                hostCount = hostsCounts.putIfAbsent(host, tmp);
-                if (hostCount == null)
-                    hostCount = tmp;
+        private CircuitBreaker getOrCreateBreaker(Host host) {
+            CircuitBreaker breaker = hostBreakers.get(host);
+            if (breaker == null) {
+                CircuitBreaker tmp = new CircuitBreaker(host, null);
+                breaker = hostBreakers.putIfAbsent(host, tmp);
+                if (breaker == null)
+                    breaker = tmp;
             }
-            return hostCount;
+            return breaker;
         }
 
         @Override
@@ -325,6 +479,148 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
         }
     }
 
+    // Whether successful requests must be counted, which is only needed for ratios and probing
+    private boolean tracksRequests() {
+        return maxErrorRatio > 0 || probeRatio > 0;
+    }
+
+    /**
+     * The exclusion state of a host, or of a (host, statement shape) pair.
+     * <p/>
+     * Closed: the host is included, until the errors go over the threshold. Open: the host is excluded, until the
+     * retry period has elapsed. Then, without probing, the threshold is checked again and the breaker closes or opens
+     * again immediately; with probing, the breaker is half-open until enough probes succeeded (it closes) or one of
+     * them fails (it opens again).
+     */
+    class CircuitBreaker {
+
+        private static final long CLOSED = Long.MIN_VALUE;
+
+        private final Host host;
+        private final String shape;
+
+        // Replaced when the breaker closes after probing, to forget about past errors
+        private volatile RollingCount errors;
+        private volatile RollingCount requests;
+
+        // When the breaker last opened, or CLOSED
+        private final AtomicLong openedAt = new AtomicLong(CLOSED);
+        private final AtomicLong probeCount = new AtomicLong();
+        private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+        CircuitBreaker(Host host, String shape) {
+            this.host = host;
+            this.shape = shape;
+            this.errors = new RollingCount(clock);
+            this.requests = new RollingCount(clock);
+        }
+
+        boolean isExcluded() {
+            long opened = openedAt.get();
+            if (opened == CLOSED)
+                return maybeOpen(opened);
+            if (clock.nanoTime() - opened < retryPeriodNanos)
+                return true;
+            if (probeRatio > 0)
+                return !shouldProbe();
+            if (maybeOpen(opened))
+                return true;
+            // Cleanup, but make sure we don't overwrite if another thread just set it
+            openedAt.compareAndSet(opened, CLOSED);
+            return false;
+        }
+
+        void onResult(boolean error) {
+            if (tracksRequests())
+                requests.increment();
+            if (error)
+                errors.increment();
+
+            long opened = openedAt.get();
+            if (probeRatio <= 0 || opened == CLOSED || clock.nanoTime() - opened < retryPeriodNanos)
+                return;
+            // Half-open: this was (most likely) a probe
+            if (error) {
+                if (openedAt.compareAndSet(opened, clock.nanoTime())) {
+                    probeSuccesses.set(0);
+                    logger.debug("{} failed while being probed, excluding it again", describe());
+                }
+            } else if (probeSuccesses.incrementAndGet() >= successesToClose) {
+                errors = new RollingCount(clock);
+                requests = new RollingCount(clock);
+                if (openedAt.compareAndSet(opened, CLOSED)) {
+                    probeSuccesses.set(0);
+                    logger.debug("{} succeeded {} probes, including it again", describe(), successesToClose);
+                }
+            }
+        }
+
+        // Include exactly probeRatio of the query plans, spread evenly
+        private boolean shouldProbe() {
+            long n = probeCount.getAndIncrement();
+            return (long) ((n + 1) * probeRatio) > (long) (n * probeRatio);
+        }
+
+        // Open if we're over the threshold, handling potential races
+        private boolean maybeOpen(long previous) {
+            long errorCount = errors.get();
+            long requestCount = 0;
+            if (maxErrorRatio > 0) {
+                requestCount = requests.get();
+                if (requestCount < minRequestsPerMinute || errorCount <= maxErrorRatio * requestCount)
+                    return false;
+            } else if (errorCount <= maxErrorsPerMinute) {
+                return false;
+            }
+
+            boolean didNotRace = openedAt.compareAndSet(previous, clock.nanoTime());
+            if (didNotRace) {
+                probeSuccesses.set(0);
+                if (logger.isDebugEnabled()) {
+                    String threshold = (maxErrorRatio > 0)
+                            ? String.format("errors out of %d requests, which is more than the maximum ratio allowed (%s)",
+                            requestCount, maxErrorRatio)
+                            : String.format("errors, which is more than the maximum allowed (%d)", maxErrorsPerMinute);
+                    logger.debug(String.format("%s encountered %d %s in the last minute. It will be excluded from " +
+                                    "query plans for the next %d nanoseconds.",
+                            describe(), errorCount, threshold, retryPeriodNanos));
+                }
+            }
+            return true;
+        }
+
+        private String describe() {
+            return (shape == null)
+                    ? "Host " + host
+                    : String.format("Host %s (for query '%s')", host, shape);
+        }
+    }
+
+    private static class ShapeKey {
+        private final Host host;
+        private final String shape;
+
+        ShapeKey(Host host, String shape) {
+            this.host = host;
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (!(other instanceof ShapeKey))
+                return false;
+            ShapeKey that = (ShapeKey) other;
+            return this.host.equals(that.host) && this.shape.equals(that.shape);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + shape.hashCode();
+        }
+    }
+
     static class DefaultErrorFilter implements ErrorFilter {
         private static final List<Class<? extends Exception>> IGNORED_EXCEPTIONS =
                 ImmutableList.<Class<? extends Exception>>builder()
@@ -334,6 +630,7 @@ public class ErrorAwarePolicy implements ChainableLoadBalancingPolicy {
                         .add(AlreadyExistsException.class)
                         .add(InvalidQueryException.class)
                         .add(SyntaxError.class)
+                        .add(CancelledSpeculativeExecutionException.class)
                         .build();
 
         @Override
@@ -0,0 +1,49 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.QueryPlanExplanation;
+import com.datastax.driver.core.Statement;
+
+import java.util.Iterator;
+
+/**
+ * A load balancing policy that can explain its query plans.
+ * <p/>
+ * This is an optional hook: for the requests that are sampled (see
+ * {@link com.datastax.driver.core.QueryOptions#setRequestTimelineSamplingRate(double)}), if the configured policy
+ * implements this interface, the driver calls {@link #newQueryPlan(String, Statement, QueryPlanExplanation)} instead of
+ * {@link #newQueryPlan(String, Statement)} (or {@link RotatingQueryPlanPolicy#getQueryPlanHosts(String, Statement)}),
+ * and the explanation is then available from
+ * {@link com.datastax.driver.core.ExecutionInfo#getQueryPlanExplanation()}.
+ * <p/>
+ * Both methods must produce the same plans. Policies that wrap another policy should pass the explanation to it, if it
+ * implements this interface as well, so that the explanation covers the whole chain.
+ */
+public interface ExplainableQueryPlanPolicy extends LoadBalancingPolicy {
+
+    /**
+     * Returns the hosts to use for a new query, and records the reasons of that choice.
+     *
+     * @param loggedKeyspace the currently logged keyspace, see {@link #newQueryPlan(String, Statement)}.
+     * @param statement      the query for which to build a plan.
+     * @param explanation    where to record the reasons. Policies may record them as the plan is built, or as it is
+     *                       iterated.
+     * @return the query plan, as {@link #newQueryPlan(String, Statement)} would.
+     */
+    Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation);
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.codahale.metrics.Gauge;
+import com.datastax.driver.core.*;
+import com.google.common.collect.Iterators;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A wrapper load balancing policy that detects hot partitions, and spreads the requests to them across their replicas.
+ * <p/>
+ * With skewed workloads, a few partitions can receive most of the traffic. With a {@link TokenAwarePolicy} that
+ * orders replicas deterministically ({@link TokenAwarePolicy.ReplicaOrdering#TOPOLOGICAL TOPOLOGICAL} or
+ * {@link TokenAwarePolicy.ReplicaOrdering#NEUTRAL NEUTRAL}), the same replica coordinates all the requests to such a
+ * partition, and gets overloaded.
+ * <p/>
+ * This policy estimates how often each routing key is used, with a fixed-size count-min sketch over the recent
+ * requests. When a routing key accounts for more than a configurable share of the recent requests, and the
+ * statement's consistency level is {@link ConsistencyLevel#ONE ONE} or {@link ConsistencyLevel#LOCAL_ONE LOCAL_ONE},
+ * the replicas at the beginning of the child policy's query plan are rotated, so that each of them coordinates its
+ * share of the requests. At these levels, the coordinator serves the read itself, so this spreads the actual work;
+ * at higher levels, all the replicas involved do the work anyway, so the order is left untouched. Requests for other
+ * partitions keep the child policy's query plan as is.
+ * <p/>
+ * This policy is meant to wrap a {@link TokenAwarePolicy}, for example:
+ * <pre>
+ * HotPartitionAwarePolicy.builder(new TokenAwarePolicy(childPolicy, TOPOLOGICAL)).build()
+ * </pre>
+ * The most frequent partitions are reported by {@link #getHotTokens()}, and by the
+ * {@code HotPartitionAwarePolicy.hot-tokens} gauge of the {@linkplain Metrics#getRegistry() metrics registry}.
+ */
+public class HotPartitionAwarePolicy implements ChainableLoadBalancingPolicy, ExplainableQueryPlanPolicy {
+
+    private final LoadBalancingPolicy childPolicy;
+    private final HotPartitionTracker tracker;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private volatile Metadata clusterMetadata;
+    private volatile ProtocolVersion protocolVersion;
+    private volatile CodecRegistry codecRegistry;
+    private volatile QueryOptions queryOptions;
+    // Keyspace name -> quoted name, to avoid quoting it on every hot request
+    private final ConcurrentMap<String, String> quotedKeyspaces = new ConcurrentHashMap<String, String>();
+
+    private HotPartitionAwarePolicy(Builder builder) {
+        this.childPolicy = builder.childPolicy;
+        this.tracker = new HotPartitionTracker(builder.sampleSize, builder.hotThreshold, builder.topSize);
+    }
+
+    /**
+     * Creates a new hot partition aware policy builder given the child policy
+     * that the resulting policy should wrap.
+     *
+     * @param childPolicy the load balancing policy to wrap.
+     * @return the created builder.
+     */
+    public static Builder builder(LoadBalancingPolicy childPolicy) {
+        return new Builder(childPolicy);
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        clusterMetadata = cluster.getMetadata();
+        protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        queryOptions = cluster.getConfiguration().getQueryOptions();
+        childPolicy.init(cluster, hosts);
+        Metrics metrics = cluster.getMetrics();
+        if (metrics != null) {
+            metrics.getRegistry().register(
+                    "HotPartitionAwarePolicy.hot-tokens",
+                    new Gauge<Map<Token, Long>>() {
+                        @Override
+                        public Map<Token, Long> getValue() {
+                            return getHotTokens();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This implementation always returns distances as reported by the wrapped policy.
+     */
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The returned plan is the child policy's plan, except for statements at {@code ONE} or {@code LOCAL_ONE} that
+     * target a hot partition: for those, the replicas at the beginning of the plan are returned in a rotating order.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        return queryPlan(loggedKeyspace, statement, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The explanation is passed to the child policy, if it implements {@link ExplainableQueryPlanPolicy}.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        return queryPlan(loggedKeyspace, statement, explanation);
+    }
+
+    private Iterator<Host> queryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        Iterator<Host> childPlan = (explanation != null && childPolicy instanceof ExplainableQueryPlanPolicy)
+                ? ((ExplainableQueryPlanPolicy) childPolicy).newQueryPlan(loggedKeyspace, statement, explanation)
+                : childPolicy.newQueryPlan(loggedKeyspace, statement);
+
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null)
+            keyspace = loggedKeyspace;
+        if (keyspace == null)
+            return childPlan;
+        // Computed once, for both the tracker and the replica lookup
+        ByteBuffer partitionKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        if (partitionKey == null)
+            return childPlan;
+
+        if (!tracker.record(partitionKey) || !isSpreadable(statement))
+            return childPlan;
+
+        Set<Host> replicas = clusterMetadata.getReplicas(quote(keyspace), partitionKey);
+        if (replicas.size() < 2)
+            return childPlan;
+
+        // Collect the replicas at the beginning of the plan
+        List<Host> leadingReplicas = new ArrayList<Host>(replicas.size());
+        Host next = null;
+        while (childPlan.hasNext()) {
+            Host host = childPlan.next();
+            if (leadingReplicas.size() < replicas.size() && replicas.contains(host)) {
+                leadingReplicas.add(host);
+            } else {
+                next = host;
+                break;
+            }
+        }
+        if (leadingReplicas.size() > 1) {
+            int distance = (rotation.getAndIncrement() & Integer.MAX_VALUE) % leadingReplicas.size();
+            Collections.rotate(leadingReplicas, distance);
+        }
+
+        Iterator<Host> rest = (next == null)
+                ? childPlan
+                : Iterators.concat(Iterators.singletonIterator(next), childPlan);
+        return Iterators.concat(leadingReplicas.iterator(), rest);
+    }
+
+    private String quote(String keyspace) {
+        String quoted = quotedKeyspaces.get(keyspace);
+        if (quoted == null) {
+            quoted = Metadata.quote(keyspace);
+            quotedKeyspaces.put(keyspace, quoted);
+        }
+        return quoted;
+    }
+
+    private boolean isSpreadable(Statement statement) {
+        ConsistencyLevel consistency = statement.getConsistencyLevel();
+        if (consistency == null)
+            consistency = queryOptions.getConsistencyLevel();
+        return consistency == ConsistencyLevel.ONE || consistency == ConsistencyLevel.LOCAL_ONE;
+    }
+
+    /**
+     * Returns the tokens of the most frequently used partitions, with their estimated number of requests among the
+     * recent ones, most frequent first.
+     * <p/>
+     * The estimates come from a count-min sketch, so they can be slightly higher than the actual counts. Besides,
+     * the counts are halved periodically (see {@link Builder#withSampleSize(int)}), so they should be considered
+     * relatively to each other.
+     *
+     * @return the hot tokens. This is an empty map if the token metadata is not available.
+     */
+    public Map<Token, Long> getHotTokens() {
+        Map<Token, Long> tokens = new LinkedHashMap<Token, Long>();
+        Metadata metadata = clusterMetadata;
+        if (metadata == null)
+            return tokens;
+        try {
+            for (Map.Entry<ByteBuffer, Long> entry : tracker.getTopKeys().entrySet())
+                tokens.put(metadata.newToken(entry.getKey()), entry.getValue());
+        } catch (IllegalStateException e) {
+            // metadata disabled, tokens can't be computed
+        }
+        return tokens;
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+    /**
+     * Helper builder object to create a hot partition aware policy.
+     */
+    public static class Builder {
+
+        public static final double DEFAULT_HOT_THRESHOLD = 0.01;
+        public static final int DEFAULT_SAMPLE_SIZE = 100000;
+        public static final int DEFAULT_TOP_SIZE = 10;
+
+        private final LoadBalancingPolicy childPolicy;
+
+        private double hotThreshold = DEFAULT_HOT_THRESHOLD;
+        private int sampleSize = DEFAULT_SAMPLE_SIZE;
+        private int topSize = DEFAULT_TOP_SIZE;
+
+        /**
+         * Creates a new builder given the child policy that the resulting policy wraps.
+         *
+         * @param childPolicy the load balancing policy to wrap.
+         */
+        public Builder(LoadBalancingPolicy childPolicy) {
+            this.childPolicy = childPolicy;
+        }
+
+        /**
+         * Sets the share of the recent requests above which a partition is considered hot.
+         * <p/>
+         * The default threshold (if this method is not called) is <b>0.01</b>, in other words a partition is hot if
+         * it receives more than 1% of the requests.
+         *
+         * @param hotThreshold the threshold, strictly between 0 and 1.
+         * @return this builder.
+         * @throws IllegalArgumentException if {@code hotThreshold} is not strictly between 0 and 1.
+         */
+        public Builder withHotThreshold(double hotThreshold) {
+            if (hotThreshold <= 0 || hotThreshold >= 1)
+                throw new IllegalArgumentException("Invalid hot threshold, must be strictly between 0 and 1");
+            this.hotThreshold = hotThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the number of requests after which the frequency estimates are halved.
+         * <p/>
+         * This controls how fast the policy forgets about past traffic: a partition that stops being hot will be
+         * forgotten after a few times this number of requests. The memory used by the policy does not depend on it.
+         * <p/>
+         * The default (if this method is not called) is <b>100000</b> requests.
+         *
+         * @param sampleSize the sample size.
+         * @return this builder.
+         * @throws IllegalArgumentException if {@code sampleSize < 2}.
+         */
+        public Builder withSampleSize(int sampleSize) {
+            if (sampleSize < 2)
+                throw new IllegalArgumentException("Invalid sample size, must be at least 2");
+            this.sampleSize = sampleSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of hot partitions reported by {@link HotPartitionAwarePolicy#getHotTokens()}.
+         * <p/>
+         * The default (if this method is not called) is <b>10</b>.
+         *
+         * @param topSize the number of partitions.
+         * @return this builder.
+         * @throws IllegalArgumentException if {@code topSize < 1}.
+         */
+        public Builder withTopSize(int topSize) {
+            if (topSize < 1)
+                throw new IllegalArgumentException("Invalid top size, must be strictly positive");
+            this.topSize = topSize;
+            return this;
+        }
+
+        /**
+         * Builds a new hot partition aware policy using the options set on this builder.
+         *
+         * @return the newly created {@code HotPartitionAwarePolicy}.
+         */
+        public HotPartitionAwarePolicy build() {
+            return new HotPartitionAwarePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates the frequency of routing keys with a count-min sketch, for {@link HotPartitionAwarePolicy}.
+ * <p/>
+ * The sketch is a fixed-size matrix of counters ({@code DEPTH} rows of {@code WIDTH} counters); each key increments
+ * one counter per row, and its estimated count is the minimum of those counters. The estimate can only be too high
+ * (because of collisions), never too low.
+ * <p/>
+ * To reflect recent traffic, all counters are halved every time {@code sampleSize} keys have been recorded. The
+ * {@code topSize} most frequent keys are also kept aside (with their estimated count), to be reported.
+ */
+class HotPartitionTracker {
+
+    private static final int DEPTH = 4;
+    // Must be a power of 2
+    private static final int WIDTH = 2048;
+
+    // Keys are only considered hot once the sketch has enough data
+    private static final int MIN_SAMPLES = 1000;
+
+    // Heavy hitters are only re-ranked every so many increments, to avoid contending on the top keys for each request
+    private static final int RANK_INTERVAL = 16;
+
+    private final long sampleSize;
+    private final double hotThreshold;
+    private final int topSize;
+    private final long minSamples;
+
+    private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLong total = new AtomicLong();
+
+    // Guarded by itself
+    private final Map<ByteBuffer, Long> top = new HashMap<ByteBuffer, Long>();
+    // The smallest count in top, or 0 if it's not full yet
+    private volatile long topFloor;
+
+    HotPartitionTracker(long sampleSize, double hotThreshold, int topSize) {
+        this.sampleSize = sampleSize;
+        this.hotThreshold = hotThreshold;
+        this.topSize = topSize;
+        // After a decay, the total is down to half the sample size
+        this.minSamples = Math.min(MIN_SAMPLES, sampleSize / 2);
+    }
+
+    /**
+     * Records an occurrence of the given key.
+     *
+     * @return whether the key is hot, i.e. its share of the recent keys is at least the hot threshold.
+     */
+    boolean record(ByteBuffer key) {
+        int hash = hash(key);
+        // Derive the row hashes from two hashes (Kirsch-Mitzenmacher)
+        int hash2 = mix(hash ^ 0x5bd1e995);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = (hash + row * hash2) & (WIDTH - 1);
+            estimate = Math.min(estimate, counters.incrementAndGet(row * WIDTH + column));
+        }
+
+        long count = total.incrementAndGet();
+        if (count == sampleSize)
+            decay();
+
+        if (estimate % RANK_INTERVAL == 0 && estimate >= topFloor)
+            rank(key, estimate);
+
+        return count >= minSamples && estimate >= hotThreshold * count;
+    }
+
+    private void rank(ByteBuffer key, long estimate) {
+        synchronized (top) {
+            if (top.containsKey(key) || top.size() < topSize) {
+                // The buffer might be reused by the caller
+                top.put(copy(key), estimate);
+            } else {
+                ByteBuffer smallest = null;
+                long smallestCount = Long.MAX_VALUE;
+                for (Map.Entry<ByteBuffer, Long> entry : top.entrySet()) {
+                    if (entry.getValue() < smallestCount) {
+                        smallest = entry.getKey();
+                        smallestCount = entry.getValue();
+                    }
+                }
+                if (estimate <= smallestCount)
+                    return;
+                top.remove(smallest);
+                top.put(copy(key), estimate);
+            }
+            updateFloor();
+        }
+    }
+
+    // Must be called with the lock on top held
+    private void updateFloor() {
+        if (top.size() < topSize) {
+            topFloor = 0;
+        } else {
+            long floor = Long.MAX_VALUE;
+            for (Long count : top.values())
+                floor = Math.min(floor, count);
+            topFloor = floor;
+        }
+    }
+
+    private void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            while (true) {
+                long value = counters.get(i);
+                if (counters.compareAndSet(i, value, value / 2))
+                    break;
+            }
+        }
+        total.addAndGet(-sampleSize / 2);
+        synchronized (top) {
+            for (Map.Entry<ByteBuffer, Long> entry : top.entrySet())
+                entry.setValue(entry.getValue() / 2);
+            updateFloor();
+        }
+    }
+
+    /**
+     * Returns the most frequent keys, with their estimated count over the recent keys, most frequent first.
+     */
+    Map<ByteBuffer, Long> getTopKeys() {
+        List<Map.Entry<ByteBuffer, Long>> entries;
+        synchronized (top) {
+            entries = new ArrayList<Map.Entry<ByteBuffer, Long>>(top.size());
+            for (Map.Entry<ByteBuffer, Long> entry : top.entrySet())
+                entries.add(new AbstractMap.SimpleImmutableEntry<ByteBuffer, Long>(entry));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<ByteBuffer, Long>>() {
+            @Override
+            public int compare(Map.Entry<ByteBuffer, Long> e1, Map.Entry<ByteBuffer, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        Map<ByteBuffer, Long> result = new LinkedHashMap<ByteBuffer, Long>();
+        for (Map.Entry<ByteBuffer, Long> entry : entries)
+            result.put(entry.getKey().duplicate(), entry.getValue());
+        return result;
+    }
+
+    private static int hash(ByteBuffer key) {
+        int h = 1;
+        for (int i = key.position(); i < key.limit(); i++)
+            h = 31 * h + key.get(i);
+        return mix(h);
+    }
+
+    // Murmur3's finalizer, to spread the bits of weak hashes
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static ByteBuffer copy(ByteBuffer key) {
+        ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+        copy.put(key.duplicate()).flip();
+        return copy;
+    }
+}
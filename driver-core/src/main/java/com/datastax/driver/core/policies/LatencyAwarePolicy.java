@@ -28,7 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A wrapper load balancing policy that adds latency awareness to a child policy.
@@ -60,7 +60,7 @@ import java.util.concurrent.atomic.AtomicReference;
  *
  * @since 1.0.4
  */
-public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
+public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy, ExplainableQueryPlanPolicy {
 
     private static final Logger logger = LoggerFactory.getLogger(LatencyAwarePolicy.class);
     private static final boolean HOST_METRICS_ENABLED = Boolean.getBoolean("com.datastax.driver.HOST_METRICS_ENABLED");
@@ -76,6 +76,9 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
     private final long minMeasure;
     private volatile Metrics metrics;
 
+    // Recomputed by the updater at each tick, and read (without locking) by the query plans
+    private volatile Ranking ranking = Ranking.EMPTY;
+
     private LatencyAwarePolicy(LoadBalancingPolicy childPolicy,
                                double exclusionThreshold,
                                long scale,
@@ -112,53 +115,43 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
     @VisibleForTesting
     class Updater implements Runnable {
 
-        private Set<Host> excludedAtLastTick = Collections.<Host>emptySet();
-
         @Override
         public void run() {
             try {
-                logger.trace("Updating LatencyAwarePolicy minimum");
-                latencyTracker.updateMin();
+                logger.trace("Updating LatencyAwarePolicy ranking");
+                Ranking previous = ranking;
+                Ranking current = latencyTracker.computeRanking(previous);
+                ranking = current;
 
                 if (logger.isDebugEnabled()) {
                     /*
                      * For users to be able to know if the policy potentially needs tuning, we need to provide
-                     * some feedback on on how things evolve. For that, we use the min computation to also check
-                     * which host will be excluded if a query is submitted now and if any host is, we log it (but
-                     * we try to avoid flooding too). This is probably interesting information anyway since it
-                     * gets an idea of which host perform badly.
+                     * some feedback on on how things evolve. For that, we log the hosts that start or stop being
+                     * excluded (but only on transitions, to avoid flooding). This is probably interesting
+                     * information anyway since it gets an idea of which host perform badly.
                      */
-                    Set<Host> excludedThisTick = new HashSet<Host>();
-                    double currentMin = latencyTracker.getMinAverage();
-                    for (Map.Entry<Host, Snapshot.Stats> entry : getScoresSnapshot().getAllStats().entrySet()) {
-                        Host host = entry.getKey();
-                        Snapshot.Stats stats = entry.getValue();
-                        if (stats.getMeasurementsCount() < minMeasure)
-                            continue;
-
-                        if (stats.lastUpdatedSince() > retryPeriod) {
-                            if (excludedAtLastTick.contains(host))
-                                logger.debug(String.format("Previously avoided host %s has not be queried since %.3fms: will be reconsidered.", host, inMS(stats.lastUpdatedSince())));
+                    long now = System.nanoTime();
+                    for (Host host : current.slowHosts) {
+                        if (!previous.slowHosts.contains(host))
+                            logger.debug(String.format("Host %s has an average latency score of %.3fms, more than %f times more than the minimum %.3fms: will be avoided temporarily.",
+                                    host, inMS(latencyTracker.averageOf(host)), exclusionThreshold, inMS(current.minAverage)));
+                    }
+                    for (Host host : previous.slowHosts) {
+                        if (current.slowHosts.contains(host))
                             continue;
-                        }
-
-                        if (stats.getLatencyScore() > ((long) (exclusionThreshold * currentMin))) {
-                            excludedThisTick.add(host);
-                            if (!excludedAtLastTick.contains(host))
-                                logger.debug(String.format("Host %s has an average latency score of %.3fms, more than %f times more than the minimum %.3fms: will be avoided temporarily.",
-                                        host, inMS(stats.getLatencyScore()), exclusionThreshold, inMS(currentMin)));
+                        long lastUpdatedSince = latencyTracker.lastUpdatedSince(host, now);
+                        if (lastUpdatedSince < 0)
+                            // the host was removed
                             continue;
-                        }
-
-                        if (excludedAtLastTick.contains(host)) {
+                        if (lastUpdatedSince > retryPeriod)
+                            logger.debug(String.format("Previously avoided host %s has not be queried since %.3fms: will be reconsidered.", host, inMS(lastUpdatedSince)));
+                        else
                             logger.debug("Previously avoided host {} average latency has come back within accepted bounds: will be reconsidered.", host);
-                        }
                     }
-                    excludedAtLastTick = excludedThisTick;
                 }
             } catch (RuntimeException e) {
                 // An unexpected exception would suppress further execution, so catch, log, but swallow after that.
-                logger.error("Error while updating LatencyAwarePolicy minimum", e);
+                logger.error("Error while updating LatencyAwarePolicy ranking", e);
             }
         }
     }
@@ -189,7 +182,7 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
                     new Gauge<Long>() {
                         @Override
                         public Long getValue() {
-                            return latencyTracker.getMinAverage();
+                            return ranking.minAverage;
                         }
                     });
         }
@@ -221,36 +214,51 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
      */
     @Override
     public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
-        final Iterator<Host> childIter = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        return queryPlan(childPolicy.newQueryPlan(loggedKeyspace, statement), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This records the latency score of each host, and the hosts that were moved to the end of the plan because
+     * they are too slow. The explanation is also passed to the child policy, if it implements
+     * {@link ExplainableQueryPlanPolicy}.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        Iterator<Host> childIter = (childPolicy instanceof ExplainableQueryPlanPolicy)
+                ? ((ExplainableQueryPlanPolicy) childPolicy).newQueryPlan(loggedKeyspace, statement, explanation)
+                : childPolicy.newQueryPlan(loggedKeyspace, statement);
+        return queryPlan(childIter, explanation);
+    }
+
+    private Iterator<Host> queryPlan(final Iterator<Host> childIter, final QueryPlanExplanation explanation) {
+        final Ranking ranking = this.ranking;
+        // Nobody to penalize: the child plan can be used as is
+        if (ranking.slowHosts.isEmpty() && !hostMetricsEnabled() && explanation == null)
+            return childIter;
+
         return new AbstractIterator<Host>() {
 
             private Queue<Host> skipped;
 
             @Override
             protected Host computeNext() {
-                long min = latencyTracker.getMinAverage();
-                long now = System.nanoTime();
                 while (childIter.hasNext()) {
                     Host host = childIter.next();
-                    TimestampedAverage latency = latencyTracker.latencyOf(host);
-
-                    // If we haven't had enough data point yet to have a score, or the last update of the score
-                    // is just too old, include the host.
-                    if (min < 0 || latency == null || latency.nbMeasure < minMeasure || (now - latency.timestamp) > retryPeriod) {
-                        if (hostMetricsEnabled()) {
-                            metrics.getRegistry()
-                                    .counter(MetricsUtil.hostMetricName("LatencyAwarePolicy.inclusions-nodata.", host))
-                                    .inc();
-                        }
-                        return host;
-                    }
+                    if (explanation != null)
+                        explain(host);
 
-                    // If the host latency is within acceptable bound of the faster known host, return
-                    // that host. Otherwise, skip it.
-                    if (latency.average <= ((long) (exclusionThreshold * (double) min))) {
+                    // If the host latency is within acceptable bound of the faster known host, or if we haven't
+                    // had enough data point yet to have a score (or the last update of the score is just too old),
+                    // return that host. Otherwise, skip it.
+                    if (!ranking.slowHosts.contains(host)) {
                         if (hostMetricsEnabled()) {
+                            String prefix = latencyTracker.isScored(host, System.nanoTime())
+                                    ? "LatencyAwarePolicy.inclusions."
+                                    : "LatencyAwarePolicy.inclusions-nodata.";
                             metrics.getRegistry()
-                                    .counter(MetricsUtil.hostMetricName("LatencyAwarePolicy.inclusions.", host))
+                                    .counter(MetricsUtil.hostMetricName(prefix, host))
                                     .inc();
                         }
                         return host;
@@ -259,6 +267,8 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
                     if (skipped == null)
                         skipped = new ArrayDeque<Host>();
                     skipped.offer(host);
+                    if (explanation != null)
+                        explanation.setExclusion(host, QueryPlanExplanation.Exclusion.SLOW);
                     if (hostMetricsEnabled()) {
                         metrics.getRegistry()
                                 .counter(MetricsUtil.hostMetricName("LatencyAwarePolicy.exclusions.", host))
@@ -279,7 +289,10 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
                 return endOfData();
             }
 
-            ;
+            private void explain(Host host) {
+                if (ranking.minAverage > 0 && latencyTracker.isScored(host, System.nanoTime()))
+                    explanation.setLatencyScore(host, (double) latencyTracker.averageOf(host) / ranking.minAverage);
+            }
         };
     }
 
@@ -291,14 +304,16 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
      * latency scores maintained by this policy.
      */
     public Snapshot getScoresSnapshot() {
-        Map<Host, TimestampedAverage> currentLatencies = latencyTracker.currentLatencies();
         ImmutableMap.Builder<Host, Snapshot.Stats> builder = ImmutableMap.builder();
         long now = System.nanoTime();
-        for (Map.Entry<Host, TimestampedAverage> entry : currentLatencies.entrySet()) {
-            Host host = entry.getKey();
-            TimestampedAverage latency = entry.getValue();
-            Snapshot.Stats stats = new Snapshot.Stats(now - latency.timestamp, latency.average, latency.nbMeasure);
-            builder.put(host, stats);
+        for (Map.Entry<Host, HostLatencyTracker> entry : latencyTracker.latencies.entrySet()) {
+            HostLatencyTracker tracker = entry.getValue();
+            long nbMeasure = tracker.getMeasurementsCount();
+            // no latencies have been recorded yet for this host
+            if (nbMeasure == 0)
+                continue;
+            Snapshot.Stats stats = new Snapshot.Stats(now - tracker.getTimestamp(), tracker.getAverage(), nbMeasure);
+            builder.put(entry.getKey(), stats);
         }
         return new Snapshot(builder.build());
     }
@@ -424,7 +439,6 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
     private class Tracker implements LatencyTracker {
 
         private final ConcurrentMap<Host, HostLatencyTracker> latencies = new ConcurrentHashMap<Host, HostLatencyTracker>();
-        private volatile long cachedMin = -1L;
 
         @Override
         public void update(final Host host, Statement statement, Exception exception, long newLatencyNanos) {
@@ -448,37 +462,42 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
             return true;
         }
 
-        public void updateMin() {
-            long newMin = Long.MAX_VALUE;
+        Ranking computeRanking(Ranking previous) {
             long now = System.nanoTime();
+            long newMin = Long.MAX_VALUE;
             for (HostLatencyTracker tracker : latencies.values()) {
-                TimestampedAverage latency = tracker.getCurrentAverage();
-                if (latency != null && latency.average >= 0 && latency.nbMeasure >= minMeasure && (now - latency.timestamp) <= retryPeriod)
-                    newMin = Math.min(newMin, latency.average);
+                if (tracker.isScored(now))
+                    newMin = Math.min(newMin, tracker.getAverage());
+            }
+            // No host has a score: nobody can be excluded
+            if (newMin == Long.MAX_VALUE)
+                return new Ranking(previous.minAverage, Collections.<Host>emptySet());
+
+            long threshold = (long) (exclusionThreshold * (double) newMin);
+            ImmutableSet.Builder<Host> slowHosts = ImmutableSet.builder();
+            for (Map.Entry<Host, HostLatencyTracker> entry : latencies.entrySet()) {
+                HostLatencyTracker tracker = entry.getValue();
+                // The average might have changed since the first loop, so it's read only once here
+                long average = tracker.getAverage();
+                if (tracker.isScored(now) && average > threshold)
+                    slowHosts.add(entry.getKey());
             }
-            if (newMin != Long.MAX_VALUE)
-                cachedMin = newMin;
+            return new Ranking(newMin, slowHosts.build());
         }
 
-        public long getMinAverage() {
-            return cachedMin;
+        boolean isScored(Host host, long now) {
+            HostLatencyTracker tracker = latencies.get(host);
+            return tracker != null && tracker.isScored(now);
         }
 
-        public TimestampedAverage latencyOf(Host host) {
+        long averageOf(Host host) {
             HostLatencyTracker tracker = latencies.get(host);
-            return tracker == null ? null : tracker.getCurrentAverage();
+            return tracker == null ? -1 : tracker.getAverage();
         }
 
-        public Map<Host, TimestampedAverage> currentLatencies() {
-            Map<Host, TimestampedAverage> map = new HashMap<Host, TimestampedAverage>(latencies.size());
-            for (Map.Entry<Host, HostLatencyTracker> entry : latencies.entrySet()) {
-                TimestampedAverage average = entry.getValue().getCurrentAverage();
-                // average may be null if no latencies have been recorded yet for a host.
-                if (average != null) {
-                    map.put(entry.getKey(), average);
-                }
-            }
-            return map;
+        long lastUpdatedSince(Host host, long now) {
+            HostLatencyTracker tracker = latencies.get(host);
+            return (tracker == null || tracker.getMeasurementsCount() == 0) ? -1 : now - tracker.getTimestamp();
         }
 
         public void addHost(final Host host) {
@@ -494,8 +513,7 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
                             new Gauge<Long>() {
                                 @Override
                                 public Long getValue() {
-                                    TimestampedAverage latency = latencyTracker.latencyOf(host);
-                                    return (latency == null) ? -1 : latency.average;
+                                    return latencyTracker.averageOf(host);
                                 }
                             });
                 }
@@ -518,24 +536,41 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
         }
     }
 
-    private static class TimestampedAverage {
+    /**
+     * The decisions of the policy, as computed at the last update tick: the minimum average latency, and the hosts
+     * that are slower than the exclusion threshold allows. This is immutable, so that query plans can read it without
+     * locking.
+     */
+    private static class Ranking {
 
-        private final long timestamp;
-        private final long average;
-        private final long nbMeasure;
+        static final Ranking EMPTY = new Ranking(-1L, Collections.<Host>emptySet());
 
-        TimestampedAverage(long timestamp, long average, long nbMeasure) {
-            this.timestamp = timestamp;
-            this.average = average;
-            this.nbMeasure = nbMeasure;
+        final long minAverage;
+        final Set<Host> slowHosts;
+
+        Ranking(long minAverage, Set<Host> slowHosts) {
+            this.minAverage = minAverage;
+            this.slowHosts = slowHosts;
         }
     }
 
-    private static class HostLatencyTracker {
+    /**
+     * Maintains the average latency of a host.
+     * <p/>
+     * This is called for every response, so it does not allocate nor lock: the state is kept in separate atomic
+     * fields. They are not updated atomically as a whole, but the races are benign: at worst, a concurrent reader
+     * sees a count or a timestamp that is one measurement ahead of the average.
+     */
+    private class HostLatencyTracker {
 
         private final long thresholdToAccount;
         private final double scale;
-        private final AtomicReference<TimestampedAverage> current = new AtomicReference<TimestampedAverage>();
+
+        private final AtomicLong nbMeasure = new AtomicLong();
+        // System.nanoTime() of the last measurement (only meaningful if nbMeasure > 0)
+        private final AtomicLong timestamp = new AtomicLong();
+        // -1 until thresholdToAccount measurements have been collected
+        private final AtomicLong average = new AtomicLong(-1L);
 
         HostLatencyTracker(long scale, long thresholdToAccount) {
             this.scale = (double) scale; // We keep in double since that's how we'll use it.
@@ -543,46 +578,62 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
         }
 
         public void add(long newLatencyNanos) {
-            TimestampedAverage previous, next;
-            do {
-                previous = current.get();
-                next = computeNextAverage(previous, newLatencyNanos);
-            } while (next != null && !current.compareAndSet(previous, next));
-        }
-
-        private TimestampedAverage computeNextAverage(TimestampedAverage previous, long newLatencyNanos) {
-
             long currentTimestamp = System.nanoTime();
+            long count = nbMeasure.incrementAndGet();
+            // Claiming the interval since the previous measurement atomically ensures that each interval is only
+            // accounted for once, even with concurrent updates.
+            long previousTimestamp = timestamp.getAndSet(currentTimestamp);
+            if (count < thresholdToAccount)
+                return;
+
+            while (true) {
+                long previous = average.get();
+                long next;
+                if (previous < 0) {
+                    next = newLatencyNanos;
+                } else {
+                    // Note: it's possible for the delay to be 0, in which case newLatencyNanos will basically be
+                    // discarded. It's fine: nanoTime is precise enough in practice that even if it happens, it
+                    // will be very rare, and discarding a latency every once in a while is not the end of the world.
+                    // We do test for negative value, even though in theory that should not happen, because it seems
+                    // that historically there has been bugs here (https://blogs.oracle.com/dholmes/entry/inside_the_hotspot_vm_clocks)
+                    // so while this is almost surely not a problem anymore, there's no reason to break the computation
+                    // if this even happen.
+                    long delay = currentTimestamp - previousTimestamp;
+                    if (delay <= 0)
+                        return;
+
+                    double scaledDelay = ((double) delay) / scale;
+                    // Note: We don't use log1p because we it's quite a bit slower and we don't care about the precision (and since we
+                    // refuse ridiculously big scales, scaledDelay can't be so low that scaledDelay+1 == 1.0 (due to rounding)).
+                    double prevWeight = Math.log(scaledDelay + 1) / scaledDelay;
+                    next = (long) ((1.0 - prevWeight) * newLatencyNanos + prevWeight * previous);
+                }
+                if (average.compareAndSet(previous, next))
+                    return;
+            }
+        }
 
-            long nbMeasure = previous == null ? 1 : previous.nbMeasure + 1;
-            if (nbMeasure < thresholdToAccount)
-                return new TimestampedAverage(currentTimestamp, -1L, nbMeasure);
-
-            if (previous == null || previous.average < 0)
-                return new TimestampedAverage(currentTimestamp, newLatencyNanos, nbMeasure);
-
-            // Note: it's possible for the delay to be 0, in which case newLatencyNanos will basically be
-            // discarded. It's fine: nanoTime is precise enough in practice that even if it happens, it
-            // will be very rare, and discarding a latency every once in a while is not the end of the world.
-            // We do test for negative value, even though in theory that should not happen, because it seems
-            // that historically there has been bugs here (https://blogs.oracle.com/dholmes/entry/inside_the_hotspot_vm_clocks)
-            // so while this is almost surely not a problem anymore, there's no reason to break the computation
-            // if this even happen.
-            long delay = currentTimestamp - previous.timestamp;
-            if (delay <= 0)
-                return null;
+        /**
+         * Whether this host has a score that can be used to penalize it: enough measurements were collected, and
+         * the last one is not older than the retry period.
+         */
+        boolean isScored(long now) {
+            return average.get() >= 0
+                    && nbMeasure.get() >= minMeasure
+                    && now - timestamp.get() <= retryPeriod;
+        }
 
-            double scaledDelay = ((double) delay) / scale;
-            // Note: We don't use log1p because we it's quite a bit slower and we don't care about the precision (and since we
-            // refuse ridiculously big scales, scaledDelay can't be so low that scaledDelay+1 == 1.0 (due to rounding)).
-            double prevWeight = Math.log(scaledDelay + 1) / scaledDelay;
-            long newAverage = (long) ((1.0 - prevWeight) * newLatencyNanos + prevWeight * previous.average);
+        long getAverage() {
+            return average.get();
+        }
 
-            return new TimestampedAverage(currentTimestamp, newAverage, nbMeasure);
+        long getTimestamp() {
+            return timestamp.get();
         }
 
-        public TimestampedAverage getCurrentAverage() {
-            return current.get();
+        long getMeasurementsCount() {
+            return nbMeasure.get();
         }
     }
 
@@ -691,9 +742,9 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
          * The retry period defines how long a node may be penalized by the
          * policy before it is given a 2nd change. More precisely, a node is excluded
          * from query plans if both his calculated average latency is {@code exclusionThreshold}
-         * times slower than the fastest node average latency (at the time the query plan is
-         * computed) <b>and</b> his calculated average latency has been updated since
-         * less than {@code retryPeriod}. Since penalized nodes will likely not see their
+         * times slower than the fastest node average latency (at the time of the last
+         * update, see {@link #withUpdateRate}) <b>and</b> his calculated average latency has
+         * been updated since less than {@code retryPeriod}. Since penalized nodes will likely not see their
          * latency updated, this is basically how long the policy will exclude a node.
          *
          * @param retryPeriod the retry period to use.
@@ -711,12 +762,14 @@ public class LatencyAwarePolicy implements ChainableLoadBalancingPolicy {
         /**
          * Sets the update rate for the resulting latency aware policy.
          * <p/>
-         * The update rate defines how often the minimum average latency is
-         * recomputed. While the average latency score of each node is computed
-         * iteratively (updated each time a new latency is collected), the
-         * minimum score needs to be recomputed from scratch every time, which
-         * is slightly more costly. For this reason, the minimum is only
-         * re-calculated at the given fixed rate and cached between re-calculation.
+         * The update rate defines how often the minimum average latency, and the
+         * set of nodes that are penalized, are recomputed. While the average latency
+         * score of each node is computed iteratively (updated each time a new latency
+         * is collected), the minimum score needs to be recomputed from scratch every
+         * time, which is slightly more costly. For this reason, it is only
+         * re-calculated at the given fixed rate, and query plans use the result of the
+         * last calculation. In other words, a node that becomes slow (or recovers) is
+         * only penalized (or reconsidered) at the next update.
          * <p/>
          * The default update rate if <b>100 milliseconds</b>, which should be
          * appropriate for most applications. In particular, note that while we
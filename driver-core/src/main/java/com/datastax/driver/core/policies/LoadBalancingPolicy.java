@@ -77,6 +77,10 @@ public interface LoadBalancingPolicy {
      * (the queried host is down or appear to be so), the next host will be
      * used. If all hosts of the returned {@code Iterator} are down, the query
      * will fail.
+     * <p/>
+     * Policies that implement {@link RotatingQueryPlanPolicy} can provide some
+     * plans in a cheaper form; this method is then only called for the
+     * statements for which they don't.
      *
      * @param loggedKeyspace the currently logged keyspace (the one set through either
      *                       {@link Cluster#connect(String)} or by manually doing a {@code USE} query) for
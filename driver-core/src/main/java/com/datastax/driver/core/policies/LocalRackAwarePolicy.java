@@ -0,0 +1,35 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+/**
+ * A load balancing policy that tries the hosts of a given rack first.
+ * <p/>
+ * When such a policy is the child of a {@link TokenAwarePolicy} (directly, or wrapped by other
+ * {@link ChainableLoadBalancingPolicy chainable} policies), the token-aware policy also tries the replicas of that
+ * rack first, whatever its {@link TokenAwarePolicy.ReplicaOrdering replica ordering}.
+ */
+public interface LocalRackAwarePolicy extends LoadBalancingPolicy {
+
+    /**
+     * Returns the name of the rack that this policy considers local.
+     * <p/>
+     * This is the name as known by Cassandra (see {@link com.datastax.driver.core.Host#getRack()}).
+     *
+     * @return the name of the local rack, or {@code null} if this policy does not prefer a rack.
+     */
+    String getLocalRack();
+}
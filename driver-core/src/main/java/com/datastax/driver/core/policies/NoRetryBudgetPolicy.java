@@ -0,0 +1,54 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Statement;
+
+/**
+ * A {@link RetryBudgetPolicy} that never limits retries or speculative executions.
+ */
+public class NoRetryBudgetPolicy implements RetryBudgetPolicy {
+
+    /**
+     * The single instance (this class is stateless).
+     */
+    public static final NoRetryBudgetPolicy INSTANCE = new NoRetryBudgetPolicy();
+
+    private NoRetryBudgetPolicy() {
+        // do nothing
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+        // do nothing
+    }
+
+    @Override
+    public boolean tryAcquire(Statement statement) {
+        return true;
+    }
+
+    @Override
+    public void onSuccess(Statement statement) {
+        // do nothing
+    }
+
+    @Override
+    public void close() {
+        // do nothing
+    }
+}
@@ -23,6 +23,10 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A policy that triggers speculative executions when the request to the current host is above a given percentile.
+ * <p/>
+ * The percentile is looked up with the host and the statement being executed, so the granularity of the threshold
+ * depends on the tracker: a {@link PerHostPercentileTracker} gives one threshold per host, while a
+ * {@link PerStatementPercentileTracker} gives one threshold per prepared statement and host.
  */
 public class PercentileSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
     private final PercentileTracker percentileTracker;
@@ -54,14 +58,14 @@ public class PercentileSpeculativeExecutionPolicy implements SpeculativeExecutio
     }
 
     @Override
-    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, final Statement statement) {
         return new SpeculativeExecutionPlan() {
             private final AtomicInteger remaining = new AtomicInteger(maxSpeculativeExecutions);
 
             @Override
             public long nextExecution(Host lastQueried) {
                 if (remaining.getAndDecrement() > 0)
-                    return percentileTracker.getLatencyAtPercentile(lastQueried, null, null, percentile);
+                    return percentileTracker.getLatencyAtPercentile(lastQueried, statement, null, percentile);
                 else
                     return -1;
             }
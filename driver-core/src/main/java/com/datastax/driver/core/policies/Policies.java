@@ -36,6 +36,7 @@ public class Policies {
     private static final RetryPolicy DEFAULT_RETRY_POLICY = DefaultRetryPolicy.INSTANCE;
     private static final AddressTranslator DEFAULT_ADDRESS_TRANSLATOR = new IdentityTranslator();
     private static final SpeculativeExecutionPolicy DEFAULT_SPECULATIVE_EXECUTION_POLICY = NoSpeculativeExecutionPolicy.INSTANCE;
+    private static final RetryBudgetPolicy DEFAULT_RETRY_BUDGET_POLICY = NoRetryBudgetPolicy.INSTANCE;
 
     private final LoadBalancingPolicy loadBalancingPolicy;
     private final ReconnectionPolicy reconnectionPolicy;
@@ -43,19 +44,22 @@ public class Policies {
     private final AddressTranslator addressTranslator;
     private final TimestampGenerator timestampGenerator;
     private final SpeculativeExecutionPolicy speculativeExecutionPolicy;
+    private final RetryBudgetPolicy retryBudgetPolicy;
 
     private Policies(LoadBalancingPolicy loadBalancingPolicy,
                      ReconnectionPolicy reconnectionPolicy,
                      RetryPolicy retryPolicy,
                      AddressTranslator addressTranslator,
                      TimestampGenerator timestampGenerator,
-                     SpeculativeExecutionPolicy speculativeExecutionPolicy) {
+                     SpeculativeExecutionPolicy speculativeExecutionPolicy,
+                     RetryBudgetPolicy retryBudgetPolicy) {
         this.loadBalancingPolicy = loadBalancingPolicy;
         this.reconnectionPolicy = reconnectionPolicy;
         this.retryPolicy = retryPolicy;
         this.addressTranslator = addressTranslator;
         this.timestampGenerator = timestampGenerator;
         this.speculativeExecutionPolicy = speculativeExecutionPolicy;
+        this.retryBudgetPolicy = retryBudgetPolicy;
     }
 
     /**
@@ -132,6 +136,17 @@ public class Policies {
         return DEFAULT_SPECULATIVE_EXECUTION_POLICY;
     }
 
+    /**
+     * The default retry budget policy.
+     * <p/>
+     * The default retry budget policy is a {@link NoRetryBudgetPolicy}.
+     *
+     * @return the default retry budget policy.
+     */
+    public static RetryBudgetPolicy defaultRetryBudgetPolicy() {
+        return DEFAULT_RETRY_BUDGET_POLICY;
+    }
+
     /**
      * The load balancing policy in use.
      * <p/>
@@ -193,6 +208,18 @@ public class Policies {
         return speculativeExecutionPolicy;
     }
 
+    /**
+     * The retry budget policy in use.
+     * <p/>
+     * The retry budget policy bounds the total number of retries and speculative
+     * executions across all requests.
+     *
+     * @return the retry budget policy in use.
+     */
+    public RetryBudgetPolicy getRetryBudgetPolicy() {
+        return retryBudgetPolicy;
+    }
+
     /**
      * A builder to create a new {@code Policies} object.
      */
@@ -203,6 +230,7 @@ public class Policies {
         private AddressTranslator addressTranslator;
         private TimestampGenerator timestampGenerator;
         private SpeculativeExecutionPolicy speculativeExecutionPolicy;
+        private RetryBudgetPolicy retryBudgetPolicy;
 
         /**
          * Sets the load balancing policy.
@@ -270,6 +298,17 @@ public class Policies {
             return this;
         }
 
+        /**
+         * Sets the retry budget policy.
+         *
+         * @param retryBudgetPolicy see {@link #getRetryBudgetPolicy()}.
+         * @return this builder.
+         */
+        public Builder withRetryBudgetPolicy(RetryBudgetPolicy retryBudgetPolicy) {
+            this.retryBudgetPolicy = retryBudgetPolicy;
+            return this;
+        }
+
         /**
          * Builds the final object from this builder.
          * <p/>
@@ -284,7 +323,8 @@ public class Policies {
                     retryPolicy == null ? defaultRetryPolicy() : retryPolicy,
                     addressTranslator == null ? defaultAddressTranslator() : addressTranslator,
                     timestampGenerator == null ? defaultTimestampGenerator() : timestampGenerator,
-                    speculativeExecutionPolicy == null ? defaultSpeculativeExecutionPolicy() : speculativeExecutionPolicy);
+                    speculativeExecutionPolicy == null ? defaultSpeculativeExecutionPolicy() : speculativeExecutionPolicy,
+                    retryBudgetPolicy == null ? defaultRetryBudgetPolicy() : retryBudgetPolicy);
         }
     }
 }
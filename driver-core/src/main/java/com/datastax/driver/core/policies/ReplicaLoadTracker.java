@@ -0,0 +1,187 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders replicas for {@link TokenAwarePolicy.ReplicaOrdering#LEAST_LOADED}.
+ * <p/>
+ * The load of a host is estimated as {@code (inFlight + 1) * averageLatency}, where {@code inFlight} is the number of
+ * requests currently sent to the host by this client, and {@code averageLatency} an exponentially weighted moving
+ * average of its recent successful latencies. Hosts that have no measurement yet get the median average latency of the
+ * other replicas, so that they are neither favored nor avoided. A host that failed recently (timeout, overload,
+ * connection or server error) is penalized: it is ordered after all the hosts that didn't.
+ */
+class ReplicaLoadTracker implements LatencyTracker {
+
+    // Weight of a new measurement in the moving average
+    private static final double ALPHA = 0.25;
+
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final ConcurrentMap<Host, HostLoad> loads = new ConcurrentHashMap<Host, HostLoad>();
+    private final Random random = new Random();
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        if (exception == null) {
+            getOrCreate(host).addLatency(newLatencyNanos);
+        } else if (isHostFailure(exception)) {
+            getOrCreate(host).lastFailure = System.nanoTime();
+        }
+    }
+
+    private static boolean isHostFailure(Exception exception) {
+        // Note that OperationTimedOutException is a ConnectionException
+        return exception instanceof ConnectionException
+                || exception instanceof OverloadedException
+                || exception instanceof BootstrappingException
+                || exception instanceof ServerError
+                || exception instanceof BusyPoolException;
+    }
+
+    private HostLoad getOrCreate(Host host) {
+        HostLoad load = loads.get(host);
+        if (load == null) {
+            HostLoad newLoad = new HostLoad();
+            load = loads.putIfAbsent(host, newLoad);
+            if (load == null)
+                load = newLoad;
+        }
+        return load;
+    }
+
+    void remove(Host host) {
+        loads.remove(host);
+    }
+
+    /**
+     * Reorders the given replicas in place, least loaded first.
+     * <p/>
+     * The first replica is chosen with the "power of two choices" method: two random candidates are drawn, and the
+     * least loaded one wins. Always picking the best host would make all the requests issued before the next load
+     * update go to that same host; this way, the most loaded replica never comes first, but the load is still spread
+     * among the others. The remaining replicas are sorted by load.
+     */
+    void order(List<Host> replicas) {
+        int n = replicas.size();
+        if (n < 2)
+            return;
+
+        long now = System.nanoTime();
+        Host[] hosts = replicas.toArray(new Host[n]);
+        HostLoad[] hostLoads = new HostLoad[n];
+        long[] latencies = new long[n];
+        int measured = 0;
+        for (int i = 0; i < n; i++) {
+            hostLoads[i] = loads.get(hosts[i]);
+            latencies[i] = (hostLoads[i] == null) ? -1 : hostLoads[i].averageLatency.get();
+            if (latencies[i] >= 0)
+                measured += 1;
+        }
+        long unmeasuredLatency = medianLatency(latencies, measured);
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++)
+            scores[i] = score(hosts[i], hostLoads[i], latencies[i] < 0 ? unmeasuredLatency : latencies[i], now);
+
+        int first = random.nextInt(n);
+        int second = random.nextInt(n - 1);
+        if (second >= first)
+            second += 1;
+        if (scores[second] < scores[first])
+            first = second;
+        swap(hosts, scores, 0, first);
+
+        // Insertion sort: replica sets are small
+        for (int i = 2; i < n; i++) {
+            for (int j = i; j > 1 && scores[j] < scores[j - 1]; j--)
+                swap(hosts, scores, j, j - 1);
+        }
+
+        for (int i = 0; i < n; i++)
+            replicas.set(i, hosts[i]);
+    }
+
+    // The median of the non-negative latencies, or 1 if there are none (the scores then only depend on in-flight
+    // requests)
+    private static long medianLatency(long[] latencies, int measured) {
+        if (measured == 0)
+            return 1;
+        long[] sorted = new long[measured];
+        int j = 0;
+        for (long latency : latencies) {
+            if (latency >= 0)
+                sorted[j++] = latency;
+        }
+        Arrays.sort(sorted);
+        int middle = measured / 2;
+        return (measured % 2 == 1) ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static double score(Host host, HostLoad load, long latency, long now) {
+        double score = (host.getInFlightQueries() + 1) * (double) Math.max(latency, 1);
+        if (load != null && load.lastFailure != Long.MIN_VALUE && now - load.lastFailure < FAILURE_PENALTY_NANOS)
+            // Larger than any regular score
+            score += Double.MAX_VALUE / 2;
+        return score;
+    }
+
+    private static void swap(Host[] hosts, double[] scores, int i, int j) {
+        Host host = hosts[i];
+        hosts[i] = hosts[j];
+        hosts[j] = host;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+        // nothing to do
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+        // nothing to do
+    }
+
+    private static class HostLoad {
+        private final AtomicLong averageLatency = new AtomicLong(-1);
+        private volatile long lastFailure = Long.MIN_VALUE;
+
+        void addLatency(long latencyNanos) {
+            while (true) {
+                long previous = averageLatency.get();
+                long next = (previous < 0) ? latencyNanos : (long) (ALPHA * latencyNanos + (1 - ALPHA) * previous);
+                if (averageLatency.compareAndSet(previous, next))
+                    return;
+            }
+        }
+    }
+}
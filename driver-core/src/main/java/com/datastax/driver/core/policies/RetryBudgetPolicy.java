@@ -0,0 +1,61 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Statement;
+
+/**
+ * The policy that bounds the total amount of retries and speculative executions sent by a {@link Cluster}.
+ * <p/>
+ * {@link RetryPolicy} and {@link SpeculativeExecutionPolicy} make their decisions for each request in isolation. During
+ * a partial outage, this can multiply the load on the cluster: every request retries, which causes more timeouts,
+ * which causes more retries ("retry storm"). A retry budget provides a global view: each retry or speculative
+ * execution must first be allowed by this policy, otherwise it is not sent (a retry becomes a rethrow, a speculative
+ * execution is skipped).
+ */
+public interface RetryBudgetPolicy {
+
+    /**
+     * Gets invoked at cluster startup.
+     *
+     * @param cluster the cluster that this policy is associated with.
+     */
+    void init(Cluster cluster);
+
+    /**
+     * Invoked before the driver retries a request (as decided by the {@link RetryPolicy}), or starts a speculative
+     * execution (as scheduled by the {@link SpeculativeExecutionPolicy}).
+     *
+     * @param statement the statement that is about to be retried or speculatively executed.
+     * @return whether the retry or speculative execution is allowed.
+     */
+    boolean tryAcquire(Statement statement);
+
+    /**
+     * Invoked each time a host returns a successful response.
+     *
+     * @param statement the statement that succeeded.
+     */
+    void onSuccess(Statement statement);
+
+    /**
+     * Gets invoked at cluster shutdown.
+     * <p/>
+     * This gives the policy the opportunity to perform some cleanup, for instance stop threads that it might have started.
+     */
+    void close();
+}
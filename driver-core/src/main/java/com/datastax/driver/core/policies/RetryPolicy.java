@@ -260,6 +260,8 @@ public interface RetryPolicy {
      * Note that when such an error occurs, there is no guarantee that the mutation has been applied server-side or not.
      * Therefore, if a statement is {@link Statement#isIdempotent() not idempotent}, the driver will never retry it
      * (this method won't even be called).
+     * <p/>
+     * On a client timeout, this method is invoked on one of the driver's I/O threads, so it must not block.
      *
      * @param statement the original query that failed.
      * @param cl        the requested consistency level for the operation.
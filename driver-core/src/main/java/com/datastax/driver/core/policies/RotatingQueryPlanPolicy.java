@@ -0,0 +1,60 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+
+/**
+ * A load balancing policy that can express some of its query plans as a rotation of a precomputed array of hosts.
+ * <p/>
+ * This is an optional optimization: when the configured policy implements this interface, the driver first calls
+ * {@link #getQueryPlanHosts(String, Statement)} for each request. If it returns an array, the query plan is:
+ * <pre>
+ * hosts[(offset + i) % hosts.length], for i = 0 .. hosts.length - 1
+ * </pre>
+ * where {@code offset} is obtained with {@link #nextQueryPlanOffset()}; no iterator is created. If it returns
+ * {@code null}, the driver falls back to {@link #newQueryPlan(String, Statement)}.
+ * <p/>
+ * Both ways must produce the same plans: this is only a cheaper representation for plans that are a simple rotation
+ * of the same hosts (typically, statements without routing information).
+ */
+public interface RotatingQueryPlanPolicy extends LoadBalancingPolicy {
+
+    /**
+     * Returns the hosts of the query plan for the given statement, or {@code null} if it can't be expressed as a
+     * rotation of an array of hosts.
+     * <p/>
+     * The driver does not modify the returned array, and neither should the policy once it has returned it: it is
+     * shared by all the requests, so policies typically build a new one each time their hosts change.
+     *
+     * @param loggedKeyspace the currently logged keyspace, see {@link #newQueryPlan(String, Statement)}.
+     * @param statement      the query for which to build a plan.
+     * @return the hosts, or {@code null} to use {@link #newQueryPlan(String, Statement)} instead.
+     */
+    Host[] getQueryPlanHosts(String loggedKeyspace, Statement statement);
+
+    /**
+     * Returns the offset of the first host for a new query plan built from
+     * {@link #getQueryPlanHosts(String, Statement)}.
+     * <p/>
+     * This is called once per query plan, right after {@code getQueryPlanHosts} returned a non-null array. The
+     * offset can be any integer, including a negative one; the driver reduces it modulo the length of the array.
+     *
+     * @return the offset.
+     */
+    int nextQueryPlanOffset();
+}
@@ -39,11 +39,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  * datacenter this will be inefficient and you will want to use the
  * {@link DCAwareRoundRobinPolicy} load balancing policy instead.
  */
-public class RoundRobinPolicy implements LoadBalancingPolicy {
+public class RoundRobinPolicy implements RotatingQueryPlanPolicy {
 
     private static final Logger logger = LoggerFactory.getLogger(RoundRobinPolicy.class);
 
+    private static final Host[] NO_HOSTS = new Host[0];
+
     private final CopyOnWriteArrayList<Host> liveHosts = new CopyOnWriteArrayList<Host>();
+    // A copy of liveHosts for rotating query plans, replaced each time liveHosts changes
+    private volatile Host[] liveHostsArray = NO_HOSTS;
     private final AtomicInteger index = new AtomicInteger();
 
     private volatile Configuration configuration;
@@ -58,7 +62,10 @@ public class RoundRobinPolicy implements LoadBalancingPolicy {
 
     @Override
     public void init(Cluster cluster, Collection<Host> hosts) {
-        this.liveHosts.addAll(hosts);
+        synchronized (liveHosts) {
+            this.liveHosts.addAll(hosts);
+            this.liveHostsArray = liveHosts.toArray(NO_HOSTS);
+        }
         this.configuration = cluster.getConfiguration();
         this.index.set(new Random().nextInt(Math.max(hosts.size(), 1)));
     }
@@ -94,17 +101,7 @@ public class RoundRobinPolicy implements LoadBalancingPolicy {
     @Override
     public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
 
-        if (!hasLoggedLocalCLUse) {
-            ConsistencyLevel cl = statement.getConsistencyLevel() == null
-                    ? configuration.getQueryOptions().getConsistencyLevel()
-                    : statement.getConsistencyLevel();
-            if (cl.isDCLocal()) {
-                hasLoggedLocalCLUse = true;
-                logger.warn("Detected request at Consistency Level {} but the non-DC aware RoundRobinPolicy is in use. "
-                        + "It is strongly advised to use DCAwareRoundRobinPolicy if you have multiple DCs/use DC-aware consistency levels "
-                        + "(note: this message will only be logged once)", cl);
-            }
-        }
+        checkConsistencyLevel(statement);
 
         // We clone liveHosts because we want a version of the list that
         // cannot change concurrently of the query plan iterator (this
@@ -112,11 +109,7 @@ public class RoundRobinPolicy implements LoadBalancingPolicy {
         // underlying array (and thus we rely on liveHosts being a CopyOnWriteArrayList).
         @SuppressWarnings("unchecked")
         final List<Host> hosts = (List<Host>) liveHosts.clone();
-        final int startIdx = index.getAndIncrement();
-
-        // Overflow protection; not theoretically thread safe but should be good enough
-        if (startIdx > Integer.MAX_VALUE - 10000)
-            index.set(0);
+        final int startIdx = nextQueryPlanOffset();
 
         return new AbstractIterator<Host>() {
 
@@ -137,14 +130,55 @@ public class RoundRobinPolicy implements LoadBalancingPolicy {
         };
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This policy's plans are always a rotation of the live hosts, so this method never returns {@code null}.
+     */
+    @Override
+    public Host[] getQueryPlanHosts(String loggedKeyspace, Statement statement) {
+        checkConsistencyLevel(statement);
+        return liveHostsArray;
+    }
+
+    @Override
+    public int nextQueryPlanOffset() {
+        int startIdx = index.getAndIncrement();
+
+        // Overflow protection; not theoretically thread safe but should be good enough
+        if (startIdx > Integer.MAX_VALUE - 10000)
+            index.set(0);
+        return startIdx;
+    }
+
+    private void checkConsistencyLevel(Statement statement) {
+        if (!hasLoggedLocalCLUse) {
+            ConsistencyLevel cl = statement.getConsistencyLevel() == null
+                    ? configuration.getQueryOptions().getConsistencyLevel()
+                    : statement.getConsistencyLevel();
+            if (cl.isDCLocal()) {
+                hasLoggedLocalCLUse = true;
+                logger.warn("Detected request at Consistency Level {} but the non-DC aware RoundRobinPolicy is in use. "
+                        + "It is strongly advised to use DCAwareRoundRobinPolicy if you have multiple DCs/use DC-aware consistency levels "
+                        + "(note: this message will only be logged once)", cl);
+            }
+        }
+    }
+
     @Override
     public void onUp(Host host) {
-        liveHosts.addIfAbsent(host);
+        synchronized (liveHosts) {
+            if (liveHosts.addIfAbsent(host))
+                liveHostsArray = liveHosts.toArray(NO_HOSTS);
+        }
     }
 
     @Override
     public void onDown(Host host) {
-        liveHosts.remove(host);
+        synchronized (liveHosts) {
+            if (liveHosts.remove(host))
+                liveHostsArray = liveHosts.toArray(NO_HOSTS);
+        }
     }
 
     @Override
@@ -21,6 +21,8 @@ import com.google.common.collect.Lists;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A wrapper load balancing policy that adds token awareness to a child policy.
@@ -40,7 +42,10 @@ import java.util.*;
  * to the child policy's one.</li>
  * </ul>
  * The exact order in which local replicas are returned is dictated by the
- * {@linkplain ReplicaOrdering strategy} provided at instantiation.
+ * {@linkplain ReplicaOrdering strategy} provided at instantiation. If the child policy is (or wraps) a
+ * {@link LocalRackAwarePolicy} with a local rack (for example a {@link DCAwareRoundRobinPolicy} built with
+ * {@link DCAwareRoundRobinPolicy.Builder#withLocalRack(String)}), the replicas of that rack are returned first, each
+ * group being ordered by the strategy.
  * <p/>
  * Do note that only replicas for which the child policy's
  * {@linkplain LoadBalancingPolicy#distance(Host) distance}
@@ -49,7 +54,7 @@ import java.util.*;
  * token aware policy, replicas from remote data centers may only be
  * returned after all the hosts of the local data center.
  */
-public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
+public class TokenAwarePolicy implements ChainableLoadBalancingPolicy, RotatingQueryPlanPolicy, ExplainableQueryPlanPolicy {
 
     /**
      * Strategies for replica ordering.
@@ -82,7 +87,22 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
          * This is the only strategy that fully respects the child policy's replica ordering.
          * Use it when it is important to keep that order intact (e.g. when using the {@link LatencyAwarePolicy}).
          */
-        NEUTRAL
+        NEUTRAL,
+
+        /**
+         * Order replicas by their current load, as observed by this client: the number of requests in flight to
+         * each replica, and its recent latencies. Replicas that recently timed out or returned an overloaded or
+         * server error are tried last.
+         * <p/>
+         * To avoid sending all the requests to the same replica between two load updates, the first replica is
+         * the least loaded of two replicas picked at random ("power of two choices"); in other words, the most
+         * loaded replica is never tried first.
+         * <p/>
+         * This strategy steers requests away from replicas that are slow because of a hot partition or a GC pause,
+         * at a lower cost than {@link LatencyAwarePolicy}. Like {@link #RANDOM RANDOM}, it makes server-side caching
+         * less efficient.
+         */
+        LEAST_LOADED
     }
 
     private final LoadBalancingPolicy childPolicy;
@@ -90,6 +110,13 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
     private volatile Metadata clusterMetadata;
     private volatile ProtocolVersion protocolVersion;
     private volatile CodecRegistry codecRegistry;
+    private volatile ReplicaLoadTracker loadTracker;
+    // Only set if loadTracker is, to unregister it
+    private volatile Cluster cluster;
+    // The local rack of the child policy, if any
+    private volatile String localRack;
+    // Keyspace name -> quoted name, to avoid quoting it on every query plan
+    private final ConcurrentMap<String, String> quotedKeyspaces = new ConcurrentHashMap<String, String>();
 
     /**
      * Creates a new {@code TokenAware} policy.
@@ -137,9 +164,28 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
         clusterMetadata = cluster.getMetadata();
         protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
         codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        for (KeyspaceMetadata keyspace : clusterMetadata.getKeyspaces())
+            quote(keyspace.getName());
+        if (replicaOrdering == ReplicaOrdering.LEAST_LOADED) {
+            loadTracker = new ReplicaLoadTracker();
+            this.cluster = cluster;
+            cluster.register(loadTracker);
+        }
+        localRack = findLocalRack(childPolicy);
         childPolicy.init(cluster, hosts);
     }
 
+    private static String findLocalRack(LoadBalancingPolicy policy) {
+        while (policy != null) {
+            if (policy instanceof LocalRackAwarePolicy)
+                return ((LocalRackAwarePolicy) policy).getLocalRack();
+            policy = (policy instanceof ChainableLoadBalancingPolicy)
+                    ? ((ChainableLoadBalancingPolicy) policy).getChildPolicy()
+                    : null;
+        }
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      * <p/>
@@ -157,28 +203,55 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
      * replicas whose {@linkplain HostDistance distance} according to the child policy is {@code LOCAL}),
      * if it can determine them (i.e. mainly if the statement's
      * {@linkplain Statement#getRoutingKey(ProtocolVersion, CodecRegistry) routing key}
+     * or {@linkplain Statement#getRoutingToken() routing token}
      * is not {@code null}), and ordered according to the {@linkplain ReplicaOrdering ordering strategy}
      * specified at instantiation; following what it will return the rest of the child policy's
      * original query plan.
      */
     @Override
-    public Iterator<Host> newQueryPlan(final String loggedKeyspace, final Statement statement) {
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        return queryPlan(loggedKeyspace, statement, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This records the replicas of the statement, and those that were skipped because they are down. The explanation
+     * is also passed to the child policy, if it implements {@link ExplainableQueryPlanPolicy}.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        return queryPlan(loggedKeyspace, statement, explanation);
+    }
+
+    private Iterator<Host> queryPlan(final String loggedKeyspace, final Statement statement, final QueryPlanExplanation explanation) {
 
         ByteBuffer partitionKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        Token routingToken = (partitionKey == null) ? statement.getRoutingToken() : null;
         String keyspace = statement.getKeyspace();
         if (keyspace == null)
             keyspace = loggedKeyspace;
 
-        if (partitionKey == null || keyspace == null)
-            return childPolicy.newQueryPlan(keyspace, statement);
+        if ((partitionKey == null && routingToken == null) || keyspace == null)
+            return childQueryPlan(loggedKeyspace, statement, explanation);
 
-        final Set<Host> replicas = clusterMetadata.getReplicas(Metadata.quote(keyspace), partitionKey);
+        final Set<Host> replicas = (partitionKey != null)
+                ? clusterMetadata.getReplicas(quote(keyspace), partitionKey)
+                : clusterMetadata.getReplicas(quote(keyspace), routingToken);
         if (replicas.isEmpty())
-            return childPolicy.newQueryPlan(loggedKeyspace, statement);
+            return childQueryPlan(loggedKeyspace, statement, explanation);
+
+        if (explanation != null) {
+            explanation.setReplicas(replicas);
+            for (Host host : replicas) {
+                if (!host.isUp())
+                    explanation.setExclusion(host, QueryPlanExplanation.Exclusion.DOWN);
+            }
+        }
 
         if (replicaOrdering == ReplicaOrdering.NEUTRAL) {
 
-            final Iterator<Host> childIterator = childPolicy.newQueryPlan(keyspace, statement);
+            final Iterator<Host> childIterator = childQueryPlan(loggedKeyspace, statement, explanation);
 
             return new AbstractIterator<Host>() {
 
@@ -225,7 +298,18 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
             if (replicaOrdering == ReplicaOrdering.RANDOM) {
                 List<Host> replicasList = Lists.newArrayList(replicas);
                 Collections.shuffle(replicasList);
-                replicasIterator = replicasList.iterator();
+                replicasIterator = localRackFirst(replicasList).iterator();
+            } else if (replicaOrdering == ReplicaOrdering.LEAST_LOADED) {
+                // Only rank the replicas that will be used
+                List<Host> replicasList = new ArrayList<Host>(replicas.size());
+                for (Host host : replicas) {
+                    if (host.isUp() && childPolicy.distance(host) == HostDistance.LOCAL)
+                        replicasList.add(host);
+                }
+                loadTracker.order(replicasList);
+                replicasIterator = localRackFirst(replicasList).iterator();
+            } else if (localRack != null) {
+                replicasIterator = localRackFirst(Lists.newArrayList(replicas)).iterator();
             } else {
                 replicasIterator = replicas.iterator();
             }
@@ -243,7 +327,7 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
                     }
 
                     if (childIterator == null)
-                        childIterator = childPolicy.newQueryPlan(loggedKeyspace, statement);
+                        childIterator = childQueryPlan(loggedKeyspace, statement, explanation);
 
                     while (childIterator.hasNext()) {
                         Host host = childIterator.next();
@@ -258,6 +342,71 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
 
     }
 
+    // Moves the replicas of the local rack (if any) first, keeping the order of the strategy within each group. With
+    // NEUTRAL ordering, this is done by the child policy itself.
+    private List<Host> localRackFirst(List<Host> replicas) {
+        String localRack = this.localRack;
+        if (localRack == null)
+            return replicas;
+        List<Host> result = new ArrayList<Host>(replicas.size());
+        for (Host host : replicas) {
+            if (localRack.equals(host.getRack()))
+                result.add(host);
+        }
+        if (result.isEmpty() || result.size() == replicas.size())
+            return replicas;
+        for (Host host : replicas) {
+            if (!localRack.equals(host.getRack()))
+                result.add(host);
+        }
+        return result;
+    }
+
+    private Iterator<Host> childQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        return (explanation != null && childPolicy instanceof ExplainableQueryPlanPolicy)
+                ? ((ExplainableQueryPlanPolicy) childPolicy).newQueryPlan(loggedKeyspace, statement, explanation)
+                : childPolicy.newQueryPlan(loggedKeyspace, statement);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * For simple statements without routing information, this delegates to the child policy, if it implements
+     * {@link RotatingQueryPlanPolicy}. Otherwise, this returns {@code null}.
+     */
+    @Override
+    public Host[] getQueryPlanHosts(String loggedKeyspace, Statement statement) {
+        // Only simple statements, because their routing key is a plain field. For other statements (bound or built
+        // statements, batches), computing it serializes values, and newQueryPlan would have to do it again.
+        if (!(childPolicy instanceof RotatingQueryPlanPolicy) || !(statement instanceof SimpleStatement))
+            return null;
+
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null)
+            keyspace = loggedKeyspace;
+        if (keyspace != null && (statement.getRoutingKey(protocolVersion, codecRegistry) != null
+                || statement.getRoutingToken() != null))
+            return null;
+
+        return ((RotatingQueryPlanPolicy) childPolicy).getQueryPlanHosts(loggedKeyspace, statement);
+    }
+
+    @Override
+    public int nextQueryPlanOffset() {
+        return (childPolicy instanceof RotatingQueryPlanPolicy)
+                ? ((RotatingQueryPlanPolicy) childPolicy).nextQueryPlanOffset()
+                : 0;
+    }
+
+    private String quote(String keyspace) {
+        String quoted = quotedKeyspaces.get(keyspace);
+        if (quoted == null) {
+            quoted = Metadata.quote(keyspace);
+            quotedKeyspaces.put(keyspace, quoted);
+        }
+        return quoted;
+    }
+
     @Override
     public void onUp(Host host) {
         childPolicy.onUp(host);
@@ -275,11 +424,17 @@ public class TokenAwarePolicy implements ChainableLoadBalancingPolicy {
 
     @Override
     public void onRemove(Host host) {
+        ReplicaLoadTracker loadTracker = this.loadTracker;
+        if (loadTracker != null)
+            loadTracker.remove(host);
         childPolicy.onRemove(host);
     }
 
     @Override
     public void close() {
+        ReplicaLoadTracker loadTracker = this.loadTracker;
+        if (loadTracker != null && cluster != null)
+            cluster.unregister(loadTracker);
         childPolicy.close();
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Statement;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link RetryBudgetPolicy} based on a token bucket, in the style of gRPC's retry throttling.
+ * <p/>
+ * The bucket starts full, with {@code maxTokens} tokens. Each retry or speculative execution takes one token, and
+ * each successful response puts back {@code tokenRatio} tokens (up to {@code maxTokens}). Retries and speculative
+ * executions are only allowed while the bucket is more than half full; the lower half acts as a reserve, so that the
+ * driver stops retrying well before the cluster has absorbed a full bucket of extra requests.
+ * <p/>
+ * In steady state, this means that the driver sends at most {@code tokenRatio} retries or speculative executions per
+ * successful response. For example, with a ratio of {@code 0.1}, retries can't add more than 10% to the load, however
+ * many requests fail.
+ * <p/>
+ * This policy is thread-safe; a single instance is shared by all the sessions of a {@link Cluster}.
+ */
+public class TokenBucketRetryBudgetPolicy implements RetryBudgetPolicy {
+
+    // Tokens are stored as fixed-point longs (3 decimal digits, like gRPC)
+    private static final long ONE_TOKEN = 1000;
+
+    private final long maxTokens;
+    private final long threshold;
+    private final long tokensPerSuccess;
+    private final AtomicLong tokens;
+
+    /**
+     * Builds a new instance.
+     *
+     * @param maxTokens  the capacity of the bucket. Must be strictly positive.
+     * @param tokenRatio the number of tokens put back in the bucket for each successful response. Must be strictly
+     *                   positive; only the first 3 decimal digits are considered.
+     * @throws IllegalArgumentException if one of the arguments does not respect the preconditions above.
+     */
+    public TokenBucketRetryBudgetPolicy(int maxTokens, double tokenRatio) {
+        checkArgument(maxTokens > 0, "max tokens must be strictly positive (was %s)", maxTokens);
+        checkArgument(tokenRatio >= 1.0 / ONE_TOKEN, "token ratio must be at least 0.001 (was %s)", tokenRatio);
+        this.maxTokens = maxTokens * ONE_TOKEN;
+        this.threshold = this.maxTokens / 2;
+        this.tokensPerSuccess = (long) (tokenRatio * ONE_TOKEN);
+        this.tokens = new AtomicLong(this.maxTokens);
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+        // nothing to do
+    }
+
+    @Override
+    public boolean tryAcquire(Statement statement) {
+        while (true) {
+            long current = tokens.get();
+            if (current <= threshold)
+                return false;
+            if (tokens.compareAndSet(current, current - ONE_TOKEN))
+                return true;
+        }
+    }
+
+    @Override
+    public void onSuccess(Statement statement) {
+        while (true) {
+            long current = tokens.get();
+            if (current >= maxTokens)
+                return;
+            long next = Math.min(maxTokens, current + tokensPerSuccess);
+            if (tokens.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /**
+     * Returns the number of tokens currently in the bucket.
+     *
+     * @return the number of tokens currently in the bucket.
+     */
+    public double getAvailableTokens() {
+        return (double) tokens.get() / ONE_TOKEN;
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+}
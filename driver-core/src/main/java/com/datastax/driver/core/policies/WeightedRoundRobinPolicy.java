@@ -0,0 +1,464 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A wrapper load balancing policy that spreads requests across the local hosts in proportion to their weights.
+ * <p/>
+ * {@link RoundRobinPolicy} and {@link DCAwareRoundRobinPolicy} send the same share of the requests to every host,
+ * which overloads the smallest hosts of a cluster that mixes instance sizes. This policy gives each
+ * {@link HostDistance#LOCAL LOCAL} host (according to the child policy) a weight, computed by a {@link HostWeigher},
+ * and makes it the first host of a share of the query plans proportional to that weight. The rest of each plan follows
+ * the child policy's plan, so the other hosts keep the child's order (rotated, with {@link DCAwareRoundRobinPolicy}).
+ * <p/>
+ * Only the local hosts at the start of the child policy's plan can be moved first: a host that the child leaves out of
+ * its plan, or moves behind non-local hosts (as {@link ErrorAwarePolicy} and {@link LatencyAwarePolicy} do with the
+ * hosts they exclude), is skipped, and the plan is then the child's plan unchanged.
+ * <p/>
+ * The first hosts of successive plans follow a precomputed, evenly interleaved schedule (stride scheduling), so
+ * choosing a host costs an array lookup, whatever the weights and the number of hosts. The schedule is recomputed
+ * when hosts are added, removed, go up or down, and when {@link #refreshWeights()} is called. Hosts whose weight is not
+ * known yet (see {@link HostWeigher#weigh(Host, Cluster)}) get the median weight of the other hosts, and the weights
+ * are computed again every second until all of them are known.
+ * <p/>
+ * This policy is typically wrapped in a {@link TokenAwarePolicy}, and wraps a {@link DCAwareRoundRobinPolicy}:
+ * <pre>
+ * new TokenAwarePolicy(
+ *     WeightedRoundRobinPolicy.builder(DCAwareRoundRobinPolicy.builder().build())
+ *         .withWeigher(WeightedRoundRobinPolicy.tokenCountWeigher())
+ *         .build())
+ * </pre>
+ * With this setup, requests that have a routing key go to their replicas, and the others are spread according to
+ * the weights.
+ */
+public class WeightedRoundRobinPolicy implements ChainableLoadBalancingPolicy, ExplainableQueryPlanPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeightedRoundRobinPolicy.class);
+
+    // The weight of the heaviest host in the schedule; the others are scaled accordingly (and rounded)
+    private static final int MAX_SCHEDULED_WEIGHT = 100;
+    private static final long UNKNOWN_WEIGHTS_REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LoadBalancingPolicy childPolicy;
+    private final HostWeigher weigher;
+
+    private final Set<Host> liveHosts = new CopyOnWriteArraySet<Host>();
+    private final AtomicInteger index = new AtomicInteger();
+    private volatile Schedule schedule = Schedule.EMPTY;
+    // Set when some weights were unknown the last time they were computed
+    private volatile boolean hasUnknownWeights;
+    private final AtomicLong nextUnknownWeightsRefresh = new AtomicLong();
+    private volatile Cluster cluster;
+
+    private WeightedRoundRobinPolicy(Builder builder) {
+        this.childPolicy = builder.childPolicy;
+        this.weigher = builder.weigher;
+    }
+
+    /**
+     * Creates a new weighted round robin policy builder given the child policy
+     * that the resulting policy should wrap.
+     *
+     * @param childPolicy the load balancing policy to wrap.
+     * @return the created builder.
+     */
+    public static Builder builder(LoadBalancingPolicy childPolicy) {
+        return new Builder(childPolicy);
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        this.cluster = cluster;
+        childPolicy.init(cluster, hosts);
+        for (Host host : hosts) {
+            if (host.isUp())
+                liveHosts.add(host);
+        }
+        refreshWeights();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This implementation always returns distances as reported by the wrapped policy.
+     */
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The returned plan starts with a local host chosen according to the weights, if the child policy's plan has it
+     * among its first local hosts, followed by the rest of the child policy's plan.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        return queryPlan(loggedKeyspace, statement, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The explanation is passed to the child policy, if it implements {@link ExplainableQueryPlanPolicy}.
+     */
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        return queryPlan(loggedKeyspace, statement, explanation);
+    }
+
+    private Iterator<Host> queryPlan(String loggedKeyspace, Statement statement, QueryPlanExplanation explanation) {
+        if (hasUnknownWeights)
+            maybeRefreshUnknownWeights();
+        Schedule schedule = this.schedule;
+        Iterator<Host> childPlan = (explanation != null && childPolicy instanceof ExplainableQueryPlanPolicy)
+                ? ((ExplainableQueryPlanPolicy) childPolicy).newQueryPlan(loggedKeyspace, statement, explanation)
+                : childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if (schedule.hosts.length == 0)
+            return childPlan;
+
+        int[] order = schedule.order;
+        Host first = schedule.hosts[order[(index.getAndIncrement() & Integer.MAX_VALUE) % order.length]];
+
+        // Buffer the local hosts at the start of the child's plan, up to the first host that is not local
+        List<Host> localHosts = new ArrayList<Host>(schedule.localHosts.size());
+        Host firstNonLocal = null;
+        boolean hasFirst = false;
+        while (childPlan.hasNext()) {
+            Host host = childPlan.next();
+            if (!schedule.localHosts.contains(host)) {
+                firstNonLocal = host;
+                break;
+            }
+            if (host.equals(first))
+                hasFirst = true;
+            else
+                localHosts.add(host);
+        }
+        if (hasFirst)
+            localHosts.add(0, first);
+        return (firstNonLocal == null)
+                ? localHosts.iterator()
+                : Iterators.concat(localHosts.iterator(), Iterators.singletonIterator(firstNonLocal), childPlan);
+    }
+
+    /**
+     * Computes the weights of the hosts again.
+     * <p/>
+     * This is done automatically when hosts are added, removed, go up or down. Call this method if the weights
+     * returned by the {@link HostWeigher} have changed for another reason, for example if they are based on
+     * measurements, or on the replication settings of a keyspace that was modified.
+     */
+    public void refreshWeights() {
+        Cluster cluster = this.cluster;
+        if (cluster == null)
+            return;
+        // Serialize rebuilds, so that a stale one can't overwrite a newer one
+        synchronized (liveHosts) {
+            Map<Host, Double> weights = new LinkedHashMap<Host, Double>();
+            Set<Host> localHosts = new HashSet<Host>();
+            List<Host> unknown = new ArrayList<Host>();
+            for (Host host : liveHosts) {
+                if (childPolicy.distance(host) != HostDistance.LOCAL)
+                    continue;
+                localHosts.add(host);
+                double weight = weigher.weigh(host, cluster);
+                if (Double.isNaN(weight))
+                    unknown.add(host);
+                else if (weight > 0)
+                    weights.put(host, weight);
+                else
+                    logger.debug("Host {} has weight {}, it won't be the first host of query plans", host, weight);
+            }
+            if (!unknown.isEmpty()) {
+                // Typically a host that was just added, and whose tokens are not known yet
+                double median = median(weights.values());
+                logger.debug("Weights of hosts {} are unknown, using the median weight {}", unknown, median);
+                for (Host host : unknown)
+                    weights.put(host, median);
+                nextUnknownWeightsRefresh.set(System.nanoTime() + UNKNOWN_WEIGHTS_REFRESH_INTERVAL_NANOS);
+            }
+            hasUnknownWeights = !unknown.isEmpty();
+            schedule = Schedule.build(weights, localHosts);
+        }
+    }
+
+    private void maybeRefreshUnknownWeights() {
+        long now = System.nanoTime();
+        long next = nextUnknownWeightsRefresh.get();
+        if (now - next >= 0 && nextUnknownWeightsRefresh.compareAndSet(next, now + UNKNOWN_WEIGHTS_REFRESH_INTERVAL_NANOS))
+            refreshWeights();
+    }
+
+    private static double median(Collection<Double> weights) {
+        if (weights.isEmpty())
+            return 1;
+        List<Double> sorted = new ArrayList<Double>(weights);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        return (sorted.size() % 2 == 1) ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    /**
+     * Returns the weights currently used by this policy, scaled so that the heaviest host has a weight of
+     * 100.
+     * <p/>
+     * The share of the requests that have a given host as first host is its weight divided by the sum of the
+     * weights.
+     *
+     * @return the weights of the live local hosts with a positive weight.
+     */
+    public Map<Host, Integer> getScheduledWeights() {
+        return schedule.weights;
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+        liveHosts.add(host);
+        refreshWeights();
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+        liveHosts.add(host);
+        refreshWeights();
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+        liveHosts.remove(host);
+        refreshWeights();
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+        liveHosts.remove(host);
+        refreshWeights();
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+    /**
+     * Returns a weigher that gives each host the weight configured for its address.
+     *
+     * @param weights       the weights, by address (as returned by {@link Host#getSocketAddress()}).
+     * @param defaultWeight the weight of the hosts that are not in {@code weights}.
+     * @return the weigher.
+     */
+    public static HostWeigher fixedWeigher(Map<InetSocketAddress, Double> weights, final double defaultWeight) {
+        final Map<InetSocketAddress, Double> copy = ImmutableMap.copyOf(weights);
+        return new HostWeigher() {
+            @Override
+            public double weigh(Host host, Cluster cluster) {
+                Double weight = copy.get(host.getSocketAddress());
+                return (weight == null) ? defaultWeight : weight;
+            }
+        };
+    }
+
+    /**
+     * Returns a weigher that gives each host a weight equal to its number of tokens.
+     * <p/>
+     * With virtual nodes, operators usually give each host a number of tokens ({@code num_tokens}) proportional to
+     * its capacity, so this reflects the relative size of the hosts without any additional configuration. The weight
+     * of hosts whose tokens are not known yet (for example, hosts that just joined the cluster) is unknown.
+     *
+     * @return the weigher.
+     */
+    public static HostWeigher tokenCountWeigher() {
+        return new HostWeigher() {
+            @Override
+            public double weigh(Host host, Cluster cluster) {
+                Set<Token> tokens = host.getTokens();
+                return (tokens == null || tokens.isEmpty()) ? Double.NaN : tokens.size();
+            }
+        };
+    }
+
+    /**
+     * Returns a weigher that gives each host a weight equal to the number of token ranges it replicates for a
+     * keyspace.
+     * <p/>
+     * Unlike {@link #tokenCountWeigher()}, this takes the replication of the keyspace into account (for example,
+     * racks of different sizes with {@code NetworkTopologyStrategy}). The weight of hosts that replicate no range of
+     * the keyspace (typically, hosts whose tokens are not known yet, or if the keyspace does not exist) is unknown.
+     *
+     * @param keyspace the keyspace.
+     * @return the weigher.
+     * @see Metadata#getTokenRanges(String, Host)
+     */
+    public static HostWeigher tokenRangeWeigher(final String keyspace) {
+        return new HostWeigher() {
+            @Override
+            public double weigh(Host host, Cluster cluster) {
+                int ranges = cluster.getMetadata().getTokenRanges(keyspace, host).size();
+                return (ranges == 0) ? Double.NaN : ranges;
+            }
+        };
+    }
+
+    /**
+     * Computes the weight of each host for {@link WeightedRoundRobinPolicy}.
+     * <p/>
+     * Implementations can return weights of any scale, only their relative values matter. A host with a weight of
+     * 0 or less is never the first host of a query plan.
+     * <p/>
+     * Weighers that depend on information that is not available yet, such as the tokens of a host that just joined
+     * the cluster (the driver learns them shortly after the host is added), should return {@link Double#NaN}: the
+     * host then gets the median weight of the other hosts until its weight is known.
+     */
+    public interface HostWeigher {
+        /**
+         * Returns the weight of a host.
+         *
+         * @param host    the host, which is up and local.
+         * @param cluster the cluster the host belongs to.
+         * @return the weight, or {@link Double#NaN} if it is not known yet.
+         */
+        double weigh(Host host, Cluster cluster);
+    }
+
+    /**
+     * The hosts to start query plans with, and the order in which to use them.
+     */
+    static class Schedule {
+
+        static final Schedule EMPTY = new Schedule(new Host[0], new int[0], ImmutableMap.<Host, Integer>of(),
+                ImmutableSet.<Host>of());
+
+        final Host[] hosts;
+        // All the live local hosts, including those that are not in hosts because of their weight
+        final Set<Host> localHosts;
+        // Indices in hosts, each host appearing as many times as its weight
+        final int[] order;
+        final Map<Host, Integer> weights;
+
+        private Schedule(Host[] hosts, int[] order, Map<Host, Integer> weights, Set<Host> localHosts) {
+            this.hosts = hosts;
+            this.localHosts = localHosts;
+            this.order = order;
+            this.weights = weights;
+        }
+
+        static Schedule build(Map<Host, Double> weights, Set<Host> localHosts) {
+            if (weights.isEmpty())
+                return EMPTY;
+
+            double maxWeight = Collections.max(weights.values());
+            Host[] hosts = new Host[weights.size()];
+            int[] scaledWeights = new int[weights.size()];
+            ImmutableMap.Builder<Host, Integer> scaled = ImmutableMap.builder();
+            int total = 0;
+            int i = 0;
+            for (Map.Entry<Host, Double> entry : weights.entrySet()) {
+                hosts[i] = entry.getKey();
+                scaledWeights[i] = Math.max(1, (int) Math.round(entry.getValue() / maxWeight * MAX_SCHEDULED_WEIGHT));
+                scaled.put(hosts[i], scaledWeights[i]);
+                total += scaledWeights[i];
+                i += 1;
+            }
+
+            // Stride scheduling: the k-th turn (from 1) of a host of weight w is at time (k - 0.5) / w. Over a
+            // period of 1, each host gets exactly w turns, spread evenly.
+            long[] turns = new long[total];
+            int t = 0;
+            for (i = 0; i < hosts.length; i++) {
+                for (int k = 1; k <= scaledWeights[i]; k++) {
+                    // Sort by time, then host index; time is in [0, 1[, so it fits in the high bits
+                    long time = (long) ((k - 0.5) / scaledWeights[i] * (1L << 40));
+                    turns[t++] = (time << 20) | i;
+                }
+            }
+            Arrays.sort(turns);
+            int[] order = new int[total];
+            for (t = 0; t < total; t++)
+                order[t] = (int) (turns[t] & ((1 << 20) - 1));
+            return new Schedule(hosts, order, scaled.build(), ImmutableSet.copyOf(localHosts));
+        }
+    }
+
+    /**
+     * Helper builder object to create a weighted round robin policy.
+     */
+    public static class Builder {
+
+        private final LoadBalancingPolicy childPolicy;
+
+        private HostWeigher weigher = tokenCountWeigher();
+
+        /**
+         * Creates a new builder given the child policy that the resulting policy wraps.
+         *
+         * @param childPolicy the load balancing policy to wrap.
+         */
+        public Builder(LoadBalancingPolicy childPolicy) {
+            this.childPolicy = childPolicy;
+        }
+
+        /**
+         * Sets the weigher that computes the weight of each host.
+         * <p/>
+         * The default (if this method is not called) is {@link WeightedRoundRobinPolicy#tokenCountWeigher()}.
+         *
+         * @param weigher the weigher.
+         * @return this builder.
+         * @see WeightedRoundRobinPolicy#fixedWeigher(Map, double)
+         * @see WeightedRoundRobinPolicy#tokenRangeWeigher(String)
+         */
+        public Builder withWeigher(HostWeigher weigher) {
+            if (weigher == null)
+                throw new IllegalArgumentException("weigher can't be null");
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * Builds a new weighted round robin policy using the options set on this builder.
+         *
+         * @return the newly created {@code WeightedRoundRobinPolicy}.
+         */
+        public WeightedRoundRobinPolicy build() {
+            return new WeightedRoundRobinPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.exceptions.*;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.scassandra.http.client.Result;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.scassandra.http.client.PrimingRequest.queryBuilder;
+import static org.scassandra.http.client.PrimingRequest.then;
+
+public class BulkExecutorTest extends ScassandraTestBase.PerClassCluster {
+
+    @BeforeMethod(groups = "short")
+    public void setup() {
+        primingClient.clearAllPrimes();
+        primingClient.prime(
+                queryBuilder()
+                        .withQuery("INSERT INTO foo (k) VALUES (13)")
+                        .withThen(then().withResult(Result.syntax_error))
+                        .build()
+        );
+    }
+
+    @Test(groups = "short")
+    public void should_execute_all_statements_and_collect_failures() {
+        List<Statement> statements = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+            statements.add(new SimpleStatement("INSERT INTO foo (k) VALUES (" + i + ")"));
+
+        BulkExecutionResult result = BulkExecutor.builder(session)
+                .withMaxInFlightPerHost(10)
+                .build()
+                .executeAll(statements);
+
+        assertThat(result.getSuccessCount()).isEqualTo(99);
+        assertThat(result.getFailureCount()).isEqualTo(1);
+        BulkExecutionResult.Failure failure = result.getFailures().get(0);
+        assertThat(failure.getStatement()).isSameAs(statements.get(13));
+        assertThat(failure.getError()).isInstanceOf(SyntaxError.class);
+        assertThat(result.getLatencies().size()).isEqualTo(100);
+        assertThat(result.getThroughput()).isGreaterThan(0);
+        // syntax errors are not a sign of overload
+        assertThat(result.getWindowReductions()).isEqualTo(0);
+    }
+
+    @Test(groups = "short")
+    public void should_count_failures_beyond_retained_limit() {
+        List<Statement> statements = Lists.newArrayList();
+        for (int i = 0; i < 3; i++)
+            statements.add(new SimpleStatement("INSERT INTO foo (k) VALUES (13)"));
+
+        BulkExecutionResult result = BulkExecutor.builder(session)
+                .withMaxRetainedFailures(2)
+                .build()
+                .executeAll(statements);
+
+        assertThat(result.getSuccessCount()).isEqualTo(0);
+        assertThat(result.getFailureCount()).isEqualTo(3);
+        assertThat(result.getFailures()).hasSize(2);
+    }
+
+    @Test(groups = "unit")
+    public void should_halve_window_on_backpressure_and_grow_it_back_on_success() {
+        BulkExecutor.Window window = new BulkExecutor.Window(2, 8, true);
+        assertThat(window.getLimit()).isEqualTo(8);
+
+        window.acquire();
+        assertThat(window.release(true)).isTrue();
+        assertThat(window.getLimit()).isEqualTo(4);
+        window.acquire();
+        window.release(true);
+        window.acquire();
+        window.release(true);
+        // never below the minimum
+        assertThat(window.getLimit()).isEqualTo(2);
+
+        // about a window's worth of successes grows it by one
+        for (int i = 0; i < 3; i++) {
+            window.acquire();
+            window.release(false);
+        }
+        assertThat(window.getLimit()).isEqualTo(3);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_adapt_window_if_disabled() {
+        BulkExecutor.Window window = new BulkExecutor.Window(2, 8, false);
+        window.acquire();
+        assertThat(window.release(true)).isFalse();
+        assertThat(window.getLimit()).isEqualTo(8);
+    }
+
+    @Test(groups = "unit")
+    public void should_detect_backpressure_errors() {
+        InetSocketAddress address = new InetSocketAddress(9042);
+        assertThat(BulkExecutor.isBackpressure(new OverloadedException(address, "overloaded"))).isTrue();
+        assertThat(BulkExecutor.isBackpressure(new BusyPoolException(address, 1, TimeUnit.SECONDS))).isTrue();
+        assertThat(BulkExecutor.isBackpressure(new OperationTimedOutException(address))).isTrue();
+        assertThat(BulkExecutor.isBackpressure(new NoHostAvailableException(
+                ImmutableMap.<InetSocketAddress, Throwable>of(address, new BusyPoolException(address, 1, TimeUnit.SECONDS))))).isTrue();
+        assertThat(BulkExecutor.isBackpressure(new InvalidQueryException("invalid"))).isFalse();
+        assertThat(BulkExecutor.isBackpressure(new NoHostAvailableException(
+                ImmutableMap.<InetSocketAddress, Throwable>of(address, new InvalidQueryException("invalid"))))).isFalse();
+    }
+}
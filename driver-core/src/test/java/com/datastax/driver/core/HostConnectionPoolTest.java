@@ -728,6 +728,43 @@ public class HostConnectionPoolTest extends ScassandraTestBase.PerClassCluster {
         }
     }
 
+    /**
+     * Ensures that a connection is replaced as soon as it reaches the maximum number of orphaned stream ids.
+     *
+     * @test_category connection:connection_pool
+     */
+    @Test(groups = "short")
+    public void should_replace_connection_with_too_many_orphaned_streams() throws Exception {
+        Cluster cluster = createClusterBuilder().build();
+        cluster.getConfiguration().getPoolingOptions().setMaxOrphanedStreamsPerConnection(10);
+        List<MockRequest> allRequests = newArrayList();
+        try {
+            HostConnectionPool pool = createPool(cluster, 1, 2);
+            Connection.Factory factory = spy(cluster.manager.connectionFactory);
+            cluster.manager.connectionFactory = factory;
+            Connection core = spy(pool.connections.get(0));
+            pool.connections.set(0, core);
+
+            allRequests.addAll(MockRequest.sendMany(5, pool));
+
+            // Below the threshold, nothing happens
+            doReturn(9).when(core).orphanedStreams();
+            pool.onStreamOrphaned(core);
+            assertThat(pool.trash).hasSize(0);
+            assertThat(pool.orphanedStreams()).isEqualTo(9);
+
+            doReturn(10).when(core).orphanedStreams();
+            pool.onStreamOrphaned(core);
+            assertThat(pool.trash).containsOnly(core);
+            // A new connection is opened to replace it
+            verify(factory, after(2000).times(1)).open(any(HostConnectionPool.class));
+            assertThat(cluster.getMetrics().getOrphanedStreams(TestUtils.findHost(cluster, 1)).getValue()).isEqualTo(0);
+        } finally {
+            MockRequest.completeAll(allRequests);
+            cluster.close();
+        }
+    }
+
     /**
      * Ensures that if a connection on a host is lost but other connections remain intact in the Pool that the
      * host is not marked down.
@@ -0,0 +1,98 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+
+public class IdempotenceInferenceTest {
+
+    @DataProvider(name = "queries")
+    public static Object[][] queries() {
+        return new Object[][]{
+                {"SELECT * FROM ks.t WHERE k = ?", true},
+                {"select now() from t", true},
+                {"INSERT INTO ks.t (k, v) VALUES (?, ?)", true},
+                {"INSERT INTO t(k, v) VALUES (1, textAsBlob('foo')) USING TTL 10", true},
+                {"UPDATE t SET v = 'it''s -- not a comment' WHERE k = 1", true},
+                {"UPDATE t SET s = s + {1, 2} WHERE k = 1", true},
+                {"UPDATE t SET m['a'] = 1, l[0] = 2 WHERE k = 1", true},
+                {"DELETE m['a'] FROM t WHERE k = 1", true},
+                {"BEGIN UNLOGGED BATCH INSERT INTO t (k) VALUES (1); UPDATE t SET v = 2 WHERE k = 1; APPLY BATCH", true},
+                {"INSERT INTO t (k, v) VALUES (1, now())", false},
+                {"UPDATE t SET v = uuid() WHERE k = 1", false},
+                {"INSERT INTO t (k, v) VALUES (1, my_udf(2))", false},
+                {"INSERT INTO t (k) VALUES (1) IF NOT EXISTS", false},
+                {"UPDATE t SET v = 1 WHERE k = 1 IF v = 2", false},
+                {"DELETE FROM t WHERE k = 1 IF EXISTS", false},
+                {"UPDATE t SET c = c + 1 WHERE k = 1", false},
+                {"UPDATE t SET l = l + [1] WHERE k = 1", false},
+                {"UPDATE t SET l = [1, 2] + l WHERE k = 1", false},
+                {"DELETE l[1] FROM t WHERE k = 1", false},
+                {"BEGIN COUNTER BATCH UPDATE t SET c = c + 1 WHERE k = 1 APPLY BATCH", false},
+                {"CREATE TABLE t (k int PRIMARY KEY)", null},
+                {"USE ks", null}
+        };
+    }
+
+    @Test(groups = "unit", dataProvider = "queries")
+    public void should_infer_idempotence_from_query_string(String query, Boolean expected) {
+        assertThat(IdempotenceInference.infer(query, null)).isEqualTo(expected);
+    }
+
+    @Test(groups = "unit")
+    public void should_detect_reads() {
+        assertThat(IdempotenceInference.isRead("SELECT * FROM t WHERE k = ?")).isTrue();
+        assertThat(IdempotenceInference.isRead("  select json v FROM t")).isTrue();
+        assertThat(IdempotenceInference.isRead("INSERT INTO t (k) VALUES (?)")).isFalse();
+        assertThat(IdempotenceInference.isRead("")).isFalse();
+    }
+
+    @Test(groups = "unit")
+    public void should_use_variable_types_for_collection_updates() {
+        assertThat(IdempotenceInference.infer("UPDATE t SET s = s + ? WHERE k = ?",
+                variables("s", DataType.set(DataType.cint()), "k", DataType.cint()))).isTrue();
+        assertThat(IdempotenceInference.infer("UPDATE t SET l = l + ? WHERE k = ?",
+                variables("l", DataType.list(DataType.cint()), "k", DataType.cint()))).isFalse();
+        assertThat(IdempotenceInference.infer("UPDATE t SET c = c + ? WHERE k = ?",
+                variables("c", DataType.counter(), "k", DataType.cint()))).isFalse();
+        assertThat(IdempotenceInference.infer("DELETE m[?] FROM t WHERE k = ?",
+                variables("key(m)", DataType.text(), "k", DataType.cint()))).isTrue();
+        assertThat(IdempotenceInference.infer("DELETE l[?] FROM t WHERE k = ?",
+                variables("idx(l)", DataType.cint(), "k", DataType.cint()))).isFalse();
+    }
+
+    @Test(groups = "unit")
+    public void should_resolve_named_markers_by_name() {
+        // the variables don't follow the order of the markers
+        assertThat(IdempotenceInference.infer("UPDATE t SET s = s + :s WHERE k = :k",
+                variables("k", DataType.cint(), "s", DataType.set(DataType.cint())))).isTrue();
+        // a name used twice is a single variable
+        assertThat(IdempotenceInference.infer("UPDATE t SET v = :k, w = :k, s = s + :s WHERE k = 1",
+                variables("k", DataType.cint(), "s", DataType.set(DataType.cint())))).isTrue();
+        assertThat(IdempotenceInference.infer("UPDATE t SET v = :k, w = :k, l = l + :l WHERE k = 1",
+                variables("k", DataType.cint(), "l", DataType.list(DataType.cint())))).isFalse();
+    }
+
+    private static ColumnDefinitions variables(String name1, DataType type1, String name2, DataType type2) {
+        return new ColumnDefinitions(new ColumnDefinitions.Definition[]{
+                new ColumnDefinitions.Definition("ks", "t", name1, type1),
+                new ColumnDefinitions.Definition("ks", "t", name2, type2)
+        }, CodecRegistry.DEFAULT_INSTANCE);
+    }
+}
@@ -15,15 +15,20 @@
  */
 package com.datastax.driver.core;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import org.testng.annotations.Test;
 
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 import static com.datastax.driver.core.Assertions.assertThat;
 import static com.datastax.driver.core.CreateCCM.TestMode.PER_METHOD;
 import static com.datastax.driver.core.TestUtils.nonDebouncingQueryOptions;
 import static com.datastax.driver.core.TestUtils.waitForUp;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 @CreateCCM(PER_METHOD)
 public class MetadataTest extends CCMTestsSupport {
@@ -121,6 +126,112 @@ public class MetadataTest extends CCMTestsSupport {
         return tokensByHost;
     }
 
+    @Test(groups = "unit")
+    public void should_find_replicas_on_murmur3_ring() {
+        // given: 3 hosts with 2 tokens each, and keyspaces that share the same strategy
+        Host host1 = mock(Host.class), host2 = mock(Host.class), host3 = mock(Host.class);
+        Map<Host, Set<Token>> tokens = ImmutableMap.<Host, Set<Token>>of(
+                host1, ImmutableSet.of(m3pToken(-100), m3pToken(200)),
+                host2, ImmutableSet.of(m3pToken(0), m3pToken(300)),
+                host3, ImmutableSet.of(m3pToken(100), m3pToken(400)));
+        Metadata metadata = new Metadata(null);
+        Map<String, String> rf2 = ImmutableMap.of("class", "SimpleStrategy", "replication_factor", "2");
+        metadata.keyspaces.put("ks1", new KeyspaceMetadata("ks1", true, rf2));
+        metadata.keyspaces.put("ks2", new KeyspaceMetadata("ks2", true, rf2));
+        metadata.keyspaces.put("ks3", new KeyspaceMetadata("ks3", true,
+                ImmutableMap.of("class", "SimpleStrategy", "replication_factor", "1")));
+
+        // when
+        metadata.rebuildTokenMap(Token.M3PToken.FACTORY, tokens);
+
+        // then: a token belongs to the range that ends at the next token of the ring
+        assertThat(metadata.getReplicas("ks1", m3pToken(50))).containsExactly(host3, host1);
+        assertThat(metadata.getReplicas("ks1", m3pToken(100))).containsExactly(host3, host1);
+        assertThat(metadata.getReplicas("ks1", m3pToken(450))).containsExactly(host1, host2);
+        assertThat(metadata.getReplicas("ks1", m3pToken(Long.MIN_VALUE))).containsExactly(host1, host2);
+        assertThat(metadata.getReplicas("ks3", m3pToken(250))).containsExactly(host2);
+        assertThat(metadata.getReplicas("unknown", m3pToken(250))).isEmpty();
+        // then: replica sets are shared by keyspaces and ranges with the same replicas
+        assertThat(metadata.getReplicas("ks1", m3pToken(50))).isSameAs(metadata.getReplicas("ks2", m3pToken(50)));
+        assertThat(metadata.getReplicas("ks1", m3pToken(-50))).isSameAs(metadata.getReplicas("ks1", m3pToken(250)));
+        // then: partition keys and their tokens have the same replicas
+        ByteBuffer partitionKey = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        assertThat(metadata.getReplicas("ks1", partitionKey))
+                .isEqualTo(metadata.getReplicas("ks1", Token.M3PToken.FACTORY.hash(partitionKey)));
+    }
+
+    @Test(groups = "unit")
+    public void should_rebuild_token_map_incrementally_when_a_host_joins_or_leaves() {
+        // given: 2 DCs with 2 racks, 16 vnodes per host
+        Random random = new Random(42);
+        Map<Host, Set<Token>> tokens = new HashMap<Host, Set<Token>>();
+        for (int i = 0; i < 7; i++) {
+            Host host = mock(Host.class);
+            when(host.getDatacenter()).thenReturn(i % 2 == 0 ? "dc1" : "dc2");
+            when(host.getRack()).thenReturn(i % 4 < 2 ? "rack1" : "rack2");
+            Set<Token> hostTokens = new HashSet<Token>();
+            for (int j = 0; j < 16; j++)
+                hostTokens.add(m3pToken(random.nextLong()));
+            tokens.put(host, hostTokens);
+        }
+        List<Host> hosts = new ArrayList<Host>(tokens.keySet());
+        Map<Host, Set<Token>> allButLast = new HashMap<Host, Set<Token>>(tokens);
+        allButLast.remove(hosts.get(6));
+        Map<Host, Set<Token>> allButFirst = new HashMap<Host, Set<Token>>(tokens);
+        allButFirst.remove(hosts.get(0));
+        Metadata metadata = newMetadataWithKeyspaces();
+        metadata.rebuildTokenMap(Token.M3PToken.FACTORY, allButLast);
+
+        // when: a host joins
+        metadata.rebuildTokenMap(Token.M3PToken.FACTORY, tokens);
+        // then
+        assertSameReplicas(metadata, tokens, hosts);
+
+        // when: a host leaves
+        metadata.rebuildTokenMap(Token.M3PToken.FACTORY, allButFirst);
+        // then
+        assertSameReplicas(metadata, allButFirst, hosts);
+
+        // when: the schema is refreshed
+        metadata.keyspaces.put("ks3", new KeyspaceMetadata("ks3", true,
+                ImmutableMap.of("class", "NetworkTopologyStrategy", "dc1", "1")));
+        metadata.rebuildTokenMap();
+        // then
+        assertSameReplicas(metadata, allButFirst, hosts);
+    }
+
+    private static Metadata newMetadataWithKeyspaces() {
+        Metadata metadata = new Metadata(null);
+        metadata.keyspaces.put("ks1", new KeyspaceMetadata("ks1", true,
+                ImmutableMap.of("class", "NetworkTopologyStrategy", "dc1", "2", "dc2", "2")));
+        metadata.keyspaces.put("ks2", new KeyspaceMetadata("ks2", true,
+                ImmutableMap.of("class", "SimpleStrategy", "replication_factor", "3")));
+        return metadata;
+    }
+
+    // Compares with a token map built from scratch
+    private static void assertSameReplicas(Metadata metadata, Map<Host, Set<Token>> tokens, List<Host> hosts) {
+        Metadata expected = newMetadataWithKeyspaces();
+        expected.keyspaces.putAll(metadata.keyspaces);
+        expected.rebuildTokenMap(Token.M3PToken.FACTORY, tokens);
+        for (String keyspace : metadata.keyspaces.keySet()) {
+            for (Set<Token> hostTokens : tokens.values()) {
+                for (Token token : hostTokens) {
+                    long value = (Long) token.getValue();
+                    for (Token probe : Arrays.asList(token, m3pToken(value - 1), m3pToken(value + 1)))
+                        assertThat(metadata.getReplicas(keyspace, probe))
+                                .containsExactlyElementsOf(expected.getReplicas(keyspace, probe));
+                }
+            }
+            for (Host host : hosts)
+                assertThat(metadata.getTokenRanges(keyspace, host)).isEqualTo(expected.getTokenRanges(keyspace, host));
+        }
+    }
+
+    private static Token m3pToken(long value) {
+        return Token.M3PToken.FACTORY.fromString(Long.toString(value));
+    }
+
     @Test(groups = "unit")
     public void handleId_should_lowercase_unquoted_alphanumeric_identifiers() {
         assertThat(Metadata.handleId("FooBar1")).isEqualTo("foobar1");
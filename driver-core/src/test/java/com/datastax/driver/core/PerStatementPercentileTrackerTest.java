@@ -0,0 +1,132 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PerStatementPercentileTrackerTest
+        extends PercentileTrackerTest<PerStatementPercentileTracker.Builder, PerStatementPercentileTracker> {
+
+    @Test(groups = "unit")
+    public void should_track_measurements_by_prepared_statement_and_host() {
+        // given - a per statement percentile tracker, and two prepared statements.
+        Cluster cluster0 = mock(Cluster.class);
+        PerStatementPercentileTracker tracker = builder()
+                .withInterval(1, TimeUnit.SECONDS)
+                .withMinRecordedValues(100).build();
+        tracker.onRegister(cluster0);
+
+        Host host0 = mock(Host.class);
+        Host host1 = mock(Host.class);
+        BoundStatement fastStatement = boundStatement(1);
+        BoundStatement slowStatement = boundStatement(2);
+        // another execution of the fast statement, with different values
+        BoundStatement fastStatement2 = boundStatement(1);
+
+        // when - recording latencies over a linear progression with varying statements and hosts.
+        for (int i = 0; i < 100; i++) {
+            tracker.update(host0, fastStatement, null, TimeUnit.NANOSECONDS.convert(i + 1, TimeUnit.MILLISECONDS));
+            tracker.update(host0, slowStatement, null, TimeUnit.NANOSECONDS.convert((i + 1) * 2, TimeUnit.MILLISECONDS));
+            tracker.update(host1, fastStatement, null, TimeUnit.NANOSECONDS.convert((i + 1) * 3, TimeUnit.MILLISECONDS));
+        }
+        Uninterruptibles.sleepUninterruptibly(2000, TimeUnit.MILLISECONDS);
+
+        // then - each (statement, host) pair should have its own percentiles.
+        for (int i = 1; i <= 99; i++) {
+            assertThat(tracker.getLatencyAtPercentile(host0, fastStatement2, null, i)).isEqualTo(i);
+            assertThat(tracker.getLatencyAtPercentile(host0, slowStatement, null, i)).isEqualTo(i * 2);
+            assertThat(tracker.getLatencyAtPercentile(host1, fastStatement, null, i)).isEqualTo(i * 3);
+            assertThat(tracker.getLatencyAtPercentile(host1, slowStatement, null, i)).isEqualTo(-1);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_evict_least_recently_used_statements() {
+        // given - a tracker that can only track two statements.
+        Cluster cluster0 = mock(Cluster.class);
+        PerStatementPercentileTracker tracker = builder()
+                .withInterval(1, TimeUnit.SECONDS)
+                .withMinRecordedValues(100)
+                .withMaxTrackedStatements(2).build();
+        tracker.onRegister(cluster0);
+
+        Host host0 = mock(Host.class);
+        BoundStatement statement0 = boundStatement(1);
+        BoundStatement statement1 = boundStatement(2);
+        BoundStatement statement2 = boundStatement(3);
+
+        // when - recording latencies for the first two statements, then a single value for the third one.
+        for (int i = 0; i < 100; i++) {
+            tracker.update(host0, statement0, null, TimeUnit.NANOSECONDS.convert(i + 1, TimeUnit.MILLISECONDS));
+            tracker.update(host0, statement1, null, TimeUnit.NANOSECONDS.convert(i + 1, TimeUnit.MILLISECONDS));
+        }
+        // statement0 is now the most recently used
+        tracker.update(host0, statement0, null, TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS));
+        tracker.update(host0, statement2, null, TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS));
+        Uninterruptibles.sleepUninterruptibly(2000, TimeUnit.MILLISECONDS);
+
+        // then - statement1 was evicted, statement0 still has percentiles.
+        assertThat(tracker.getLatencyAtPercentile(host0, statement0, null, 50)).isGreaterThan(0);
+        assertThat(tracker.getLatencyAtPercentile(host0, statement1, null, 50)).isEqualTo(-1);
+    }
+
+    @Test(groups = "unit")
+    public void should_group_non_prepared_statements_by_host() {
+        // given - a per statement percentile tracker.
+        Cluster cluster0 = mock(Cluster.class);
+        PerStatementPercentileTracker tracker = builder()
+                .withInterval(1, TimeUnit.SECONDS)
+                .withMinRecordedValues(100).build();
+        tracker.onRegister(cluster0);
+
+        Host host0 = mock(Host.class);
+
+        // when - recording latencies for different simple statements.
+        for (int i = 0; i < 100; i++) {
+            tracker.update(host0, new SimpleStatement("query" + (i % 2)), null,
+                    TimeUnit.NANOSECONDS.convert(i + 1, TimeUnit.MILLISECONDS));
+        }
+        Uninterruptibles.sleepUninterruptibly(2000, TimeUnit.MILLISECONDS);
+
+        // then - they should all be recorded in the same histogram.
+        for (int i = 1; i <= 99; i++) {
+            assertThat(tracker.getLatencyAtPercentile(host0, new SimpleStatement("other"), null, i)).isEqualTo(i);
+        }
+    }
+
+    private static BoundStatement boundStatement(int id) {
+        PreparedId.PreparedMetadata metadata = new PreparedId.PreparedMetadata(
+                MD5Digest.wrap(new byte[]{(byte) id}), null);
+        PreparedId preparedId = new PreparedId(metadata, metadata, null, ProtocolVersion.NEWEST_SUPPORTED);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getPreparedId()).thenReturn(preparedId);
+        BoundStatement statement = mock(BoundStatement.class);
+        when(statement.preparedStatement()).thenReturn(preparedStatement);
+        return statement;
+    }
+
+    @Override
+    public PerStatementPercentileTracker.Builder builder() {
+        return PerStatementPercentileTracker.builder(defaultMaxLatency);
+    }
+}
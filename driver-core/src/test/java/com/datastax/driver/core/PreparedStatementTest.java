@@ -719,7 +719,15 @@ public class PreparedStatementTest extends CCMTestsSupport {
         PreparedStatement prepared;
         BoundStatement bound;
 
-        statement = new SimpleStatement(String.format("SELECT * FROM %s.idempotencetest WHERE i = ?", keyspace));
+        // Reads are inferred to be idempotent
+        prepared = session().prepare(String.format("SELECT * FROM %s.idempotencetest WHERE i = ?", keyspace));
+        bound = prepared.bind(1);
+
+        assertThat(prepared.isIdempotent()).isTrue();
+        assertThat(bound.isIdempotent()).isTrue();
+
+        // Writes are not, unless QueryOptions.setInferIdempotence is enabled
+        statement = new SimpleStatement(String.format("INSERT INTO %s.idempotencetest (i) VALUES (?)", keyspace));
 
         prepared = session().prepare(statement);
         bound = prepared.bind(1);
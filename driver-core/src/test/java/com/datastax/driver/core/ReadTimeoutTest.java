@@ -16,15 +16,21 @@
 package com.datastax.driver.core;
 
 import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.scassandra.http.client.PrimingRequest.queryBuilder;
 import static org.scassandra.http.client.PrimingRequest.then;
+import static org.testng.Assert.fail;
 
 public class ReadTimeoutTest extends ScassandraTestBase.PerClassCluster {
 
     String query = "SELECT foo FROM bar";
+    String slowQuery = "SELECT foo FROM slow";
 
     @BeforeMethod(groups = "short")
     public void setup() {
@@ -34,6 +40,12 @@ public class ReadTimeoutTest extends ScassandraTestBase.PerClassCluster {
                         .withThen(then().withFixedDelay(100L))
                         .build()
         );
+        primingClient.prime(
+                queryBuilder()
+                        .withQuery(slowQuery)
+                        .withThen(then().withFixedDelay(2000L))
+                        .build()
+        );
 
         // Set default timeout too low
         cluster.getConfiguration().getSocketOptions().setReadTimeoutMillis(10);
@@ -55,4 +67,26 @@ public class ReadTimeoutTest extends ScassandraTestBase.PerClassCluster {
         Statement statement = new SimpleStatement(query).setReadTimeoutMillis(0);
         session.execute(statement);
     }
+
+    @Test(groups = "short")
+    public void should_fire_timeout_within_sweep_interval() {
+        Statement statement = new SimpleStatement(slowQuery).setReadTimeoutMillis(50);
+        long start = System.nanoTime();
+        try {
+            session.execute(statement);
+            fail("Expected an OperationTimedOutException");
+        } catch (OperationTimedOutException e) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // Timeouts are swept every 100 milliseconds, leave some slack for slow test environments
+            assertThat(elapsedMillis).isGreaterThanOrEqualTo(50).isLessThan(50 + 100 + 500);
+        }
+    }
+
+    @Test(groups = "short")
+    public void should_report_timeout_sweep_lag() {
+        // Read timeouts are swept periodically on each connection's event loop, and each sweep records its lag
+        long initialCount = cluster.getMetrics().getTimeoutSweepLag().getCount();
+        Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
+        assertThat(cluster.getMetrics().getTimeoutSweepLag().getCount()).isGreaterThan(initialCount);
+    }
 }
@@ -20,6 +20,7 @@ import org.scassandra.Scassandra;
 import org.scassandra.http.client.PrimingRequest;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 import static org.scassandra.http.client.PrimingRequest.then;
 
 public class RequestHandlerTest {
@@ -91,4 +93,25 @@ public class RequestHandlerTest {
         HostConnectionPool pool = ((SessionManager) session).pools.values().iterator().next();
         return pool.connections.get(0);
     }
+
+    @Test(groups = "unit")
+    public void should_iterate_rotating_query_plan() {
+        Host host1 = mock(Host.class);
+        Host host2 = mock(Host.class);
+        Host host3 = mock(Host.class);
+        Host[] hosts = new Host[]{host1, host2, host3};
+
+        assertThat(drain(new RequestHandler.QueryPlan(hosts, 4))).containsExactly(host2, host3, host1);
+        // Offsets wrap around to negative values when the policy's counter overflows
+        assertThat(drain(new RequestHandler.QueryPlan(hosts, Integer.MIN_VALUE))).containsExactly(host2, host3, host1);
+        assertThat(drain(new RequestHandler.QueryPlan(new Host[0], 1))).isEmpty();
+    }
+
+    private static List<Host> drain(RequestHandler.QueryPlan queryPlan) {
+        List<Host> hosts = new ArrayList<Host>();
+        Host host;
+        while ((host = queryPlan.next()) != null)
+            hosts.add(host);
+        return hosts;
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class RequestTimelineTest extends ScassandraTestBase.PerClassCluster {
+
+    @AfterMethod(groups = "short", alwaysRun = true)
+    public void resetSamplingRate() {
+        cluster.getConfiguration().getQueryOptions().setRequestTimelineSamplingRate(0);
+    }
+
+    @Test(groups = "unit")
+    public void should_compute_phases_from_timestamps() {
+        RequestTimeline.Recorder recorder = new RequestTimeline.Recorder();
+        recorder.borrowStart = 10;
+        recorder.borrowEnd = 20;
+        recorder.encodeStart = 50;
+        recorder.encodeEnd = 60;
+        recorder.decodeStart = 160;
+        recorder.decodeEnd = 190;
+
+        RequestTimeline timeline = recorder.build(0, 200);
+
+        assertThat(timeline.getBorrowWait(TimeUnit.NANOSECONDS)).isEqualTo(10);
+        assertThat(timeline.getWriteQueueWait(TimeUnit.NANOSECONDS)).isEqualTo(30);
+        assertThat(timeline.getEncode(TimeUnit.NANOSECONDS)).isEqualTo(10);
+        assertThat(timeline.getNetworkRoundTrip(TimeUnit.NANOSECONDS)).isEqualTo(100);
+        assertThat(timeline.getDecode(TimeUnit.NANOSECONDS)).isEqualTo(30);
+        assertThat(timeline.getCallbackDispatch(TimeUnit.NANOSECONDS)).isEqualTo(10);
+        assertThat(timeline.getTotal(TimeUnit.NANOSECONDS)).isEqualTo(200);
+    }
+
+    @Test(groups = "unit")
+    public void should_report_missing_phases_as_negative() {
+        RequestTimeline.Recorder recorder = new RequestTimeline.Recorder();
+        recorder.startAttempt();
+
+        RequestTimeline timeline = recorder.build(0, 200);
+
+        assertThat(timeline.getBorrowWait(TimeUnit.NANOSECONDS)).isEqualTo(-1);
+        assertThat(timeline.getEncode(TimeUnit.NANOSECONDS)).isEqualTo(-1);
+        assertThat(timeline.getCallbackDispatch(TimeUnit.NANOSECONDS)).isEqualTo(-1);
+        assertThat(timeline.getTotal(TimeUnit.NANOSECONDS)).isEqualTo(200);
+    }
+
+    @Test(groups = "unit", expectedExceptions = IllegalArgumentException.class)
+    public void should_reject_invalid_sampling_rate() {
+        new QueryOptions().setRequestTimelineSamplingRate(1.5);
+    }
+
+    @Test(groups = "short")
+    public void should_not_record_timeline_if_sampling_disabled() {
+        ResultSet rs = session.execute("SELECT * FROM system.local");
+        assertThat(rs.getExecutionInfo().getRequestTimeline()).isNull();
+    }
+
+    @Test(groups = "short")
+    public void should_record_timeline_and_notify_exporters() throws InterruptedException {
+        final CopyOnWriteArrayList<RequestTimeline> exported = new CopyOnWriteArrayList<RequestTimeline>();
+        final CountDownLatch exportedLatch = new CountDownLatch(1);
+        RequestTimelineExporter exporter = new RequestTimelineExporter() {
+            @Override
+            public void export(Host host, Statement statement, RequestTimeline timeline) {
+                exported.add(timeline);
+                exportedLatch.countDown();
+            }
+        };
+        cluster.getConfiguration().getQueryOptions().setRequestTimelineSamplingRate(1.0);
+        cluster.register(exporter);
+        try {
+            ResultSet rs = session.execute("SELECT * FROM system.local");
+
+            RequestTimeline timeline = rs.getExecutionInfo().getRequestTimeline();
+            assertThat(timeline).isNotNull();
+            assertThat(timeline.getBorrowWait(TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(0);
+            assertThat(timeline.getEncode(TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(0);
+            assertThat(timeline.getNetworkRoundTrip(TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(0);
+            assertThat(timeline.getDecode(TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(0);
+            assertThat(timeline.getTotal(TimeUnit.NANOSECONDS))
+                    .isGreaterThanOrEqualTo(timeline.getNetworkRoundTrip(TimeUnit.NANOSECONDS));
+            // exporters are notified after the future completes
+            assertThat(exportedLatch.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(exported).containsExactly(timeline);
+        } finally {
+            cluster.unregister(exporter);
+        }
+    }
+
+    @Test(groups = "short")
+    public void should_ignore_exporter_errors() {
+        RequestTimelineExporter exporter = mock(RequestTimelineExporter.class);
+        RequestTimelineExporter failing = new RequestTimelineExporter() {
+            @Override
+            public void export(Host host, Statement statement, RequestTimeline timeline) {
+                throw new RuntimeException("expected");
+            }
+        };
+        cluster.getConfiguration().getQueryOptions().setRequestTimelineSamplingRate(1.0);
+        cluster.register(failing).register(exporter);
+        try {
+            SimpleStatement statement = new SimpleStatement("SELECT * FROM system.local");
+            ResultSet rs = session.execute(statement);
+
+            verify(exporter, timeout(5000)).export(host, statement, rs.getExecutionInfo().getRequestTimeline());
+        } finally {
+            cluster.unregister(failing).unregister(exporter);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.scassandra.http.client.PrimingRequest.queryBuilder;
+import static org.scassandra.http.client.PrimingRequest.then;
+
+public class RequestTimeoutTest extends ScassandraTestBase.PerClassCluster {
+
+    String query = "SELECT foo FROM bar";
+
+    @BeforeMethod(groups = "short")
+    public void setup() {
+        primingClient.prime(
+                queryBuilder()
+                        .withQuery(query)
+                        .withThen(then().withFixedDelay(1000L))
+                        .build()
+        );
+
+        // Make sure the per-attempt timeout doesn't interfere
+        cluster.getConfiguration().getSocketOptions().setReadTimeoutMillis(10000);
+    }
+
+    @Test(groups = "short")
+    public void should_fail_when_request_timeout_expires() {
+        Statement statement = new SimpleStatement(query).setRequestTimeoutMillis(100);
+        long clientTimeouts = cluster.getMetrics().getErrorMetrics().getClientTimeouts().getCount();
+        long start = System.nanoTime();
+        try {
+            session.execute(statement);
+            fail("Expected an OperationTimedOutException");
+        } catch (OperationTimedOutException e) {
+            assertThat(e.getMessage()).contains("request timeout");
+            // counted before the caller is notified
+            assertThat(cluster.getMetrics().getErrorMetrics().getClientTimeouts().getCount()).isEqualTo(clientTimeouts + 1);
+        }
+        // should not have waited for the server response
+        assertThat(System.nanoTime() - start).isLessThan(1000L * 1000 * 1000);
+    }
+
+    @Test(groups = "short")
+    public void should_not_timeout_if_request_timeout_is_zero() {
+        Statement statement = new SimpleStatement(query).setRequestTimeoutMillis(0);
+        session.execute(statement);
+    }
+
+    @Test(groups = "short", expectedExceptions = IllegalArgumentException.class)
+    public void should_not_allow_negative_request_timeout() {
+        new SimpleStatement(query).setRequestTimeoutMillis(-1);
+    }
+}
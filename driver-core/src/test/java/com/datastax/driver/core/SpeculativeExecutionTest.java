@@ -15,6 +15,7 @@
  */
 package com.datastax.driver.core;
 
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
 import com.datastax.driver.core.policies.RetryPolicy;
@@ -216,6 +217,46 @@ public class SpeculativeExecutionTest {
         assertThat(executionInfo.getSuccessfulExecutionIndex()).isEqualTo(2);
     }
 
+    @Test(groups = "short")
+    public void should_count_speculative_executions_per_host_they_were_sent_to() {
+        scassandras.node(1).primingClient().prime(PrimingRequest.queryBuilder()
+                .withQuery("mock query")
+                .withThen(then().withRows(row("result", "result1")).withFixedDelay(1000L))
+                .build()
+        );
+        // the speculative execution fails on host2, and moves to host3
+        scassandras.node(2).primingClient().prime(PrimingRequest.queryBuilder()
+                .withQuery("mock query")
+                .withThen(then().withResult(Result.server_error))
+                .build()
+        );
+        scassandras.node(3).primingClient().prime(PrimingRequest.queryBuilder()
+                .withQuery("mock query")
+                .withThen(then().withRows(row("result", "result3")))
+                .build()
+        );
+
+        ResultSet rs = session.execute("mock query");
+
+        assertThat(rs.one().getString("result")).isEqualTo("result3");
+        assertThat(rs.getExecutionInfo().getSuccessfulExecutionIndex()).isEqualTo(1);
+        MetricRegistry registry = cluster.getMetrics().getRegistry();
+        if (!Boolean.getBoolean("com.datastax.driver.HOST_METRICS_ENABLED")) {
+            // per-host counters are only maintained when host metrics are enabled
+            assertThat(registry.getCounters()).doesNotContainKey(MetricsUtil.hostMetricName("speculative-executions.", host2));
+            assertThat(registry.getCounters()).doesNotContainKey(MetricsUtil.hostMetricName("speculative-execution-wins.", host3));
+            return;
+        }
+        assertThat(registry.counter(MetricsUtil.hostMetricName("speculative-executions.", host1)).getCount()).isEqualTo(0);
+        assertThat(registry.counter(MetricsUtil.hostMetricName("speculative-executions.", host2)).getCount()).isEqualTo(1);
+        assertThat(registry.counter(MetricsUtil.hostMetricName("speculative-executions.", host3)).getCount()).isEqualTo(1);
+        assertThat(registry.counter(MetricsUtil.hostMetricName("speculative-execution-wins.", host3)).getCount()).isEqualTo(1);
+
+        cluster.getMetrics().unregisterHostMetrics(host3);
+        assertThat(registry.getCounters()).doesNotContainKey(MetricsUtil.hostMetricName("speculative-executions.", host3));
+        assertThat(registry.getCounters()).doesNotContainKey(MetricsUtil.hostMetricName("speculative-execution-wins.", host3));
+    }
+
     @Test(groups = "short")
     public void should_wait_until_all_executions_have_finished() {
         // Rely on read timeouts to trigger errors that cause an execution to move to the next node
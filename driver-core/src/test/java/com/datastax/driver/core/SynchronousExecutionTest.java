@@ -0,0 +1,102 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ServerError;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.scassandra.http.client.Result;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.scassandra.http.client.PrimingRequest.queryBuilder;
+import static org.scassandra.http.client.PrimingRequest.then;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks that {@link Session#execute(Statement)}, which sends the request without going through
+ * {@link Session#executeAsync(Statement)}, reports results and errors the same way.
+ */
+public class SynchronousExecutionTest extends ScassandraTestBase.PerClassCluster {
+
+    String query = "SELECT result FROM foo";
+    String failingQuery = "SELECT result FROM failing";
+    String slowQuery = "SELECT result FROM slow";
+
+    @BeforeMethod(groups = "short")
+    public void setup() {
+        primingClient.prime(queryBuilder()
+                .withQuery(query)
+                .withThen(then().withRows(row("result", "result1")))
+                .build());
+        primingClient.prime(queryBuilder()
+                .withQuery(failingQuery)
+                .withThen(then().withResult(Result.server_error))
+                .build());
+        primingClient.prime(queryBuilder()
+                .withQuery(slowQuery)
+                .withThen(then().withFixedDelay(2000L))
+                .build());
+    }
+
+    @Test(groups = "short")
+    public void should_return_result() {
+        ResultSet rs = session.execute(query);
+
+        assertThat(rs.one().getString("result")).isEqualTo("result1");
+        assertThat(rs.getExecutionInfo().getQueriedHost()).isEqualTo(host);
+    }
+
+    @Test(groups = "short")
+    public void should_rethrow_error_with_calling_thread_in_stack_trace() {
+        try {
+            session.execute(new SimpleStatement(failingQuery).setIdempotent(false));
+            fail("Expected a ServerError");
+        } catch (ServerError e) {
+            // The exception is copied, so that its stack trace shows where execute() was called
+            boolean foundTestMethod = false;
+            for (StackTraceElement element : e.getStackTrace())
+                foundTestMethod |= element.getMethodName().equals("should_rethrow_error_with_calling_thread_in_stack_trace");
+            assertThat(foundTestMethod).isTrue();
+        }
+    }
+
+    @Test(groups = "short", expectedExceptions = OperationTimedOutException.class)
+    public void should_time_out() {
+        session.execute(new SimpleStatement(slowQuery).setIdempotent(false).setReadTimeoutMillis(50));
+    }
+
+    @Test(groups = "short")
+    public void should_initialize_session_on_first_execution() {
+        Session uninitialized = cluster.newSession();
+        try {
+            ResultSet rs = uninitialized.execute(query);
+
+            assertThat(rs.one().getString("result")).isEqualTo("result1");
+        } finally {
+            uninitialized.close();
+        }
+    }
+
+    private static List<Map<String, ?>> row(String key, String value) {
+        return ImmutableList.<Map<String, ?>>of(ImmutableMap.of(key, value));
+    }
+}
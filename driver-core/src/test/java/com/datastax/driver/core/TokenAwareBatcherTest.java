@@ -0,0 +1,177 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.google.common.collect.Lists;
+import org.assertj.core.util.Sets;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TokenAwareBatcherTest {
+
+    private ByteBuffer key1 = ByteBuffer.wrap(new byte[]{1});
+    private ByteBuffer key2 = ByteBuffer.wrap(new byte[]{2});
+    private ByteBuffer key3 = ByteBuffer.wrap(new byte[]{3});
+
+    private Host host1 = mock(Host.class);
+    private Host host2 = mock(Host.class);
+    private Host host3 = mock(Host.class);
+
+    private Session session;
+
+    @BeforeMethod(groups = "unit")
+    public void initMocks() {
+        session = mock(Session.class);
+        Cluster cluster = mock(Cluster.class);
+        Configuration configuration = mock(Configuration.class);
+        ProtocolOptions protocolOptions = mock(ProtocolOptions.class);
+        Metadata metadata = mock(Metadata.class);
+        when(session.getCluster()).thenReturn(cluster);
+        when(session.getLoggedKeyspace()).thenReturn("ks");
+        when(cluster.getConfiguration()).thenReturn(configuration);
+        when(configuration.getCodecRegistry()).thenReturn(new CodecRegistry());
+        when(configuration.getProtocolOptions()).thenReturn(protocolOptions);
+        when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.NEWEST_SUPPORTED);
+        when(cluster.getMetadata()).thenReturn(metadata);
+        when(metadata.getReplicas(anyString(), any(ByteBuffer.class))).thenReturn(Sets.<Host>newLinkedHashSet());
+        // key1 and key2 are owned by the same replicas, key3 by different ones
+        when(metadata.getReplicas("ks", key1)).thenReturn(Sets.newLinkedHashSet(host1, host2));
+        when(metadata.getReplicas("ks", key2)).thenReturn(Sets.newLinkedHashSet(host1, host2));
+        when(metadata.getReplicas("ks", key3)).thenReturn(Sets.newLinkedHashSet(host2, host3));
+    }
+
+    @Test(groups = "unit")
+    public void should_group_statements_by_replica_set() {
+        Statement s1 = statement(key1);
+        Statement s2 = statement(key3);
+        Statement s3 = statement(key2);
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session).build()
+                .group(Lists.newArrayList(s1, s2, s3));
+
+        assertThat(grouped).hasSize(2);
+        BatchStatement batch = (BatchStatement) grouped.get(0);
+        assertThat(batch.getStatements()).containsExactly(s1, s3);
+        // single statements are not wrapped
+        assertThat(grouped.get(1)).isSameAs(s2);
+    }
+
+    @Test(groups = "unit")
+    public void should_split_groups_larger_than_max_batch_size() {
+        List<Statement> statements = Lists.newArrayList();
+        for (int i = 0; i < 5; i++)
+            statements.add(statement(i % 2 == 0 ? key1 : key2));
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session)
+                .withMaxBatchSize(2)
+                .build()
+                .group(statements);
+
+        assertThat(grouped).hasSize(3);
+        assertThat(((BatchStatement) grouped.get(0)).getStatements()).containsExactly(statements.get(0), statements.get(1));
+        assertThat(((BatchStatement) grouped.get(1)).getStatements()).containsExactly(statements.get(2), statements.get(3));
+        assertThat(grouped.get(2)).isSameAs(statements.get(4));
+    }
+
+    @Test(groups = "unit")
+    public void should_not_group_statements_with_different_consistency_levels() {
+        Statement s1 = statement(key1).setConsistencyLevel(ConsistencyLevel.ONE);
+        Statement s2 = statement(key2).setConsistencyLevel(ConsistencyLevel.QUORUM);
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session).build()
+                .group(Lists.newArrayList(s1, s2));
+
+        assertThat(grouped).containsExactly(s1, s2);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_group_unroutable_statements() {
+        Statement s1 = new SimpleStatement("INSERT INTO t (k, v) VALUES (1, 1)");
+        Statement s2 = new SimpleStatement("INSERT INTO t (k, v) VALUES (1, 1)");
+        Statement s3 = statement(ByteBuffer.wrap(new byte[]{4}));
+        Statement s4 = statement(ByteBuffer.wrap(new byte[]{4}));
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session).build()
+                .group(Lists.newArrayList(s1, s2, s3, s4));
+
+        assertThat(grouped).containsExactly(s1, s2, s3, s4);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_group_statements_with_different_settings_and_copy_settings_to_batch() {
+        Statement s1 = statement(key1).setDefaultTimestamp(1);
+        Statement s2 = statement(key2).setDefaultTimestamp(2);
+        Statement s3 = statement(key1).setDefaultTimestamp(2).setSerialConsistencyLevel(ConsistencyLevel.LOCAL_SERIAL)
+                .setReadTimeoutMillis(1000).setRequestTimeoutMillis(2000).setIdempotent(true);
+        Statement s4 = statement(key2).setDefaultTimestamp(2).setSerialConsistencyLevel(ConsistencyLevel.LOCAL_SERIAL)
+                .setReadTimeoutMillis(1000).setRequestTimeoutMillis(2000).setIdempotent(true);
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session).build()
+                .group(Lists.newArrayList(s1, s2, s3, s4));
+
+        assertThat(grouped).hasSize(3);
+        assertThat(grouped.get(0)).isSameAs(s1);
+        assertThat(grouped.get(1)).isSameAs(s2);
+        BatchStatement batch = (BatchStatement) grouped.get(2);
+        assertThat(batch.getStatements()).containsExactly(s3, s4);
+        assertThat(batch.getDefaultTimestamp()).isEqualTo(2);
+        assertThat(batch.getSerialConsistencyLevel()).isEqualTo(ConsistencyLevel.LOCAL_SERIAL);
+        assertThat(batch.getReadTimeoutMillis()).isEqualTo(1000);
+        assertThat(batch.getRequestTimeoutMillis()).isEqualTo(2000);
+        assertThat(batch.isIdempotent()).isTrue();
+    }
+
+    @Test(groups = "unit")
+    public void should_not_group_conditional_or_counter_updates() {
+        Statement s1 = new SimpleStatement("INSERT INTO t (k, v) VALUES (1, 1) IF NOT EXISTS").setRoutingKey(key1);
+        Statement s2 = new SimpleStatement("UPDATE t SET c = c + 1 WHERE k = 1").setRoutingKey(key1);
+        Statement s3 = new SimpleStatement("UPDATE t SET c = c - ? WHERE k = 1", 1L).setRoutingKey(key1);
+        Statement s4 = new SimpleStatement("SELECT * FROM t WHERE k = 1").setRoutingKey(key1);
+        Statement s5 = new SimpleStatement("UPDATE t SET s = s + {1} WHERE k = 1").setRoutingKey(key1);
+        Statement s6 = statement(key1);
+
+        List<Statement> grouped = TokenAwareBatcher.builder(session).build()
+                .group(Lists.newArrayList(s1, s2, s3, s4, s5, s6));
+
+        assertThat(grouped).hasSize(5);
+        assertThat(grouped.subList(0, 4)).containsExactly(s1, s2, s3, s4);
+        assertThat(((BatchStatement) grouped.get(4)).getStatements()).containsExactly(s5, s6);
+    }
+
+    @Test(groups = "unit")
+    public void should_detect_batchable_queries_from_query_string() {
+        assertThat(TokenAwareBatcher.isBatchable("INSERT INTO t (k, v) VALUES (1, 'if')", null)).isTrue();
+        assertThat(TokenAwareBatcher.isBatchable("-- comment\nDELETE FROM t WHERE k = 1", null)).isTrue();
+        assertThat(TokenAwareBatcher.isBatchable("UPDATE t SET l = l + :l WHERE k = 1", null)).isFalse();
+        assertThat(TokenAwareBatcher.isBatchable("/* if */ UPDATE t SET \"C\" = \"C\" + 2 WHERE k = 1", null)).isFalse();
+        assertThat(TokenAwareBatcher.isBatchable("UPDATE t SET c=c+-1 WHERE k = 1", null)).isFalse();
+        assertThat(TokenAwareBatcher.isBatchable("UPDATE t SET v = 1 WHERE k = 1 IF v = 0", null)).isFalse();
+        assertThat(TokenAwareBatcher.isBatchable("SELECT * FROM t", null)).isFalse();
+    }
+
+    private Statement statement(ByteBuffer routingKey) {
+        return new SimpleStatement("INSERT INTO t (k, v) VALUES (1, 1)").setRoutingKey(routingKey);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.utils.CassandraVersion;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+@CassandraVersion(value = "2.0.0", description = "uses paging")
+@CCMConfig(numberOfNodes = 3)
+public class TokenRangeScanTest extends CCMTestsSupport {
+
+    private static final int ROWS = 1000;
+
+    private PreparedStatement scanStatement;
+
+    @Override
+    public void onTestContextInitialized() {
+        execute("CREATE TABLE foo (i int PRIMARY KEY)");
+        for (int i = 0; i < ROWS; i++)
+            execute(String.format("INSERT INTO foo (i) VALUES (%d)", i));
+    }
+
+    private PreparedStatement scanStatement() {
+        if (scanStatement == null)
+            scanStatement = session().prepare("SELECT i FROM foo WHERE token(i) > ? AND token(i) <= ?");
+        return scanStatement;
+    }
+
+    @Test(groups = "long")
+    public void should_return_every_row_exactly_once_with_multiple_pages_per_range() {
+        TokenRangeScan scan = TokenRangeScanner.builder(session())
+                .withSplitCount(12)
+                .withMaxConcurrentRanges(4)
+                .withFetchSize(10)
+                .build()
+                .scan(scanStatement());
+
+        Set<Integer> keys = new HashSet<Integer>();
+        int rows = 0;
+        while (scan.hasNext()) {
+            keys.add(scan.next().getInt("i"));
+            rows += 1;
+        }
+
+        assertThat(rows).isEqualTo(ROWS);
+        assertThat(keys).hasSize(ROWS);
+        assertThat(scan.getRowCount()).isEqualTo(ROWS);
+        assertThat(scan.getCompletedRangeCount()).isEqualTo(scan.getRangeCount());
+        assertThat(scan.getPageCount()).isGreaterThan(scan.getRangeCount());
+        assertThat(scan.getNonReplicaPageCount()).isEqualTo(0);
+        long perHost = 0;
+        for (Long count : scan.getRowCountPerHost().values())
+            perHost += count;
+        assertThat(perHost).isEqualTo(ROWS);
+    }
+
+    @Test(groups = "long", timeOut = 60000)
+    public void should_surface_failure_of_one_range_instead_of_hanging() {
+        // Fail the third subrange query, while the other queries keep going through the real session
+        final AtomicInteger calls = new AtomicInteger();
+        Session failing = mock(Session.class, delegatesTo(session()));
+        doAnswer(new Answer<ResultSetFuture>() {
+            @Override
+            public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+                if (calls.incrementAndGet() == 3)
+                    return session().executeAsync("SELECT i FROM table_that_does_not_exist");
+                return session().executeAsync((Statement) invocation.getArguments()[0]);
+            }
+        }).when(failing).executeAsync(any(Statement.class));
+
+        TokenRangeScan scan = TokenRangeScanner.builder(failing)
+                .withSplitCount(12)
+                .withMaxConcurrentRanges(4)
+                .withFetchSize(10)
+                .build()
+                .scan(scanStatement());
+
+        try {
+            while (scan.hasNext())
+                scan.next();
+            fail("Expected an InvalidQueryException");
+        } catch (InvalidQueryException e) {
+            // expected
+        }
+        assertThat(scan.getCompletedRangeCount()).isLessThan(scan.getRangeCount());
+        // The scan stays failed
+        try {
+            scan.hasNext();
+            fail("Expected an InvalidQueryException");
+        } catch (InvalidQueryException e) {
+            // expected
+        }
+    }
+}
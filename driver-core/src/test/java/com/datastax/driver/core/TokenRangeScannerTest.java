@@ -0,0 +1,97 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TokenRangeScannerTest {
+
+    private Token.Factory factory = Token.getFactory("Murmur3Partitioner");
+    private Token minToken = factory.minToken();
+
+    @Test(groups = "unit")
+    public void should_unwrap_ring_ranges_if_no_split_needed() {
+        List<TokenRange> ring = Lists.newArrayList(
+                tokenRange(-100, 0), tokenRange(0, 100), tokenRange(100, -100));
+
+        assertThat(TokenRangeScanner.split(ring, 3)).containsExactly(
+                tokenRange(-100, 0), tokenRange(0, 100),
+                tokenRange(newM3PToken(100), minToken), tokenRange(minToken, newM3PToken(-100)));
+    }
+
+    @Test(groups = "unit")
+    public void should_split_ring_ranges_evenly() {
+        List<TokenRange> ring = Lists.newArrayList(
+                tokenRange(-100, 0), tokenRange(0, 100), tokenRange(100, -100));
+
+        List<TokenRange> splits = TokenRangeScanner.split(ring, 6);
+
+        assertThat(splits.subList(0, 4)).containsExactly(
+                tokenRange(-100, -50), tokenRange(-50, 0), tokenRange(0, 50), tokenRange(50, 100));
+        assertThat(splits.size()).isGreaterThanOrEqualTo(6);
+        for (TokenRange split : splits) {
+            assertThat(split.isEmpty()).isFalse();
+            assertThat(split.isWrappedAround()).isFalse();
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_keep_whole_ring_range_of_single_token_cluster() {
+        List<TokenRange> ring = Lists.newArrayList(tokenRange(minToken, minToken));
+
+        assertThat(TokenRangeScanner.split(ring, 1)).containsExactly(tokenRange(minToken, minToken));
+    }
+
+    @Test(groups = "unit")
+    public void should_interleave_ranges_by_primary_replica() {
+        Host host1 = mock(Host.class);
+        Host host2 = mock(Host.class);
+        Host host3 = mock(Host.class);
+        Metadata metadata = mock(Metadata.class);
+        List<TokenRange> ranges = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            TokenRange range = tokenRange(i * 10, i * 10 + 10);
+            ranges.add(range);
+            Host primary = (i < 3) ? host1 : (i < 5) ? host2 : host3;
+            when(metadata.getReplicas("ks", range.getEnd())).thenReturn(ImmutableSet.of(primary));
+        }
+
+        assertThat(TokenRangeScanner.interleaveByReplica(ranges, metadata, "ks")).containsExactly(
+                ranges.get(0), ranges.get(3), ranges.get(5),
+                ranges.get(1), ranges.get(4),
+                ranges.get(2));
+    }
+
+    private TokenRange tokenRange(long start, long end) {
+        return new TokenRange(newM3PToken(start), newM3PToken(end), factory);
+    }
+
+    private TokenRange tokenRange(Token start, Token end) {
+        return new TokenRange(start, end, factory);
+    }
+
+    private Token newM3PToken(long value) {
+        return factory.fromString(Long.toString(value));
+    }
+}
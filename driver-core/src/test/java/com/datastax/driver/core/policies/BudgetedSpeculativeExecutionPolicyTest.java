@@ -0,0 +1,81 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy.SpeculativeExecutionPlan;
+import org.testng.annotations.Test;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class BudgetedSpeculativeExecutionPolicyTest {
+
+    Host host = mock(Host.class);
+
+    @Test(groups = "unit")
+    public void should_delegate_to_child_policy_while_budget_is_available() {
+        BudgetedSpeculativeExecutionPolicy policy = new BudgetedSpeculativeExecutionPolicy(
+                new ConstantSpeculativeExecutionPolicy(10, 2), 0.05, 2);
+
+        SpeculativeExecutionPlan plan = policy.newPlan(null, null);
+        // initial execution
+        assertThat(plan.nextExecution(host)).isEqualTo(10);
+        // first speculative execution starts, consumes one credit
+        assertThat(plan.nextExecution(host)).isEqualTo(10);
+        // second speculative execution starts, consumes the last credit: the child policy is exhausted anyway
+        assertThat(plan.nextExecution(host)).isEqualTo(-1);
+        assertThat(policy.getAvailableCredits()).isLessThan(1);
+    }
+
+    @Test(groups = "unit")
+    public void should_stop_speculative_executions_when_budget_is_exhausted() {
+        BudgetedSpeculativeExecutionPolicy policy = new BudgetedSpeculativeExecutionPolicy(
+                new ConstantSpeculativeExecutionPolicy(10, 1), 0.1, 1);
+
+        // exhaust the initial burst
+        SpeculativeExecutionPlan plan = policy.newPlan(null, null);
+        assertThat(plan.nextExecution(host)).isEqualTo(10);
+        plan.nextExecution(host);
+
+        // the budget was spent, so the next request can't speculate
+        plan = policy.newPlan(null, null);
+        assertThat(plan.nextExecution(host)).isEqualTo(-1);
+
+        // 10 requests at 10% earn one credit back
+        for (int i = 0; i < 9; i++)
+            policy.newPlan(null, null).nextExecution(host);
+        assertThat(policy.getAvailableCredits()).isGreaterThanOrEqualTo(1);
+        plan = policy.newPlan(null, null);
+        assertThat(plan.nextExecution(host)).isEqualTo(10);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_save_more_than_max_burst() {
+        BudgetedSpeculativeExecutionPolicy policy = new BudgetedSpeculativeExecutionPolicy(
+                new ConstantSpeculativeExecutionPolicy(10, 1), 0.5, 3);
+
+        for (int i = 0; i < 100; i++)
+            policy.newPlan(null, null).nextExecution(host);
+
+        assertThat(policy.getAvailableCredits()).isEqualTo(3.0);
+    }
+
+    @Test(groups = "unit", expectedExceptions = IllegalArgumentException.class)
+    public void should_fail_if_ratio_not_positive() {
+        new BudgetedSpeculativeExecutionPolicy(NoSpeculativeExecutionPolicy.INSTANCE, 0);
+    }
+}
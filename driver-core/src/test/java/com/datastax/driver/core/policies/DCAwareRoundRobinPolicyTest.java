@@ -15,11 +15,14 @@
  */
 package com.datastax.driver.core.policies;
 
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.*;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
 import com.google.common.collect.Lists;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.assertj.core.util.Sets;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mockito;
@@ -27,7 +30,11 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.datastax.driver.core.Assertions.assertThat;
 import static com.datastax.driver.core.ScassandraCluster.datacenter;
@@ -544,4 +551,291 @@ public class DCAwareRoundRobinPolicyTest {
             sCluster.stop();
         }
     }
+
+    /**
+     * Ensures that a query plan keeps iterating over the hosts that were live when it was created, even if the
+     * policy's hosts change in the meantime.
+     *
+     * @test_category load_balancing:dc_aware
+     */
+    @Test(groups = "unit")
+    public void should_not_change_query_plan_when_hosts_change() {
+        // given: a policy with 2 local hosts and 2 remote hosts
+        Host local1 = mockHost("dc1"), local2 = mockHost("dc1"), remote1 = mockHost("dc2"), remote2 = mockHost("dc2");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder().withLocalDc("dc1").withUsedHostsPerRemoteDc(1).build();
+        policy.init(mockCluster(), newArrayList(local1, local2, remote1, remote2));
+        Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+
+        // when: a plan is created, and a host goes down before it is consumed
+        Iterator<Host> plan = policy.newQueryPlan(null, statement);
+        policy.onDown(local1);
+
+        // then: the plan still contains the host, as well as the first remote host
+        assertThat(Lists.newArrayList(plan)).containsOnly(local1, local2, remote1);
+        // then: new plans don't contain the host anymore
+        assertThat(Lists.newArrayList(policy.newQueryPlan(null, statement))).containsOnly(local2, remote1);
+        assertThat(policy.distance(remote1)).isEqualTo(HostDistance.REMOTE);
+        assertThat(policy.distance(remote2)).isEqualTo(HostDistance.IGNORED);
+
+        // when: the remote host that was used goes down
+        policy.onDown(remote1);
+
+        // then: the other remote host takes over
+        assertThat(Lists.newArrayList(policy.newQueryPlan(null, statement))).containsOnly(local2, remote2);
+        assertThat(policy.distance(remote2)).isEqualTo(HostDistance.REMOTE);
+    }
+
+    /**
+     * Ensures that {@link DCAwareRoundRobinPolicy} returns the hosts of the local rack first, then the other local
+     * hosts, then the remote hosts, and that token-aware requests go to the local rack's replica when wrapped in a
+     * {@link TokenAwarePolicy} with {@link TokenAwarePolicy.ReplicaOrdering#NEUTRAL NEUTRAL} ordering.
+     *
+     * @test_category load_balancing:dc_aware
+     */
+    @Test(groups = "unit")
+    public void should_prefer_hosts_in_local_rack() {
+        // given: 2 hosts in the local rack, 2 in another local rack, and a remote host
+        Host rack1a = mockHost("dc1", "rack1"), rack1b = mockHost("dc1", "rack1");
+        Host rack2a = mockHost("dc1", "rack2"), rack2b = mockHost("dc1", "rack2");
+        Host remote = mockHost("dc2", "rack1");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withLocalRack("rack1")
+                .withUsedHostsPerRemoteDc(1)
+                .build();
+        Cluster cluster = mockCluster();
+        policy.init(cluster, newArrayList(rack2a, rack1a, remote, rack2b, rack1b));
+        Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+
+        for (int i = 0; i < 4; i++) {
+            // when
+            List<Host> plan = Lists.newArrayList(policy.newQueryPlan(null, statement));
+            // then
+            assertThat(plan.subList(0, 2)).containsOnly(rack1a, rack1b);
+            assertThat(plan.subList(2, 4)).containsOnly(rack2a, rack2b);
+            assertThat(plan.get(4)).isEqualTo(remote);
+        }
+        // then: the rack does not change distances
+        assertThat(policy.distance(rack2a)).isEqualTo(HostDistance.LOCAL);
+
+        // given: a token-aware policy, and a partition replicated on both racks
+        ByteBuffer routingKey = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        Metadata metadata = Mockito.mock(Metadata.class);
+        Mockito.when(cluster.getMetadata()).thenReturn(metadata);
+        Mockito.when(cluster.getConfiguration().getCodecRegistry()).thenReturn(new CodecRegistry());
+        ProtocolOptions protocolOptions = Mockito.mock(ProtocolOptions.class);
+        Mockito.when(cluster.getConfiguration().getProtocolOptions()).thenReturn(protocolOptions);
+        Mockito.when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.NEWEST_SUPPORTED);
+        Mockito.when(metadata.getReplicas(Metadata.quote("ks"), routingKey)).thenReturn(Sets.newLinkedHashSet(rack2a, rack1b));
+        Mockito.when(rack1b.isUp()).thenReturn(true);
+        Mockito.when(rack2a.isUp()).thenReturn(true);
+        TokenAwarePolicy tokenAwarePolicy = new TokenAwarePolicy(policy, TokenAwarePolicy.ReplicaOrdering.NEUTRAL);
+        tokenAwarePolicy.init(cluster, newArrayList(rack2a, rack1a, remote, rack2b, rack1b));
+        statement = new SimpleStatement("irrelevant").setRoutingKey(routingKey).setKeyspace("ks");
+
+        // when
+        List<Host> plan = Lists.newArrayList(tokenAwarePolicy.newQueryPlan(null, statement));
+
+        // then: the local rack's replica comes first
+        assertThat(plan.subList(0, 2)).containsExactly(rack1b, rack2a);
+    }
+
+    @Test(groups = "unit")
+    public void should_build_rotating_query_plans_from_local_hosts() {
+        // given: a policy that only uses local hosts
+        Host local1 = mockHost("dc1"), local2 = mockHost("dc1"), local3 = mockHost("dc1");
+        Host remote = mockHost("dc2");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder().withLocalDc("dc1").build();
+        policy.init(mockCluster(), newArrayList(local1, local2, remote, local3));
+        Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+
+        // when
+        Host[] hosts = policy.getQueryPlanHosts(null, statement);
+
+        // then: consecutive plans are the same, whether they are built from the array or with an iterator
+        assertThat(hosts).containsOnly(local1, local2, local3);
+        for (int i = 0; i < 4; i++) {
+            int offset = policy.nextQueryPlanOffset();
+            List<Host> rotated = Lists.newArrayList();
+            for (int j = 0; j < hosts.length; j++)
+                rotated.add(hosts[(offset + 1 + j) % hosts.length]);
+            assertThat(policy.newQueryPlan(null, statement)).containsExactlyElementsOf(rotated);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_not_build_rotating_query_plans_when_remote_hosts_are_used() {
+        // given: a policy that uses remote hosts, except for local consistency levels
+        Host local = mockHost("dc1");
+        Host remote = mockHost("dc2");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withUsedHostsPerRemoteDc(1)
+                .build();
+        policy.init(mockCluster(), newArrayList(local, remote));
+
+        // then
+        assertThat(policy.getQueryPlanHosts(null, new SimpleStatement("irrelevant")
+                .setConsistencyLevel(ConsistencyLevel.ONE))).isNull();
+        assertThat(policy.getQueryPlanHosts(null, new SimpleStatement("irrelevant")
+                .setConsistencyLevel(ConsistencyLevel.LOCAL_ONE))).containsExactly(local);
+    }
+
+    @Test(groups = "unit")
+    public void should_spill_share_of_plans_to_remote_dc_when_local_dc_degrades() {
+        // given: a policy with gradual failover, up to half of the plans
+        Host local1 = mockHost("dc1"), local2 = mockHost("dc1"), remote = mockHost("dc2");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withUsedHostsPerRemoteDc(1)
+                .withGradualFailover(0.5, 0.2, 100, TimeUnit.MILLISECONDS)
+                .build();
+        policy.init(mockCluster(), newArrayList(local1, local2, remote));
+        Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+        DCAwareRoundRobinPolicy.LocalDcHealth health = policy.localDcHealth;
+
+        // then: as long as the local DC is healthy, all plans start with local hosts
+        assertThat(countRemoteFirst(policy, statement, 100, remote)).isEqualTo(0);
+
+        // when: 10% of the local requests fail, and errors from remote hosts are ignored
+        for (int i = 0; i < 100; i++)
+            health.update(i % 2 == 0 ? local1 : local2, statement, i < 10 ? new OperationTimedOutException(null) : null, 1000000);
+        for (int i = 0; i < 100; i++)
+            health.update(remote, statement, new OperationTimedOutException(null), 1000000);
+        health.update();
+
+        // then: the error rate is smoothed, and a proportional share of plans start with the remote host
+        double ratio = policy.getSpillRatio();
+        assertThat(ratio).isGreaterThan(0).isLessThan(0.5);
+        assertThat(countRemoteFirst(policy, statement, 1000, remote)).isBetween((int) (ratio * 1000) - 1, (int) (ratio * 1000) + 1);
+        // then: spilled plans still contain the local hosts
+        assertThat(Lists.newArrayList(policy.newQueryPlan(null, statement))).containsOnly(local1, local2, remote);
+        // then: local consistency levels are never spilled
+        Statement localStatement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+        assertThat(countRemoteFirst(policy, localStatement, 100, remote)).isEqualTo(0);
+
+        // when: the local DC is slow
+        for (int i = 0; i < 100; i++)
+            health.update(local1, statement, null, TimeUnit.MILLISECONDS.toNanos(1000));
+        health.update();
+
+        // then: the maximum share is reached
+        assertThat(policy.getSpillRatio()).isEqualTo(0.5);
+        assertThat(countRemoteFirst(policy, statement, 100, remote)).isEqualTo(50);
+
+        // when: the local DC recovers
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 100; i++)
+                health.update(local1, statement, null, 1000000);
+            health.update();
+        }
+
+        // then: plans go back to local hosts
+        assertThat(policy.getSpillRatio()).isEqualTo(0);
+        assertThat(countRemoteFirst(policy, statement, 100, remote)).isEqualTo(0);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_spill_when_speculative_executions_are_cancelled() {
+        // given
+        Host local1 = mockHost("dc1"), local2 = mockHost("dc1"), remote = mockHost("dc2");
+        DCAwareRoundRobinPolicy policy = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withUsedHostsPerRemoteDc(1)
+                .withGradualFailover(0.5, 0.2, 100, TimeUnit.MILLISECONDS)
+                .build();
+        Cluster cluster = mockCluster();
+        policy.init(cluster, newArrayList(local1, local2, remote));
+        Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+        DCAwareRoundRobinPolicy.LocalDcHealth health = policy.localDcHealth;
+
+        // when: every request has a speculative execution that loses
+        for (int j = 0; j < 5; j++) {
+            for (int i = 0; i < 100; i++) {
+                health.update(local1, statement, null, 1000000);
+                health.update(local2, statement, CancelledSpeculativeExecutionException.INSTANCE, 1000000);
+            }
+            health.update();
+        }
+
+        // then
+        assertThat(policy.getSpillRatio()).isEqualTo(0);
+        assertThat(countRemoteFirst(policy, statement, 100, remote)).isEqualTo(0);
+
+        // when
+        policy.close();
+
+        // then
+        Mockito.verify(cluster).register(health);
+        Mockito.verify(cluster).unregister(health);
+    }
+
+    @Test(groups = "unit")
+    public void should_register_gauges_once_when_cluster_has_several_policies() {
+        // given
+        Host local = mockHost("dc1"), remote = mockHost("dc2");
+        MetricRegistry registry = new MetricRegistry();
+        Metrics metrics = Mockito.mock(Metrics.class);
+        Mockito.when(metrics.getRegistry()).thenReturn(registry);
+        Cluster cluster = mockCluster();
+        Mockito.when(cluster.getMetrics()).thenReturn(metrics);
+        DCAwareRoundRobinPolicy policy1 = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withUsedHostsPerRemoteDc(1)
+                .withGradualFailover(0.5, 0.2, 100, TimeUnit.MILLISECONDS)
+                .build();
+        DCAwareRoundRobinPolicy policy2 = DCAwareRoundRobinPolicy.builder()
+                .withLocalDc("dc1")
+                .withUsedHostsPerRemoteDc(1)
+                .withGradualFailover(0.5, 0.2, 100, TimeUnit.MILLISECONDS)
+                .build();
+
+        // when
+        policy1.init(cluster, newArrayList(local, remote));
+        policy2.init(cluster, newArrayList(local, remote));
+
+        // then: the second policy does not fail, and the gauges report the first one
+        assertThat(registry.getGauges().keySet())
+                .containsOnly("DCAwareRoundRobinPolicy.spill-ratio", "DCAwareRoundRobinPolicy.spilled-plans");
+
+        // when
+        policy2.close();
+
+        // then: only the policy that registered the gauges removes them
+        assertThat(registry.getGauges()).hasSize(2);
+
+        // when
+        policy1.close();
+
+        // then
+        assertThat(registry.getGauges()).isEmpty();
+    }
+
+    private static int countRemoteFirst(DCAwareRoundRobinPolicy policy, Statement statement, int plans, Host remote) {
+        int count = 0;
+        for (int i = 0; i < plans; i++) {
+            if (policy.newQueryPlan(null, statement).next() == remote)
+                count += 1;
+        }
+        return count;
+    }
+
+    static Host mockHost(String dc) {
+        return mockHost(dc, null);
+    }
+
+    static Host mockHost(String dc, String rack) {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getDatacenter()).thenReturn(dc);
+        Mockito.when(host.getRack()).thenReturn(rack);
+        return host;
+    }
+
+    static Cluster mockCluster() {
+        Cluster cluster = Mockito.mock(Cluster.class);
+        Configuration configuration = Mockito.mock(Configuration.class);
+        Mockito.when(cluster.getConfiguration()).thenReturn(configuration);
+        Mockito.when(configuration.getQueryOptions()).thenReturn(new QueryOptions());
+        return cluster;
+    }
 }
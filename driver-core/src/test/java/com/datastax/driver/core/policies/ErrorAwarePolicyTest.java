@@ -0,0 +1,232 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ServerError;
+import com.google.common.collect.Lists;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ErrorAwarePolicyTest {
+
+    private static final Exception ERROR = new OperationTimedOutException(null);
+    // An error caused by the query rather than by the host
+    private static final Exception QUERY_ERROR = new ServerError(null, "irrelevant");
+
+    private Host host1 = mock(Host.class);
+    private Host host2 = mock(Host.class);
+    private Host host3 = mock(Host.class);
+
+    private LoadBalancingPolicy childPolicy;
+    private Cluster cluster;
+    private Clock clock;
+
+    @BeforeMethod(groups = "unit")
+    public void initMocks() {
+        cluster = mock(Cluster.class);
+        clock = mock(Clock.class);
+        childPolicy = mock(LoadBalancingPolicy.class);
+        when(childPolicy.newQueryPlan(anyString(), any(Statement.class))).thenAnswer(
+                new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        return Lists.newArrayList(host1, host2, host3).iterator();
+                    }
+                });
+        setTime(0, TimeUnit.SECONDS);
+    }
+
+    @Test(groups = "unit")
+    public void should_exclude_hosts_over_error_ratio() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withMaxErrorRatio(0.5, 10)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement statement = new SimpleStatement("irrelevant");
+
+        // 40% errors
+        record(policy, host1, statement, 4, 6);
+        // 60% errors
+        record(policy, host2, statement, 6, 4);
+        // 100% errors, but not enough requests to decide
+        record(policy, host3, statement, 3, 0);
+        // Errors are counted once their 5-second interval is complete
+        setTime(5, TimeUnit.SECONDS);
+
+        assertThat(policy.newQueryPlan("keyspace", statement)).containsExactly(host1, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_probe_host_after_retry_period_and_include_it_after_enough_successes() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withRetryPeriod(10, TimeUnit.SECONDS)
+                .withHalfOpenProbing(0.25, 2)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement statement = new SimpleStatement("irrelevant");
+
+        record(policy, host1, statement, 2, 0);
+        setTime(5, TimeUnit.SECONDS);
+        assertThat(policy.newQueryPlan("keyspace", statement)).containsExactly(host2, host3);
+
+        // Retry period elapsed: host1 is only in a quarter of the plans
+        setTime(16, TimeUnit.SECONDS);
+        assertThat(countPlansWith(policy, statement, host1, 8)).isEqualTo(2);
+
+        record(policy, host1, statement, 0, 2);
+        // The errors are still in the window, but the counts were reset
+        for (int i = 0; i < 8; i++)
+            assertThat(policy.newQueryPlan("keyspace", statement)).containsExactly(host1, host2, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_exclude_host_again_if_probe_fails() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withRetryPeriod(10, TimeUnit.SECONDS)
+                .withHalfOpenProbing(0.25, 2)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement statement = new SimpleStatement("irrelevant");
+
+        record(policy, host1, statement, 2, 0);
+        setTime(5, TimeUnit.SECONDS);
+        assertThat(policy.newQueryPlan("keyspace", statement)).containsExactly(host2, host3);
+
+        setTime(16, TimeUnit.SECONDS);
+        assertThat(countPlansWith(policy, statement, host1, 4)).isEqualTo(1);
+        record(policy, host1, statement, 1, 0);
+
+        // Excluded for another retry period
+        assertThat(countPlansWith(policy, statement, host1, 8)).isEqualTo(0);
+        setTime(25, TimeUnit.SECONDS);
+        assertThat(countPlansWith(policy, statement, host1, 8)).isEqualTo(0);
+        setTime(26, TimeUnit.SECONDS);
+        assertThat(countPlansWith(policy, statement, host1, 8)).isEqualTo(2);
+    }
+
+    @Test(groups = "unit")
+    public void should_only_exclude_host_for_failing_statement_shape() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withPerStatementShapeTracking(true)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement bad = new SimpleStatement("SELECT * FROM ks.bad");
+        Statement good = new SimpleStatement("SELECT * FROM ks.good");
+        // Batches have no shape, they are tracked per host
+        Statement batch = new BatchStatement();
+
+        record(policy, host1, bad, QUERY_ERROR, 2, 0);
+        setTime(5, TimeUnit.SECONDS);
+
+        assertThat(policy.newQueryPlan("keyspace", bad)).containsExactly(host2, host3);
+        assertThat(policy.newQueryPlan("keyspace", new SimpleStatement("SELECT * FROM ks.bad")))
+                .containsExactly(host2, host3);
+        assertThat(policy.newQueryPlan("keyspace", good)).containsExactly(host1, host2, host3);
+        assertThat(policy.newQueryPlan("keyspace", batch)).containsExactly(host1, host2, host3);
+
+        // Errors of statements without a shape still exclude the host for everything
+        record(policy, host2, batch, 2, 0);
+        setTime(10, TimeUnit.SECONDS);
+        assertThat(policy.newQueryPlan("keyspace", good)).containsExactly(host1, host3);
+        assertThat(policy.newQueryPlan("keyspace", bad)).containsExactly(host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_exclude_host_for_all_shapes_on_host_errors() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withPerStatementShapeTracking(true)
+                .withMaxErrorRatio(0.5, 2)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement bad = new SimpleStatement("SELECT * FROM ks.bad");
+        Statement good = new SimpleStatement("SELECT * FROM ks.good");
+
+        // Successes don't create shape breakers
+        record(policy, host1, good, 0, 10);
+        assertThat(policy.errorTracker.shapeBreakers.size()).isEqualTo(0);
+
+        // Timeouts count for the host
+        record(policy, host2, bad, 4, 0);
+        setTime(5, TimeUnit.SECONDS);
+        assertThat(policy.errorTracker.shapeBreakers.size()).isEqualTo(1);
+        assertThat(policy.newQueryPlan("keyspace", good)).containsExactly(host1, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_ignore_cancelled_speculative_executions_while_probing() {
+        ErrorAwarePolicy policy = ErrorAwarePolicy.builder(childPolicy)
+                .withRetryPeriod(10, TimeUnit.SECONDS)
+                .withHalfOpenProbing(0.25, 2)
+                .withClock(clock)
+                .build();
+        policy.init(cluster, null);
+        Statement statement = new SimpleStatement("irrelevant");
+
+        record(policy, host1, statement, 2, 0);
+        setTime(5, TimeUnit.SECONDS);
+        assertThat(policy.newQueryPlan("keyspace", statement)).containsExactly(host2, host3);
+
+        setTime(16, TimeUnit.SECONDS);
+        assertThat(countPlansWith(policy, statement, host1, 4)).isEqualTo(1);
+
+        // The probe was a speculative execution that lost
+        record(policy, host1, statement, CancelledSpeculativeExecutionException.INSTANCE, 1, 0);
+
+        // Still half-open
+        assertThat(countPlansWith(policy, statement, host1, 8)).isEqualTo(2);
+    }
+
+    private void record(ErrorAwarePolicy policy, Host host, Statement statement, int errors, int successes) {
+        record(policy, host, statement, ERROR, errors, successes);
+    }
+
+    private void record(ErrorAwarePolicy policy, Host host, Statement statement, Exception error, int errors, int successes) {
+        for (int i = 0; i < errors; i++)
+            policy.errorTracker.update(host, statement, error, 1);
+        for (int i = 0; i < successes; i++)
+            policy.errorTracker.update(host, statement, null, 1);
+    }
+
+    private static int countPlansWith(ErrorAwarePolicy policy, Statement statement, Host host, int plans) {
+        int count = 0;
+        for (int i = 0; i < plans; i++) {
+            if (Lists.newArrayList(policy.newQueryPlan("keyspace", statement)).contains(host))
+                count += 1;
+        }
+        return count;
+    }
+
+    private void setTime(long time, TimeUnit timeUnit) {
+        when(clock.nanoTime()).thenReturn(TimeUnit.NANOSECONDS.convert(time, timeUnit));
+    }
+}
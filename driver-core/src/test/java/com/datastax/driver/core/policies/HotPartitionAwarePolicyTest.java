@@ -0,0 +1,171 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+import com.google.common.collect.Lists;
+import org.assertj.core.util.Sets;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HotPartitionAwarePolicyTest {
+
+    private ByteBuffer hotKey = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+
+    private Host host1 = mock(Host.class);
+    private Host host2 = mock(Host.class);
+    private Host host3 = mock(Host.class);
+    private Host host4 = mock(Host.class);
+
+    private LoadBalancingPolicy childPolicy;
+    private Cluster cluster;
+    private Metadata metadata;
+
+    @BeforeMethod(groups = "unit")
+    public void initMocks() {
+        cluster = mock(Cluster.class);
+        Configuration configuration = mock(Configuration.class);
+        ProtocolOptions protocolOptions = mock(ProtocolOptions.class);
+        metadata = mock(Metadata.class);
+        childPolicy = mock(LoadBalancingPolicy.class);
+        when(cluster.getConfiguration()).thenReturn(configuration);
+        when(configuration.getCodecRegistry()).thenReturn(new CodecRegistry());
+        when(configuration.getProtocolOptions()).thenReturn(protocolOptions);
+        when(configuration.getQueryOptions()).thenReturn(new QueryOptions().setConsistencyLevel(ConsistencyLevel.ONE));
+        when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.NEWEST_SUPPORTED);
+        when(cluster.getMetadata()).thenReturn(metadata);
+        when(metadata.getReplicas(anyString(), any(ByteBuffer.class)))
+                .thenReturn(Sets.newLinkedHashSet(host1, host2, host3));
+        when(childPolicy.newQueryPlan(anyString(), any(Statement.class))).thenAnswer(
+                new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        // Token aware plan with a deterministic replica ordering
+                        return Lists.newArrayList(host1, host2, host3, host4).iterator();
+                    }
+                });
+    }
+
+    @Test(groups = "unit")
+    public void should_spread_hot_partition_across_replicas() {
+        HotPartitionAwarePolicy policy = HotPartitionAwarePolicy.builder(childPolicy).build();
+        policy.init(cluster, null);
+
+        Statement hot = statement(hotKey);
+        Set<Host> firstHosts = new HashSet<Host>();
+        for (int i = 0; i < 2000; i++) {
+            // some noise, so that there are other keys in the sketch
+            policy.newQueryPlan("keyspace", statement(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8), 0, 1})));
+            firstHosts.add(Lists.newArrayList(policy.newQueryPlan("keyspace", hot)).get(0));
+        }
+
+        assertThat(firstHosts).containsOnly(host1, host2, host3);
+        // Non-replicas still come last
+        assertThat(policy.newQueryPlan("keyspace", hot)).containsOnlyOnce(host1, host2, host3, host4).endsWith(host4);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_spread_if_consistency_level_involves_several_replicas() {
+        HotPartitionAwarePolicy policy = HotPartitionAwarePolicy.builder(childPolicy).build();
+        policy.init(cluster, null);
+
+        Statement hot = statement(hotKey).setConsistencyLevel(ConsistencyLevel.QUORUM);
+        for (int i = 0; i < 2000; i++) {
+            assertThat(policy.newQueryPlan("keyspace", hot)).containsExactly(host1, host2, host3, host4);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_not_spread_cold_partitions() {
+        HotPartitionAwarePolicy policy = HotPartitionAwarePolicy.builder(childPolicy).build();
+        policy.init(cluster, null);
+
+        for (int i = 0; i < 2000; i++) {
+            Statement cold = statement(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8), 0, 2}));
+            assertThat(policy.newQueryPlan("keyspace", cold)).containsExactly(host1, host2, host3, host4);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_pass_explanation_to_child_policy() {
+        ExplainableQueryPlanPolicy explainableChild = mock(ExplainableQueryPlanPolicy.class);
+        when(explainableChild.newQueryPlan(anyString(), any(Statement.class), any(QueryPlanExplanation.class))).thenAnswer(
+                new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        return Lists.newArrayList(host1, host2, host3, host4).iterator();
+                    }
+                });
+        HotPartitionAwarePolicy policy = HotPartitionAwarePolicy.builder(explainableChild).build();
+        policy.init(cluster, null);
+
+        Statement hot = statement(hotKey);
+        QueryPlanExplanation explanation = new QueryPlanExplanation();
+        Set<Host> firstHosts = new HashSet<Host>();
+        // the first requests are not enough to detect a hot partition
+        for (int i = 0; i < 2000; i++)
+            firstHosts.add(policy.newQueryPlan("MyKeyspace", hot, explanation).next());
+
+        assertThat(firstHosts).containsOnly(host1, host2, host3);
+        verify(explainableChild, times(2000)).newQueryPlan("MyKeyspace", hot, explanation);
+        verify(explainableChild, never()).newQueryPlan(anyString(), any(Statement.class));
+        // the keyspace is quoted, since its name is case sensitive
+        verify(metadata, atLeastOnce()).getReplicas("\"MyKeyspace\"", hotKey);
+    }
+
+    @Test(groups = "unit")
+    public void should_report_hot_tokens() {
+        Token hotToken = mock(Token.class);
+        Token otherToken = mock(Token.class);
+        when(metadata.newToken(any(ByteBuffer.class))).thenReturn(otherToken);
+        when(metadata.newToken(hotKey)).thenReturn(hotToken);
+        HotPartitionAwarePolicy policy = HotPartitionAwarePolicy.builder(childPolicy).withTopSize(2).build();
+        policy.init(cluster, null);
+
+        for (int i = 0; i < 1000; i++) {
+            policy.newQueryPlan("keyspace", statement(hotKey));
+            if (i % 2 == 0)
+                policy.newQueryPlan("keyspace", statement(ByteBuffer.wrap(new byte[]{5, 6, 7, 8})));
+            policy.newQueryPlan("keyspace", statement(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8), 0, 3})));
+        }
+
+        Map<Token, Long> hotTokens = policy.getHotTokens();
+        assertThat(hotTokens).hasSize(2);
+        assertThat(hotTokens.keySet().iterator().next()).isSameAs(hotToken);
+        assertThat(hotTokens.get(hotToken)).isGreaterThanOrEqualTo(992L);
+    }
+
+    private static Statement statement(ByteBuffer routingKey) {
+        return new SimpleStatement("irrelevant").setRoutingKey(routingKey);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockCluster;
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockHost;
+
+/**
+ * Measures the overhead of {@link LatencyAwarePolicy}: the cost of recording a latency (from several threads, as the
+ * driver does), and the cost of creating query plans, with and without a penalized host.
+ * <p/>
+ * This is not a test, run it from the IDE or with:
+ * <pre>
+ * mvn -pl driver-core test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.datastax.driver.core.policies.LatencyAwareBenchmark
+ * </pre>
+ * To compare implementations, run it several times on both revisions of the policy, and compare the medians. The hosts
+ * are Mockito mocks, whose {@code hashCode} is intercepted: this adds the same constant cost to both revisions.
+ */
+public class LatencyAwareBenchmark {
+
+    private static final int HOST_COUNT = 10;
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final int WARMUP_ITERATIONS = 2000000;
+    private static final int MEASURED_ITERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        Statement statement = new SimpleStatement("irrelevant");
+
+        final List<Host> hosts = new ArrayList<Host>();
+        for (int i = 0; i < HOST_COUNT; i++)
+            hosts.add(mockHost("dc1"));
+        Cluster cluster = mockCluster();
+        LatencyAwarePolicy policy = LatencyAwarePolicy.builder(new RoundRobinPolicy())
+                .withMininumMeasurements(1)
+                .build();
+        try {
+            policy.init(cluster, hosts);
+            ArgumentCaptor<LatencyTracker> captor = ArgumentCaptor.forClass(LatencyTracker.class);
+            Mockito.verify(cluster).register(captor.capture());
+            final LatencyTracker tracker = captor.getValue();
+
+            // Nothing recorded yet: nobody is penalized
+            measurePlans("plan, no slow host", policy, statement);
+
+            for (final int threads : THREAD_COUNTS) {
+                // Time per update and per thread
+                new MicroBenchmark() {
+                    @Override
+                    long run(int iterations) throws InterruptedException {
+                        recordLatencies(tracker, hosts, threads, iterations);
+                        return 0;
+                    }
+                }.measure(String.format("update, %2d threads", threads), WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+            }
+
+            // The first host is 10 times slower than the others
+            policy.new Updater().run();
+            measurePlans("plan, one slow host", policy, statement);
+        } finally {
+            policy.close();
+        }
+    }
+
+    private static void recordLatencies(final LatencyTracker tracker, final List<Host> hosts,
+                                        int threadCount, final int iterationsPerThread) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterationsPerThread; i++) {
+                        int hostIndex = i % HOST_COUNT;
+                        long latency = (hostIndex == 0 ? 10000000 : 1000000) + (i & 1023);
+                        tracker.update(hosts.get(hostIndex), null, null, latency);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+    }
+
+    private static void measurePlans(String label, final LoadBalancingPolicy policy, final Statement statement)
+            throws Exception {
+        new MicroBenchmark() {
+            @Override
+            long run(int iterations) {
+                return runPlans(policy, statement, iterations);
+            }
+        }.measure(label, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+    }
+
+    private static int runPlans(LoadBalancingPolicy policy, Statement statement, int iterations) {
+        // Consume the whole plan, so that the slow host is actually deferred, and accumulate something from each plan
+        // so that the JIT can't eliminate the work
+        int checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            Iterator<Host> plan = policy.newQueryPlan(null, statement);
+            while (plan.hasNext())
+                checksum += System.identityHashCode(plan.next());
+        }
+        return checksum;
+    }
+}
@@ -19,10 +19,16 @@ import com.datastax.driver.core.*;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
 import com.datastax.driver.core.exceptions.ReadTimeoutException;
 import com.datastax.driver.core.exceptions.UnavailableException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockCluster;
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockHost;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -190,4 +196,33 @@ public class LatencyAwarePolicyTest extends ScassandraTestBase {
         }
     }
 
+    @Test(groups = "unit")
+    public void should_move_slow_hosts_to_end_of_query_plan_after_update() {
+        Host fast = mockHost("dc1");
+        Host slow = mockHost("dc1");
+        Cluster cluster = mockCluster();
+        LatencyAwarePolicy latencyAwarePolicy = LatencyAwarePolicy.builder(new RoundRobinPolicy())
+                .withMininumMeasurements(1)
+                .build();
+        try {
+            latencyAwarePolicy.init(cluster, Arrays.asList(slow, fast));
+            ArgumentCaptor<LatencyTracker> captor = ArgumentCaptor.forClass(LatencyTracker.class);
+            Mockito.verify(cluster).register(captor.capture());
+            LatencyTracker tracker = captor.getValue();
+
+            tracker.update(fast, null, null, MILLISECONDS.toNanos(1));
+            tracker.update(slow, null, null, MILLISECONDS.toNanos(10));
+
+            // decisions are only taken at each update tick
+            assertThat(latencyAwarePolicy.newQueryPlan(null, null)).containsOnly(slow, fast);
+
+            latencyAwarePolicy.new Updater().run();
+            for (int i = 0; i < 4; i++) {
+                assertThat(latencyAwarePolicy.newQueryPlan(null, null)).containsExactly(fast, slow);
+            }
+        } finally {
+            latencyAwarePolicy.close();
+        }
+    }
+
 }
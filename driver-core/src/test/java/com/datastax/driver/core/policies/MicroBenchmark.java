@@ -0,0 +1,51 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import java.util.Arrays;
+
+/**
+ * A minimal harness for the benchmarks of this package, which are run as plain {@code main} methods.
+ * <p/>
+ * Each measurement runs a warmup, then several rounds of the same number of operations, and reports the best and the
+ * median time per operation: a single round is easily skewed by a GC pause or a JIT recompilation, and the spread
+ * between the two shows how much a given run can be trusted. When comparing two revisions, run the benchmark several
+ * times on each, on an otherwise idle machine, and compare the medians.
+ */
+abstract class MicroBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Runs the operation {@code iterations} times.
+     *
+     * @return a value computed from the results of the operations, so that the JIT can't eliminate them.
+     */
+    abstract long run(int iterations) throws Exception;
+
+    void measure(String label, int warmupIterations, int measuredIterations) throws Exception {
+        long checksum = run(warmupIterations);
+        double[] nanosPerOperation = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            checksum += run(measuredIterations);
+            nanosPerOperation[round] = (double) (System.nanoTime() - start) / measuredIterations;
+        }
+        Arrays.sort(nanosPerOperation);
+        System.out.println(String.format("%s: %6.1f ns/op best, %6.1f ns/op median of %d rounds (checksum %d)",
+                label, nanosPerOperation[0], nanosPerOperation[ROUNDS / 2], ROUNDS, checksum));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockCluster;
+import static com.datastax.driver.core.policies.DCAwareRoundRobinPolicyTest.mockHost;
+
+/**
+ * Measures the cost of creating query plans with {@link DCAwareRoundRobinPolicy}, for an increasing number of local
+ * hosts (the cluster also has a remote DC of the same size).
+ * <p/>
+ * Each operation creates a plan and consumes its first host, which is what happens for most requests. The hosts are
+ * Mockito mocks, but the plans only compare them by identity, so no mocked method is called while measuring. This is
+ * not a test, run it from the IDE or with:
+ * <pre>
+ * mvn -pl driver-core test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.datastax.driver.core.policies.QueryPlanBenchmark
+ * </pre>
+ */
+public class QueryPlanBenchmark {
+
+    private static final int[] HOST_COUNTS = {10, 100, 1000};
+    private static final int WARMUP_ITERATIONS = 2000000;
+    private static final int MEASURED_ITERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        final Statement statement = new SimpleStatement("irrelevant").setConsistencyLevel(ConsistencyLevel.ONE);
+        for (int hostCount : HOST_COUNTS) {
+            final LoadBalancingPolicy policy = DCAwareRoundRobinPolicy.builder()
+                    .withLocalDc("dc1")
+                    .withUsedHostsPerRemoteDc(2)
+                    .build();
+            List<Host> hosts = new ArrayList<Host>();
+            for (int i = 0; i < hostCount; i++) {
+                hosts.add(mockHost("dc1"));
+                hosts.add(mockHost("dc2"));
+            }
+            policy.init(mockCluster(), hosts);
+
+            new MicroBenchmark() {
+                @Override
+                long run(int iterations) {
+                    long checksum = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        Iterator<Host> plan = policy.newQueryPlan(null, statement);
+                        checksum += System.identityHashCode(plan.next());
+                    }
+                    return checksum;
+                }
+            }.measure(String.format("%5d local hosts", hostCount), WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+        }
+    }
+}
@@ -16,11 +16,14 @@
 package com.datastax.driver.core.policies;
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import org.assertj.core.util.Sets;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
@@ -29,11 +32,14 @@ import org.testng.annotations.Test;
 import static com.datastax.driver.core.Assertions.assertThat;
 import static com.datastax.driver.core.TestUtils.CREATE_KEYSPACE_SIMPLE_FORMAT;
 import static com.datastax.driver.core.TestUtils.nonQuietClusterCloseOptions;
+import static com.datastax.driver.core.policies.TokenAwarePolicy.ReplicaOrdering.LEAST_LOADED;
 import static com.datastax.driver.core.policies.TokenAwarePolicy.ReplicaOrdering.NEUTRAL;
 import static com.datastax.driver.core.policies.TokenAwarePolicy.ReplicaOrdering.RANDOM;
 import static com.datastax.driver.core.policies.TokenAwarePolicy.ReplicaOrdering.TOPOLOGICAL;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class TokenAwarePolicyTest {
@@ -80,7 +86,8 @@ public class TokenAwarePolicyTest {
         return new Object[][]{
                 {TokenAwarePolicy.ReplicaOrdering.TOPOLOGICAL},
                 {TokenAwarePolicy.ReplicaOrdering.RANDOM},
-                {TokenAwarePolicy.ReplicaOrdering.NEUTRAL}
+                {TokenAwarePolicy.ReplicaOrdering.NEUTRAL},
+                {TokenAwarePolicy.ReplicaOrdering.LEAST_LOADED}
         };
     }
 
@@ -117,6 +124,196 @@ public class TokenAwarePolicyTest {
         assertThat(queryPlan).containsOnlyOnce(host1, host2, host3, host4).endsWith(host4, host3);
     }
 
+    @Test(groups = "unit")
+    public void should_delegate_rotating_query_plans_for_statements_without_routing_key() {
+        // given
+        RotatingQueryPlanPolicy rotatingChild = mock(RotatingQueryPlanPolicy.class);
+        Host[] hosts = new Host[]{host1, host2};
+        RegularStatement unrouted = new SimpleStatement("irrelevant");
+        when(rotatingChild.getQueryPlanHosts("keyspace", unrouted)).thenReturn(hosts);
+        when(rotatingChild.nextQueryPlanOffset()).thenReturn(42);
+        TokenAwarePolicy policy = new TokenAwarePolicy(rotatingChild, TOPOLOGICAL);
+        policy.init(cluster, null);
+        // then
+        assertThat(policy.getQueryPlanHosts("keyspace", unrouted)).isSameAs(hosts);
+        assertThat(policy.nextQueryPlanOffset()).isEqualTo(42);
+        assertThat(policy.getQueryPlanHosts("keyspace", statement)).isNull();
+        // a child that can't build rotating plans
+        assertThat(new TokenAwarePolicy(childPolicy, TOPOLOGICAL).getQueryPlanHosts("keyspace", unrouted)).isNull();
+    }
+
+    @Test(groups = "unit")
+    public void should_only_use_rotating_plans_for_simple_statements() {
+        // given
+        RotatingQueryPlanPolicy rotatingChild = mock(RotatingQueryPlanPolicy.class);
+        Statement notSimple = mock(Statement.class);
+        TokenAwarePolicy policy = new TokenAwarePolicy(rotatingChild, TOPOLOGICAL);
+        policy.init(cluster, null);
+        // then: the routing key is not computed, newQueryPlan will do it
+        assertThat(policy.getQueryPlanHosts("keyspace", notSimple)).isNull();
+        verify(notSimple, never()).getRoutingKey(any(ProtocolVersion.class), any(CodecRegistry.class));
+        // a child that can't build rotating plans
+        assertThat(new TokenAwarePolicy(childPolicy, TOPOLOGICAL).nextQueryPlanOffset()).isEqualTo(0);
+    }
+
+    @Test(groups = "unit", dataProvider = "shuffleProvider")
+    public void should_return_local_rack_replicas_first(TokenAwarePolicy.ReplicaOrdering ordering) {
+        // given
+        LocalRackAwarePolicy rackAwareChild = mock(LocalRackAwarePolicy.class);
+        when(rackAwareChild.getLocalRack()).thenReturn("rack1");
+        when(rackAwareChild.distance(any(Host.class))).thenReturn(HostDistance.LOCAL);
+        when(rackAwareChild.newQueryPlan("keyspace", statement)).thenReturn(
+                Sets.newLinkedHashSet(host2, host4, host3, host1).iterator());
+        when(host1.getRack()).thenReturn("rack2");
+        when(host2.getRack()).thenReturn("rack1");
+        TokenAwarePolicy policy = new TokenAwarePolicy(rackAwareChild, ordering);
+        policy.init(cluster, null);
+        // when
+        Iterator<Host> queryPlan = policy.newQueryPlan("keyspace", statement);
+        // then
+        assertThat(queryPlan).containsExactly(host2, host1, host4, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_use_routing_token_if_no_routing_key() {
+        // given
+        Token token = mock(Token.class);
+        RegularStatement rangeStatement = new SimpleStatement("irrelevant");
+        rangeStatement.setRoutingToken(token);
+        when(cluster.getMetadata().getReplicas(Metadata.quote("keyspace"), token))
+                .thenReturn(Sets.newLinkedHashSet(host3));
+        when(childPolicy.newQueryPlan("keyspace", rangeStatement)).thenReturn(
+                Sets.newLinkedHashSet(host4, host3, host2, host1).iterator());
+        TokenAwarePolicy policy = new TokenAwarePolicy(childPolicy, TOPOLOGICAL);
+        policy.init(cluster, null);
+        // then
+        assertThat(policy.newQueryPlan("keyspace", rangeStatement)).containsExactly(host3, host4, host2, host1);
+        assertThat(policy.getQueryPlanHosts("keyspace", rangeStatement)).isNull();
+    }
+
+    @Test(groups = "unit")
+    public void should_explain_query_plan() {
+        // given: a down replica, and a child policy that explains its plans too
+        when(host1.isUp()).thenReturn(false);
+        ExplainableQueryPlanPolicy explainableChild = mock(ExplainableQueryPlanPolicy.class);
+        when(explainableChild.distance(any(Host.class))).thenReturn(HostDistance.LOCAL);
+        QueryPlanExplanation explanation = new QueryPlanExplanation();
+        when(explainableChild.newQueryPlan("keyspace", statement, explanation)).thenReturn(
+                Sets.newLinkedHashSet(host4, host3, host2, host1).iterator());
+        TokenAwarePolicy policy = new TokenAwarePolicy(explainableChild, TOPOLOGICAL);
+        policy.init(cluster, null);
+
+        // when
+        Iterator<Host> queryPlan = policy.newQueryPlan("keyspace", statement, explanation);
+
+        // then
+        assertThat(queryPlan).containsExactly(host2, host4, host3);
+        assertThat(explanation.isRouted()).isTrue();
+        assertThat(explanation.getReplicas()).containsOnly(host1, host2);
+        QueryPlanExplanation.HostDecision decision = explanation.getDecision(host1);
+        assertThat(decision.isReplica()).isTrue();
+        assertThat(decision.getExclusion()).isEqualTo(QueryPlanExplanation.Exclusion.DOWN);
+        assertThat(decision.getTryIndex()).isEqualTo(-1);
+        assertThat(explanation.getDecision(host2)).isNull();
+
+        // when: a statement without routing information
+        RegularStatement unrouted = new SimpleStatement("irrelevant");
+        QueryPlanExplanation unroutedExplanation = new QueryPlanExplanation();
+        policy.newQueryPlan("keyspace", unrouted, unroutedExplanation);
+
+        // then
+        assertThat(unroutedExplanation.isRouted()).isFalse();
+        verify(explainableChild).newQueryPlan("keyspace", unrouted, unroutedExplanation);
+    }
+
+    @Test(groups = "unit")
+    public void should_order_replicas_by_load() {
+        // given
+        when(host1.getInFlightQueries()).thenReturn(10);
+        when(host2.getInFlightQueries()).thenReturn(0);
+        TokenAwarePolicy policy = new TokenAwarePolicy(childPolicy, LEAST_LOADED);
+        policy.init(cluster, null);
+        // when
+        Iterator<Host> queryPlan = policy.newQueryPlan("keyspace", statement);
+        // then
+        assertThat(queryPlan).containsExactly(host2, host1, host4, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_never_put_most_loaded_replica_first() {
+        // given
+        List<Host> replicas = Lists.newArrayList(host1, host2, host3);
+        when(host1.getInFlightQueries()).thenReturn(0);
+        when(host2.getInFlightQueries()).thenReturn(5);
+        when(host3.getInFlightQueries()).thenReturn(100);
+        ReplicaLoadTracker tracker = new ReplicaLoadTracker();
+        for (int i = 0; i < 100; i++) {
+            // when
+            tracker.order(replicas);
+            // then
+            assertThat(replicas.get(0)).isNotEqualTo(host3);
+            assertThat(replicas).containsOnly(host1, host2, host3);
+            // the remaining replicas are sorted
+            if (replicas.get(0) == host1)
+                assertThat(replicas).containsExactly(host1, host2, host3);
+            else
+                assertThat(replicas).containsExactly(host2, host1, host3);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_take_latency_and_failures_into_account() {
+        // given
+        List<Host> replicas = Lists.newArrayList(host1, host2);
+        ReplicaLoadTracker tracker = new ReplicaLoadTracker();
+        tracker.update(host1, statement, null, 50000000);
+        tracker.update(host2, statement, null, 1000000);
+        // when
+        tracker.order(replicas);
+        // then
+        assertThat(replicas).containsExactly(host2, host1);
+
+        // given
+        tracker.update(host2, statement, new OperationTimedOutException(new InetSocketAddress(9042)), 12000000000L);
+        // when
+        tracker.order(replicas);
+        // then
+        assertThat(replicas).containsExactly(host1, host2);
+    }
+
+    @Test(groups = "unit")
+    public void should_give_unmeasured_replicas_the_median_latency() {
+        // given: host3 has no measurement yet, the median of the others is 20 ms
+        List<Host> replicas = Lists.newArrayList(host1, host2, host3);
+        when(host1.getInFlightQueries()).thenReturn(0);
+        when(host2.getInFlightQueries()).thenReturn(0);
+        when(host3.getInFlightQueries()).thenReturn(0);
+        ReplicaLoadTracker tracker = new ReplicaLoadTracker();
+        tracker.update(host1, statement, null, 10000000);
+        tracker.update(host2, statement, null, 30000000);
+        for (int i = 0; i < 100; i++) {
+            // when
+            tracker.order(replicas);
+            // then: host3 is ordered between the two others, instead of being favored
+            if (replicas.get(0) == host1)
+                assertThat(replicas).containsExactly(host1, host3, host2);
+            else
+                assertThat(replicas).containsExactly(host3, host1, host2);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_unregister_load_tracker_on_close() {
+        // given
+        TokenAwarePolicy policy = new TokenAwarePolicy(childPolicy, LEAST_LOADED);
+        policy.init(cluster, null);
+        verify(cluster).register(any(ReplicaLoadTracker.class));
+        // when
+        policy.close();
+        // then
+        verify(cluster).unregister(any(ReplicaLoadTracker.class));
+    }
+
     /**
      * Ensures that {@link TokenAwarePolicy} will shuffle discovered replicas depending on the value of shuffleReplicas
      * used when constructing with {@link TokenAwarePolicy#TokenAwarePolicy(LoadBalancingPolicy, boolean)} and that if not
@@ -166,9 +363,9 @@ public class TokenAwarePolicyTest {
             assertThat(queryPlan).containsOnlyElementsOf(cluster.getMetadata().getAllHosts());
 
             List<Host> firstThree = queryPlan.subList(0, 3);
-            // then: if ordering is RANDOM, the first three hosts returned should be 6,7,8 in any order.
+            // then: if ordering is RANDOM or LEAST_LOADED, the first three hosts returned should be 6,7,8 in any order.
             //       if ordering is TOPOLOGICAL or NEUTRAL, the first three hosts returned should be 6,7,8 in that order.
-            if (ordering == RANDOM) {
+            if (ordering == RANDOM || ordering == LEAST_LOADED) {
                 assertThat(firstThree).containsOnlyElementsOf(replicas);
             } else {
                 assertThat(firstThree).containsExactlyElementsOf(replicas);
@@ -225,6 +422,51 @@ public class TokenAwarePolicyTest {
         }
     }
 
+    /**
+     * Ensures that the replicas cached by {@link Metadata#getReplicas(String, ByteBuffer)} are not affected if the
+     * client reuses its routing key buffer.
+     *
+     * @test_category load_balancing:token_aware
+     */
+    @Test(groups = "short")
+    public void should_not_return_stale_replicas_when_routing_key_buffer_is_reused() {
+        // given: A 3 node cluster with a replication factor of 1.
+        ScassandraCluster sCluster = ScassandraCluster.builder()
+                .withNodes(3)
+                .withSimpleKeyspace("keyspace", 1)
+                .build();
+        Cluster cluster = Cluster.builder()
+                .addContactPoints(sCluster.address(1).getAddress())
+                .withPort(sCluster.getBinaryPort())
+                .withNettyOptions(nonQuietClusterCloseOptions)
+                .build();
+
+        try {
+            sCluster.init();
+            cluster.init();
+            Metadata metadata = cluster.getMetadata();
+
+            // 1 hashes to 6292367497774912474 (node 1), 5 to 4464361019114304900 (node 3)
+            ByteBuffer routingKey = TypeCodec.bigint().serialize(1L, ProtocolVersion.NEWEST_SUPPORTED);
+            Set<Host> replicas1 = metadata.getReplicas("keyspace", routingKey);
+            assertThat(metadata.getReplicas("keyspace", routingKey)).isEqualTo(replicas1);
+            // Computed from the token, so that the cache never sees the second key before the buffer is modified
+            Set<Host> replicas2 = metadata.getReplicas("keyspace",
+                    metadata.newToken(TypeCodec.bigint().serialize(5L, ProtocolVersion.NEWEST_SUPPORTED)));
+            assertThat(replicas1).containsOnly(TestUtils.findHost(cluster, 1));
+            assertThat(replicas2).containsOnly(TestUtils.findHost(cluster, 3));
+
+            // when: the buffer is modified
+            routingKey.putLong(0, 5L);
+
+            // then: the replicas of the new value are returned
+            assertThat(metadata.getReplicas("keyspace", routingKey)).isEqualTo(replicas2);
+        } finally {
+            cluster.close();
+            sCluster.stop();
+        }
+    }
+
     /**
      * Ensures that {@link TokenAwarePolicy} will properly prioritize replicas in the local datacenter
      * if a provided {@link SimpleStatement} is using an explicitly set keyspace and routing key and
@@ -0,0 +1,66 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import org.testng.annotations.Test;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+
+public class TokenBucketRetryBudgetPolicyTest {
+
+    @Test(groups = "unit")
+    public void should_allow_retries_while_bucket_is_more_than_half_full() {
+        TokenBucketRetryBudgetPolicy policy = new TokenBucketRetryBudgetPolicy(10, 0.1);
+
+        // 10 -> 5 tokens
+        for (int i = 0; i < 5; i++)
+            assertThat(policy.tryAcquire(null)).isTrue();
+        assertThat(policy.getAvailableTokens()).isEqualTo(5.0);
+
+        // at 5 tokens the bucket is only half full
+        assertThat(policy.tryAcquire(null)).isFalse();
+        assertThat(policy.getAvailableTokens()).isEqualTo(5.0);
+    }
+
+    @Test(groups = "unit")
+    public void should_refill_bucket_on_success() {
+        TokenBucketRetryBudgetPolicy policy = new TokenBucketRetryBudgetPolicy(10, 0.1);
+        for (int i = 0; i < 5; i++)
+            policy.tryAcquire(null);
+        assertThat(policy.tryAcquire(null)).isFalse();
+
+        policy.onSuccess(null);
+        assertThat(policy.getAvailableTokens()).isEqualTo(5.1);
+        assertThat(policy.tryAcquire(null)).isTrue();
+        assertThat(policy.tryAcquire(null)).isFalse();
+    }
+
+    @Test(groups = "unit")
+    public void should_not_refill_bucket_above_capacity() {
+        TokenBucketRetryBudgetPolicy policy = new TokenBucketRetryBudgetPolicy(10, 0.7);
+        policy.tryAcquire(null);
+
+        policy.onSuccess(null);
+        policy.onSuccess(null);
+
+        assertThat(policy.getAvailableTokens()).isEqualTo(10.0);
+    }
+
+    @Test(groups = "unit", expectedExceptions = IllegalArgumentException.class)
+    public void should_fail_if_ratio_too_small() {
+        new TokenBucketRetryBudgetPolicy(10, 0.0001);
+    }
+}
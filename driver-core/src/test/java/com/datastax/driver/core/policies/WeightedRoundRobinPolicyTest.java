@@ -0,0 +1,256 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core.policies;
+
+import com.datastax.driver.core.*;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WeightedRoundRobinPolicyTest {
+
+    private Host host1 = mockHost(1);
+    private Host host2 = mockHost(2);
+    private Host host3 = mockHost(3);
+    private Host remoteHost = mockHost(4);
+
+    private LoadBalancingPolicy childPolicy;
+    private Cluster cluster;
+
+    @BeforeMethod(groups = "unit")
+    public void initMocks() {
+        cluster = mock(Cluster.class);
+        childPolicy = mock(LoadBalancingPolicy.class);
+        when(childPolicy.distance(any(Host.class))).thenReturn(HostDistance.LOCAL);
+        when(childPolicy.distance(remoteHost)).thenReturn(HostDistance.REMOTE);
+        when(childPolicy.newQueryPlan(anyString(), any(Statement.class))).thenAnswer(
+                new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        return Lists.newArrayList(host1, host2, host3, remoteHost).iterator();
+                    }
+                });
+    }
+
+    @Test(groups = "unit")
+    public void should_start_plans_with_hosts_in_proportion_to_their_weights() {
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 2, host3, 5))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2, host3, remoteHost));
+
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 20, host2, 40, host3, 100));
+        Map<Host, Integer> firstHosts = new HashMap<Host, Integer>();
+        // Exactly one period of the schedule
+        for (int i = 0; i < 160; i++) {
+            Host first = policy.newQueryPlan("keyspace", null).next();
+            Integer count = firstHosts.get(first);
+            firstHosts.put(first, count == null ? 1 : count + 1);
+        }
+        assertThat(firstHosts).isEqualTo(ImmutableMap.of(host1, 20, host2, 40, host3, 100));
+    }
+
+    @Test(groups = "unit")
+    public void should_interleave_hosts_evenly() {
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 1, host3, 2))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2, host3));
+
+        // host3 never gets more than 2 plans in a row, even though it has half of them
+        int consecutive = 0;
+        for (int i = 0; i < 400; i++) {
+            Host first = policy.newQueryPlan("keyspace", null).next();
+            consecutive = (first == host3) ? consecutive + 1 : 0;
+            assertThat(consecutive).isLessThanOrEqualTo(2);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_follow_with_other_local_hosts_then_remote_hosts() {
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 1, host3, 0))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2, host3, remoteHost));
+
+        for (int i = 0; i < 10; i++) {
+            List<Host> plan = Lists.newArrayList(policy.newQueryPlan("keyspace", null));
+            assertThat(plan).hasSize(4).startsWith(i % 2 == 0 ? host1 : host2);
+            assertThat(plan).containsOnlyOnce(host1, host2, host3, remoteHost);
+            // zero weight: never first, comes from the child plan
+            assertThat(plan.subList(2, 4)).containsExactly(host3, remoteHost);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_keep_child_order_after_first_host() {
+        // given: a child policy that rotates its plans, like DCAwareRoundRobinPolicy
+        final List<Host> localHosts = Lists.newArrayList(host1, host2, host3);
+        when(childPolicy.newQueryPlan(anyString(), any(Statement.class))).thenAnswer(
+                new Answer<Object>() {
+                    private int rotation;
+
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        List<Host> plan = Lists.newArrayList(localHosts);
+                        Collections.rotate(plan, -(rotation++));
+                        plan.add(remoteHost);
+                        return plan.iterator();
+                    }
+                });
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 0, host3, 0))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2, host3, remoteHost));
+
+        Set<Host> secondHosts = new HashSet<Host>();
+        for (int i = 0; i < 3; i++) {
+            List<Host> plan = Lists.newArrayList(policy.newQueryPlan("keyspace", null));
+            assertThat(plan).hasSize(4).startsWith(host1).endsWith(remoteHost);
+            secondHosts.add(plan.get(1));
+        }
+        // then: the other local hosts are not always in the same order
+        assertThat(secondHosts).containsOnly(host2, host3);
+    }
+
+    @Test(groups = "unit")
+    public void should_not_move_first_a_host_excluded_by_child_policy() {
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 1, host3, 1))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2, host3, remoteHost));
+
+        // host1 left out of the plan (ErrorAwarePolicy), host2 moved behind the remote host (LatencyAwarePolicy)
+        when(childPolicy.newQueryPlan(anyString(), any(Statement.class))).thenAnswer(
+                new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        return Lists.newArrayList(host3, remoteHost, host2).iterator();
+                    }
+                });
+        for (int i = 0; i < 6; i++) {
+            List<Host> plan = Lists.newArrayList(policy.newQueryPlan("keyspace", null));
+            assertThat(plan).containsExactly(host3, remoteHost, host2);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_pass_explanation_to_child_policy() {
+        ExplainableQueryPlanPolicy explainableChild = mock(ExplainableQueryPlanPolicy.class);
+        when(explainableChild.distance(any(Host.class))).thenReturn(HostDistance.LOCAL);
+        QueryPlanExplanation explanation = new QueryPlanExplanation();
+        when(explainableChild.newQueryPlan(anyString(), any(Statement.class), eq(explanation)))
+                .thenReturn(Lists.newArrayList(host1, host2).iterator());
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(explainableChild)
+                .withWeigher(fixedWeigher(host1, 0, host2, 1, host3, 1))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2));
+
+        assertThat(Lists.newArrayList(policy.newQueryPlan("keyspace", null, explanation))).containsExactly(host2, host1);
+        verify(explainableChild).newQueryPlan("keyspace", null, explanation);
+    }
+
+    @Test(groups = "unit")
+    public void should_recompute_weights_on_topology_change() {
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy)
+                .withWeigher(fixedWeigher(host1, 1, host2, 1, host3, 2))
+                .build();
+        policy.init(cluster, Lists.newArrayList(host1, host2));
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 100, host2, 100));
+
+        policy.onUp(host3);
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 50, host2, 50, host3, 100));
+
+        policy.onDown(host1);
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host2, 50, host3, 100));
+        for (int i = 0; i < 10; i++) {
+            Iterator<Host> plan = policy.newQueryPlan("keyspace", null);
+            assertThat(plan.next()).isNotEqualTo(host1);
+        }
+    }
+
+    @Test(groups = "unit")
+    public void should_weigh_hosts_by_token_count() {
+        Token token = mock(Token.class);
+        when(host1.getTokens()).thenReturn(ImmutableSet.of(token));
+        when(host2.getTokens()).thenReturn(ImmutableSet.of(token, mock(Token.class), mock(Token.class), mock(Token.class)));
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy).build();
+        policy.init(cluster, Lists.newArrayList(host1, host2));
+
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 25, host2, 100));
+    }
+
+    @Test(groups = "unit")
+    public void should_give_median_weight_to_hosts_with_unknown_tokens_until_they_are_known() {
+        // given: host3 just joined, its tokens are not known yet
+        Token token = mock(Token.class);
+        Set<Token> fourTokens = ImmutableSet.of(token, mock(Token.class), mock(Token.class), mock(Token.class));
+        when(host1.getTokens()).thenReturn(ImmutableSet.of(token));
+        when(host2.getTokens()).thenReturn(fourTokens);
+        when(host3.getTokens()).thenReturn(ImmutableSet.<Token>of());
+        WeightedRoundRobinPolicy policy = WeightedRoundRobinPolicy.builder(childPolicy).build();
+        policy.init(cluster, Lists.newArrayList(host1, host2));
+        policy.onAdd(host3);
+
+        // then: median of 1 and 4
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 25, host2, 100, host3, 63));
+
+        // when: the tokens of host3 are known
+        when(host3.getTokens()).thenReturn(fourTokens);
+        Uninterruptibles.sleepUninterruptibly(1100, TimeUnit.MILLISECONDS);
+        policy.newQueryPlan("keyspace", null);
+
+        // then
+        assertThat(policy.getScheduledWeights()).isEqualTo(ImmutableMap.of(host1, 25, host2, 100, host3, 100));
+    }
+
+    private static WeightedRoundRobinPolicy.HostWeigher fixedWeigher(Host h1, double w1, Host h2, double w2, Host h3, double w3) {
+        return WeightedRoundRobinPolicy.fixedWeigher(ImmutableMap.of(
+                h1.getSocketAddress(), w1,
+                h2.getSocketAddress(), w2,
+                h3.getSocketAddress(), w3), 1);
+    }
+
+    private static Host mockHost(int i) {
+        Host host = mock(Host.class);
+        when(host.isUp()).thenReturn(true);
+        when(host.getSocketAddress()).thenReturn(new InetSocketAddress("127.0.0." + i, 9042));
+        return host;
+    }
+}
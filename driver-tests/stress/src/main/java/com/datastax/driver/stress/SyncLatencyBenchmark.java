@@ -0,0 +1,93 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.stress;
+
+import com.datastax.driver.core.*;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import java.util.Arrays;
+
+/**
+ * Compares the latency of synchronous requests ({@code Session.execute}) with asynchronous requests that are
+ * immediately waited on ({@code Session.executeAsync(...).getUninterruptibly()}).
+ * <p/>
+ * Requests are sent one at a time from a single thread, so the measured latency is dominated by the client and
+ * network overhead rather than by Cassandra's processing time.
+ * <p/>
+ * Sample usage:
+ * java -cp cassandra-driver-tests-stress-jar-with-dependencies.jar com.datastax.driver.stress.SyncLatencyBenchmark -n 100000
+ */
+public class SyncLatencyBenchmark {
+
+    private static final String QUERY = "SELECT release_version FROM system.local";
+
+    public static void main(String[] args) {
+        OptionParser parser = new OptionParser();
+        parser.accepts("n", "Number of measured requests per mode").withRequiredArg().ofType(Integer.class).defaultsTo(50000);
+        parser.accepts("warmup", "Number of warmup requests per mode").withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+        parser.accepts("ip", "The hosts ip to connect to").withRequiredArg().ofType(String.class).defaultsTo("127.0.0.1");
+        OptionSet options = parser.parse(args);
+
+        int requests = (Integer) options.valueOf("n");
+        int warmup = (Integer) options.valueOf("warmup");
+
+        Cluster cluster = Cluster.builder()
+                .addContactPoints(String.valueOf(options.valueOf("ip")))
+                .withSocketOptions(new SocketOptions().setTcpNoDelay(true))
+                .build();
+        try {
+            Session session = cluster.connect();
+            Statement statement = session.prepare(QUERY).bind();
+
+            // Alternate the modes so that JIT and server-side caches are equally warm for both
+            run(session, statement, warmup, true);
+            run(session, statement, warmup, false);
+
+            report("execute", run(session, statement, requests, true));
+            report("executeAsync + get", run(session, statement, requests, false));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    private static long[] run(Session session, Statement statement, int requests, boolean sync) {
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            if (sync)
+                session.execute(statement);
+            else
+                session.executeAsync(statement).getUninterruptibly();
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static void report(String mode, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-20s p50 = %8.1f us, p90 = %8.1f us, p99 = %8.1f us",
+                mode,
+                percentile(latencies, 50) / 1000.0,
+                percentile(latencies, 90) / 1000.0,
+                percentile(latencies, 99) / 1000.0));
+    }
+
+    private static long percentile(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)];
+    }
+}